@@ -0,0 +1,59 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import polimi.reds.Message;
+
+/**
+ * Runs the benchmarks given on the command line (all of them by default) with
+ * the usual JMH options. Unless a result file is given with <code>-rff</code>
+ * or a format with <code>-rf</code>, the results are written as JSON in
+ * <code>target/jmh-result-&lt;version&gt;.json</code>, where
+ * <code>&lt;version&gt;</code> is the version of REDS under test, so that the
+ * results of different versions can be kept side by side and compared.
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+		if (!cmd.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.JSON);
+		if (!cmd.getResult().hasValue()) {
+			// the version of the REDS classes, not of the benchmarks
+			String version = Message.class.getPackage().getImplementationVersion();
+			if (version == null)
+				version = "dev";
+			new File("target").mkdirs();
+			options.result("target/jmh-result-" + version + "."
+					+ (cmd.getResultFormat().hasValue() ? cmd.getResultFormat().get() : ResultFormatType.JSON)
+							.toString().toLowerCase());
+		}
+		new Runner(options.build()).run();
+	}
+}
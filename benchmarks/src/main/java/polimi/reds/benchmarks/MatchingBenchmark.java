@@ -0,0 +1,112 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.benchmarks;
+
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import polimi.reds.NodeDescriptor;
+import polimi.reds.PTreeFilter;
+import polimi.reds.PTreeMessage;
+import polimi.reds.PTreeStringPredicate;
+import polimi.reds.TextFilter;
+import polimi.reds.TextMessage;
+import polimi.reds.broker.routing.GenericTable;
+import polimi.reds.broker.routing.PTreeTable;
+
+/**
+ * Matching of a message against a <code>GenericTable</code> of
+ * <code>TextFilter</code>s and against a <code>PTreeTable</code> of
+ * <code>PTreeFilter</code>s, for growing numbers of subscriptions. The
+ * subscriptions are spread over <code>neighbors</code> neighbors and over one
+ * topic for every <code>subscribersPerTopic</code> of them, so the number of
+ * distinct filters grows with the subscriptions while about
+ * <code>subscribersPerTopic</code> of them match the message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchingBenchmark {
+	@Param({ "100", "1000", "10000" })
+	public int subscriptions;
+	@Param({ "100" })
+	public int neighbors;
+	@Param({ "5" })
+	public int subscribersPerTopic;
+
+	private GenericTable genericTable;
+	private PTreeTable pTreeTable;
+	private TextMessage textMessage;
+	private PTreeMessage pTreeMessage;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		NodeDescriptor[] nodes = new NodeDescriptor[neighbors];
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = new NodeDescriptor();
+		genericTable = new GenericTable();
+		pTreeTable = new PTreeTable();
+		// the tables keep one entry for equal filters: the topics must grow
+		// with the subscriptions
+		int topics = Math.max(8, subscriptions / subscribersPerTopic);
+		for (int i = 0; i < subscriptions; i++) {
+			NodeDescriptor n = nodes[random.nextInt(nodes.length)];
+			int topic = random.nextInt(topics);
+			genericTable.addSubscription(n, new TextFilter("topic " + topic + " ", TextFilter.CONTAINS));
+			PTreeFilter f = new PTreeFilter();
+			f.addPredicate(new PTreeStringPredicate("topic", PTreeStringPredicate.EQUALS, "" + topic));
+			f.addPredicate(new PTreeStringPredicate("region", PTreeStringPredicate.EQUALS, ""
+					+ random.nextInt(4)));
+			pTreeTable.addSubscription(n, f);
+		}
+		textMessage = new TextMessage("news about topic 7 from somewhere");
+		pTreeMessage = new PTreeMessage();
+		pTreeMessage.addValue("topic", "7");
+		pTreeMessage.addValue("region", "1");
+	}
+
+	@Benchmark
+	public Collection genericTable() {
+		return genericTable.matches(textMessage);
+	}
+
+	@Benchmark
+	public Collection pTreeTable() {
+		return pTreeTable.matches(pTreeMessage);
+	}
+}
@@ -0,0 +1,127 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import polimi.reds.MessageID;
+import polimi.reds.NodeDescriptor;
+import polimi.reds.broker.routing.FutureInt;
+import polimi.reds.broker.routing.HashReplyTable;
+
+/**
+ * The operations of a <code>HashReplyTable</code>: the life of the entry of a
+ * repliable message, from its recording to its last reply, and the lookup of
+ * the sender of a reply in a table holding <code>entries</code> pending
+ * entries. Both run in several threads, as they do in a broker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ReplyTableBenchmark {
+	@Param({ "10000" })
+	public int entries;
+	@Param({ "2" })
+	public int repliesPerEntry;
+
+	private HashReplyTable table;
+	private MessageID[] pending;
+	private NodeDescriptor sender;
+
+	@Setup
+	public void setUp() throws Exception {
+		table = new HashReplyTable();
+		sender = new NodeDescriptor();
+		pending = new MessageID[entries];
+		for (int i = 0; i < pending.length; i++) {
+			pending[i] = new MessageID();
+			table.addEntry(pending[i], sender, new FutureInt(1));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (int i = 0; i < pending.length; i++)
+			table.removeEntry(pending[i]);
+	}
+
+	/**
+	 * The identifiers recorded by a single thread, so that no two threads
+	 * record the same message.
+	 */
+	@State(Scope.Thread)
+	public static class Messages {
+		MessageID[] ids;
+		int next;
+		int lookup;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			ids = new MessageID[1024];
+			for (int i = 0; i < ids.length; i++)
+				ids[i] = new MessageID();
+			next = 0;
+			lookup = 0;
+		}
+
+		MessageID next() {
+			MessageID id = ids[next];
+			next = (next + 1) % ids.length;
+			return id;
+		}
+	}
+
+	@Benchmark
+	public NodeDescriptor entryLifecycle(Messages messages) throws Exception {
+		MessageID id = messages.next();
+		table.addEntry(id, sender, new FutureInt(repliesPerEntry));
+		NodeDescriptor s = null;
+		for (int i = 0; i < repliesPerEntry; i++) {
+			s = table.getSender(id);
+			table.decrementNumberOfPendingReplies(id);
+		}
+		return s;
+	}
+
+	@Benchmark
+	public NodeDescriptor getSender(Messages messages) {
+		return table.getSender(pending[messages.lookup++ % pending.length]);
+	}
+}
@@ -0,0 +1,110 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import polimi.reds.TextMessage;
+import polimi.reds.broker.overlay.Envelope;
+import polimi.reds.broker.overlay.REDSMarshaller;
+import polimi.reds.broker.overlay.REDSUnmarshaller;
+import polimi.reds.broker.overlay.Transport;
+import polimi.reds.broker.routing.Router;
+import polimi.util.DeepCopier;
+
+/**
+ * Serialization of an <code>Envelope</code> carrying a publication: encoding
+ * with a <code>REDSMarshaller</code>, a full round trip through a
+ * <code>REDSUnmarshaller</code>, and the <code>DeepCopier</code> used to copy
+ * messages delivered locally.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+	@Param({ "16", "1024" })
+	public int payloadSize;
+
+	private Envelope envelope;
+	private TextMessage message;
+	private byte[] encoded;
+
+	@Setup
+	public void setUp() throws IOException {
+		StringBuffer text = new StringBuffer(payloadSize);
+		for (int i = 0; i < payloadSize; i++)
+			text.append((char) ('a' + i % 26));
+		message = new TextMessage(text.toString());
+		message.createID();
+		envelope = new Envelope(Router.PUBLISH, message, Transport.MESSAGE_CLASS);
+		encoded = encode(envelope);
+	}
+
+	private static byte[] encode(Envelope e) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		REDSMarshaller out = new REDSMarshaller(bytes);
+		out.writeObject(e);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static Object decode(byte[] b) throws IOException, ClassNotFoundException {
+		return new REDSUnmarshaller(new ByteArrayInputStream(b)).readObject();
+	}
+
+	@Benchmark
+	public byte[] marshal() throws IOException {
+		return encode(envelope);
+	}
+
+	@Benchmark
+	public Object unmarshal() throws IOException, ClassNotFoundException {
+		return decode(encoded);
+	}
+
+	@Benchmark
+	public Object roundTrip() throws IOException, ClassNotFoundException {
+		return decode(encode(envelope));
+	}
+
+	@Benchmark
+	public Object deepCopy() throws IOException, ClassNotFoundException {
+		return DeepCopier.copy(message);
+	}
+}
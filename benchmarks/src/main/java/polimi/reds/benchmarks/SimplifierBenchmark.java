@@ -0,0 +1,83 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import polimi.reds.context.Property;
+import polimi.reds.context.routing.PropertyRange;
+import polimi.reds.context.routing.SimplePropertyRangeSimplifier;
+
+/**
+ * <code>SimplePropertyRangeSimplifier.merge</code> of integer, real and string
+ * ranges, as done when the context aggregation merges the ranges of the same
+ * property.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimplifierBenchmark {
+	private SimplePropertyRangeSimplifier simplifier;
+	private PropertyRange greaterInt, lowerInt;
+	private PropertyRange greaterReal, equalsReal;
+	private PropertyRange startsWith, longerStartsWith;
+
+	@Setup
+	public void setUp() {
+		simplifier = new SimplePropertyRangeSimplifier();
+		greaterInt = new PropertyRange("temperature", Property.INTEGER, PropertyRange.GREATER, new Integer(10));
+		lowerInt = new PropertyRange("temperature", Property.INTEGER, PropertyRange.LOWER, new Integer(30));
+		greaterReal = new PropertyRange("speed", Property.REAL, PropertyRange.GREATER, new Double(1.5));
+		equalsReal = new PropertyRange("speed", Property.REAL, PropertyRange.EQUALS, new Double(7.25));
+		startsWith = new PropertyRange("room", Property.STRING, PropertyRange.STARTS_WITH, "building");
+		longerStartsWith = new PropertyRange("room", Property.STRING, PropertyRange.STARTS_WITH,
+				"building 4 floor");
+	}
+
+	@Benchmark
+	public PropertyRange mergeInteger() {
+		return simplifier.merge(greaterInt, lowerInt);
+	}
+
+	@Benchmark
+	public PropertyRange mergeReal() {
+		return simplifier.merge(greaterReal, equalsReal);
+	}
+
+	@Benchmark
+	public PropertyRange mergeString() {
+		return simplifier.merge(startsWith, longerStartsWith);
+	}
+}
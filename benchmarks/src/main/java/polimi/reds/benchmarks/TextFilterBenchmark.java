@@ -0,0 +1,91 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import polimi.reds.TextFilter;
+import polimi.reds.TextMessage;
+
+/**
+ * <code>TextFilter.matches</code> for each match type, against a message it
+ * matches and against one it does not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextFilterBenchmark {
+	@Param({ "EXACT", "CONTAINS", "BEGINS", "ENDS" })
+	public String matchType;
+
+	private TextFilter filter;
+	private TextMessage matching;
+	private TextMessage notMatching;
+
+	@Setup
+	public void setUp() {
+		String text = "the quick brown fox jumps over the lazy dog";
+		String pattern;
+		int type;
+		if (matchType.equals("EXACT")) {
+			type = TextFilter.EXACT;
+			pattern = text;
+		} else if (matchType.equals("CONTAINS")) {
+			type = TextFilter.CONTAINS;
+			pattern = "fox jumps";
+		} else if (matchType.equals("BEGINS")) {
+			type = TextFilter.BEGINS;
+			pattern = "the quick";
+		} else if (matchType.equals("ENDS")) {
+			type = TextFilter.ENDS;
+			pattern = "lazy dog";
+		} else
+			throw new IllegalArgumentException("Match type " + matchType);
+		filter = new TextFilter(pattern, type);
+		matching = new TextMessage(text);
+		notMatching = new TextMessage("a slow brown cat sleeps under the lazy cow");
+	}
+
+	@Benchmark
+	public boolean matching() {
+		return filter.matches(matching);
+	}
+
+	@Benchmark
+	public boolean notMatching() {
+		return filter.matches(notMatching);
+	}
+}
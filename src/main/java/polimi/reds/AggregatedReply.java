@@ -0,0 +1,92 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+/**
+ * A batch of replies to the same repliable message, sent by a broker in place
+ * of the single replies it gathered from its neighbors. Dispatching services
+ * split it back into single replies, see <code>split()</code>, so clients
+ * never see it.
+ * 
+ * @see polimi.reds.broker.routing.AggregatingReplyManager
+ */
+public class AggregatedReply extends Reply {
+	private static final long serialVersionUID = 6214577096802218356L;
+	private Message[] payloads;
+
+	/**
+	 * A batch of replies to a given message.
+	 * 
+	 * @param repliableMessageID
+	 *            the id of the replied message
+	 * @param last
+	 *            <code>true</code> this batch ends the replies for that
+	 *            message
+	 * @param payloads
+	 *            the payloads of the replies
+	 */
+	public AggregatedReply(MessageID repliableMessageID, boolean last, Message[] payloads) {
+		super(repliableMessageID, last, null);
+		this.payloads = payloads;
+	}
+
+	/**
+	 * Gets the payloads of all the replies in the batch.
+	 * 
+	 * @return the payloads.
+	 */
+	public Message[] getPayloads() {
+		return payloads;
+	}
+
+	/**
+	 * Gets the payload of the first reply in the batch, so that brokers that
+	 * do not know about batches forward it.
+	 * 
+	 * @return the first payload, or <code>null</code> if the batch is empty.
+	 */
+	public Message getPayload() {
+		return payloads.length > 0 ? payloads[0] : null;
+	}
+
+	/**
+	 * Splits the batch into single replies. Only the last of them is marked
+	 * as last, and only if the batch is.
+	 * 
+	 * @return the replies.
+	 */
+	public Reply[] split() {
+		if (payloads.length == 0)
+			return isLast() ? new Reply[] { new Reply(getRepliableMessageID(), true, null) } : new Reply[0];
+		Reply[] replies = new Reply[payloads.length];
+		for (int i = 0; i < payloads.length; i++)
+			replies[i] = new Reply(getRepliableMessageID(), isLast() && i == payloads.length - 1, payloads[i]);
+		return replies;
+	}
+
+	/**
+	 * Return a <code>String</code> representation of an
+	 * <code>AggregatedReply</code> object.
+	 */
+	public String toString() {
+		return "MessageID: " + getRepliableMessageID() + " last: " + isLast() + " payloads: " + payloads.length;
+	}
+}
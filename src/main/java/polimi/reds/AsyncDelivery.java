@@ -0,0 +1,373 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The asynchronous delivery shared by the dispatching services. It gives the
+ * messages received to the listeners and the futures waiting for them:
+ * <code>deliverToListeners</code> and <code>completeFuture</code> are called
+ * by the inbox of the service holding its lock, the same lock taken by the
+ * blocking methods of the service. Listeners are run on the executor of the
+ * service. The messages waiting for each listener are bounded as the inbox,
+ * whose overflow policy applies.
+ */
+class AsyncDelivery {
+	private static ExecutorService sharedExecutor = null;
+	private Logger logger = Logger.getLogger("polimi.reds");
+	private Executor executor;
+	private ClientInbox inbox;
+	/**
+	 * The registered message listeners. Guarded by the lock of the inbox.
+	 */
+	private LinkedList listeners;
+	/**
+	 * The futures waiting for a message. Guarded by the lock of the inbox.
+	 */
+	private LinkedList messageFutures;
+
+	/**
+	 * @param inbox
+	 *            the inbox of the service
+	 */
+	AsyncDelivery(ClientInbox inbox) {
+		this.inbox = inbox;
+		inbox.async = this;
+		listeners = new LinkedList();
+		messageFutures = new LinkedList();
+	}
+
+	private static synchronized Executor getSharedExecutor() {
+		if (sharedExecutor == null) {
+			sharedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+						private int count = 0;
+
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "AsyncDelivery-" + (count++));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return sharedExecutor;
+	}
+
+	synchronized void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	private synchronized Executor getExecutor() {
+		if (executor == null)
+			executor = getSharedExecutor();
+		return executor;
+	}
+
+	void addMessageListener(Filter filter, MessageListener listener) {
+		inbox.lock();
+		try {
+			listeners.addLast(new ListenerTask(filter, listener));
+		} finally {
+			inbox.unlock();
+		}
+	}
+
+	void removeMessageListener(MessageListener listener) {
+		inbox.lock();
+		try {
+			Iterator it = listeners.iterator();
+			while (it.hasNext())
+				if (((ListenerTask) it.next()).listener == listener)
+					it.remove();
+		} finally {
+			inbox.unlock();
+		}
+	}
+
+	/**
+	 * Gives a message received to the listeners matching it. The caller must
+	 * hold the lock of the inbox, which is released while waiting for room in
+	 * the queue of a listener. The receipt is told by the first listener
+	 * queuing the message, or dropped if none does.
+	 * 
+	 * @return <code>true</code> if some listener matches the message.
+	 */
+	boolean deliverToListeners(Message msg, long length, Object key, ClientInbox.Receipt receipt) {
+		if (listeners.isEmpty())
+			return false;
+		boolean consumed = false;
+		// a copy: listeners may change while waiting for room
+		Object[] l = listeners.toArray();
+		for (int i = 0; i < l.length; i++) {
+			ListenerTask t = (ListenerTask) l[i];
+			if (t.filter == null || t.filter.matches(msg)) {
+				consumed = true;
+				if (t.post(msg, length, key, receipt))
+					receipt = null;
+			}
+		}
+		if (consumed && receipt != null)
+			receipt.dropped();
+		return consumed;
+	}
+
+	/**
+	 * Gives a message received to the first future waiting for it. The caller
+	 * must hold the lock of the inbox.
+	 * 
+	 * @return <code>true</code> if the message has been consumed,
+	 *         <code>false</code> if it must be stored in the inbox.
+	 */
+	boolean completeFuture(Message msg) {
+		Iterator it = messageFutures.iterator();
+		while (it.hasNext()) {
+			DeliveryFuture f = (DeliveryFuture) it.next();
+			if (f.filter == null || f.filter.matches(msg)) {
+				it.remove();
+				f.complete(msg);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	Future nextMessage(Filter filter) {
+		DeliveryFuture f = new DeliveryFuture(inbox.getLock(), messageFutures, filter);
+		inbox.lock();
+		try {
+			Message m = inbox.poll(filter);
+			if (m != null)
+				f.complete(m);
+			else
+				messageFutures.addLast(f);
+		} finally {
+			inbox.unlock();
+		}
+		return f;
+	}
+
+	/**
+	 * Returns a listener that runs the notifications of <code>listener</code>
+	 * on the executor of the service, one at a time and in order.
+	 */
+	ReplyListener serialize(ReplyListener listener) {
+		return new ReplyListenerTask(listener);
+	}
+
+	/**
+	 * Completes with <code>null</code> all the pending futures. Called when
+	 * the service is closed.
+	 */
+	void close() {
+		inbox.lock();
+		try {
+			while (!messageFutures.isEmpty())
+				((DeliveryFuture) messageFutures.removeFirst()).complete(null);
+		} finally {
+			inbox.unlock();
+		}
+	}
+
+	/**
+	 * Runs the notifications of one listener, one at a time and in order, on
+	 * the executor of the service.
+	 */
+	private abstract class SerialTask implements Runnable {
+		private LinkedList queue = new LinkedList();
+		private boolean scheduled = false;
+
+		void post(Object o) {
+			synchronized (this) {
+				queue.addLast(o);
+				if (scheduled)
+					return;
+				scheduled = true;
+			}
+			getExecutor().execute(this);
+		}
+
+		public void run() {
+			while (true) {
+				Object next;
+				synchronized (this) {
+					if (queue.isEmpty()) {
+						scheduled = false;
+						return;
+					}
+					next = queue.removeFirst();
+				}
+				try {
+					deliver(next);
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Listener failed", e);
+				}
+			}
+		}
+
+		abstract void deliver(Object o);
+	}
+
+	/**
+	 * Runs the notifications of a message listener, one at a time and in
+	 * order, on the executor of the service. Its queue is guarded by the lock
+	 * of the inbox, which bounds it.
+	 */
+	private class ListenerTask implements Runnable, ClientInbox.BoundedQueue {
+		Filter filter;
+		MessageListener listener;
+		private LinkedList queue = new LinkedList();
+		private long bytes = 0;
+		private boolean scheduled = false;
+
+		ListenerTask(Filter filter, MessageListener listener) {
+			this.filter = filter;
+			this.listener = listener;
+		}
+
+		/**
+		 * Queues a message, applying the overflow policy of the inbox. The
+		 * caller holds the lock of the inbox.
+		 * 
+		 * @return <code>false</code> if the message has been dropped
+		 */
+		boolean post(Message msg, long length, Object key, ClientInbox.Receipt receipt) {
+			if (!inbox.makeRoom(this, length, key))
+				return false;
+			queue.addLast(new Pending(msg, length, key, receipt));
+			bytes += length;
+			if (!scheduled) {
+				scheduled = true;
+				getExecutor().execute(this);
+			}
+			return true;
+		}
+
+		public int size() {
+			return queue.size();
+		}
+
+		public long bytes() {
+			return bytes;
+		}
+
+		public boolean dropKey(Object key) {
+			Iterator it = queue.iterator();
+			while (it.hasNext()) {
+				Pending p = (Pending) it.next();
+				if (key.equals(p.key)) {
+					it.remove();
+					dropped(p);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public boolean dropOldest() {
+			if (queue.isEmpty())
+				return false;
+			dropped((Pending) queue.removeFirst());
+			return true;
+		}
+
+		private void dropped(Pending p) {
+			bytes -= p.length;
+			if (p.receipt != null)
+				p.receipt.dropped();
+		}
+
+		public void run() {
+			while (true) {
+				Pending next;
+				inbox.lock();
+				try {
+					if (queue.isEmpty()) {
+						scheduled = false;
+						return;
+					}
+					next = (Pending) queue.removeFirst();
+					bytes -= next.length;
+					inbox.roomMade();
+				} finally {
+					inbox.unlock();
+				}
+				if (next.receipt != null)
+					next.receipt.taken();
+				try {
+					listener.notify(next.message);
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Listener failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A message waiting for a listener.
+	 */
+	private static class Pending {
+		Message message;
+		long length;
+		Object key;
+		ClientInbox.Receipt receipt;
+
+		Pending(Message message, long length, Object key, ClientInbox.Receipt receipt) {
+			this.message = message;
+			this.length = length;
+			this.key = key;
+			this.receipt = receipt;
+		}
+	}
+
+	private class ReplyListenerTask extends SerialTask implements ReplyListener {
+		private ReplyListener listener;
+
+		ReplyListenerTask(ReplyListener listener) {
+			this.listener = listener;
+		}
+
+		public void notifyReply(Message reply, MessageID repliableMessageID, boolean last) {
+			post(new Object[] { reply, repliableMessageID, Boolean.valueOf(last) });
+		}
+
+		public void notifyTimeout(MessageID repliableMessageID) {
+			post(repliableMessageID);
+		}
+
+		void deliver(Object o) {
+			if (o instanceof MessageID)
+				listener.notifyTimeout((MessageID) o);
+			else {
+				Object[] r = (Object[]) o;
+				listener.notifyReply((Message) r[0], (MessageID) r[1], ((Boolean) r[2]).booleanValue());
+			}
+		}
+	}
+}
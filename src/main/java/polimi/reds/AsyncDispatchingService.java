@@ -0,0 +1,132 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**********************************************************************
+ * A <code>DispatchingService</code> that also delivers messages and replies
+ * without blocking the caller. Messages can be consumed through listeners
+ * bound to a <code>Filter</code>, which are run by an <code>Executor</code>
+ * shared by all the listeners, or through <code>Future</code>s.<br>
+ * A message received is given to every listener whose filter matches it. If
+ * no listener matches, it completes the oldest pending <code>Future</code>
+ * whose filter matches, and only if there is none it is stored in the queue
+ * read by <code>getNextMessage()</code>.<br>
+ * The messages waiting for each listener are bounded by the capacity of the
+ * inbox, and its overflow policy applies to them.<br>
+ * Listeners do not change the subscriptions of the client: messages are
+ * received only if they match a filter passed to <code>subscribe</code>.
+ **********************************************************************/
+public interface AsyncDispatchingService extends DispatchingService {
+	/**
+	 * Sets the executor used to run the listeners of this service. By default
+	 * listeners are run by a pool of daemon threads shared by all the
+	 * dispatching services of the jvm.
+	 * 
+	 * @param executor
+	 *            the executor.
+	 */
+	public void setExecutor(Executor executor);
+
+	/**
+	 * Registers a listener for the messages matching the given filter.
+	 * 
+	 * @param filter
+	 *            the <code>Filter</code> used to select the messages or
+	 *            <code>null</code> to receive all the messages.
+	 * @param listener
+	 *            the listener.
+	 */
+	public void addMessageListener(Filter filter, MessageListener listener);
+
+	/**
+	 * Removes all the registrations of the given listener. Messages already
+	 * handed to the listener are still delivered.
+	 * 
+	 * @param listener
+	 *            the listener to remove.
+	 */
+	public void removeMessageListener(MessageListener listener);
+
+	/**
+	 * Returns a <code>Future</code> completed with the first message
+	 * available. The future is completed with <code>null</code> if the
+	 * service is closed before a message arrives.
+	 * 
+	 * @return a <code>Future</code> for the next message.
+	 */
+	public Future nextMessage();
+
+	/**
+	 * Returns a <code>Future</code> completed with the first message available
+	 * that matches the specified filter.
+	 * 
+	 * @param f
+	 *            the <code>Filter</code> used to select the message.
+	 * @return a <code>Future</code> for the next message matching
+	 *         <code>f</code>.
+	 */
+	public Future nextMessage(Filter f);
+
+	/**
+	 * Publish a new message, delivering its replies to the given listener
+	 * instead of queueing them for <code>getNextReply</code>. If
+	 * <code>msg</code> is not <code>Repliable</code> or
+	 * <code>listener</code> is <code>null</code> it behaves like
+	 * <code>publish(Message)</code>.
+	 * 
+	 * @param msg
+	 *            the <code>Message</code> to publish.
+	 * @param listener
+	 *            the listener of the replies.
+	 */
+	public void publish(Message msg, ReplyListener listener);
+
+	/**
+	 * Returns a <code>Future</code> completed with the next reply to the given
+	 * message. The future is completed with <code>null</code> if the message
+	 * is unknown or all its replies have already been got, and fails with a
+	 * <code>TimeoutException</code> if the reply timeout expires.
+	 * 
+	 * @param repliableMessageID
+	 *            ID of the corresponding repliable message.
+	 * @return a <code>Future</code> for the next reply.
+	 */
+	public Future nextReply(MessageID repliableMessageID);
+
+	/**
+	 * Publish a new repliable message, returning the stream of its replies.
+	 * Its replies are neither queued for <code>getNextReply</code> nor
+	 * returned by <code>getAllReplies</code>.
+	 * 
+	 * @param msg
+	 *            the <code>Message</code> to publish. It must be
+	 *            <code>Repliable</code>.
+	 * @param capacity
+	 *            the maximum number of replies held by the stream
+	 * @return the stream of the replies.
+	 * @throws IllegalStateException
+	 *             if the dispatching service is not opened
+	 */
+	public ReplyStream streamReplies(Message msg, int capacity);
+}
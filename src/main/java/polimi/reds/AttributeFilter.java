@@ -0,0 +1,256 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A filter for <code>AttributeMessage</code>s, compiled from an expression:
+ * a conjunction of predicates on the attributes, joined by <code>and</code>
+ * (or <code>&&</code>), such as
+ * 
+ * <pre>
+ * symbol = &quot;ACME&quot; and price between 10 and 20.5 and venue prefix 'NY' and halted = false
+ * </pre>
+ * 
+ * Each predicate is a comparison (<code>=</code>, <code>==</code>,
+ * <code>!=</code>, <code>&lt;</code>, <code>&lt;=</code>,
+ * <code>&gt;</code>, <code>&gt;=</code>) of an attribute with a constant, a
+ * range (<code>between</code> two constants, both included), a prefix of a
+ * string (<code>prefix</code>) or the presence of the attribute
+ * (<code>exists</code>). Constants are strings in double or single quotes
+ * (with <code>\</code> escaping the next character), integers, floating point
+ * numbers, <code>true</code> and <code>false</code>. The names of the
+ * attributes are made of letters, digits, <code>_</code> and <code>.</code>,
+ * and each one may be tested once.<br>
+ * The expression is compiled into <code>AttributePredicate</code>s, sorted by
+ * attribute, so the filter is a <code>PTreeFilter</code> that a
+ * <code>PTreeTable</code> indexes directly, sharing the tests of the
+ * predicates common to several filters; the predicates read the attributes in
+ * place. Equal expressions, up to the order of the predicates, give equal
+ * filters.
+ * 
+ * @see AttributeMessage
+ * @see polimi.reds.broker.routing.PTreeTable
+ */
+public class AttributeFilter extends PTreeFilter {
+	private static final long serialVersionUID = 7400817006398931286L;
+
+	/**
+	 * Compiles a filter.
+	 * 
+	 * @param expression
+	 *            the expression
+	 * @throws IllegalArgumentException
+	 *             if the expression is not well formed
+	 */
+	public AttributeFilter(String expression) {
+		List predicates = new Parser(expression).parse();
+		Collections.sort(predicates, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				return ((PTreePredicate) o1).getTestVariable().compareTo(((PTreePredicate) o2).getTestVariable());
+			}
+		});
+		for (int i = 0; i < predicates.size(); i++) {
+			AttributePredicate p = (AttributePredicate) predicates.get(i);
+			if (i > 0 && p.getTestVariable().equals(getPredicate(i - 1).getTestVariable()))
+				throw new IllegalArgumentException("Attribute " + p.getTestVariable() + " tested twice in "
+						+ expression + " (use between for a range)");
+			addPredicate(p);
+		}
+	}
+
+	/**
+	 * Gets the expression of the filter, with the predicates sorted by
+	 * attribute.
+	 */
+	public String toString() {
+		StringBuffer result = new StringBuffer();
+		for (int i = 0; i < getLength(); i++) {
+			if (i > 0)
+				result.append(" and ");
+			result.append(getPredicate(i));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * A recursive descent parser of the expressions.
+	 */
+	private static class Parser {
+		private String text;
+		private int pos = 0;
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		List parse() {
+			List predicates = new ArrayList();
+			predicates.add(predicate());
+			while (!atEnd()) {
+				if (!keyword("and") && !symbol("&&"))
+					throw error("and");
+				predicates.add(predicate());
+			}
+			return predicates;
+		}
+
+		private AttributePredicate predicate() {
+			String name = name();
+			if (keyword("exists"))
+				return new AttributePredicate(name, AttributePredicate.EXISTS, null);
+			if (keyword("prefix")) {
+				Object value = constant();
+				if (!(value instanceof String))
+					throw new IllegalArgumentException("A prefix must be a string in " + text);
+				return new AttributePredicate(name, AttributePredicate.PREFIX, value);
+			}
+			if (keyword("between")) {
+				Object lower = constant();
+				if (!keyword("and"))
+					throw error("and");
+				return new AttributePredicate(name, lower, constant());
+			}
+			int operator;
+			if (symbol("==") || symbol("="))
+				operator = AttributePredicate.EQUALS;
+			else if (symbol("!="))
+				operator = AttributePredicate.NOT_EQUALS;
+			else if (symbol("<="))
+				operator = AttributePredicate.LESS_EQUAL;
+			else if (symbol("<"))
+				operator = AttributePredicate.LESS;
+			else if (symbol(">="))
+				operator = AttributePredicate.GREATER_EQUAL;
+			else if (symbol(">"))
+				operator = AttributePredicate.GREATER;
+			else
+				throw error("an operator");
+			return new AttributePredicate(name, operator, constant());
+		}
+
+		private String name() {
+			skipSpaces();
+			int start = pos;
+			if (pos < text.length() && (Character.isLetter(text.charAt(pos)) || text.charAt(pos) == '_'))
+				while (pos < text.length()
+						&& (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_' || text
+								.charAt(pos) == '.'))
+					pos++;
+			if (pos == start)
+				throw error("the name of an attribute");
+			return text.substring(start, pos);
+		}
+
+		private Object constant() {
+			skipSpaces();
+			if (pos == text.length())
+				throw error("a constant");
+			char c = text.charAt(pos);
+			if (c == '"' || c == '\'')
+				return string(c);
+			if (keyword("true"))
+				return Boolean.TRUE;
+			if (keyword("false"))
+				return Boolean.FALSE;
+			int start = pos;
+			boolean integer = true;
+			if (c == '-' || c == '+')
+				pos++;
+			while (pos < text.length()) {
+				c = text.charAt(pos);
+				if (c == '.' || c == 'e' || c == 'E')
+					integer = false;
+				else if (!Character.isDigit(c)
+						&& !((c == '-' || c == '+') && (text.charAt(pos - 1) == 'e' || text.charAt(pos - 1) == 'E')))
+					break;
+				pos++;
+			}
+			String number = text.substring(start, pos);
+			try {
+				if (integer)
+					return new Long(Long.parseLong(number.startsWith("+") ? number.substring(1) : number));
+				return new Double(Double.parseDouble(number));
+			} catch (NumberFormatException e) {
+				pos = start;
+				throw error("a constant");
+			}
+		}
+
+		private String string(char quote) {
+			StringBuffer result = new StringBuffer();
+			int start = pos++;
+			while (pos < text.length()) {
+				char c = text.charAt(pos++);
+				if (c == quote)
+					return result.toString();
+				if (c == '\\' && pos < text.length())
+					c = text.charAt(pos++);
+				result.append(c);
+			}
+			pos = start;
+			throw error("a closed string");
+		}
+
+		/**
+		 * Consumes the given keyword, in any case, if it is next.
+		 */
+		private boolean keyword(String word) {
+			skipSpaces();
+			int end = pos + word.length();
+			if (end > text.length() || !text.regionMatches(true, pos, word, 0, word.length()))
+				return false;
+			if (end < text.length() && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_'))
+				return false;
+			pos = end;
+			return true;
+		}
+
+		/**
+		 * Consumes the given symbol if it is next.
+		 */
+		private boolean symbol(String s) {
+			skipSpaces();
+			if (!text.startsWith(s, pos))
+				return false;
+			pos += s.length();
+			return true;
+		}
+
+		private boolean atEnd() {
+			skipSpaces();
+			return pos == text.length();
+		}
+
+		private void skipSpaces() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+				pos++;
+		}
+
+		private IllegalArgumentException error(String expected) {
+			return new IllegalArgumentException("Expected " + expected + " at position " + pos + " of " + text);
+		}
+	}
+}
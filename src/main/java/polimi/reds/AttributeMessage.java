@@ -0,0 +1,443 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message made of named attributes, each one a string, a long integer, a
+ * double or a boolean. The attributes are kept in a single array of bytes,
+ * without a schema: each one is written as its name, its type and its value,
+ * with the names and the strings in UTF-8 and the lengths and the integers as
+ * variable length numbers. The bytes in use are serialized as is, and an
+ * <code>AttributePredicate</code> reads the value it tests in place, without
+ * building the objects of the attributes.<br>
+ * Being a <code>PTreeMessage</code>, it is matched by the
+ * <code>AttributeFilter</code>s in a <code>PTreeTable</code>; its
+ * <code>getValue</code> decodes the value of an attribute.
+ * 
+ * @see AttributeFilter
+ */
+public class AttributeMessage extends PTreeMessage {
+	private static final long serialVersionUID = -2604419567925574213L;
+
+	/** The type of the string attributes. */
+	public static final int STRING = 0;
+	/** The type of the integer attributes. */
+	public static final int LONG = 1;
+	/** The type of the floating point attributes. */
+	public static final int DOUBLE = 2;
+	/** The type of the boolean attributes. */
+	public static final int BOOLEAN = 3;
+
+	private byte[] attributes = new byte[0];
+	private int length = 0;
+
+	public AttributeMessage() {
+		super();
+	}
+
+	/**
+	 * Sets a string attribute.
+	 * 
+	 * @param name
+	 *            the name of the attribute
+	 * @param value
+	 *            its value
+	 */
+	public void put(String name, String value) {
+		byte[] bytes = utf8(value);
+		int at = prepare(name, STRING, 5 + bytes.length);
+		at = writeVarLong(bytes.length, at);
+		System.arraycopy(bytes, 0, attributes, at, bytes.length);
+		length = at + bytes.length;
+	}
+
+	/**
+	 * Sets an integer attribute.
+	 * 
+	 * @param name
+	 *            the name of the attribute
+	 * @param value
+	 *            its value
+	 */
+	public void put(String name, long value) {
+		int at = prepare(name, LONG, 10);
+		// zig-zag encoding, so that small negative numbers are short
+		length = writeVarLong((value << 1) ^ (value >> 63), at);
+	}
+
+	/**
+	 * Sets a floating point attribute.
+	 * 
+	 * @param name
+	 *            the name of the attribute
+	 * @param value
+	 *            its value
+	 */
+	public void put(String name, double value) {
+		int at = prepare(name, DOUBLE, 8);
+		long bits = Double.doubleToLongBits(value);
+		for (int i = 0; i < 8; i++)
+			attributes[at++] = (byte) (bits >>> (56 - 8 * i));
+		length = at;
+	}
+
+	/**
+	 * Sets a boolean attribute.
+	 * 
+	 * @param name
+	 *            the name of the attribute
+	 * @param value
+	 *            its value
+	 */
+	public void put(String name, boolean value) {
+		int at = prepare(name, BOOLEAN, 1);
+		attributes[at++] = (byte) (value ? 1 : 0);
+		length = at;
+	}
+
+	/**
+	 * Sets a string attribute.
+	 * 
+	 * @see #put(String, String)
+	 */
+	public void addValue(String key, String value) {
+		put(key, value);
+	}
+
+	/**
+	 * Gets the value of an attribute.
+	 * 
+	 * @param key
+	 *            the name of the attribute
+	 * @return a <code>String</code>, a <code>Long</code>, a
+	 *         <code>Double</code> or a <code>Boolean</code>, or
+	 *         <code>null</code> if the attribute is not set
+	 */
+	public Object getValue(String key) {
+		int at = find(utf8(key));
+		if (at < 0)
+			return null;
+		switch (attributes[at]) {
+		case STRING:
+			return getString(at);
+		case LONG:
+			return new Long(getLong(at));
+		case DOUBLE:
+			return new Double(getDouble(at));
+		default:
+			return Boolean.valueOf(getBoolean(at));
+		}
+	}
+
+	/**
+	 * Gets the type of an attribute.
+	 * 
+	 * @param name
+	 *            the name of the attribute
+	 * @return its type, or -1 if it is not set
+	 */
+	public int getType(String name) {
+		int at = find(utf8(name));
+		return at < 0 ? -1 : attributes[at];
+	}
+
+	/**
+	 * Gets the names of the attributes, in the order they were set.
+	 * 
+	 * @return the names
+	 */
+	public String[] getNames() {
+		List names = new ArrayList();
+		int at = 0;
+		while (at < length) {
+			int size = (int) readVarLong(at);
+			at = skipVarLong(at);
+			names.add(decode(at, size));
+			at = skipValue(at + size);
+		}
+		return (String[]) names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Gets the number of bytes taken by the attributes.
+	 * 
+	 * @return the number of bytes
+	 */
+	public int getSize() {
+		return length;
+	}
+
+	/**
+	 * Finds an attribute.
+	 * 
+	 * @param name
+	 *            the UTF-8 bytes of its name
+	 * @return the position of its type, or -1 if it is not set
+	 */
+	int find(byte[] name) {
+		int at = 0;
+		while (at < length) {
+			int size = (int) readVarLong(at);
+			at = skipVarLong(at);
+			if (size == name.length && sameBytes(name, at))
+				return at + size;
+			at = skipValue(at + size);
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the type of the attribute whose type is at the given position.
+	 */
+	int getTypeAt(int at) {
+		return attributes[at];
+	}
+
+	long getLong(int at) {
+		long zigzag = readVarLong(at + 1);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	double getDouble(int at) {
+		long bits = 0;
+		for (int i = 1; i <= 8; i++)
+			bits = bits << 8 | (attributes[at + i] & 0xff);
+		return Double.longBitsToDouble(bits);
+	}
+
+	boolean getBoolean(int at) {
+		return attributes[at + 1] != 0;
+	}
+
+	String getString(int at) {
+		int size = (int) readVarLong(at + 1);
+		return decode(skipVarLong(at + 1), size);
+	}
+
+	/**
+	 * Compares the value of a string attribute with the given UTF-8 bytes, as
+	 * unsigned bytes (that is, by code point).
+	 * 
+	 * @param at
+	 *            the position of the type of the attribute
+	 * @param value
+	 *            the bytes
+	 * @param prefix
+	 *            if <code>true</code>, the value is only compared with its
+	 *            first bytes
+	 * @return a negative number, zero or a positive number as the value of the
+	 *         attribute precedes, equals or follows <code>value</code>
+	 */
+	int compareString(int at, byte[] value, boolean prefix) {
+		int size = (int) readVarLong(at + 1);
+		int start = skipVarLong(at + 1);
+		if (prefix && size > value.length)
+			size = value.length;
+		int n = Math.min(size, value.length);
+		for (int i = 0; i < n; i++) {
+			int d = (attributes[start + i] & 0xff) - (value[i] & 0xff);
+			if (d != 0)
+				return d;
+		}
+		return size - value.length;
+	}
+
+	/**
+	 * Removes the attribute with the given name, if set, and makes room for a
+	 * new one at the end.
+	 * 
+	 * @return the position of the value of the new attribute
+	 */
+	private int prepare(String name, int type, int maxValueSize) {
+		byte[] bytes = utf8(name);
+		remove(bytes);
+		ensureCapacity(length + 5 + bytes.length + 1 + maxValueSize);
+		int at = writeVarLong(bytes.length, length);
+		System.arraycopy(bytes, 0, attributes, at, bytes.length);
+		at += bytes.length;
+		attributes[at++] = (byte) type;
+		return at;
+	}
+
+	private void remove(byte[] name) {
+		int at = 0;
+		while (at < length) {
+			int start = at;
+			int size = (int) readVarLong(at);
+			at = skipVarLong(at);
+			boolean found = size == name.length && sameBytes(name, at);
+			at = skipValue(at + size);
+			if (found) {
+				System.arraycopy(attributes, at, attributes, start, length - at);
+				length -= at - start;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gets the position after the value whose type is at the given position.
+	 */
+	private int skipValue(int at) {
+		switch (attributes[at]) {
+		case STRING:
+			int size = (int) readVarLong(at + 1);
+			return skipVarLong(at + 1) + size;
+		case LONG:
+			return skipVarLong(at + 1);
+		case DOUBLE:
+			return at + 9;
+		default:
+			return at + 2;
+		}
+	}
+
+	private boolean sameBytes(byte[] bytes, int at) {
+		for (int i = 0; i < bytes.length; i++)
+			if (attributes[at + i] != bytes[i])
+				return false;
+		return true;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > attributes.length) {
+			byte[] a = new byte[Math.max(capacity, attributes.length * 2)];
+			System.arraycopy(attributes, 0, a, 0, length);
+			attributes = a;
+		}
+	}
+
+	private int writeVarLong(long value, int at) {
+		while ((value & ~0x7fL) != 0) {
+			attributes[at++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		attributes[at++] = (byte) value;
+		return at;
+	}
+
+	private long readVarLong(int at) {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = attributes[at++];
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+	}
+
+	private int skipVarLong(int at) {
+		while (attributes[at] < 0)
+			at++;
+		return at + 1;
+	}
+
+	private String decode(int at, int size) {
+		try {
+			return new String(attributes, at, size, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	/**
+	 * Encodes a string in UTF-8.
+	 */
+	static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	public String toString() {
+		StringBuffer result = new StringBuffer("{");
+		String[] names = getNames();
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0)
+				result.append(", ");
+			result.append(names[i]).append('=').append(getValue(names[i]));
+		}
+		return result.append('}').toString();
+	}
+
+	/**
+	 * Checks that the attributes can be walked without leaving the bytes in
+	 * use.
+	 */
+	private boolean isWellFormed() {
+		int at = 0;
+		try {
+			while (at < length) {
+				long size = readVarLong(at);
+				at = skipVarLong(at);
+				// the name must leave room for the type
+				if (size < 0 || size >= length - at)
+					return false;
+				at += (int) size;
+				int type = attributes[at];
+				if (type < STRING || type > BOOLEAN)
+					return false;
+				if (type == STRING) {
+					size = readVarLong(at + 1);
+					if (size < 0 || size > length - skipVarLong(at + 1))
+						return false;
+				}
+				at = skipValue(at);
+			}
+			return at == length;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return false;
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		// only the bytes in use are written, from a copy: the same message
+		// may be serialized by several threads at once
+		byte[] a = attributes;
+		if (a.length != length) {
+			a = new byte[length];
+			System.arraycopy(attributes, 0, a, 0, length);
+		}
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("attributes", a);
+		fields.put("length", length);
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (attributes == null || length < 0 || length > attributes.length)
+			throw new InvalidObjectException("Invalid length " + length + " of "
+					+ (attributes == null ? "no" : String.valueOf(attributes.length)) + " attribute bytes");
+		if (!isWellFormed())
+			throw new InvalidObjectException("Malformed attributes");
+	}
+}
@@ -0,0 +1,342 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+
+/**
+ * A predicate on an attribute of an <code>AttributeMessage</code>: a
+ * comparison with a constant, a range, a prefix or the presence of the
+ * attribute. The constant is a <code>String</code>, a <code>Long</code>, a
+ * <code>Double</code> or a <code>Boolean</code>; integers and floating point
+ * numbers are compared with each other, while an attribute of another type
+ * than the constant never satisfies the predicate, not even a
+ * <code>NOT_EQUALS</code> one. Strings are compared by code point.<br>
+ * The predicates are usually built by compiling an
+ * <code>AttributeFilter</code>. On an <code>AttributeMessage</code> they read
+ * the value in place, comparing the UTF-8 bytes of the strings; on other
+ * <code>PTreeMessage</code>s they compare the objects of the values.
+ * 
+ * @see AttributeFilter
+ */
+public class AttributePredicate implements PTreePredicate {
+	private static final long serialVersionUID = 4140893766209981517L;
+
+	public final static int EQUALS = 0;
+	public final static int NOT_EQUALS = 1;
+	public final static int LESS = 2;
+	public final static int LESS_EQUAL = 3;
+	public final static int GREATER = 4;
+	public final static int GREATER_EQUAL = 5;
+	/** Tests if the attribute is between two constants, both included. */
+	public final static int BETWEEN = 6;
+	/** Tests if a string attribute begins with the constant. */
+	public final static int PREFIX = 7;
+	/** Tests if the attribute is set. */
+	public final static int EXISTS = 8;
+
+	private static final String[] SYMBOLS = { "=", "!=", "<", "<=", ">", ">=", "between", "prefix", "exists" };
+	/** The result of comparing values of different types. */
+	private static final int INCOMPARABLE = Integer.MIN_VALUE;
+
+	private String name;
+	private int operator;
+	private Object value;
+	private Object upper;
+	// The UTF-8 bytes of the name and of the string constants, computed when
+	// the predicate is built or read, so that matching threads never write
+	private transient byte[] nameBytes;
+	private transient byte[] valueBytes;
+	private transient byte[] upperBytes;
+
+	/**
+	 * Builds a predicate comparing an attribute with a constant.
+	 * 
+	 * @param name
+	 *            the name of the attribute
+	 * @param operator
+	 *            the operator, from <code>EQUALS</code> to
+	 *            <code>GREATER_EQUAL</code>, <code>PREFIX</code> or
+	 *            <code>EXISTS</code>
+	 * @param value
+	 *            the constant (an <code>Integer</code> or a
+	 *            <code>Float</code> are widened), or <code>null</code> for
+	 *            <code>EXISTS</code>
+	 */
+	public AttributePredicate(String name, int operator, Object value) {
+		this.name = name;
+		this.operator = operator;
+		this.value = normalize(value);
+		if (operator < EQUALS || operator > EXISTS || operator == BETWEEN)
+			throw new IllegalArgumentException("Illegal operator " + operator);
+		if (operator == EXISTS ? value != null : value == null)
+			throw new IllegalArgumentException("Illegal constant " + value + " for " + SYMBOLS[operator]);
+		if (operator == PREFIX && !(value instanceof String))
+			throw new IllegalArgumentException("A prefix must be a string: " + value);
+		if (operator >= LESS && this.value instanceof Boolean)
+			throw new IllegalArgumentException("Booleans are not ordered: " + SYMBOLS[operator] + " " + value);
+		encode();
+	}
+
+	/**
+	 * Builds a predicate testing if an attribute is between two constants,
+	 * both included.
+	 * 
+	 * @param name
+	 *            the name of the attribute
+	 * @param lower
+	 *            the lowest value
+	 * @param upper
+	 *            the highest value
+	 */
+	public AttributePredicate(String name, Object lower, Object upper) {
+		this.name = name;
+		this.operator = BETWEEN;
+		this.value = normalize(lower);
+		this.upper = normalize(upper);
+		if (value == null || this.upper == null || value instanceof Boolean || this.upper instanceof Boolean
+				|| (value instanceof String) != (this.upper instanceof String))
+			throw new IllegalArgumentException("Illegal range " + lower + " to " + upper);
+		encode();
+	}
+
+	private static Object normalize(Object o) {
+		if (o instanceof Integer || o instanceof Short || o instanceof Byte)
+			return new Long(((Number) o).longValue());
+		if (o instanceof Float)
+			return new Double(((Float) o).doubleValue());
+		if (o == null || o instanceof String || o instanceof Long || o instanceof Double || o instanceof Boolean)
+			return o;
+		throw new IllegalArgumentException("Illegal constant " + o);
+	}
+
+	/**
+	 * @see PTreePredicate#getTestVariable()
+	 */
+	public String getTestVariable() {
+		return name;
+	}
+
+	/**
+	 * @see PTreePredicate#getResult()
+	 */
+	public String getResult() {
+		if (operator == EXISTS)
+			return SYMBOLS[EXISTS];
+		if (operator == BETWEEN)
+			return SYMBOLS[BETWEEN] + " " + literal(value) + " and " + literal(upper);
+		return SYMBOLS[operator] + " " + literal(value);
+	}
+
+	/**
+	 * Gets the operator.
+	 * 
+	 * @return the operator
+	 */
+	public int getOperator() {
+		return operator;
+	}
+
+	/**
+	 * Gets the constant, or the lowest value of a range.
+	 * 
+	 * @return the constant
+	 */
+	public Object getValue() {
+		return value;
+	}
+
+	/**
+	 * Gets the highest value of a range.
+	 * 
+	 * @return the highest value, or <code>null</code> if the operator is not
+	 *         <code>BETWEEN</code>
+	 */
+	public Object getUpperValue() {
+		return upper;
+	}
+
+	/**
+	 * @see PTreePredicate#isMatchedBy(PTreeMessage)
+	 */
+	public boolean isMatchedBy(PTreeMessage gMsg) {
+		if (gMsg instanceof AttributeMessage)
+			return isMatchedBy((AttributeMessage) gMsg);
+		Object o = gMsg.getValue(name);
+		if (o == null)
+			return false;
+		if (operator == EXISTS)
+			return true;
+		if (operator == PREFIX)
+			return o instanceof String && ((String) o).startsWith((String) value);
+		if (operator == BETWEEN)
+			return test(GREATER_EQUAL, compare(o, value)) && test(LESS_EQUAL, compare(o, upper));
+		return test(operator, compare(o, value));
+	}
+
+	private boolean isMatchedBy(AttributeMessage msg) {
+		int at = msg.find(nameBytes);
+		if (at < 0)
+			return false;
+		switch (operator) {
+		case EXISTS:
+			return true;
+		case PREFIX:
+			return msg.getTypeAt(at) == AttributeMessage.STRING && msg.compareString(at, valueBytes, true) == 0;
+		case BETWEEN:
+			return test(GREATER_EQUAL, compare(msg, at, value, valueBytes))
+					&& test(LESS_EQUAL, compare(msg, at, upper, upperBytes));
+		default:
+			return test(operator, compare(msg, at, value, valueBytes));
+		}
+	}
+
+	private void encode() {
+		if (value instanceof String)
+			valueBytes = AttributeMessage.utf8((String) value);
+		if (upper instanceof String)
+			upperBytes = AttributeMessage.utf8((String) upper);
+		nameBytes = AttributeMessage.utf8(name);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (name == null || operator < EQUALS || operator > EXISTS)
+			throw new InvalidObjectException("Invalid predicate on " + name + ": operator " + operator);
+		encode();
+	}
+
+	private static boolean test(int operator, int c) {
+		if (c == INCOMPARABLE)
+			return false;
+		switch (operator) {
+		case EQUALS:
+			return c == 0;
+		case NOT_EQUALS:
+			return c != 0;
+		case LESS:
+			return c < 0;
+		case LESS_EQUAL:
+			return c <= 0;
+		case GREATER:
+			return c > 0;
+		default:
+			return c >= 0;
+		}
+	}
+
+	/**
+	 * Compares the attribute whose type is at the given position with a
+	 * constant.
+	 */
+	private static int compare(AttributeMessage msg, int at, Object constant, byte[] bytes) {
+		switch (msg.getTypeAt(at)) {
+		case AttributeMessage.STRING:
+			return constant instanceof String ? msg.compareString(at, bytes, false) : INCOMPARABLE;
+		case AttributeMessage.LONG:
+			if (constant instanceof Long)
+				return compare(msg.getLong(at), ((Long) constant).longValue());
+			if (constant instanceof Double)
+				return compare((double) msg.getLong(at), ((Double) constant).doubleValue());
+			return INCOMPARABLE;
+		case AttributeMessage.DOUBLE:
+			if (constant instanceof Long || constant instanceof Double)
+				return compare(msg.getDouble(at), ((Number) constant).doubleValue());
+			return INCOMPARABLE;
+		default:
+			if (constant instanceof Boolean)
+				return msg.getBoolean(at) == ((Boolean) constant).booleanValue() ? 0 : 1;
+			return INCOMPARABLE;
+		}
+	}
+
+	/**
+	 * Compares the value of an attribute with a constant.
+	 */
+	private static int compare(Object o, Object constant) {
+		if (o instanceof String && constant instanceof String)
+			return ((String) o).compareTo((String) constant);
+		if (o instanceof Long && constant instanceof Long)
+			return compare(((Long) o).longValue(), ((Long) constant).longValue());
+		if ((o instanceof Long || o instanceof Double) && constant instanceof Number)
+			return compare(((Number) o).doubleValue(), ((Number) constant).doubleValue());
+		if (o instanceof Boolean && constant instanceof Boolean)
+			return o.equals(constant) ? 0 : 1;
+		return INCOMPARABLE;
+	}
+
+	private static int compare(long a, long b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	private static int compare(double a, double b) {
+		return a < b ? -1 : (a == b ? 0 : (a > b ? 1 : INCOMPARABLE));
+	}
+
+	/**
+	 * Writes a constant as in an <code>AttributeFilter</code> expression.
+	 */
+	private static String literal(Object o) {
+		if (!(o instanceof String))
+			return String.valueOf(o);
+		String s = (String) o;
+		StringBuffer result = new StringBuffer("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				result.append('\\');
+			result.append(c);
+		}
+		return result.append('"').toString();
+	}
+
+	/**
+	 * No predicate on another attribute implies this one.
+	 * 
+	 * @see PTreePredicate#isImpliedBy(PTreePredicate)
+	 */
+	public boolean isImpliedBy(PTreePredicate p) {
+		return false;
+	}
+
+	/**
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	public boolean equals(Object o) {
+		if (!(o instanceof AttributePredicate))
+			return false;
+		AttributePredicate p = (AttributePredicate) o;
+		return p.name.equals(name) && p.getResult().equals(getResult());
+	}
+
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		return name.hashCode() * 31 + getResult().hashCode();
+	}
+
+	public String toString() {
+		return name + " " + getResult();
+	}
+}
@@ -0,0 +1,895 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import polimi.reds.broker.routing.GenericTable;
+import polimi.reds.broker.routing.SubscriptionTable;
+
+/**
+ * The queue of the messages received by a client and not yet read.<br>
+ * Besides the queue of all the messages, in the order they arrived, the inbox
+ * keeps a sub-queue for each filter a consumer asked for through
+ * <code>take(Filter)</code> or <code>poll(Filter)</code>. Sub-queues are
+ * filled when a message arrives, using a <code>SubscriptionTable</code> as the
+ * brokers do: each sub-queue is subscribed to the table under a synthetic
+ * <code>NodeDescriptor</code>. A selective consumer thus dequeues its first
+ * message without scanning the inbox and is woken only by messages matching
+ * its filter.<br>
+ * A message read through one queue stays in the others, marked as taken, until
+ * it reaches their head or the queue is compacted. A sub-queue is dropped as
+ * soon as it is empty and no consumer waits on it, unless its filter has been
+ * retained with <code>retainFilter</code>, as the dispatching services do for
+ * the filters subscribed, until <code>removeFilter</code> is called.<br>
+ * The inbox may be bounded in number of messages and in estimated bytes. When
+ * a message arrives at a full inbox the overflow policy decides whether the
+ * receiving thread waits (<code>BLOCK</code>, which stops reading from the
+ * broker connection and thus propagates the backpressure to the broker), the
+ * oldest messages are dropped (<code>DROP_OLDEST</code>), the new message is
+ * dropped (<code>DROP_NEWEST</code>) or it replaces the message with the same
+ * <code>ConflationKey</code> (<code>CONFLATE</code>, dropping the oldest
+ * messages if there is none). The same bounds and policy apply to the queue
+ * of each message listener of the dispatching service.
+ */
+public class ClientInbox {
+	/** The receiving thread waits until there is room for the message. */
+	public static final int BLOCK = 0;
+	/** The oldest messages are dropped to make room for the new one. */
+	public static final int DROP_OLDEST = 1;
+	/** The new message is dropped. */
+	public static final int DROP_NEWEST = 2;
+	/**
+	 * The new message replaces the one with the same key, or the oldest
+	 * messages are dropped.
+	 */
+	public static final int CONFLATE = 3;
+	/**
+	 * The size assumed by the default estimator for messages whose size is
+	 * not known.
+	 */
+	public static final long DEFAULT_MESSAGE_SIZE = 512;
+	/**
+	 * The number of taken entries a queue may hold before being compacted,
+	 * provided they exceed the live ones.
+	 */
+	private static final int COMPACT_THRESHOLD = 32;
+	private ReentrantLock lock;
+	/** The queue of all the messages. */
+	private Queue all;
+	/** The sub-queues indexed by filter. */
+	private Map queues;
+	/** The sub-queues indexed by the node they are subscribed as. */
+	private Map queuesByNode;
+	/** The filters whose sub-queues are kept even when empty. */
+	private Set retained;
+	/** The index used to route messages to the sub-queues. */
+	private SubscriptionTable index;
+	/** The number of messages not yet taken. */
+	private int size;
+	/** Incremented by <code>wakeUp</code>. */
+	private int generation;
+	/** The estimated size of the messages not yet taken. */
+	private long bytes;
+	/** The maximum number of messages, 0 if unbounded. */
+	private int maxMessages;
+	/** The maximum estimated size of the messages, 0 if unbounded. */
+	private long maxBytes;
+	private int policy;
+	/**
+	 * <code>false</code> if messages are added by a thread that must never
+	 * wait, such as the router of a broker.
+	 */
+	private boolean mayBlock;
+	private MessageSizeEstimator estimator;
+	private ConflationKey conflationKey;
+	/** The entries not taken indexed by conflation key. */
+	private Map keys;
+	/** Signalled when messages are taken from a full inbox. */
+	private Condition notFull;
+	private int blockedWriters;
+	private long droppedOldest;
+	private long droppedNewest;
+	private long conflated;
+	private long blocked;
+	private long blockedTime;
+	/**
+	 * If not <code>null</code>, it is given each message before it is queued.
+	 */
+	AsyncDelivery async;
+
+	/**
+	 * Builds an inbox that routes messages to the sub-queues using a
+	 * <code>GenericTable</code>.
+	 */
+	public ClientInbox() {
+		this(new GenericTable());
+	}
+
+	/**
+	 * Builds an inbox that routes messages to the sub-queues using the given
+	 * table, which must support the filters used by the consumers (e.g., a
+	 * <code>PTreeTable</code> if they only use <code>PTreeFilter</code>s).
+	 * 
+	 * @param index
+	 *            an empty subscription table.
+	 */
+	public ClientInbox(SubscriptionTable index) {
+		this.index = index;
+		lock = new ReentrantLock();
+		all = new Queue(null, null);
+		queues = new HashMap();
+		queuesByNode = new HashMap();
+		retained = new HashSet();
+		size = 0;
+		generation = 0;
+		bytes = 0;
+		maxMessages = 0;
+		maxBytes = 0;
+		policy = BLOCK;
+		mayBlock = true;
+		estimator = new MessageSizeEstimator() {
+			public long sizeOf(Message msg) {
+				return DEFAULT_MESSAGE_SIZE;
+			}
+		};
+		keys = new HashMap();
+		notFull = lock.newCondition();
+		blockedWriters = 0;
+	}
+
+	/**
+	 * Bounds the inbox. A value of 0 removes the corresponding bound.
+	 * 
+	 * @param maxMessages
+	 *            the maximum number of messages.
+	 * @param maxBytes
+	 *            the maximum estimated size of the messages, in bytes.
+	 */
+	public void setCapacity(int maxMessages, long maxBytes) {
+		lock.lock();
+		try {
+			this.maxMessages = maxMessages;
+			this.maxBytes = maxBytes;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the overflow policy: <code>BLOCK</code> (the default),
+	 * <code>DROP_OLDEST</code>, <code>DROP_NEWEST</code> or
+	 * <code>CONFLATE</code>. The inbox of a
+	 * <code>LocalDispatchingService</code> does not accept <code>BLOCK</code>.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the policy is unknown or not allowed for this inbox
+	 */
+	public void setOverflowPolicy(int policy) {
+		if (policy < BLOCK || policy > CONFLATE)
+			throw new IllegalArgumentException("Unknown overflow policy " + policy);
+		lock.lock();
+		try {
+			if (policy == BLOCK && !mayBlock)
+				throw new IllegalArgumentException("This inbox is filled by the broker: BLOCK would stall it");
+			this.policy = policy;
+			if (policy != CONFLATE)
+				keys.clear();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the key used by the <code>CONFLATE</code> policy.
+	 */
+	public void setConflationKey(ConflationKey conflationKey) {
+		lock.lock();
+		try {
+			this.conflationKey = conflationKey;
+			keys.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the estimator used for the messages added without a size.
+	 */
+	public void setSizeEstimator(MessageSizeEstimator estimator) {
+		lock.lock();
+		try {
+			this.estimator = estimator;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The estimated size of the messages available, in bytes.
+	 */
+	public long getBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of messages dropped by the <code>DROP_OLDEST</code> and
+	 * <code>CONFLATE</code> policies to make room for newer ones.
+	 */
+	public long getDroppedOldestCount() {
+		lock.lock();
+		try {
+			return droppedOldest;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of messages dropped on arrival by the
+	 * <code>DROP_NEWEST</code> policy.
+	 */
+	public long getDroppedNewestCount() {
+		lock.lock();
+		try {
+			return droppedNewest;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of messages replaced by a newer one with the same key.
+	 */
+	public long getConflatedCount() {
+		lock.lock();
+		try {
+			return conflated;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of times the receiving thread waited for room in the inbox.
+	 */
+	public long getBlockedCount() {
+		lock.lock();
+		try {
+			return blocked;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The overall time the receiving thread waited for room in the inbox, in
+	 * ms.
+	 */
+	public long getBlockedTime() {
+		lock.lock();
+		try {
+			return blockedTime;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forbids the <code>BLOCK</code> policy, switching to
+	 * <code>DROP_OLDEST</code> if it is in use: messages are added by a thread
+	 * that must never wait.
+	 */
+	void forbidBlocking() {
+		lock.lock();
+		try {
+			mayBlock = false;
+			if (policy == BLOCK)
+				setOverflowPolicy(DROP_OLDEST);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	ReentrantLock getLock() {
+		return lock;
+	}
+
+	void lock() {
+		lock.lock();
+	}
+
+	void unlock() {
+		lock.unlock();
+	}
+
+	/**
+	 * Adds a message to the inbox, estimating its size with the
+	 * <code>MessageSizeEstimator</code> of the inbox.
+	 */
+	public void add(Message msg) {
+		add(msg, -1);
+	}
+
+	/**
+	 * Adds a message to the inbox, waking up one of the consumers waiting for
+	 * it. If the inbox is full the overflow policy is applied.
+	 * 
+	 * @param msg
+	 *            the message.
+	 * @param length
+	 *            the size of the message in bytes, or a negative value if
+	 *            unknown.
+	 */
+	public void add(Message msg, long length) {
+		add(msg, length, null);
+	}
+
+	/**
+	 * Adds a message to the inbox, telling the given receipt whether the
+	 * message is eventually taken or dropped.
+	 * 
+	 * @param receipt
+	 *            the receipt of the message, or <code>null</code>
+	 * @see #add(Message, long)
+	 */
+	void add(Message msg, long length, Receipt receipt) {
+		boolean delivered = false;
+		lock.lock();
+		try {
+			if (length < 0)
+				length = estimator.sizeOf(msg);
+			Object key = null;
+			if (policy == CONFLATE && conflationKey != null)
+				key = conflationKey.keyOf(msg);
+			if (async != null) {
+				// the listeners tell the receipt themselves
+				if (async.deliverToListeners(msg, length, key, receipt))
+					return;
+				if (async.completeFuture(msg)) {
+					delivered = true;
+					return;
+				}
+			}
+			if (!makeRoom(length, key)) {
+				if (receipt != null)
+					receipt.dropped();
+				return;
+			}
+			Entry e = new Entry(msg, length, key);
+			e.receipt = receipt;
+			all.append(e);
+			if (!queues.isEmpty()) {
+				Collection nodes = index.matches(msg);
+				Iterator it = nodes.iterator();
+				while (it.hasNext())
+					((Queue) queuesByNode.get(it.next())).append(e);
+			}
+			if (key != null)
+				keys.put(key, e);
+			size++;
+			bytes += length;
+		} finally {
+			lock.unlock();
+			if (delivered && receipt != null)
+				receipt.taken();
+		}
+	}
+
+	private boolean isFull(long length) {
+		return isFull(size, bytes, length);
+	}
+
+	private boolean isFull(int size, long bytes, long length) {
+		if (size == 0)
+			// a message larger than maxBytes is accepted in an empty queue
+			return false;
+		return (maxMessages > 0 && size >= maxMessages) || (maxBytes > 0 && bytes + length > maxBytes);
+	}
+
+	/**
+	 * Applies the overflow policy until there is room for a message of the
+	 * given size.
+	 * 
+	 * @return <code>false</code> if the message must be dropped.
+	 */
+	private boolean makeRoom(long length, Object key) {
+		if (!isFull(length))
+			return true;
+		switch (policy) {
+		case BLOCK:
+			blocked++;
+			long start = System.currentTimeMillis();
+			int gen = generation;
+			blockedWriters++;
+			try {
+				// wakeUp lets the message in anyway
+				while (isFull(length) && gen == generation && policy == BLOCK)
+					notFull.awaitUninterruptibly();
+			} finally {
+				blockedWriters--;
+				blockedTime += System.currentTimeMillis() - start;
+			}
+			if (policy == BLOCK || !isFull(length))
+				return true;
+			return makeRoom(length, key);
+		case DROP_NEWEST:
+			droppedNewest++;
+			return false;
+		case CONFLATE:
+			Entry old = key == null ? null : (Entry) keys.get(key);
+			if (old != null) {
+				take(old);
+				if (old.receipt != null)
+					old.receipt.dropped();
+				conflated++;
+				if (!isFull(length))
+					return true;
+			}
+			// no message to replace: fall back to DROP_OLDEST
+		default:
+			Entry first;
+			while (isFull(length) && (first = all.first()) != null) {
+				take(first);
+				if (first.receipt != null)
+					first.receipt.dropped();
+				droppedOldest++;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Applies the bounds and the overflow policy of the inbox to a queue kept
+	 * outside it, such as the queue of a message listener, until there is
+	 * room for a message of the given size. The caller holds the lock of the
+	 * inbox, which is released while waiting under the <code>BLOCK</code>
+	 * policy.
+	 * 
+	 * @return <code>false</code> if the message must be dropped.
+	 */
+	boolean makeRoom(BoundedQueue q, long length, Object key) {
+		if (!isFull(q.size(), q.bytes(), length))
+			return true;
+		switch (policy) {
+		case BLOCK:
+			blocked++;
+			long start = System.currentTimeMillis();
+			int gen = generation;
+			blockedWriters++;
+			try {
+				while (isFull(q.size(), q.bytes(), length) && gen == generation && policy == BLOCK)
+					notFull.awaitUninterruptibly();
+			} finally {
+				blockedWriters--;
+				blockedTime += System.currentTimeMillis() - start;
+			}
+			if (policy == BLOCK || !isFull(q.size(), q.bytes(), length))
+				return true;
+			return makeRoom(q, length, key);
+		case DROP_NEWEST:
+			droppedNewest++;
+			return false;
+		case CONFLATE:
+			if (key != null && q.dropKey(key)) {
+				conflated++;
+				if (!isFull(q.size(), q.bytes(), length))
+					return true;
+			}
+			// no message to replace: fall back to DROP_OLDEST
+		default:
+			while (isFull(q.size(), q.bytes(), length) && q.dropOldest())
+				droppedOldest++;
+			return true;
+		}
+	}
+
+	/**
+	 * Called, holding the lock of the inbox, when a message has been removed
+	 * from a <code>BoundedQueue</code>.
+	 */
+	void roomMade() {
+		if (blockedWriters > 0)
+			notFull.signalAll();
+	}
+
+	/**
+	 * Removes the first message, waiting until one arrives.
+	 */
+	public Message take() throws InterruptedException {
+		return await(null, -1);
+	}
+
+	/**
+	 * Removes the first message, waiting at most <code>timeout</code> ms.
+	 * 
+	 * @return the message or <code>null</code> if the timeout expires or
+	 *         <code>wakeUp</code> is called.
+	 */
+	public Message poll(long timeout) throws InterruptedException {
+		return await(null, timeout);
+	}
+
+	/**
+	 * Removes the first message matching <code>f</code>, waiting until one
+	 * arrives.
+	 */
+	public Message take(Filter f) throws InterruptedException {
+		return await(f, -1);
+	}
+
+	/**
+	 * Removes the first message matching <code>f</code>, or the first message
+	 * if <code>f</code> is <code>null</code>, without waiting.
+	 * 
+	 * @return the message or <code>null</code>.
+	 */
+	public Message poll(Filter f) {
+		try {
+			return await(f, 0);
+		} catch (InterruptedException e) {
+			// never waits
+			return null;
+		}
+	}
+
+	/**
+	 * Check whether there are messages available.
+	 */
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return size == 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Check whether there are messages available matching the given filter.
+	 */
+	public boolean contains(Filter f) {
+		lock.lock();
+		try {
+			Queue q = (Queue) queues.get(f);
+			if (q == null && retained.contains(f))
+				q = queueOf(f);
+			if (q != null)
+				return q.first() != null;
+			// look for it without building a sub-queue that would be dropped
+			Iterator it = all.entries.iterator();
+			while (it.hasNext()) {
+				Entry e = (Entry) it.next();
+				if (!e.taken && f.matches(e.message))
+					return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of messages available.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Keeps the sub-queue of the given filter even when it is empty, until
+	 * <code>removeFilter</code> is called.
+	 */
+	public void retainFilter(Filter f) {
+		lock.lock();
+		try {
+			retained.add(f);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the sub-queue of the given filter. If someone is waiting on it,
+	 * it is dropped when the last consumer leaves it empty.
+	 */
+	public void removeFilter(Filter f) {
+		lock.lock();
+		try {
+			retained.remove(f);
+			Queue q = (Queue) queues.get(f);
+			if (q == null || q.waiters > 0)
+				return;
+			drop(q);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the sub-queues of all the filters no one is waiting on.
+	 */
+	public void removeAllFilters() {
+		lock.lock();
+		try {
+			retained.clear();
+			Iterator it = new LinkedList(queues.values()).iterator();
+			while (it.hasNext()) {
+				Queue q = (Queue) it.next();
+				if (q.waiters == 0)
+					drop(q);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void drop(Queue q) {
+		queues.remove(q.filter);
+		queuesByNode.remove(q.node);
+		index.removeAllSubscriptions(q.node);
+	}
+
+	/**
+	 * Wakes up all the waiting consumers. Consumers waiting with a timeout
+	 * return <code>null</code>, the others keep waiting. A receiving thread
+	 * blocked on a full inbox adds its message anyway.
+	 */
+	public void wakeUp() {
+		lock.lock();
+		try {
+			generation++;
+			notFull.signalAll();
+			all.available.signalAll();
+			Iterator it = queues.values().iterator();
+			while (it.hasNext())
+				((Queue) it.next()).available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the first message of the queue of <code>f</code> or of the
+	 * whole inbox if <code>f</code> is <code>null</code>.
+	 * 
+	 * @param timeout
+	 *            0 to return immediately, a negative value to wait until a
+	 *            message arrives
+	 */
+	private Message await(Filter f, long timeout) throws InterruptedException {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		Receipt receipt = null;
+		lock.lock();
+		try {
+			Queue q = f == null ? all : queueOf(f);
+			int gen = generation;
+			q.waiters++;
+			try {
+				while (true) {
+					Entry e = q.first();
+					if (e != null) {
+						take(e);
+						receipt = e.receipt;
+						// pass the signal on if the queue is not empty yet
+						if (q.first() != null)
+							q.available.signal();
+						return e.message;
+					}
+					if (timeout == 0 || (timeout > 0 && (nanos <= 0 || gen != generation)))
+						return null;
+					if (timeout < 0)
+						q.available.await();
+					else
+						nanos = q.available.awaitNanos(nanos);
+				}
+			} finally {
+				q.waiters--;
+				if (q != all && q.waiters == 0 && !retained.contains(f) && q.first() == null)
+					drop(q);
+			}
+		} finally {
+			lock.unlock();
+			if (receipt != null)
+				receipt.taken();
+		}
+	}
+
+	private void take(Entry e) {
+		e.taken = true;
+		size--;
+		bytes -= e.length;
+		if (e.key != null && keys.get(e.key) == e)
+			keys.remove(e.key);
+		if (blockedWriters > 0)
+			notFull.signalAll();
+		all.taken();
+		for (int i = 0; i < e.queues; i++)
+			e.in[i].taken();
+	}
+
+	/**
+	 * Returns the sub-queue of <code>f</code>, creating it from the messages
+	 * already in the inbox the first time the filter is used.
+	 */
+	private Queue queueOf(Filter f) {
+		Queue q = (Queue) queues.get(f);
+		if (q != null)
+			return q;
+		q = new Queue(f, new NodeDescriptor());
+		Iterator it = all.entries.iterator();
+		while (it.hasNext()) {
+			Entry e = (Entry) it.next();
+			if (!e.taken && f.matches(e.message))
+				q.append(e);
+		}
+		queues.put(f, q);
+		queuesByNode.put(q.node, q);
+		index.addSubscription(q.node, f);
+		return q;
+	}
+
+	/**
+	 * Told what happened to a message added to the inbox: it is either taken
+	 * by a consumer (or handed to the listener) or dropped by the overflow
+	 * policy. <code>dropped</code> is called with the inbox locked,
+	 * <code>taken</code> once it is unlocked.
+	 */
+	interface Receipt {
+		void taken();
+
+		void dropped();
+	}
+
+	/**
+	 * A queue of messages kept outside the inbox but bounded as the inbox.
+	 * Guarded by the lock of the inbox.
+	 * 
+	 * @see ClientInbox#makeRoom(BoundedQueue, long, Object)
+	 */
+	interface BoundedQueue {
+		int size();
+
+		long bytes();
+
+		/**
+		 * Drops the message with the given conflation key, if any.
+		 * 
+		 * @return <code>false</code> if there is none
+		 */
+		boolean dropKey(Object key);
+
+		/**
+		 * Drops the oldest message.
+		 * 
+		 * @return <code>false</code> if the queue is empty
+		 */
+		boolean dropOldest();
+	}
+
+	private static class Entry {
+		Message message;
+		long length;
+		Object key;
+		boolean taken;
+		/** Told when the message leaves the inbox, <code>null</code> if none. */
+		Receipt receipt;
+		/** The sub-queues holding this entry. */
+		Queue[] in;
+		int queues;
+
+		Entry(Message message, long length, Object key) {
+			this.message = message;
+			this.length = length;
+			this.key = key;
+			taken = false;
+			queues = 0;
+		}
+
+		void addedTo(Queue q) {
+			if (in == null)
+				in = new Queue[2];
+			else if (queues == in.length) {
+				Queue[] larger = new Queue[queues * 2];
+				System.arraycopy(in, 0, larger, 0, queues);
+				in = larger;
+			}
+			in[queues++] = q;
+		}
+	}
+
+	private class Queue {
+		Filter filter;
+		NodeDescriptor node;
+		LinkedList entries;
+		/** The number of taken entries still in <code>entries</code>. */
+		int stale;
+		int waiters;
+		Condition available;
+
+		Queue(Filter filter, NodeDescriptor node) {
+			this.filter = filter;
+			this.node = node;
+			entries = new LinkedList();
+			stale = 0;
+			waiters = 0;
+			available = lock.newCondition();
+		}
+
+		void append(Entry e) {
+			entries.addLast(e);
+			if (filter != null)
+				e.addedTo(this);
+			if (waiters > 0)
+				available.signal();
+		}
+
+		/**
+		 * Returns the first entry not taken, dropping the taken ones before
+		 * it.
+		 */
+		Entry first() {
+			while (!entries.isEmpty()) {
+				Entry e = (Entry) entries.getFirst();
+				if (!e.taken)
+					return e;
+				entries.removeFirst();
+				stale--;
+			}
+			return null;
+		}
+
+		/**
+		 * Accounts for one of the entries of this queue having been taken.
+		 */
+		void taken() {
+			stale++;
+			if (stale > COMPACT_THRESHOLD && stale > entries.size() - stale) {
+				Iterator it = entries.iterator();
+				while (it.hasNext())
+					if (((Entry) it.next()).taken)
+						it.remove();
+				stale = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+/**
+ * A <code>ReplyReducer</code> replacing the replies with their number: the
+ * requester receives one <code>ReplyCount</code>.
+ */
+public class CountReducer implements ReplyReducer {
+	private static final long serialVersionUID = 2470128766722960231L;
+
+	/**
+	 * @see ReplyReducer#reduce(Message[])
+	 */
+	public Message[] reduce(Message[] replies) {
+		int count = 0;
+		for (int i = 0; i < replies.length; i++) {
+			if (replies[i] instanceof ReplyCount)
+				count += ((ReplyCount) replies[i]).getCount();
+			else
+				count++;
+		}
+		return new Message[] { new ReplyCount(count) };
+	}
+}
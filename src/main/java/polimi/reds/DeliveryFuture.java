@@ -0,0 +1,129 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A <code>Future</code> completed by the thread that receives the message or
+ * the reply it waits for. While waiting, the future is kept in a list guarded
+ * by a lock: it can be cancelled only as long as it is still in the list.
+ */
+class DeliveryFuture implements Future {
+	private Lock lock;
+	private List pending;
+	/** The filter selecting the message this future waits for, if any. */
+	Filter filter;
+	private boolean done = false;
+	private boolean cancelled = false;
+	private Object value;
+	private Throwable failure;
+
+	/**
+	 * Builds a future already completed with <code>value</code>.
+	 */
+	DeliveryFuture(Object value) {
+		complete(value);
+	}
+
+	/**
+	 * @param lock
+	 *            the lock guarding <code>pending</code>
+	 * @param pending
+	 *            the list this future waits in
+	 */
+	DeliveryFuture(Lock lock, List pending, Filter filter) {
+		this.lock = lock;
+		this.pending = pending;
+		this.filter = filter;
+	}
+
+	synchronized void complete(Object value) {
+		this.value = value;
+		done = true;
+		notifyAll();
+	}
+
+	synchronized void fail(Throwable failure) {
+		this.failure = failure;
+		done = true;
+		notifyAll();
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		// a future removed from its list is being completed
+		if (pending == null)
+			return false;
+		lock.lock();
+		try {
+			if (!pending.remove(this))
+				return false;
+		} finally {
+			lock.unlock();
+		}
+		synchronized (this) {
+			cancelled = true;
+			done = true;
+			notifyAll();
+		}
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public synchronized Object get() throws InterruptedException, ExecutionException {
+		while (!done)
+			wait();
+		return result();
+	}
+
+	public synchronized Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			java.util.concurrent.TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		long now = System.currentTimeMillis();
+		while (!done && now < deadline) {
+			wait(deadline - now);
+			now = System.currentTimeMillis();
+		}
+		if (!done)
+			throw new java.util.concurrent.TimeoutException();
+		return result();
+	}
+
+	private Object result() throws ExecutionException {
+		if (cancelled)
+			throw new CancellationException();
+		if (failure != null)
+			throw new ExecutionException(failure);
+		return value;
+	}
+}
@@ -0,0 +1,81 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.io.Serializable;
+
+/**
+ * A message delivered to a durable subscriber, with its offset in the journal
+ * of the broker. The subscriber acknowledges the messages it received by
+ * sending back a delivery without message and with the offset of the last
+ * one.
+ * 
+ * @see DurableSubscription
+ */
+public class DurableDelivery implements Serializable {
+	private static final long serialVersionUID = -6328407215377880529L;
+	private String name;
+	private long offset;
+	private Message message;
+
+	/**
+	 * Builds a delivery.
+	 * 
+	 * @param name
+	 *            the name of the subscriber
+	 * @param offset
+	 *            the offset of the message in the journal
+	 * @param message
+	 *            the message, <code>null</code> for an acknowledgment
+	 */
+	public DurableDelivery(String name, long offset, Message message) {
+		this.name = name;
+		this.offset = offset;
+		this.message = message;
+	}
+
+	/**
+	 * Gets the name of the subscriber.
+	 * 
+	 * @return the name of the subscriber.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the offset of the message in the journal.
+	 * 
+	 * @return the offset.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Gets the message.
+	 * 
+	 * @return the message, <code>null</code> for an acknowledgment.
+	 */
+	public Message getMessage() {
+		return message;
+	}
+}
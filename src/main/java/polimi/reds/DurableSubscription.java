@@ -0,0 +1,73 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.io.Serializable;
+
+/**
+ * A subscription kept by the broker on behalf of a named subscriber, whether
+ * a client is attached to it or not: the messages it matches are stored in
+ * the journal of the broker until the subscriber acknowledges them.
+ * 
+ * @see TCPDispatchingService#subscribeDurable(String, Filter)
+ */
+public class DurableSubscription implements Serializable {
+	private static final long serialVersionUID = 2693155706925402637L;
+	private String name;
+	private Filter filter;
+
+	/**
+	 * Builds a durable subscription.
+	 * 
+	 * @param name
+	 *            the name of the subscriber
+	 * @param filter
+	 *            the filter, <code>null</code> to just name the subscriber
+	 */
+	public DurableSubscription(String name, Filter filter) {
+		if (name == null)
+			throw new NullPointerException();
+		this.name = name;
+		this.filter = filter;
+	}
+
+	/**
+	 * Gets the name of the subscriber.
+	 * 
+	 * @return the name of the subscriber.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the filter.
+	 * 
+	 * @return the filter, <code>null</code> if none.
+	 */
+	public Filter getFilter() {
+		return filter;
+	}
+
+	public String toString() {
+		return name + ": " + filter;
+	}
+}
@@ -0,0 +1,51 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+/**
+ * A <code>ReplyReducer</code> keeping only <code>k</code> replies, the first
+ * ones gathered by each broker. The others are dropped as soon as possible.
+ */
+public class FirstKReducer implements ReplyReducer {
+	private static final long serialVersionUID = -6353860102447913818L;
+	private int k;
+
+	/**
+	 * @param k
+	 *            the number of replies to keep
+	 */
+	public FirstKReducer(int k) {
+		if (k < 0)
+			throw new IllegalArgumentException("Negative number of replies " + k);
+		this.k = k;
+	}
+
+	/**
+	 * @see ReplyReducer#reduce(Message[])
+	 */
+	public Message[] reduce(Message[] replies) {
+		if (replies.length <= k)
+			return replies;
+		Message[] first = new Message[k];
+		System.arraycopy(replies, 0, first, 0, k);
+		return first;
+	}
+}
@@ -20,15 +20,11 @@
 
 package polimi.reds;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.ConnectException;
-import java.util.Collections;
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import polimi.util.DeepCopier;
 import polimi.reds.DispatchingService;
 import polimi.reds.Filter;
@@ -40,15 +36,20 @@ import polimi.reds.Repliable;
 import polimi.reds.Replies;
 import polimi.reds.Reply;
 import polimi.reds.TimeoutException;
+import polimi.reds.TraceContext;
 import polimi.reds.broker.overlay.*;
 
 /**
- * The client interface to access the REDS local dispatching service.
+ * The client interface to access the REDS local dispatching service.<br>
+ * Messages are added to the inbox of the client by the router of the broker,
+ * which must never wait for a slow client: the inbox thus drops the oldest
+ * messages when it is full, and does not accept the <code>BLOCK</code>
+ * overflow policy.
  * 
  * @author Montinari
  * @author Bruno
  */
-public class LocalDispatchingService implements Proxy, DispatchingService {
+public class LocalDispatchingService implements Proxy, AsyncDispatchingService {
 	/**
 	 * <code>true</code> if the connection with the broker this client is
 	 * joined.
@@ -59,43 +60,34 @@ public class LocalDispatchingService implements Proxy, DispatchingService {
 	 * specific connection with the REDS dispatching network).
 	 */
 	protected NodeDescriptor id;
-	/** The list of messages received but not yet processed by this client. */
-	protected LinkedList messages;
+	/** The messages received but not yet processed by this client. */
+	protected ClientInbox messages;
 	/**
-	 * The queue that mantains all the replies received until the client reads
-	 * them.
+	 * Correlates the replies received with the repliable messages published.
 	 */
-	protected Map replyQueue;
-	/**
-	 * It stores the expiring timeouts of the repliable messages sent but not
-	 * already replied.
-	 */
-	protected Map timeouts;
+	private ReplyCorrelator replies;
 	private final long DEFAULT_TIMEOUT = 10000;
-	/**
-	 * It manages the <code>queue</code> removing all the entries with the
-	 * <code>timeout</code> expired.
-	 */
-	private GarbageCollector garbageCollector;
-	/**
-	 * This is the daemon that runs the garbage collection.
-	 */
-	private Thread garbageCollectorThread = null;
 	/**
 	 * Reference to LocalTransport
 	 */
 	private LocalTransport transport;
+	/**
+	 * Delivers messages and replies to listeners and futures.
+	 */
+	private AsyncDelivery async;
 
 	/**
 	 * Builds a new <code>LocalDispatchingService</code> to join a broker
 	 * running on the same jvm.
 	 */
 	public LocalDispatchingService(LocalTransport t) {
-		replyQueue = Collections.synchronizedMap(new Hashtable());
-		timeouts = Collections.synchronizedMap(new Hashtable());
 		this.id = new NodeDescriptor();
-		garbageCollector = new GarbageCollector(replyQueue, timeouts);
-		messages = new LinkedList();
+		messages = new ClientInbox();
+		messages.forbidBlocking();
+		async = new AsyncDelivery(messages);
+		replies = new ReplyCorrelator(DEFAULT_TIMEOUT);
+		// the replies are delivered by the router of the broker
+		replies.forbidBlocking();
 		opened = false;
 		transport = t;
 	}
@@ -111,10 +103,6 @@ public class LocalDispatchingService implements Proxy, DispatchingService {
 		transport.accept(this);
 		// The connection is open
 		opened = true;
-		garbageCollectorThread = new Thread(garbageCollector);
-		garbageCollectorThread.setDaemon(true);
-		garbageCollectorThread.setName("LocalDispatchingService.GarbageCollector");
-		garbageCollectorThread.start();
 	}
 
 	/**
@@ -133,6 +121,8 @@ public class LocalDispatchingService implements Proxy, DispatchingService {
 
 	public void disconnect() {
 		opened = false;
+		async.close();
+		replies.close();
 	}
 
 	/**
@@ -152,18 +142,13 @@ public class LocalDispatchingService implements Proxy, DispatchingService {
 	 * @return first message available.
 	 */
 	public Message getNextMessage() {
-		Message m = null;
-		synchronized (messages) {
-			try {
-				while (messages.isEmpty())
-					messages.wait();
-				m = (Message) messages.removeFirst();
-			} catch (Exception e) {
-				System.err.println("Error while getting first available message");
-				e.printStackTrace();
-			}
+		try {
+			return messages.take();
+		} catch (InterruptedException e) {
+			System.err.println("Error while getting first available message");
+			e.printStackTrace();
+			return null;
 		}
-		return m;
 	}
 
 	/**
@@ -178,48 +163,26 @@ public class LocalDispatchingService implements Proxy, DispatchingService {
 	 * @return first message available.
 	 */
 	public Message getNextMessage(long timeout) {
-		Message m = null;
-		synchronized (messages) {
-			try {
-				if (messages.isEmpty())
-					messages.wait(timeout);
-				if (!messages.isEmpty())
-					m = (Message) messages.removeFirst();
-			} catch (Exception e) {
-				System.err.println("Error while getting first available message");
-				e.printStackTrace();
-			}
+		try {
+			return messages.poll(timeout);
+		} catch (InterruptedException e) {
+			System.err.println("Error while getting first available message");
+			e.printStackTrace();
+			return null;
 		}
-		return m;
 	}
 
 	/**
 	 * @see DispatchingService#getNextMessage(Filter)
 	 */
 	public Message getNextMessage(Filter f) {
-		Message m = null;
-		synchronized (messages) {
-			try {
-				boolean match = false;
-				while (!match) {
-					Iterator it = messages.iterator();
-					while (it.hasNext() && !match) {
-						m = (Message) it.next();
-						match = f.matches(m);
-					}
-					if (match) {
-						messages.remove(m);
-						// messages.notifyAll();
-						return m;
-					}
-					messages.wait();
-				}
-			} catch (Exception e) {
-				System.err.println("Error while getting first available message matching the specified filter");
-				e.printStackTrace();
-			}
+		try {
+			return messages.take(f);
+		} catch (InterruptedException e) {
+			System.err.println("Error while getting first available message matching the specified filter");
+			e.printStackTrace();
+			return null;
 		}
-		return null;
 	}
 
 	/**
@@ -236,14 +199,7 @@ public class LocalDispatchingService implements Proxy, DispatchingService {
 	 * @see DispatchingService#hasMoreMessages(Filter)
 	 */
 	public boolean hasMoreMessages(Filter f) {
-		boolean match = false;
-		synchronized (messages) {
-			Iterator it = messages.iterator();
-			while (it.hasNext() && !match) {
-				match = f.matches((Message) it.next());
-			}
-		}
-		return match;
+		return messages.contains(f);
 	}
 
 	/**
@@ -267,6 +223,7 @@ public class LocalDispatchingService implements Proxy, DispatchingService {
 			ex.printStackTrace();
 		}
 		subscribeMsg.setSenderID(id);
+		messages.retainFilter(filter);
 		transport.enqueue(subscribeMsg);
 	}
 
@@ -292,6 +249,7 @@ public class LocalDispatchingService implements Proxy, DispatchingService {
 			ex.printStackTrace();
 		}
 		unsubscribeMsg.setSenderID(id);
+		messages.removeFilter(filter);
 		transport.enqueue(unsubscribeMsg);
 	}
 
@@ -309,52 +267,82 @@ public class LocalDispatchingService implements Proxy, DispatchingService {
 		// the sender is the client (id)
 		Envelope unsubscribeAllMsg = new Envelope(Envelope.UNSUBSCRIBEALL, null, Transport.FILTER_CLASS);
 		unsubscribeAllMsg.setSenderID(id);
+		messages.removeAllFilters();
 		transport.enqueue(unsubscribeAllMsg);
 	}
 
 	/**
 	 * Publish a new message. If the connection with the broker is not opened
 	 * this method has no effect. If the message is a
-	 * <code>RepliableMessage</code> it creates a new entry in the
-	 * <code>queue</code>.<br>
+	 * <code>RepliableMessage</code> its replies are tracked until its reply
+	 * timeout expires.<br>
 	 * Before publication each message is given a new unique
 	 * <code>MessageID</code>.
 	 * 
 	 * @param msg
 	 *            the <code>Message</code> to publish.
 	 */
-	public synchronized void publish(Message msg) {
+	public void publish(Message msg) {
+		publish(msg, null);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#publish(Message, ReplyListener)
+	 */
+	public synchronized void publish(Message msg, ReplyListener listener) {
 		// If opened is FALSE, the connection to BROKER does not exist and this
 		// function ends
 		if (!opened)
 			return;
 		// create a new ID for the message
 		msg.createID();
+		TraceContext.published(msg, id);
 		Envelope publishMsg = null;
-		// if Repliable set a new entry in the reply queue.
-		if (msg instanceof Repliable) {
-			synchronized (replyQueue) {
-				try {
-					// create a new entry in the queue of the replies.
-					replyQueue.put(msg.getID().toString(), new LinkedList());
-					// create a new entry in the list of the timeouts.
-					synchronized (timeouts) {
-						timeouts.put(msg.getID().toString(), new Long(System.currentTimeMillis() + DEFAULT_TIMEOUT));
-					}
-				} catch (NullPointerException e) {
-					e.printStackTrace();
-				}
-			}
-		}
+		// if Repliable start tracking its replies
+		if (msg instanceof Repliable)
+			replies.register(msg.getID(), listener == null ? null : async.serialize(listener));
 		// Create a "publish-type message": it contains a clone of the message
 		// 'msg'
 		try {
-			publishMsg = new Envelope(Envelope.PUBLISH, (Serializable) DeepCopier.copy(msg), Transport.MESSAGE_CLASS);
+			publishMsg = new Envelope(Envelope.PUBLISH, copyOf(msg), Transport.MESSAGE_CLASS);
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+		publishMsg.setSenderID(id);
+		transport.enqueue(publishMsg);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#streamReplies(Message, int)
+	 */
+	public synchronized ReplyStream streamReplies(Message msg, int capacity) {
+		if (!(msg instanceof Repliable))
+			throw new IllegalArgumentException("The message is not repliable");
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity " + capacity);
+		if (!opened)
+			throw new IllegalStateException("Not opened");
+		msg.createID();
+		TraceContext.published(msg, id);
+		final MessageID repliableMessageID = msg.getID();
+		ReplyStream stream = replies.stream(repliableMessageID, capacity, new Runnable() {
+			// may run on the router of the broker: it must not take the lock
+			// of the service
+			public void run() {
+				Envelope cancel = new Envelope(Envelope.CANCEL_REPLIES, repliableMessageID, Transport.REPLY_CLASS);
+				cancel.setSenderID(id);
+				transport.enqueue(cancel);
+			}
+		});
+		Envelope publishMsg = null;
+		try {
+			publishMsg = new Envelope(Envelope.PUBLISH, copyOf(msg), Transport.MESSAGE_CLASS);
 		} catch (Exception ex) {
 			ex.printStackTrace();
 		}
 		publishMsg.setSenderID(id);
 		transport.enqueue(publishMsg);
+		return stream;
 	}
 
 	/**
@@ -414,229 +402,100 @@ public class LocalDispatchingService implements Proxy, DispatchingService {
 	 * @see DispatchingService#getNextReply(MessageID)
 	 */
 	public Message getNextReply(MessageID repliableMessageID) throws NullPointerException, TimeoutException {
-		if (repliableMessageID != null) {
-			Reply r = null;
-			synchronized (replyQueue) {
-				LinkedList rep = (LinkedList) replyQueue.get(repliableMessageID.toString());
-				if (rep == null)
-					return null;
-				while (rep.isEmpty()) {
-					try {
-						replyQueue.wait();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-				try {
-					r = (Reply) rep.removeFirst();
-				} catch (NoSuchElementException e) {
-					/*
-					 * If this exception is thrown, the timeout is expired and
-					 * no replies arrived. It is possible to remove the entry.
-					 */
-					replyQueue.remove(repliableMessageID.toString());
-					throw new TimeoutException();
-				}
-				if (r.isLast()) {// all replies arrived, => remove the entry
-					replyQueue.remove(r.getRepliableMessageID());
-					synchronized (timeouts) {
-						timeouts.remove(r.getRepliableMessageID());
-					}
-				}
-				return r.getPayload();
-			}
-		}
-		throw new NullPointerException();
+		if (repliableMessageID == null)
+			throw new NullPointerException();
+		return replies.next(repliableMessageID);
 	}
 
 	/**
 	 * @see DispatchingService#getNextReply()
 	 */
 	public Message getNextReply() {
-		Message r = null;
-		synchronized (replyQueue) {
-			try {
-				while (!hasMoreReplies())
-					replyQueue.wait();
-				/*
-				 * If it comes here it means that at least one reply is arrived
-				 * => r cannot remain null at the end of the while.
-				 */
-				Set rep = replyQueue.entrySet();
-				Iterator repIterator = rep.iterator();
-				boolean found = false;
-				while (repIterator.hasNext() && !found) {
-					LinkedList l = (LinkedList) ((Map.Entry) repIterator.next()).getValue();
-					if (l.size() > 0) {
-						Reply reply = (Reply) l.removeFirst();
-						if (reply.isLast()) {// all replies arrived, => remove
-												// the entry
-							replyQueue.remove(reply.getRepliableMessageID());
-							synchronized (timeouts) {
-								timeouts.remove(reply.getRepliableMessageID());
-							}
-						}
-						found = true;
-						r = reply.getPayload();
-					}
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-		return r;
+		return replies.next(-1);
 	}
 
 	/**
 	 * @see DispatchingService#getNextReply(long)
 	 */
 	public Message getNextReply(long timeout) {
-		Message r = null;
-		synchronized (replyQueue) {
-			try {
-				/*
-				 * Here we use ad if instead of a while because we have to wait
-				 * only for one timeout; if after the given timeout the queue is
-				 * empty again, it returns null. The synchronized statement
-				 * guarantees that only one thread can test the second
-				 * hasMoreReplies.
-				 */
-				if (!hasMoreReplies())
-					replyQueue.wait(timeout);
-				/*
-				 * The timeout means that the replyQueue could be empty when the
-				 * thread wakes up. => It is necessary to recheck the queue
-				 * before trying to extract a reply. If two or more threads are
-				 * waiting, only one wakes up and can get a positive value from
-				 * the hasMoreReplies, the other ones are blocked by the
-				 * synchronized statement.
-				 */
-				if (hasMoreReplies()) {
-					Set rep = replyQueue.entrySet();
-					Iterator repIterator = rep.iterator();
-					boolean found = false;
-					while (repIterator.hasNext() && !found) {
-						LinkedList l = (LinkedList) ((Map.Entry) repIterator.next()).getValue();
-						if (l.size() > 0) {
-							Reply reply = (Reply) l.removeFirst();
-							if (reply.isLast()) {// all replies arrived, =>
-													// remove the entry
-								replyQueue.remove(reply.getRepliableMessageID());
-								synchronized (timeouts) {
-									timeouts.remove(reply.getRepliableMessageID());
-								}
-							}
-							found = true;
-							r = reply.getPayload();
-						}
-					}
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-		return r;
+		return replies.next(timeout);
+	}
+
+	/**
+	 * Returns the inbox storing the messages received by this client, to
+	 * bound it and read its counters. Its overflow policy is
+	 * <code>DROP_OLDEST</code> unless changed, and cannot be
+	 * <code>BLOCK</code>.
+	 */
+	public ClientInbox getInbox() {
+		return messages;
+	}
+
+	/**
+	 * @see AsyncDispatchingService#setExecutor(Executor)
+	 */
+	public void setExecutor(Executor executor) {
+		async.setExecutor(executor);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#addMessageListener(Filter, MessageListener)
+	 */
+	public void addMessageListener(Filter filter, MessageListener listener) {
+		async.addMessageListener(filter, listener);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#removeMessageListener(MessageListener)
+	 */
+	public void removeMessageListener(MessageListener listener) {
+		async.removeMessageListener(listener);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#nextMessage()
+	 */
+	public Future nextMessage() {
+		return async.nextMessage(null);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#nextMessage(Filter)
+	 */
+	public Future nextMessage(Filter f) {
+		return async.nextMessage(f);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#nextReply(MessageID)
+	 */
+	public Future nextReply(MessageID repliableMessageID) {
+		return replies.nextFuture(repliableMessageID);
 	}
 
 	/**
 	 * @see DispatchingService#hasMoreReplies()
 	 */
 	public boolean hasMoreReplies() {
-		Set rep = replyQueue.keySet();
-		boolean found = false;
-		synchronized (replyQueue) {
-			Iterator repIt = rep.iterator();
-			while (repIt.hasNext() && !found) {
-				LinkedList l = (LinkedList) replyQueue.get(repIt.next());
-				if (l.size() > 0)
-					return true;
-			}
-		}
-		return false;
+		return replies.hasMore();
 	}
 
 	/**
 	 * @see DispatchingService#hasMoreReplies(MessageID)
 	 */
 	public boolean hasMoreReplies(MessageID repliableMessageID) throws NullPointerException {
-		if (repliableMessageID != null) {
-			LinkedList rep = (LinkedList) replyQueue.get(repliableMessageID.toString());
-			if (rep != null)
-				return !rep.isEmpty();
-			return false;
-		}
-		throw new NullPointerException();
+		if (repliableMessageID == null)
+			throw new NullPointerException();
+		return replies.hasMore(repliableMessageID);
 	}
 
 	/**
 	 * @see DispatchingService#getAllReplies(MessageID)
 	 */
 	public Replies getAllReplies(MessageID repliableMessageID) throws NullPointerException {
-		if (repliableMessageID != null) {
-			LinkedList rep = (LinkedList) replyQueue.get(repliableMessageID.toString());
-			if (rep == null)
-				return null;
-			Message[] result = null;
-			boolean lastArrived = false;
-			Iterator it = null;
-			long t = 0;
-			synchronized (timeouts) {
-				t = ((Long) timeouts.get(repliableMessageID.toString())).longValue();
-			}
-			synchronized (rep) {
-				/*
-				 * The first wait is used when no reply is arrived. It is
-				 * separated from the other cases because if it is empty it is
-				 * not possible to check whether isLast == true. The second
-				 * wait, the one in the while, is used to wait for all the
-				 * replies to arrive or the timeout to expire. It is used only
-				 * when isEmpty == false.
-				 */
-				if (rep.isEmpty() && t > System.currentTimeMillis()) // initial
-																		// wait.
-					try {
-						rep.wait();
-					} catch (InterruptedException e1) {
-						e1.printStackTrace();
-					}
-				if (t > System.currentTimeMillis() && !rep.isEmpty())
-					// it enters here only if isEmpty == false AND timeout is
-					// not expired
-					while ((t > System.currentTimeMillis()) && !(((Reply) rep.getLast()).isLast())) {
-						// if timeout is not expired and the last reply is not
-						// arrived,
-						// wait.
-						try {
-							rep.wait();// wait until the timeout expires
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}
-				// clear the queue of the replies and the timeout
-				/*
-				 * the LinkedList contains Reply. It must return Message => get
-				 * an iterator on the list and extract the payload of each Reply
-				 * and put it into the collection. Then return the collection.
-				 */
-				LinkedList l = (LinkedList) replyQueue.remove(repliableMessageID.toString());
-				it = l.iterator();
-				int i = 0;
-				result = new Message[l.size()];
-				while (it.hasNext()) {
-					Reply r = (Reply) it.next();
-					if (r.isLast())
-						lastArrived = true;
-					result[i] = r.getPayload();
-					i++;
-				}
-			}
-			/*
-			 * synchronized(timeouts.get(repliableMessageID.toString())){
-			 * timeouts.remove(repliableMessageID.toString()); }
-			 */
-			return new Replies(result, lastArrived);
-		}
-		throw new NullPointerException();
+		if (repliableMessageID == null)
+			throw new NullPointerException();
+		return replies.all(repliableMessageID);
 	}
 
 	/**
@@ -678,93 +537,32 @@ public class LocalDispatchingService implements Proxy, DispatchingService {
 			}
 			// dispatch the payload to the proper queue depending on the subject
 			if (subject.equals(Envelope.REPLY)) {
-				try {
-					synchronized (replyQueue) {
-						LinkedList e = (LinkedList) replyQueue
-								.get(((Reply) payload).getRepliableMessageID().toString());
-						// insert the reply into the queue.
-						e.addLast(clonedPayload);
-						replyQueue.notifyAll(); // notifies the threads waiting
-												// on the
-						// getNextMessage() method
-					}
-				} catch (NullPointerException e) {
-					// if this exception is thrown, it means that the timeout
-					// has expired
-					// and so the replyQueue does not include the searched
-					// element, i.e.,
-					// "e" is null
-				}
+				replies.deliver((Reply) clonedPayload);
 			} else {
+				// The trace is transient: the clone gets its own copy, so that
+				// the subscribers sharing the broker do not mix their hops.
+				TraceContext trace = ((Message) payload).getTrace();
+				if (trace != null)
+					((Message) clonedPayload).setTrace(trace.copyAndStamp(id, TraceContext.DELIVERED));
 				// Store the received message in the local buffer.
-				synchronized (messages) {
-					messages.addLast(clonedPayload);
-					messages.notifyAll();
-				}
+				messages.add((Message) clonedPayload);
 			}
 		} else
 			throw new NotConnectedException();
 	}
 
-	public String toString() {
-		return this.id.getID();
-	}
-
 	/**
-	 * It manages the aging of a table. Every <code>SLEEP_INTERVAL</code> it
-	 * checks all the entries in the table and removes those whose timeout has
-	 * expired.
+	 * Copies a message to publish, with a copy of its trace.
 	 */
-	private class GarbageCollector implements Runnable {
-		private Map replyQueue;
-		private Map timeouts;
-		private static final long SLEEP_INTERVAL = 5000;
-		private boolean exit = false;
-
-		public GarbageCollector(Map replyQueue, Map timeouts) {
-			this.replyQueue = replyQueue;
-			this.timeouts = timeouts;
-		}
-
-		public void run() {
-			while (!exit) {
-				try {
-					synchronized (replyQueue) {
-						Iterator repl = replyQueue.entrySet().iterator();
-						synchronized (timeouts) {
-							Iterator tim = timeouts.entrySet().iterator();
-							while (repl.hasNext() && tim.hasNext()) {
-								Map.Entry elemTimeouts = (Map.Entry) tim.next();
-								Map.Entry replElem = (Map.Entry) repl.next();
-								// if timeout is expired, remove it and notify
-								if (((Long) elemTimeouts.getValue()).longValue() < System.currentTimeMillis()) {
-									synchronized (replElem.getValue()) {
-										replElem.getValue().notifyAll(); // this
-																			// notifyAll
-																			// acts
-																			// on
-										// the linked list that
-										// should contain the
-										// replies for a given
-										// message
-									}
-									timeouts.remove(elemTimeouts.getValue());
-								}
-							}
-						}
-					}
-					Thread.sleep(SLEEP_INTERVAL);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-		}
+	private static Message copyOf(Message msg) throws IOException, ClassNotFoundException {
+		Message copy = (Message) DeepCopier.copy(msg);
+		if (msg.getTrace() != null)
+			copy.setTrace(msg.getTrace().copy());
+		return copy;
+	}
 
-		/**
-		 * Causes the thread to stop and exit.
-		 */
-		public void exit() {
-			this.exit = true;
-		}
+	public String toString() {
+		return this.id.getID();
 	}
+
 }
@@ -23,15 +23,22 @@ package polimi.reds;
 /**********************************************************************
  * A REDS message. See classes extending this abstract class for the specific
  * behaviour.<br>
- * It has a unique <code>MessageID</code>.
+ * It has a unique <code>MessageID</code> and may carry a
+ * <code>TraceContext</code>.
  **********************************************************************/
 public abstract class Message implements java.io.Serializable {
+	private static final long serialVersionUID = 8963866066682459430L;
 
 	/**
 	 * The unique ID of this message.
 	 */
 	protected MessageID id;
 
+	/**
+	 * The trace of the message, sent in its envelope.
+	 */
+	private transient TraceContext trace = null;
+
 	/**
 	 * Creates a new unique id for the message.
 	 * 
@@ -48,4 +55,24 @@ public abstract class Message implements java.io.Serializable {
 	public MessageID getID() {
 		return id;
 	}
+
+	/**
+	 * Gets the trace of this message.
+	 * 
+	 * @return the trace, <code>null</code> if the message is not traced.
+	 */
+	public TraceContext getTrace() {
+		return trace;
+	}
+
+	/**
+	 * Sets the trace of this message. Setting it before publishing the message
+	 * makes it traced.
+	 * 
+	 * @param trace
+	 *            the trace, <code>null</code> to stop tracing the message
+	 */
+	public void setTrace(TraceContext trace) {
+		this.trace = trace;
+	}
 }
@@ -20,11 +20,24 @@
 
 package polimi.reds;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.rmi.dgc.VMID;
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * It represents the Universal Unique ID of a message.
+ * It represents the Universal Unique ID of a message.<br>
+ * An id is made of two <code>long</code>s: a random hash identifying the
+ * node (i.e., the JVM) that created the message and a counter incremented
+ * for each id created by that node. Generating an id thus costs an atomic
+ * increment, and comparing or hashing ids never builds a string. On the wire
+ * an id takes exactly 16 bytes, see <code>writeTo</code> and
+ * <code>readFrom</code>.
  * 
  * @author Alessandro Monguzzi
  */
@@ -32,15 +45,86 @@ public class MessageID implements Serializable {
 	/**
 	 * 
 	 */
-	private static final long serialVersionUID = -2999945363215343435L;
-	private VMID id;
+	private static final long serialVersionUID = 4436012791826405219L;
+	/**
+	 * The size in bytes of the binary encoding of an id.
+	 */
+	public static final int ENCODED_SIZE = 16;
+	private static final long LOCAL_NODE = createNodeHash();
+	private static final AtomicLong counter = new AtomicLong();
+	private transient long node;
+	private transient long sequence;
 
 	/**
-	 * Base constructor.
+	 * Base constructor. It creates a new id, different from any other id
+	 * created by this or by another node.
 	 * 
 	 */
 	public MessageID() {
-		id = new VMID();
+		node = LOCAL_NODE;
+		sequence = counter.incrementAndGet();
+	}
+
+	/**
+	 * Build the id having the given components, e.g., one decoded by a custom
+	 * transport.
+	 * 
+	 * @param node
+	 *            the hash of the node that created the id
+	 * @param sequence
+	 *            the sequence number of the id within its node
+	 */
+	public MessageID(long node, long sequence) {
+		this.node = node;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Get the hash of the node that created <code>this</code> id.
+	 * 
+	 * @return the node hash
+	 */
+	public long getNode() {
+		return node;
+	}
+
+	/**
+	 * Get the sequence number of <code>this</code> id within the node that
+	 * created it. Ids created by the same node have increasing sequence
+	 * numbers.
+	 * 
+	 * @return the sequence number
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Write the <code>ENCODED_SIZE</code> bytes representing
+	 * <code>this</code> id.
+	 * 
+	 * @param out
+	 *            the output the id is written to
+	 * @throws IOException
+	 *             if <code>out</code> fails
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(node);
+		out.writeLong(sequence);
+	}
+
+	/**
+	 * Read an id written by <code>writeTo</code>.
+	 * 
+	 * @param in
+	 *            the input the id is read from
+	 * @return the id
+	 * @throws IOException
+	 *             if <code>in</code> fails
+	 */
+	public static MessageID readFrom(DataInput in) throws IOException {
+		long node = in.readLong();
+		return new MessageID(node, in.readLong());
 	}
 
 	/**
@@ -49,7 +133,7 @@ public class MessageID implements Serializable {
 	 * @return a <code>String</code> representing the id
 	 */
 	public String toString() {
-		return id.toString();
+		return Long.toHexString(node) + ":" + Long.toHexString(sequence);
 	}
 
 	/**
@@ -58,8 +142,11 @@ public class MessageID implements Serializable {
 	 * @return true iff the two object have the same id
 	 */
 	public boolean equals(Object o) {
+		if (o == this)
+			return true;
 		if (o instanceof MessageID) {
-			return ((MessageID) o).id.equals(this.id);
+			MessageID other = (MessageID) o;
+			return other.sequence == sequence && other.node == node;
 		}
 		return false;
 	}
@@ -68,6 +155,37 @@ public class MessageID implements Serializable {
 	 * Get a hashcode of <code>this</code>
 	 */
 	public int hashCode() {
-		return id.hashCode();
+		long h = sequence * 0x9E3779B97F4A7C15L ^ node;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		writeTo(out);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		node = in.readLong();
+		sequence = in.readLong();
+	}
+
+	/**
+	 * Pick the hash identifying this node. The default <code>Random</code>
+	 * seed already differs between JVMs started at different times; the host
+	 * address and the start time are mixed in to separate JVMs started
+	 * together on different hosts.
+	 */
+	private static long createNodeHash() {
+		long hash = new Random().nextLong() ^ System.nanoTime();
+		try {
+			byte[] address = InetAddress.getLocalHost().getAddress();
+			for (int i = 0; i < address.length; i++)
+				hash = hash * 31 + (address[i] & 0xff);
+		} catch (IOException e) {
+			// no address: rely on the random seed only
+		}
+		hash ^= System.currentTimeMillis() << 20;
+		return hash;
 	}
-}
\ No newline at end of file
+}
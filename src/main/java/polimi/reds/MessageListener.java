@@ -0,0 +1,38 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+/**
+ * A callback notified of the messages received by an
+ * <code>AsyncDispatchingService</code> that match the filter it was
+ * registered with.<br>
+ * Each listener is notified by one thread at a time, in the order the messages
+ * have been received.
+ */
+public interface MessageListener {
+	/**
+	 * Called when a message matching the filter of this listener arrives.
+	 * 
+	 * @param msg
+	 *            the message received.
+	 */
+	public void notify(Message msg);
+}
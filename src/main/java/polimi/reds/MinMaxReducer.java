@@ -0,0 +1,59 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.util.Comparator;
+
+/**
+ * A <code>ReplyReducer</code> keeping only the smallest and the largest reply
+ * according to a <code>Comparator</code>. The requester receives at most two
+ * replies: the minimum first, then the maximum.
+ */
+public class MinMaxReducer implements ReplyReducer {
+	private static final long serialVersionUID = 5903164958371207342L;
+	private Comparator comparator;
+
+	/**
+	 * @param comparator
+	 *            the comparator of the replies. It travels with the message,
+	 *            so it must be <code>Serializable</code>.
+	 */
+	public MinMaxReducer(Comparator comparator) {
+		this.comparator = comparator;
+	}
+
+	/**
+	 * @see ReplyReducer#reduce(Message[])
+	 */
+	public Message[] reduce(Message[] replies) {
+		Message min = replies[0];
+		Message max = replies[0];
+		for (int i = 1; i < replies.length; i++) {
+			if (comparator.compare(replies[i], min) < 0)
+				min = replies[i];
+			if (comparator.compare(replies[i], max) > 0)
+				max = replies[i];
+		}
+		if (min == max)
+			return new Message[] { min };
+		return new Message[] { min, max };
+	}
+}
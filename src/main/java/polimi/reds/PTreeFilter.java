@@ -90,6 +90,22 @@ public class PTreeFilter implements Filter {
 		return true;
 	}
 
+	/**
+	 * Consistent with <code>equals</code>: it depends on the test variable
+	 * and the result of each predicate, not on their order.
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		int h = 0;
+		Iterator it = predicates.iterator();
+		while (it.hasNext()) {
+			PTreePredicate p = (PTreePredicate) it.next();
+			h += p.getTestVariable().hashCode() * 31 + p.getResult().hashCode();
+		}
+		return h;
+	}
+
 	// For testing purposes...
 	public boolean isConsistent() {
 		Iterator it1 = predicates.iterator();
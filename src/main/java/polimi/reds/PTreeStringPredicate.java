@@ -116,4 +116,11 @@ public class PTreeStringPredicate implements PTreePredicate {
 			return true;
 		return false;
 	}
+
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		return getTestVariable().hashCode() * 31 + getResult().hashCode();
+	}
 }
@@ -0,0 +1,579 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import polimi.util.TimerWheel;
+
+/**
+ * Correlates the replies received by a client with the repliable messages it
+ * published. Each request is tracked by a <code>Request</code>, found in
+ * constant time by its <code>MessageID</code>. A request has its own queue
+ * of replies and its own condition, so a reply wakes up only the callers
+ * waiting for that request (or for any reply). The reply timeout of a request
+ * is a task on a <code>TimerWheel</code>, cancelled when the last reply
+ * arrives.<br>
+ * The replies of a request published with a <code>ReplyListener</code> are
+ * given to the listener instead of being queued. Those of a request read as a
+ * <code>ReplyStream</code> are queued in the stream, and the thread delivering
+ * them waits while the stream is full. If that thread must never wait (the
+ * broker router delivering to a local client), a full stream is cancelled
+ * instead: the replies queued can still be taken, then the stream ends.
+ */
+class ReplyCorrelator {
+	private static Logger logger = Logger.getLogger("polimi.reds");
+	private ReentrantLock lock;
+	/** The requests indexed by <code>MessageID</code>. */
+	private Map requests;
+	/**
+	 * The requests that may have replies queued, in the order their first
+	 * reply arrived.
+	 */
+	private LinkedList ready;
+	/** The number of replies queued. */
+	private int available;
+	/** Signalled when a reply arrives and someone waits for any reply. */
+	private Condition anyReply;
+	private int anyWaiters;
+	private long timeout;
+	private TimerWheel wheel;
+	/** <code>false</code> if a full stream is cancelled instead of waited. */
+	private boolean mayBlock;
+
+	/**
+	 * @param timeout
+	 *            the reply timeout, in ms
+	 */
+	ReplyCorrelator(long timeout) {
+		this.timeout = timeout;
+		lock = new ReentrantLock();
+		requests = new HashMap();
+		ready = new LinkedList();
+		available = 0;
+		anyReply = lock.newCondition();
+		anyWaiters = 0;
+		wheel = TimerWheel.getShared();
+		mayBlock = true;
+	}
+
+	/**
+	 * Forbids the thread delivering the replies to wait: a reply arriving
+	 * when its stream is full cancels the stream. Used when the replies are
+	 * delivered by a thread that must never block, like the router of a
+	 * broker in the same jvm.
+	 */
+	void forbidBlocking() {
+		lock.lock();
+		try {
+			mayBlock = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts tracking the replies to a repliable message.
+	 * 
+	 * @param listener
+	 *            the listener of the replies, <code>null</code> to queue them.
+	 */
+	void register(MessageID id, ReplyListener listener) {
+		register(new Request(id, listener));
+	}
+
+	private void register(Request r) {
+		lock.lock();
+		try {
+			requests.put(r.id, r);
+			r.timer = wheel.schedule(r, timeout);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts tracking the replies to a repliable message, which will be read
+	 * through the returned stream.
+	 * 
+	 * @param capacity
+	 *            the maximum number of replies queued in the stream
+	 * @param canceller
+	 *            run when the stream is cancelled before its last reply, to
+	 *            tell the brokers to stop forwarding replies
+	 */
+	ReplyStream stream(MessageID id, int capacity, Runnable canceller) {
+		Request r = new Request(id, null);
+		r.capacity = capacity;
+		r.canceller = canceller;
+		register(r);
+		return new Stream(r);
+	}
+
+	/**
+	 * Delivers a reply received. Replies to unknown or expired requests are
+	 * discarded. An <code>AggregatedReply</code> is delivered as the single
+	 * replies it contains.
+	 */
+	void deliver(Reply reply) {
+		if (reply instanceof AggregatedReply) {
+			Reply[] parts = ((AggregatedReply) reply).split();
+			for (int i = 0; i < parts.length; i++)
+				deliver(parts[i]);
+			return;
+		}
+		ReplyListener listener = null;
+		Runnable canceller = null;
+		lock.lock();
+		try {
+			Request r = (Request) requests.get(reply.getRepliableMessageID());
+			if (r == null || r.expired)
+				return;
+			if (r.capacity > 0) {
+				if (!offer(r, reply))
+					canceller = r.canceller;
+				return;
+			}
+			if (reply.isLast()) {
+				r.lastArrived = true;
+				r.timer.cancel();
+			}
+			if (r.listener != null) {
+				if (reply.isLast())
+					requests.remove(r.id);
+				listener = r.listener;
+			} else if (!r.futures.isEmpty()) {
+				if (reply.isLast())
+					requests.remove(r.id);
+				((DeliveryFuture) r.futures.removeFirst()).complete(reply.getPayload());
+			} else {
+				r.replies.addLast(reply);
+				available++;
+				if (!r.ready) {
+					r.ready = true;
+					ready.addLast(r);
+				}
+				r.changed.signal();
+				if (anyWaiters > 0)
+					anyReply.signal();
+			}
+		} finally {
+			lock.unlock();
+			// tell the brokers to stop forwarding the replies of an overflowed
+			// stream, without the lock held
+			if (canceller != null)
+				canceller.run();
+		}
+		// the listener is already serialized on the executor: it does not block
+		if (listener != null)
+			listener.notifyReply(reply.getPayload(), reply.getRepliableMessageID(), reply.isLast());
+	}
+
+	/**
+	 * Queues a reply in the stream of its request, waiting while the stream
+	 * is full. If blocking is forbidden a full stream is cancelled instead,
+	 * keeping the replies already queued. Called with the lock held.
+	 * 
+	 * @return <code>false</code> if the stream has just been cancelled
+	 *         because it was full, and the brokers must be told to stop
+	 *         forwarding its replies.
+	 */
+	private boolean offer(Request r, Reply reply) {
+		while (mayBlock && r.replies.size() >= r.capacity && !r.cancelled && !r.expired)
+			r.space.awaitUninterruptibly();
+		if (r.cancelled || r.expired)
+			return true;
+		// the fake last reply has no payload and never overflows the stream
+		if (r.replies.size() >= r.capacity && reply.getPayload() != null) {
+			r.cancelled = true;
+			r.timer.cancel();
+			requests.remove(r.id);
+			r.changed.signalAll();
+			if (logger.isLoggable(Level.FINE))
+				logger.fine("Reply stream " + r.id + " full: cancelled");
+			return reply.isLast();
+		}
+		// the fake last reply sent when there are no replies has no payload
+		if (reply.getPayload() != null)
+			r.replies.addLast(reply);
+		if (reply.isLast()) {
+			r.lastArrived = true;
+			r.timer.cancel();
+			requests.remove(r.id);
+		}
+		r.changed.signalAll();
+		return true;
+	}
+
+	/**
+	 * Takes the next reply of a request, waiting for it.
+	 * 
+	 * @return the payload of the reply, or <code>null</code> if the request
+	 *         is unknown or all its replies have already been taken.
+	 * @throws TimeoutException
+	 *             if the reply timeout expires
+	 */
+	Message next(MessageID id) throws TimeoutException {
+		lock.lock();
+		try {
+			Request r = (Request) requests.get(id);
+			if (r == null || r.isPushed())
+				return null;
+			while (r.replies.isEmpty() && !r.expired)
+				r.changed.awaitUninterruptibly();
+			if (r.replies.isEmpty()) {
+				requests.remove(id);
+				throw new TimeoutException();
+			}
+			return take(r);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next reply of any request, waiting at most
+	 * <code>timeout</code> ms, or until a reply arrives if
+	 * <code>timeout</code> is negative.
+	 * 
+	 * @return the payload of the reply or <code>null</code>.
+	 */
+	Message next(long timeout) {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lock();
+		try {
+			anyWaiters++;
+			try {
+				while (available == 0) {
+					if (timeout < 0)
+						anyReply.awaitUninterruptibly();
+					else if (nanos <= 0)
+						return null;
+					else
+						try {
+							nanos = anyReply.awaitNanos(nanos);
+						} catch (InterruptedException e) {
+							return null;
+						}
+				}
+			} finally {
+				anyWaiters--;
+			}
+			Request r = (Request) ready.getFirst();
+			while (r.replies.isEmpty()) {
+				// its replies were taken by a caller waiting for it
+				ready.removeFirst();
+				r.ready = false;
+				r = (Request) ready.getFirst();
+			}
+			Message m = take(r);
+			// pass the signal on to another waiter
+			if (available > 0 && anyWaiters > 0)
+				anyReply.signal();
+			return m;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Message take(Request r) {
+		Reply reply = (Reply) r.replies.removeFirst();
+		available--;
+		if (r.replies.isEmpty() && r.ready) {
+			ready.remove(r);
+			r.ready = false;
+		}
+		if (reply.isLast() || (r.expired && r.replies.isEmpty()))
+			requests.remove(r.id);
+		return reply.getPayload();
+	}
+
+	boolean hasMore() {
+		lock.lock();
+		try {
+			return available > 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean hasMore(MessageID id) {
+		lock.lock();
+		try {
+			Request r = (Request) requests.get(id);
+			return r != null && r.capacity == 0 && !r.replies.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the last reply of a request arrives or its timeout expires,
+	 * then returns all its replies not yet taken.
+	 * 
+	 * @return the replies or <code>null</code> if the request is unknown.
+	 */
+	Replies all(MessageID id) {
+		lock.lock();
+		try {
+			Request r = (Request) requests.get(id);
+			if (r == null || r.isPushed())
+				return null;
+			while (!r.lastArrived && !r.expired)
+				r.changed.awaitUninterruptibly();
+			requests.remove(id);
+			Message[] result = new Message[r.replies.size()];
+			for (int i = 0; i < result.length; i++)
+				result[i] = take(r);
+			return new Replies(result, r.lastArrived);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a future for the next reply of a request.
+	 */
+	Future nextFuture(MessageID id) {
+		lock.lock();
+		try {
+			Request r = (Request) requests.get(id);
+			if (r == null || r.isPushed() || (r.lastArrived && r.replies.isEmpty()))
+				return new DeliveryFuture(null);
+			if (!r.replies.isEmpty())
+				return new DeliveryFuture(take(r));
+			DeliveryFuture f = new DeliveryFuture(lock, r.futures, null);
+			if (r.expired) {
+				requests.remove(id);
+				f.fail(new TimeoutException());
+			} else
+				r.futures.addLast(f);
+			return f;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops tracking all the requests, completing their futures with
+	 * <code>null</code>.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			Iterator it = requests.values().iterator();
+			while (it.hasNext()) {
+				Request r = (Request) it.next();
+				r.timer.cancel();
+				// end the streams
+				r.expired = true;
+				r.changed.signalAll();
+				r.space.signalAll();
+				while (!r.futures.isEmpty())
+					((DeliveryFuture) r.futures.removeFirst()).complete(null);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A repliable message waiting for replies. It is also the task run when
+	 * its reply timeout expires.
+	 */
+	private class Request implements Runnable {
+		MessageID id;
+		ReplyListener listener;
+		LinkedList replies;
+		LinkedList futures;
+		Condition changed;
+		TimerWheel.Timeout timer;
+		boolean lastArrived;
+		boolean expired;
+		/** <code>true</code> if this request is in <code>ready</code>. */
+		boolean ready;
+		/** The capacity of the stream, 0 if the replies are not streamed. */
+		int capacity;
+		/** Signalled when a reply is taken from the stream. */
+		Condition space;
+		boolean cancelled;
+		Runnable canceller;
+
+		Request(MessageID id, ReplyListener listener) {
+			this.id = id;
+			this.listener = listener;
+			replies = new LinkedList();
+			futures = new LinkedList();
+			changed = lock.newCondition();
+			lastArrived = false;
+			expired = false;
+			ready = false;
+			capacity = 0;
+			space = lock.newCondition();
+			cancelled = false;
+			canceller = null;
+		}
+
+		/**
+		 * @return <code>true</code> if the replies are given to a listener or
+		 *         to a stream instead of being taken by the callers of the
+		 *         correlator.
+		 */
+		boolean isPushed() {
+			return listener != null || capacity > 0;
+		}
+
+		public void run() {
+			lock.lock();
+			try {
+				if (lastArrived || requests.get(id) != this)
+					return;
+				expired = true;
+				changed.signalAll();
+				space.signalAll();
+				while (!futures.isEmpty())
+					((DeliveryFuture) futures.removeFirst()).fail(new TimeoutException());
+				// the replies already queued can still be taken
+				if (replies.isEmpty() || capacity > 0)
+					requests.remove(id);
+			} finally {
+				lock.unlock();
+			}
+			if (listener != null)
+				listener.notifyTimeout(id);
+		}
+	}
+
+	/**
+	 * The stream of the replies of a request.
+	 */
+	private class Stream implements ReplyStream {
+		private Request r;
+
+		Stream(Request r) {
+			this.r = r;
+		}
+
+		public boolean hasNext() {
+			lock.lock();
+			try {
+				while (r.replies.isEmpty() && !r.lastArrived && !r.expired && !r.cancelled)
+					r.changed.awaitUninterruptibly();
+				return !r.replies.isEmpty();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public Object next() {
+			lock.lock();
+			try {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return poll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public Message poll(long timeout) {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+			lock.lock();
+			try {
+				while (r.replies.isEmpty() && !r.lastArrived && !r.expired && !r.cancelled) {
+					if (nanos <= 0)
+						return null;
+					try {
+						nanos = r.changed.awaitNanos(nanos);
+					} catch (InterruptedException e) {
+						return null;
+					}
+				}
+				return r.replies.isEmpty() ? null : poll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Takes the first reply queued. Called with the lock held.
+		 */
+		private Message poll() {
+			Reply reply = (Reply) r.replies.removeFirst();
+			r.space.signal();
+			return reply.getPayload();
+		}
+
+		public boolean isFinished() {
+			lock.lock();
+			try {
+				return r.replies.isEmpty() && (r.lastArrived || r.expired || r.cancelled);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public boolean areAllReplies() {
+			lock.lock();
+			try {
+				return r.lastArrived;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public void cancel() {
+			boolean propagate;
+			lock.lock();
+			try {
+				if (r.cancelled)
+					return;
+				r.cancelled = true;
+				r.replies.clear();
+				propagate = !r.lastArrived && !r.expired;
+				if (propagate) {
+					r.timer.cancel();
+					requests.remove(r.id);
+				}
+				r.changed.signalAll();
+				r.space.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (propagate && r.canceller != null)
+				r.canceller.run();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
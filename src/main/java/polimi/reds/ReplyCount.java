@@ -0,0 +1,51 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+/**
+ * The reply produced by a <code>CountReducer</code>: the number of replies
+ * received for a repliable message.
+ */
+public class ReplyCount extends Message {
+	private static final long serialVersionUID = -1804939711361373042L;
+	private int count;
+
+	/**
+	 * @param count
+	 *            the number of replies
+	 */
+	public ReplyCount(int count) {
+		this.count = count;
+	}
+
+	/**
+	 * Gets the number of replies.
+	 * 
+	 * @return the number of replies.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public String toString() {
+		return "ReplyCount: " + count;
+	}
+}
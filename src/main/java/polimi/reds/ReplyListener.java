@@ -0,0 +1,50 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+/**
+ * A callback notified of the replies to a <code>Repliable</code> message
+ * published through <code>AsyncDispatchingService.publish(Message,
+ * ReplyListener)</code>.
+ */
+public interface ReplyListener {
+	/**
+	 * Called for each reply received.
+	 * 
+	 * @param reply
+	 *            the reply.
+	 * @param repliableMessageID
+	 *            the ID of the message <code>reply</code> replies to.
+	 * @param last
+	 *            <code>true</code> if no more replies will be delivered for
+	 *            this message.
+	 */
+	public void notifyReply(Message reply, MessageID repliableMessageID, boolean last);
+
+	/**
+	 * Called if the reply timeout of the message expires before its last
+	 * reply arrives. No more replies will be delivered to this listener.
+	 * 
+	 * @param repliableMessageID
+	 *            the ID of the message.
+	 */
+	public void notifyTimeout(MessageID repliableMessageID);
+}
@@ -0,0 +1,47 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.io.Serializable;
+
+/**
+ * A function combining the replies to a repliable message inside the network.
+ * Brokers using an <code>AggregatingReplyManager</code> apply the reducer
+ * carried by a <code>ReducibleRepliable</code> message to the replies they
+ * gather before sending them back towards the requester, so the requester
+ * receives the result of the reduction instead of each single reply.<br>
+ * Replies are reduced at each broker on the way back, in no particular order:
+ * a reducer must therefore accept among its inputs the replies it produced
+ * itself, and the result must not depend on how the replies were grouped.
+ * 
+ * @see polimi.reds.broker.routing.AggregatingReplyManager
+ */
+public interface ReplyReducer extends Serializable {
+	/**
+	 * Combines the given replies.
+	 * 
+	 * @param replies
+	 *            the replies gathered so far, some of which may be the result
+	 *            of a previous reduction. It is never empty.
+	 * @return the replies to send in place of <code>replies</code>
+	 */
+	public Message[] reduce(Message[] replies);
+}
@@ -0,0 +1,81 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.util.Iterator;
+
+/**
+ * The replies to a repliable message, read one at a time as they arrive. The
+ * stream holds at most the number of replies given when it was opened: when
+ * it is full the dispatching service stops reading from the broker until the
+ * application takes a reply, so a slow reader slows down the replies instead
+ * of filling the memory. While the stream is full no other message is
+ * received from the broker either. A <code>LocalDispatchingService</code>
+ * receives from the router of the broker, which must never wait: there a
+ * reply arriving when the stream is full cancels the stream, and
+ * <code>areAllReplies()</code> returns <code>false</code>.<br>
+ * The stream ends when the last reply arrives, when the reply timeout expires
+ * or when it is cancelled. Cancelling a stream before its last reply tells the
+ * brokers to stop forwarding its replies.<br>
+ * <code>next()</code> returns the replies as <code>Message</code>s.
+ * 
+ * @see AsyncDispatchingService#streamReplies(Message, int)
+ */
+public interface ReplyStream extends Iterator {
+	/**
+	 * Waits until a reply is available or the stream ends.
+	 * 
+	 * @return <code>true</code> if a reply is available, <code>false</code>
+	 *         if the stream ended.
+	 */
+	public boolean hasNext();
+
+	/**
+	 * Takes the next reply, waiting at most <code>timeout</code> ms.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait, in ms
+	 * @return the reply, or <code>null</code> if none arrived in time or the
+	 *         stream ended.
+	 */
+	public Message poll(long timeout);
+
+	/**
+	 * Checks whether the stream ended and all its replies have been taken.
+	 * 
+	 * @return <code>true</code> if no more replies will be returned.
+	 */
+	public boolean isFinished();
+
+	/**
+	 * Checks whether the last reply arrived, i.e., whether the stream was not
+	 * cut short by the reply timeout or by <code>cancel()</code>.
+	 * 
+	 * @return <code>true</code> if all the replies arrived.
+	 */
+	public boolean areAllReplies();
+
+	/**
+	 * Ends the stream, dropping the replies not taken yet. If the last reply
+	 * did not arrive, the brokers are told to stop forwarding the replies.
+	 */
+	public void cancel();
+}
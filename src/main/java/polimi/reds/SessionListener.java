@@ -0,0 +1,40 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+/**
+ * A callback notified by a <code>TCPDispatchingService</code> when some of
+ * the envelopes the broker sent to it are lost, because the connection
+ * dropped while more envelopes than the session buffer of the broker were
+ * waiting to be acknowledged.
+ */
+public interface SessionListener {
+	/**
+	 * Called when the envelopes from <code>first</code> to <code>last</code>
+	 * of the session with the broker have been lost.
+	 * 
+	 * @param first
+	 *            the sequence number of the first envelope lost.
+	 * @param last
+	 *            the sequence number of the last envelope lost.
+	 */
+	public void signalEnvelopesLost(long first, long last);
+}
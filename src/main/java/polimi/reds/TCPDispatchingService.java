@@ -23,30 +23,51 @@ package polimi.reds;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.net.ConnectException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.Collections;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 import polimi.reds.broker.overlay.Envelope;
 import polimi.reds.broker.overlay.REDSMarshaller;
 import polimi.reds.broker.overlay.REDSUnmarshaller;
+import polimi.reds.broker.overlay.SessionToken;
 import polimi.reds.broker.overlay.TCPEnvelope;
 import polimi.reds.broker.overlay.Transport;
+import polimi.util.CountingInputStream;
 
 /*******************************************************************************
  * The client interface to access the REDS dispatching service through TCP
- * sockets.
+ * sockets.<br>
+ * When the broker supports sessions, a connection that drops is transparently
+ * reopened within <code>reconnectTimeout</code> ms: the broker resumes the
+ * session, keeping the subscriptions of this client and replaying the messages
+ * sent in the meantime. If the session cannot be resumed a new one is started
+ * and the subscriptions are issued again.<br>
+ * Publishing can be pipelined (see <code>setPublishPipeline</code>): messages
+ * are queued and written by a separate thread, which coalesces all the
+ * envelopes queued in the meantime into a single socket write.<br>
+ * Durable subscriptions (see <code>subscribeDurable</code>) are kept by the
+ * broker on behalf of a named subscriber, which any client may take over. The
+ * messages are acknowledged in batches once taken from the inbox (or handed
+ * to the listener), never when only received: a message dropped by the
+ * overflow policy is not acknowledged, and the broker sends it again on the
+ * next attach. Those replayed and already taken are dropped, so each message
+ * is delivered at least once across the restarts of the client, and once
+ * while it runs.
  ******************************************************************************/
-public class TCPDispatchingService implements DispatchingService, Runnable {
+public class TCPDispatchingService implements AsyncDispatchingService, Runnable {
 	// FIXME: use the java logging api and remove all System.out/err
 	/**
 	 * The IP address of the host which runs the broker this client is joined.
@@ -75,38 +96,107 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 	 * joined.
 	 */
 	protected REDSUnmarshaller unmarshaller;
+	/**
+	 * The stream under <code>unmarshaller</code>, counting the bytes received
+	 * to account for the size of the messages in the inbox.
+	 */
+	private CountingInputStream received;
 	/**
 	 * The identifier of this client (more specifically the identifier of this
 	 * specific connection with the REDS dispatching network).
 	 */
 	protected NodeDescriptor id;
-	/** The list of messages received but not yet processed by this client. */
-	protected LinkedList messages;
+	/** The messages received but not yet processed by this client. */
+	protected ClientInbox messages;
 	/**
 	 * The thread which manage this connection with the REDS dispatching
 	 * network.
 	 */
 	protected Thread clientThread;
 	/**
-	 * The queue that mantains all the replies received until the client reads
-	 * them.
+	 * Correlates the replies received with the repliable messages published.
 	 */
-	protected Map replyQueue;
+	private ReplyCorrelator replies;
+	private final long DEFAULT_TIMEOUT = 10000;
 	/**
-	 * It stores the expiring timeouts of the repliable messages sent but not
-	 * already replied.
+	 * The default time (in ms) spent trying to reopen a connection that
+	 * dropped.
 	 */
-	protected Map timeouts;
-	private final long DEFAULT_TIMEOUT = 10000;
+	public static final long DEFAULT_RECONNECT_TIMEOUT = 10000;
+	// The time between two attempts to reopen the connection, in ms
+	private static final long RECONNECT_INTERVAL = 200;
+	// The number of messages of a durable subscriber taken before they are
+	// acknowledged, unless no other message is waiting
+	private static final int DURABLE_ACK_BATCH = 64;
+	// The number of envelopes received from the broker acknowledged at once
+	private static final int SESSION_ACK_BATCH = 64;
+	// The number of envelopes kept until the broker acknowledges them beyond
+	// which sending waits
+	private static final int MAX_UNACKNOWLEDGED = 1024;
+	private long reconnectTimeout = DEFAULT_RECONNECT_TIMEOUT;
+	/**
+	 * The id of the session opened with the broker, 0 if the broker does not
+	 * support sessions.
+	 */
+	private long sessionID = 0;
+	/**
+	 * The sequence number of the last envelope received from the broker.
+	 */
+	private long lastSequenceNumber = 0;
+	/**
+	 * The number of envelopes received from the broker and not yet
+	 * acknowledged.
+	 */
+	private int receivedUnacknowledged = 0;
+	/**
+	 * The sequence number of the next envelope sent to the broker.
+	 */
+	private long nextSequenceNumber = 1;
+	/**
+	 * The envelopes sent to the broker and not yet acknowledged, sent again
+	 * if the connection drops before the broker receives them.
+	 */
+	private LinkedList unacknowledged = new LinkedList();
 	/**
-	 * It manages the <code>queue</code> removing all the entries with the
-	 * <code>timeout</code> expired.
+	 * The sequence number of the last envelope received by the broker, as
+	 * told when the connection was last opened.
 	 */
-	private GarbageCollector garbageCollector;
+	private long brokerReceived = 0;
+	private SessionListener sessionListener = null;
 	/**
-	 * This is the daemon that runs the garbage collection.
+	 * The filters subscribed so far, issued again if the session cannot be
+	 * resumed.
 	 */
-	private Thread garbageCollectorThread = null;
+	private List subscriptions = new LinkedList();
+	/**
+	 * The durable subscribers this client is attached to, each with its
+	 * <code>DurableCursor</code>.
+	 */
+	private Map durable = new HashMap();
+	/**
+	 * <code>true</code> while the connection is being reopened.
+	 */
+	private boolean reconnecting = false;
+	/**
+	 * The number of connections opened so far with the broker.
+	 */
+	private int connections = 0;
+	/**
+	 * Delivers messages and replies to listeners and futures.
+	 */
+	private AsyncDelivery async;
+	/**
+	 * The envelopes published and not yet written, <code>null</code> if
+	 * publishing is not pipelined.
+	 */
+	private PublishPipeline pipeline = null;
+	private Thread writerThread = null;
+	/**
+	 * The acknowledgements to send to the broker, written with the next batch
+	 * or by <code>ackThread</code>: the client thread never writes them.
+	 */
+	private AckQueue acks = new AckQueue();
+	private Thread ackThread = null;
 
 	/**
 	 * Builds a new <code>TCPDispatchingService</code> to join a broker running
@@ -118,11 +208,10 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 	 *            The TCP port to join.
 	 */
 	public TCPDispatchingService(String host, int port) {
-		replyQueue = Collections.synchronizedMap(new Hashtable());
-		timeouts = Collections.synchronizedMap(new Hashtable());
 		this.id = new NodeDescriptor();
-		garbageCollector = new GarbageCollector(replyQueue, timeouts);
-		messages = new LinkedList();
+		messages = new ClientInbox();
+		async = new AsyncDelivery(messages);
+		replies = new ReplyCorrelator(DEFAULT_TIMEOUT);
 		opened = false;
 		this.host = host;
 		this.port = port;
@@ -142,6 +231,64 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 		this.port = port;
 	}
 
+	/**
+	 * Sets how long (in ms) this client tries to reopen a connection that
+	 * dropped before giving up. A value of 0 disables reconnection.
+	 * 
+	 * @param reconnectTimeout
+	 *            the timeout in ms
+	 */
+	public void setReconnectTimeout(long reconnectTimeout) {
+		this.reconnectTimeout = reconnectTimeout;
+	}
+
+	/**
+	 * Sets the listener notified when some envelopes sent by the broker are
+	 * lost while the connection is being reopened. Without a listener the
+	 * loss is only printed.
+	 * 
+	 * @param listener
+	 *            the listener, <code>null</code> to remove it
+	 */
+	public void setSessionListener(SessionListener listener) {
+		this.sessionListener = listener;
+	}
+
+	/**
+	 * Enables pipelined publishing. <code>publish</code> and
+	 * <code>forward</code> then queue the envelope and return: a writer thread
+	 * writes the queued envelopes in batches, flushing the socket once per
+	 * batch. Callers wait only when <code>capacity</code> envelopes are
+	 * already queued. Other requests (subscriptions, replies, ...) are sent
+	 * after all the envelopes queued before them.<br>
+	 * Since messages are serialized by the writer thread, a message must not
+	 * be changed after it has been published. Use <code>flush</code> to wait
+	 * until the messages published so far have been written.<br>
+	 * It must be called before <code>open</code>.
+	 * 
+	 * @param capacity
+	 *            the number of envelopes that can be queued, 0 to disable
+	 *            pipelining
+	 */
+	public void setPublishPipeline(int capacity) {
+		if (opened)
+			throw new IllegalStateException("The dispatching service is already opened");
+		pipeline = capacity > 0 ? new PublishPipeline(capacity) : null;
+	}
+
+	/**
+	 * Waits until all the messages published so far have been written to the
+	 * connection with the broker. It returns immediately if publishing is not
+	 * pipelined.
+	 * 
+	 * @throws IOException
+	 *             if writing some envelope failed since the last call
+	 */
+	public void flush() throws IOException {
+		if (pipeline != null)
+			pipeline.flush();
+	}
+
 	/**
 	 * The main loop to read messages coming from the broker and store them in
 	 * the local buffer. #see #messages
@@ -157,32 +304,49 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 		while (opened) {
 			// wait for a new message
 			msg = null;
+			CountingInputStream in = received;
+			long start = in.getCount();
 			try {
 				msg = (TCPEnvelope) unmarshaller.readObject();
 			} catch (SocketTimeoutException ex) {
 				// System.out.println("Timeout expired!");
 				continue;
 			} catch (java.io.EOFException ex) {
+				if (opened && resume())
+					continue;
 				if (opened) {
 					System.out.println("The broker brutally closed this connection!");
 					ex.printStackTrace();
 				}
 				break;
 			} catch (Exception ex) {
+				if (opened && resume())
+					continue;
 				if (opened) {
 					System.out.println("Unable to read message!");
 					ex.printStackTrace();
 				}
 				break;
 			}
-			if (msg.getTypeOfMessage().equals(TCPEnvelope.CLOSE_ACK)) {
+			if (msg.getSequenceNumber() != 0) {
+				// Envelopes already received before a reconnection are
+				// discarded
+				if (msg.getSequenceNumber() <= lastSequenceNumber)
+					continue;
+				if (msg.getSequenceNumber() > lastSequenceNumber + 1)
+					lost(lastSequenceNumber + 1, msg.getSequenceNumber() - 1);
+				lastSequenceNumber = msg.getSequenceNumber();
+				acknowledge(in);
+			}
+			if (msg.getTypeOfMessage().equals(TCPEnvelope.SESSION_ACK)) {
+				acknowledged(((SessionToken) msg.getPayload()).getLastSequenceNumber());
+			} else if (msg.getTypeOfMessage().equals(TCPEnvelope.CLOSE_ACK)) {
 				opened = false;
 			} else if (msg.getTypeOfMessage().equals(TCPEnvelope.CLOSE)) {
 				TCPEnvelope response = new TCPEnvelope(TCPEnvelope.CLOSE_ACK);
+				sessionID = 0;
 				try {
-					marshaller.writeObject(response);
-					marshaller.flush();
-					marshaller.reset();
+					send(response);
 				} catch (Exception e) {
 					System.err.println("Error closing the connection");
 					e.printStackTrace();
@@ -191,32 +355,15 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 				System.out.println("The broker gently closed this connection.");
 				opened = false;
 			} else if (msg.getTypeOfMessage().equals(TCPEnvelope.REPLY)) {
-				try {
-					synchronized (replyQueue) {
-						LinkedList e = (LinkedList) replyQueue.get(((Reply) msg.getPayload()).getRepliableMessageID()
-								.toString());
-						// synchronized(e) {
-						// insert the reply into the queue.
-						e.addLast(((Reply) msg.getPayload()));
-						// e.notifyAll();//notifies the threads waiting on the
-						// corresponding
-						// getNextMessage(MessageID)
-						// }
-						replyQueue.notifyAll();// notifies the threads waiting
-												// on the
-												// getNextMessage() method
-					}
-				} catch (NullPointerException e) {
-					// if this exception is thrown, it means that the timeout
-					// has expired
-					// and so the reply must be discarded.
-				}
-			} else
+				replies.deliver((Reply) msg.getPayload());
+			} else if (msg.getTypeOfMessage().equals(TCPEnvelope.DURABLE_PUBLISH)) {
+				receivedDurable((DurableDelivery) msg.getPayload(), in.getCount() - start);
+			} else {
+				if (msg.getTrace() != null)
+					msg.getTrace().stamp(id, TraceContext.DELIVERED);
 				// Store the received message in the local buffer.
-				synchronized (messages) {
-					messages.addLast(msg.getMessage());
-					messages.notifyAll();
-				}
+				messages.add(msg.getMessage(), in.getCount() - start);
+			}
 		} // end while
 			// Close the streams and the socket
 		try {
@@ -240,26 +387,69 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 	public void open() throws ConnectException {
 		if (opened)
 			return;
+		connect();
+		// The connection is open
+		opened = true;
+		// Starts the client's thread
+		clientThread = new Thread(this);
+		clientThread.setDaemon(true);
+		clientThread.setName("TCPDispatchingService.clientThread");
+		clientThread.start();
+		if (pipeline != null) {
+			pipeline.start();
+			writerThread = new Thread(new PipelineWriter());
+			writerThread.setDaemon(true);
+			writerThread.setName("TCPDispatchingService.writerThread");
+			writerThread.start();
+		}
+		acks.start();
+		ackThread = new Thread(new AckWriter());
+		ackThread.setDaemon(true);
+		ackThread.setName("TCPDispatchingService.ackThread");
+		ackThread.start();
+	}
+
+	/**
+	 * Opens a socket to the broker and performs the handshake, asking the
+	 * broker to resume the current session, if any.
+	 * 
+	 * @return <code>true</code> if the broker resumed the session.
+	 * @throws ConnectException
+	 *             when a connection could not be opened
+	 */
+	private boolean connect() throws ConnectException {
+		Socket newSock = null;
+		REDSMarshaller newMarshaller;
+		REDSUnmarshaller newUnmarshaller;
+		CountingInputStream newReceived;
 		// Try to open the socket and the input and output streams to the broker
 		// at
 		// host:port
 		try {
-			sock = new Socket(host, port);
-			marshaller = new REDSMarshaller(new BufferedOutputStream(sock.getOutputStream()));
-			unmarshaller = new REDSUnmarshaller(new BufferedInputStream(sock.getInputStream()));
+			newSock = new Socket(host, port);
+			// the session acknowledgements are small writes: do not let them
+			// delay the envelopes that follow
+			newSock.setTcpNoDelay(true);
+			newMarshaller = new REDSMarshaller(new BufferedOutputStream(newSock.getOutputStream()));
+			newReceived = new CountingInputStream(new BufferedInputStream(newSock.getInputStream()));
+			newUnmarshaller = new REDSUnmarshaller(newReceived);
 		} catch (IOException e) {
+			closeQuietly(newSock);
 			ConnectException ex = new ConnectException("Error opening the connection with " + host + ":" + port);
 			ex.initCause(e);
 			throw ex;
 		}
-		// Send the CLIENT_OPEN message, including the local id
-		TCPEnvelope openMessage = new TCPEnvelope(TCPEnvelope.CLIENT_OPEN);
+		// Send the CLIENT_OPEN message, including the local id and the session
+		// to resume
+		TCPEnvelope openMessage = new TCPEnvelope(TCPEnvelope.CLIENT_OPEN, new SessionToken(sessionID,
+				lastSequenceNumber, false), Transport.MISCELLANEOUS_CLASS);
 		openMessage.setSenderID(id);
 		try {
-			marshaller.writeObject(openMessage);
-			marshaller.flush();
-			marshaller.reset();
+			newMarshaller.writeObject(openMessage);
+			newMarshaller.flush();
+			newMarshaller.reset();
 		} catch (Exception e) {
+			closeQuietly(newSock);
 			ConnectException ex = new ConnectException("Error sending the client_open message to " + host + ":" + port);
 			ex.initCause(e);
 			throw ex;
@@ -267,28 +457,312 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 		// Wait for the confirmation from the BROKER
 		Envelope confirmMessage = null;
 		try {
-			confirmMessage = (Envelope) unmarshaller.readObject();
+			confirmMessage = (Envelope) newUnmarshaller.readObject();
 		} catch (Exception e) {
+			closeQuietly(newSock);
 			ConnectException ex = new ConnectException("Error receiving confirm_open from " + host + ":" + port);
 			ex.initCause(e);
 			throw ex;
 		}
 		// Check the answer from the BROKER
 		if (!confirmMessage.getTypeOfMessage().equals(TCPEnvelope.CONFIRM_OPEN)) {
+			closeQuietly(newSock);
 			throw new ConnectException("Was expecting a packet starting with " + TCPEnvelope.CONFIRM_OPEN
 					+ ", received a packet starting with " + confirmMessage.getTypeOfMessage());
 		}
-		// The connection is open
-		opened = true;
-		// Starts the client's thread
-		clientThread = new Thread(this);
-		clientThread.setDaemon(true);
-		clientThread.setName("TCPDispatchingService.clientThread");
-		clientThread.start();
-		garbageCollectorThread = new Thread(garbageCollector);
-		garbageCollectorThread.setDaemon(true);
-		garbageCollectorThread.setName("TCPDispatchingService.GarbageCollector");
-		garbageCollectorThread.start();
+		boolean resumed = false;
+		if (confirmMessage.getPayload() instanceof SessionToken) {
+			SessionToken token = (SessionToken) confirmMessage.getPayload();
+			resumed = token.isResumed();
+			if (!resumed) {
+				sessionID = token.getSessionID();
+				lastSequenceNumber = 0;
+				nextSequenceNumber = 1;
+			}
+			brokerReceived = token.getLastSequenceNumber();
+			receivedUnacknowledged = 0;
+		} else
+			// The broker does not support sessions
+			sessionID = 0;
+		synchronized (this) {
+			sock = newSock;
+			marshaller = newMarshaller;
+			unmarshaller = newUnmarshaller;
+			received = newReceived;
+			connections++;
+			notifyAll();
+		}
+		return resumed;
+	}
+
+	/**
+	 * Reopens the connection after it dropped, resuming the session with the
+	 * broker or, if this is not possible, issuing again all the subscriptions.
+	 * Other threads writing to the broker wait until this method returns.
+	 * 
+	 * @return <code>true</code> if the connection has been reopened.
+	 */
+	private boolean resume() {
+		if (sessionID == 0 || reconnectTimeout <= 0)
+			return false;
+		// Closing the socket first wakes up the threads blocked writing on it
+		closeQuietly(sock);
+		synchronized (this) {
+			reconnecting = true;
+		}
+		System.out.println("Connection with the broker lost: resuming session " + sessionID);
+		long deadline = System.currentTimeMillis() + reconnectTimeout;
+		boolean connected = false;
+		boolean resumed = false;
+		while (!connected && opened && System.currentTimeMillis() < deadline) {
+			try {
+				resumed = connect();
+				connected = true;
+				sock.setSoTimeout(5000);
+			} catch (IOException e) {
+				try {
+					Thread.sleep(RECONNECT_INTERVAL);
+				} catch (InterruptedException ex) {
+					break;
+				}
+			}
+		}
+		List envelopes = new ArrayList();
+		List pending;
+		synchronized (unacknowledged) {
+			acknowledged(brokerReceived);
+			pending = new ArrayList(unacknowledged);
+			if (connected && !resumed)
+				unacknowledged.clear();
+			unacknowledged.notifyAll();
+		}
+		if (connected && resumed)
+			// Send again only what the broker did not receive
+			envelopes.addAll(pending);
+		else if (connected) {
+			// The broker dropped the session: subscribe again
+			List toSubscribe;
+			synchronized (subscriptions) {
+				toSubscribe = new LinkedList(subscriptions);
+			}
+			Iterator it = toSubscribe.iterator();
+			while (it.hasNext())
+				envelopes.add(new TCPEnvelope(TCPEnvelope.SUBSCRIBE, (Filter) it.next(), Transport.FILTER_CLASS));
+			synchronized (durable) {
+				it = durable.keySet().iterator();
+				while (it.hasNext())
+					envelopes.add(new TCPEnvelope(TCPEnvelope.DURABLE_ATTACH, new DurableSubscription((String) it
+							.next(), null), Transport.FILTER_CLASS));
+			}
+			// then send the other envelopes not acknowledged by the old session
+			it = pending.iterator();
+			while (it.hasNext()) {
+				TCPEnvelope env = (TCPEnvelope) it.next();
+				if (!Transport.FILTER_CLASS.equals(env.getTrafficClass())) {
+					env.setSequenceNumber(0);
+					envelopes.add(env);
+				}
+			}
+		}
+		if (!envelopes.isEmpty()) {
+			sequence(envelopes);
+			try {
+				write(envelopes);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		synchronized (this) {
+			reconnecting = false;
+			notifyAll();
+		}
+		return connected;
+	}
+
+	private void closeQuietly(Socket s) {
+		if (s == null)
+			return;
+		try {
+			s.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Sends an envelope to the broker, after the envelopes still queued in the
+	 * pipeline. If the connection is being reopened the caller waits for the
+	 * operation to complete, and it waits as well while too many envelopes
+	 * sent wait for the acknowledgement of the broker. If writing fails while a session is active, the
+	 * envelope is sent again once the connection has been reopened.
+	 * 
+	 * @param env
+	 *            the envelope to send
+	 * @throws IOException
+	 *             if the envelope could not be sent
+	 */
+	protected void send(TCPEnvelope env) throws IOException {
+		awaitAcknowledgements();
+		synchronized (this) {
+			List envelopes = new ArrayList();
+			if (pipeline != null)
+				pipeline.drainTo(envelopes);
+			int queued = envelopes.size();
+			envelopes.add(env);
+			try {
+				transmit(envelopes);
+			} catch (IOException e) {
+				if (queued > 0)
+					pipeline.done(queued, e);
+				throw e;
+			}
+			if (queued > 0)
+				pipeline.done(queued, null);
+		}
+	}
+
+	/**
+	 * Waits while <code>MAX_UNACKNOWLEDGED</code> envelopes sent wait for the
+	 * acknowledgement of the broker, without holding the lock of the service.
+	 */
+	private void awaitAcknowledgements() throws IOException {
+		synchronized (unacknowledged) {
+			while (sessionID != 0 && opened && unacknowledged.size() >= MAX_UNACKNOWLEDGED
+					&& clientThread.isAlive()) {
+				try {
+					unacknowledged.wait(RECONNECT_INTERVAL);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch of envelopes, together with the acknowledgements queued.
+	 * If the connection is reopened while writing, the envelopes the broker
+	 * did not receive are sent again by <code>resume</code>.
+	 */
+	private synchronized void transmit(List envelopes) throws IOException {
+		waitReconnection();
+		acks.drainTo(envelopes, sessionID);
+		if (envelopes.isEmpty())
+			return;
+		int connection = connections;
+		sequence(envelopes);
+		try {
+			write(envelopes);
+			acknowledgedDurable(envelopes);
+		} catch (IOException e) {
+			if (sessionID == 0 || reconnectTimeout <= 0)
+				throw e;
+			// Wake up the client thread, which reopens the connection
+			closeQuietly(sock);
+			long deadline = System.currentTimeMillis() + reconnectTimeout + RECONNECT_INTERVAL;
+			while (connections == connection && opened && System.currentTimeMillis() < deadline) {
+				try {
+					wait(RECONNECT_INTERVAL);
+				} catch (InterruptedException ex) {
+					throw new InterruptedIOException();
+				}
+			}
+			waitReconnection();
+			if (connections == connection)
+				throw e;
+		}
+	}
+
+	/**
+	 * Numbers the envelopes of a batch, if a session is open, and keeps them
+	 * until the broker acknowledges them. Senders wait in
+	 * <code>awaitAcknowledgements</code> before too many are kept, so none is
+	 * ever forgotten before being acknowledged.
+	 */
+	private void sequence(List envelopes) {
+		if (sessionID == 0)
+			return;
+		synchronized (unacknowledged) {
+			Iterator it = envelopes.iterator();
+			while (it.hasNext()) {
+				TCPEnvelope env = (TCPEnvelope) it.next();
+				if (env.getSequenceNumber() != 0 || env.getTypeOfMessage().equals(TCPEnvelope.SESSION_ACK))
+					continue;
+				env.setSequenceNumber(nextSequenceNumber++);
+				unacknowledged.addLast(env);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the envelopes the broker acknowledged.
+	 */
+	private void acknowledged(long sequenceNumber) {
+		synchronized (unacknowledged) {
+			while (!unacknowledged.isEmpty()
+					&& ((TCPEnvelope) unacknowledged.getFirst()).getSequenceNumber() <= sequenceNumber)
+				unacknowledged.removeFirst();
+			unacknowledged.notifyAll();
+		}
+	}
+
+	/**
+	 * Acknowledges the envelopes received from the broker when the batch is
+	 * full or no more data is waiting on the socket. The acknowledgement is
+	 * only queued: the client thread must not wait for a publisher writing.
+	 */
+	private void acknowledge(CountingInputStream in) {
+		boolean idle;
+		try {
+			idle = in.available() == 0;
+		} catch (IOException e) {
+			idle = true;
+		}
+		if (++receivedUnacknowledged < SESSION_ACK_BATCH && !idle)
+			return;
+		receivedUnacknowledged = 0;
+		acks.session(sessionID, lastSequenceNumber);
+	}
+
+	/**
+	 * Records the durable acknowledgements written in a batch.
+	 */
+	private void acknowledgedDurable(List envelopes) {
+		Iterator it = envelopes.iterator();
+		while (it.hasNext()) {
+			TCPEnvelope env = (TCPEnvelope) it.next();
+			if (env.getTypeOfMessage().equals(TCPEnvelope.DURABLE_ACK)) {
+				DurableDelivery ack = (DurableDelivery) env.getPayload();
+				cursor(ack.getName()).acknowledged(ack.getOffset());
+			}
+		}
+	}
+
+	private void lost(long first, long last) {
+		SessionListener listener = sessionListener;
+		if (listener != null)
+			listener.signalEnvelopesLost(first, last);
+		else
+			System.err.println("Envelopes " + first + " to " + last + " of session " + sessionID + " lost");
+	}
+
+	private synchronized void waitReconnection() throws InterruptedIOException {
+		while (reconnecting) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	private void write(List envelopes) throws IOException {
+		Iterator it = envelopes.iterator();
+		while (it.hasNext())
+			marshaller.writeObject(it.next());
+		// a reset per batch: class descriptors are written once per batch, and
+		// objects written in previous batches are never referenced again
+		marshaller.reset();
+		marshaller.flush();
 	}
 
 	/**
@@ -298,25 +772,35 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 		// If the connection is not open, this function ends
 		if (!opened)
 			return;
-		// Send a close-notification to the broker
+		// Send a close-notification to the broker: the session ends here.
 		TCPEnvelope close = new TCPEnvelope(TCPEnvelope.CLOSE);
+		sessionID = 0;
+		lastSequenceNumber = 0;
+		synchronized (subscriptions) {
+			subscriptions.clear();
+		}
+		synchronized (unacknowledged) {
+			unacknowledged.clear();
+			unacknowledged.notifyAll();
+		}
 		try {
-			marshaller.writeObject(close);
-			marshaller.flush();
-			marshaller.reset();
+			send(close);
 		} catch (Exception e) {
 			System.err.println("Error closing the connection");
 			e.printStackTrace();
 		}
+		if (pipeline != null)
+			pipeline.stop();
+		acks.stop();
 		// opened = false;
 		// wait for the clientThread to exit (after closing the streams)
 		try {
-			garbageCollector.exit();
-			garbageCollectorThread.join();
 			clientThread.join();
 		} catch (InterruptedException ex) {
 			ex.printStackTrace();
 		}
+		async.close();
+		replies.close();
 	}
 
 	/**
@@ -337,14 +821,15 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 	 * @param subject
 	 *            the subject of the message
 	 */
-	protected synchronized void forward(String subject, Serializable msg) {
+	protected void forward(String subject, Serializable msg) {
 		if (!opened)
 			return;
 		TCPEnvelope fw = new TCPEnvelope(subject, msg, Transport.MISCELLANEOUS_CLASS);
 		try {
-			marshaller.writeObject(fw);
-			marshaller.flush();
-			marshaller.reset();
+			if (pipeline != null)
+				pipeline.put(fw);
+			else
+				send(fw);
 		} catch (Exception e) {
 			System.err.println("Error while forwarding the internal message!");
 			e.printStackTrace();
@@ -354,44 +839,68 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 	/**
 	 * Publish a new message. If the connection with the broker is not opened
 	 * this method has no effect. If the message is a
-	 * <code>RepliableMessage</code> it creates a new entry in the
-	 * <code>queue</code>.<br>
+	 * <code>RepliableMessage</code> its replies are tracked until its reply
+	 * timeout expires.<br>
 	 * Before publication each message is given a new unique
 	 * <code>MessageID</code>.
 	 * 
 	 * @param msg
 	 *            the <code>Message</code> to publish.
 	 */
-	public synchronized void publish(Message msg) {
+	public void publish(Message msg) {
+		publish(msg, null);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#publish(Message, ReplyListener)
+	 */
+	public void publish(Message msg, ReplyListener listener) {
 		// If opened is FALSE, the connection to BROKER does not exist and this
 		// function ends
 		if (!opened)
 			return;
 		// create a new ID for the message
 		msg.createID();
-		TCPEnvelope publishMsg;
-		// if Repliable set a new entry in the reply queue.
-		if (msg instanceof Repliable) {
-			synchronized (replyQueue) {
-				try {
-					// create a new entry in the queue of the replies.
-					replyQueue.put(msg.getID().toString(), new LinkedList());
-					// create a new entry in the list of the timeouts.
-					synchronized (timeouts) {
-						timeouts.put(msg.getID().toString(), new Long(System.currentTimeMillis() + DEFAULT_TIMEOUT));
-					}
-				} catch (NullPointerException e) {
-					e.printStackTrace();
-				}
-			}
-		}
+		TraceContext.published(msg, id);
+		// if Repliable start tracking its replies
+		if (msg instanceof Repliable)
+			replies.register(msg.getID(), listener == null ? null : async.serialize(listener));
 		// Create a "publish-type message": it contains the message 'msg'
-		publishMsg = new TCPEnvelope(TCPEnvelope.PUBLISH, msg, Transport.MESSAGE_CLASS);
-		// Send the message to the BROKER
+		post(new TCPEnvelope(TCPEnvelope.PUBLISH, msg, Transport.MESSAGE_CLASS));
+	}
+
+	/**
+	 * @see AsyncDispatchingService#streamReplies(Message, int)
+	 */
+	public ReplyStream streamReplies(Message msg, int capacity) {
+		if (!(msg instanceof Repliable))
+			throw new IllegalArgumentException("The message is not repliable");
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity " + capacity);
+		if (!opened)
+			throw new IllegalStateException("Not opened");
+		msg.createID();
+		TraceContext.published(msg, id);
+		final MessageID id = msg.getID();
+		ReplyStream stream = replies.stream(id, capacity, new Runnable() {
+			public void run() {
+				post(new TCPEnvelope(TCPEnvelope.CANCEL_REPLIES, id, Transport.REPLY_CLASS));
+			}
+		});
+		post(new TCPEnvelope(TCPEnvelope.PUBLISH, msg, Transport.MESSAGE_CLASS));
+		return stream;
+	}
+
+	/**
+	 * Sends an envelope through the publishing pipeline, if any, so that it
+	 * keeps its order with respect to the publications.
+	 */
+	private void post(TCPEnvelope envelope) {
 		try {
-			marshaller.writeObject(publishMsg);
-			marshaller.flush();
-			marshaller.reset();
+			if (pipeline != null)
+				pipeline.put(envelope);
+			else
+				send(envelope);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -415,11 +924,13 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 		// filter;
 		// the sender is the client (id)
 		TCPEnvelope subscribeMsg = new TCPEnvelope(TCPEnvelope.SUBSCRIBE, filter, Transport.FILTER_CLASS);
+		synchronized (subscriptions) {
+			subscriptions.add(filter);
+		}
+		messages.retainFilter(filter);
 		// Send the message to the BROKER
 		try {
-			marshaller.writeObject(subscribeMsg);
-			marshaller.flush();
-			marshaller.reset();
+			send(subscribeMsg);
 		} catch (Exception e) {
 			System.err.println("Error while subscribing");
 			e.printStackTrace();
@@ -444,17 +955,124 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 		// a filter; the
 		// sender is the client (id)
 		TCPEnvelope unsubscribeMsg = new TCPEnvelope(TCPEnvelope.UNSUBSCRIBE, filter, Transport.FILTER_CLASS);
+		synchronized (subscriptions) {
+			subscriptions.remove(filter);
+		}
+		messages.removeFilter(filter);
 		// Send the message to the BROKER
 		try {
-			marshaller.writeObject(unsubscribeMsg);
-			marshaller.flush();
-			marshaller.reset();
+			send(unsubscribeMsg);
+		} catch (Exception e) {
+			System.err.println("Error while unsubscribing");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Subscribes a durable subscriber to the messages matching the given
+	 * filter, creating the subscriber if needed, and attaches this client to
+	 * it. The broker keeps the messages matching the filters of the subscriber
+	 * until they are acknowledged, even if no client is attached to it. If the
+	 * connection with the broker is not opened this method has no effect.
+	 * 
+	 * @param name
+	 *            the name of the subscriber
+	 * @param filter
+	 *            the <code>Filter</code>
+	 */
+	public synchronized void subscribeDurable(String name, Filter filter) {
+		if (!opened)
+			return;
+		cursor(name);
+		try {
+			send(new TCPEnvelope(TCPEnvelope.DURABLE_SUBSCRIBE, new DurableSubscription(name, filter),
+					Transport.FILTER_CLASS));
+		} catch (Exception e) {
+			System.err.println("Error while subscribing");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Removes a filter of a durable subscriber. The subscriber, with its
+	 * messages not yet acknowledged, is removed with its last filter. If the
+	 * connection with the broker is not opened this method has no effect.
+	 * 
+	 * @param name
+	 *            the name of the subscriber
+	 * @param filter
+	 *            the <code>Filter</code>
+	 */
+	public synchronized void unsubscribeDurable(String name, Filter filter) {
+		if (!opened)
+			return;
+		try {
+			send(new TCPEnvelope(TCPEnvelope.DURABLE_UNSUBSCRIBE, new DurableSubscription(name, filter),
+					Transport.FILTER_CLASS));
 		} catch (Exception e) {
 			System.err.println("Error while unsubscribing");
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Attaches this client to an existing durable subscriber, e.g. after a
+	 * restart: the broker sends all the messages the subscriber did not
+	 * acknowledge. If the connection with the broker is not opened this
+	 * method has no effect.
+	 * 
+	 * @param name
+	 *            the name of the subscriber
+	 */
+	public synchronized void attachDurable(String name) {
+		if (!opened)
+			return;
+		cursor(name);
+		try {
+			send(new TCPEnvelope(TCPEnvelope.DURABLE_ATTACH, new DurableSubscription(name, null),
+					Transport.FILTER_CLASS));
+		} catch (Exception e) {
+			System.err.println("Error while attaching to " + name);
+			e.printStackTrace();
+		}
+	}
+
+	private DurableCursor cursor(String name) {
+		synchronized (durable) {
+			DurableCursor c = (DurableCursor) durable.get(name);
+			if (c == null) {
+				c = new DurableCursor(name);
+				durable.put(name, c);
+			}
+			return c;
+		}
+	}
+
+	/**
+	 * Stores a message of a durable subscriber in the local buffer, unless it
+	 * has already been received, with a receipt acknowledging it once taken.
+	 * A message replayed and already taken acknowledges again the messages
+	 * taken, in case the broker missed it.
+	 */
+	private void receivedDurable(DurableDelivery delivery, long size) {
+		DurableCursor c = cursor(delivery.getName());
+		if (c.received(delivery.getOffset()))
+			messages.add(delivery.getMessage(), size, new DurableReceipt(c, delivery.getOffset()));
+		else
+			acknowledge(c, c.unacknowledged());
+	}
+
+	/**
+	 * Queues the acknowledgement of the messages of a durable subscriber up to
+	 * the given offset, if not negative. The cursor records it once written.
+	 */
+	private void acknowledge(DurableCursor c, long offset) {
+		if (offset < 0)
+			return;
+		acks.durable(new TCPEnvelope(TCPEnvelope.DURABLE_ACK, new DurableDelivery(c.name, offset, null),
+				Transport.MISCELLANEOUS_CLASS));
+	}
+
 	/**
 	 * Removes all subscriptions issued so far. If the connection with the
 	 * broker is not opened this method has no effect.
@@ -468,11 +1086,13 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 		// contains a filter;
 		// the sender is the client (id)
 		TCPEnvelope unsubscribeAllMsg = new TCPEnvelope(TCPEnvelope.UNSUBSCRIBEALL, null, Transport.FILTER_CLASS);
+		synchronized (subscriptions) {
+			subscriptions.clear();
+		}
+		messages.removeAllFilters();
 		// Send the message to the BROKER
 		try {
-			marshaller.writeObject(unsubscribeAllMsg);
-			marshaller.flush();
-			marshaller.reset();
+			send(unsubscribeAllMsg);
 		} catch (Exception e) {
 			System.err.println("Error while executing the unsubscribeAll");
 			e.printStackTrace();
@@ -487,18 +1107,13 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 	 * @return first message available.
 	 */
 	public Message getNextMessage() {
-		Message m = null;
-		synchronized (messages) {
-			try {
-				while (messages.isEmpty())
-					messages.wait();
-				m = (Message) messages.removeFirst();
-			} catch (Exception e) {
-				System.err.println("Error while getting first available message");
-				e.printStackTrace();
-			}
+		try {
+			return messages.take();
+		} catch (InterruptedException e) {
+			System.err.println("Error while getting first available message");
+			e.printStackTrace();
+			return null;
 		}
-		return m;
 	}
 
 	/**
@@ -513,48 +1128,26 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 	 * @return first message available.
 	 */
 	public Message getNextMessage(long timeout) {
-		Message m = null;
-		synchronized (messages) {
-			try {
-				if (messages.isEmpty())
-					messages.wait(timeout);
-				if (!messages.isEmpty())
-					m = (Message) messages.removeFirst();
-			} catch (Exception e) {
-				System.err.println("Error while getting first available message");
-				e.printStackTrace();
-			}
+		try {
+			return messages.poll(timeout);
+		} catch (InterruptedException e) {
+			System.err.println("Error while getting first available message");
+			e.printStackTrace();
+			return null;
 		}
-		return m;
 	}
 
 	/**
 	 * @see DispatchingService#getNextMessage(Filter)
 	 */
 	public Message getNextMessage(Filter f) {
-		Message m = null;
-		synchronized (messages) {
-			try {
-				boolean match = false;
-				while (!match) {
-					Iterator it = messages.iterator();
-					while (it.hasNext() && !match) {
-						m = (Message) it.next();
-						match = f.matches(m);
-					}
-					if (match) {
-						messages.remove(m);
-						// messages.notifyAll();
-						return m;
-					}
-					messages.wait();
-				}
-			} catch (Exception e) {
-				System.err.println("Error while getting first available message matching the specified filter");
-				e.printStackTrace();
-			}
+		try {
+			return messages.take(f);
+		} catch (InterruptedException e) {
+			System.err.println("Error while getting first available message matching the specified filter");
+			e.printStackTrace();
+			return null;
 		}
-		return null;
 	}
 
 	/**
@@ -571,14 +1164,7 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 	 * @see DispatchingService#hasMoreMessages(Filter)
 	 */
 	public boolean hasMoreMessages(Filter f) {
-		boolean match = false;
-		synchronized (messages) {
-			Iterator it = messages.iterator();
-			while (it.hasNext() && !match) {
-				match = f.matches((Message) it.next());
-			}
-		}
-		return match;
+		return messages.contains(f);
 	}
 
 	/**
@@ -603,9 +1189,7 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 				Transport.REPLY_CLASS);
 		// Send the message to the BROKER
 		try {
-			marshaller.writeObject(replyMsg);
-			marshaller.flush();
-			marshaller.reset();
+			send(replyMsg);
 		} catch (Exception e) {
 			// System.err.println("Error while replying");
 			e.printStackTrace();
@@ -616,295 +1200,420 @@ public class TCPDispatchingService implements DispatchingService, Runnable {
 	 * @see DispatchingService#getNextReply()
 	 */
 	public Message getNextReply() {
-		Message r = null;
-		synchronized (replyQueue) {
-			try {
-				while (!hasMoreReplies())
-					replyQueue.wait();
-				/*
-				 * If it comes here it means that at least one reply is arrived
-				 * => r cannot remain null at the end of the while.
-				 */
-				Set rep = replyQueue.entrySet();
-				Iterator repIterator = rep.iterator();
-				boolean found = false;
-				while (repIterator.hasNext() && !found) {
-					LinkedList l = (LinkedList) ((Map.Entry) repIterator.next()).getValue();
-					if (l.size() > 0) {
-						Reply reply = (Reply) l.removeFirst();
-						if (reply.isLast()) {// all replies arrived, => remove
-												// the entry
-							replyQueue.remove(reply.getRepliableMessageID());
-							synchronized (timeouts) {
-								timeouts.remove(reply.getRepliableMessageID());
-							}
-						}
-						found = true;
-						r = reply.getPayload();
-					}
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-		return r;
+		return replies.next(-1);
 	}
 
 	/**
 	 * @see DispatchingService#getNextReply(long)
 	 */
 	public Message getNextReply(long timeout) {
-		Message r = null;
-		synchronized (replyQueue) {
-			try {
-				/*
-				 * Here we use ad if instead of a while because we have to wait
-				 * only for one timeout; if after the given timeout the queue is
-				 * empty again, it returns null. The synchronized statement
-				 * guarantees that only one thread can test the second
-				 * hasMoreReplies.
-				 */
-				if (!hasMoreReplies())
-					replyQueue.wait(timeout);
-				/*
-				 * The timeout means that the replyQueue could be empty when the
-				 * thread wakes up. => It is necessary to recheck the queue
-				 * before trying to extract a reply. If two or more threads are
-				 * waiting, only one wakes up and can get a positive value from
-				 * the hasMoreReplies, the other ones are blocked by the
-				 * synchronized statement.
-				 */
-				if (hasMoreReplies()) {
-					Set rep = replyQueue.entrySet();
-					Iterator repIterator = rep.iterator();
-					boolean found = false;
-					while (repIterator.hasNext() && !found) {
-						LinkedList l = (LinkedList) ((Map.Entry) repIterator.next()).getValue();
-						if (l.size() > 0) {
-							Reply reply = (Reply) l.removeFirst();
-							if (reply.isLast()) {// all replies arrived, =>
-													// remove the entry
-								replyQueue.remove(reply.getRepliableMessageID());
-								synchronized (timeouts) {
-									timeouts.remove(reply.getRepliableMessageID());
-								}
-							}
-							found = true;
-							r = reply.getPayload();
-						}
-					}
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-		return r;
+		return replies.next(timeout);
 	}
 
 	/**
 	 * @see DispatchingService#getNextReply(MessageID)
 	 */
 	public Message getNextReply(MessageID repliableMessageID) throws NullPointerException, TimeoutException {
-		Reply r = null;
-		synchronized (replyQueue) {
-			LinkedList rep = (LinkedList) replyQueue.get(repliableMessageID.toString());
-			if (rep == null)
-				return null;
-			// synchronized(rep) {
-			while (rep.isEmpty()) {
-				try {
-					replyQueue.wait();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				// }
-			}
-			try {
-				r = (Reply) rep.removeFirst();
-			} catch (NoSuchElementException e) {
-				/*
-				 * If this exception is thrown, the timeout is expired and no
-				 * replies arrived. It is possible to remove the entry.
-				 */
-				replyQueue.remove(repliableMessageID.toString());
-				throw new TimeoutException();
-			}
-			if (r.isLast()) {// all replies arrived, => remove the entry
-				replyQueue.remove(r.getRepliableMessageID());
-				synchronized (timeouts) {
-					timeouts.remove(r.getRepliableMessageID());
-				}
-			}
-			return r.getPayload();
-		}
+		if (repliableMessageID == null)
+			throw new NullPointerException();
+		return replies.next(repliableMessageID);
+	}
+
+	/**
+	 * Returns the inbox storing the messages received by this client, to
+	 * bound it and read its counters.
+	 */
+	public ClientInbox getInbox() {
+		return messages;
+	}
+
+	/**
+	 * @see AsyncDispatchingService#setExecutor(Executor)
+	 */
+	public void setExecutor(Executor executor) {
+		async.setExecutor(executor);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#addMessageListener(Filter, MessageListener)
+	 */
+	public void addMessageListener(Filter filter, MessageListener listener) {
+		async.addMessageListener(filter, listener);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#removeMessageListener(MessageListener)
+	 */
+	public void removeMessageListener(MessageListener listener) {
+		async.removeMessageListener(listener);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#nextMessage()
+	 */
+	public Future nextMessage() {
+		return async.nextMessage(null);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#nextMessage(Filter)
+	 */
+	public Future nextMessage(Filter f) {
+		return async.nextMessage(f);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#nextReply(MessageID)
+	 */
+	public Future nextReply(MessageID repliableMessageID) {
+		return replies.nextFuture(repliableMessageID);
 	}
 
 	/**
 	 * @see DispatchingService#hasMoreReplies()
 	 */
 	public boolean hasMoreReplies() {
-		Set rep = replyQueue.keySet();
-		boolean found = false;
-		synchronized (replyQueue) {
-			Iterator repIt = rep.iterator();
-			while (repIt.hasNext() && !found) {
-				LinkedList l = (LinkedList) replyQueue.get(repIt.next());
-				if (l.size() > 0)
-					return true;
-			}
-		}
-		return false;
+		return replies.hasMore();
 	}
 
 	/**
 	 * @see DispatchingService#hasMoreReplies(MessageID)
 	 */
 	public boolean hasMoreReplies(MessageID repliableMessageID) throws NullPointerException {
-		if (repliableMessageID != null) {
-			LinkedList rep = (LinkedList) replyQueue.get(repliableMessageID.toString());
-			if (rep != null)
-				return !rep.isEmpty();
-			return false;
-		}
-		throw new NullPointerException();
+		if (repliableMessageID == null)
+			throw new NullPointerException();
+		return replies.hasMore(repliableMessageID);
 	}
 
 	/**
 	 * @see DispatchingService#getAllReplies(MessageID)
 	 */
 	public Replies getAllReplies(MessageID repliableMessageID) throws NullPointerException {
-		if (repliableMessageID != null) {
-			LinkedList rep = (LinkedList) replyQueue.get(repliableMessageID.toString());
-			if (rep == null)
-				return null;
-			Message[] result = null;
-			boolean lastArrived = false;
-			Iterator it = null;
-			long t = 0;
-			synchronized (timeouts) {
-				t = ((Long) timeouts.get(repliableMessageID.toString())).longValue();
+		if (repliableMessageID == null)
+			throw new NullPointerException();
+		return replies.all(repliableMessageID);
+	}
+
+
+	/**
+	 * What this client did with the messages of a durable subscriber. The
+	 * messages received and not yet taken are tracked by offset; the
+	 * acknowledgments being cumulative, the first one dropped by the inbox
+	 * holds back the acknowledgment of the following ones until it is
+	 * received again.
+	 */
+	private static class DurableCursor {
+		private static final int PENDING = 0;
+		private static final int TAKEN = 1;
+		private static final int DROPPED = 2;
+		String name;
+		/** The offset up to which all the messages have been taken. */
+		private long consumed = -1;
+		/** The offset of the last acknowledgment sent. */
+		private long acknowledged = -1;
+		/** The number of messages taken since then. */
+		private int unacknowledged = 0;
+		/** The state of each message after <code>consumed</code>, by offset. */
+		private TreeMap states = new TreeMap();
+
+		DurableCursor(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Records a message received.
+		 * 
+		 * @return <code>false</code> if the message has already been received
+		 *         and not dropped.
+		 */
+		synchronized boolean received(long offset) {
+			if (offset <= consumed)
+				return false;
+			Long key = new Long(offset);
+			Integer state = (Integer) states.get(key);
+			if (state != null && state.intValue() != DROPPED)
+				return false;
+			states.put(key, new Integer(PENDING));
+			return true;
+		}
+
+		synchronized void dropped(long offset) {
+			states.put(new Long(offset), new Integer(DROPPED));
+		}
+
+		/**
+		 * Records a message taken.
+		 * 
+		 * @return the offset to acknowledge, or -1 if the acknowledgment can
+		 *         be delayed.
+		 */
+		synchronized long taken(long offset) {
+			states.put(new Long(offset), new Integer(TAKEN));
+			while (!states.isEmpty()) {
+				Map.Entry first = states.firstEntry();
+				if (((Integer) first.getValue()).intValue() != TAKEN)
+					break;
+				consumed = ((Long) first.getKey()).longValue();
+				states.pollFirstEntry();
+				unacknowledged++;
 			}
-			synchronized (rep) {
-				/*
-				 * The first wait is used when no reply is arrived. It is
-				 * separated from the other cases because if it is empty it is
-				 * not possible to check whether isLast == true. The second
-				 * wait, the one in the while, is used to wait for all the
-				 * replies to arrive or the timeout to expire. It is used only
-				 * when isEmpty == false.
-				 */
-				if (rep.isEmpty() && t > System.currentTimeMillis()) // initial
-																		// wait.
+			if (unacknowledged >= DURABLE_ACK_BATCH || (unacknowledged > 0 && states.isEmpty()))
+				return consumed;
+			return -1;
+		}
+
+		/**
+		 * Gets the offset to acknowledge, or -1 if all the messages taken
+		 * have been acknowledged.
+		 */
+		synchronized long unacknowledged() {
+			return consumed > acknowledged ? consumed : -1;
+		}
+
+		synchronized void acknowledged(long offset) {
+			if (offset > acknowledged) {
+				acknowledged = offset;
+				unacknowledged = 0;
+			}
+		}
+	}
+
+	/**
+	 * Tells the cursor of a durable subscriber what happened to one of its
+	 * messages, acknowledging it when taken.
+	 */
+	private class DurableReceipt implements ClientInbox.Receipt {
+		private DurableCursor cursor;
+		private long offset;
+
+		DurableReceipt(DurableCursor cursor, long offset) {
+			this.cursor = cursor;
+			this.offset = offset;
+		}
+
+		public void taken() {
+			acknowledge(cursor, cursor.taken(offset));
+		}
+
+		public void dropped() {
+			cursor.dropped(offset);
+		}
+	}
+
+	/**
+	 * The ring buffer of the envelopes published and not yet written.
+	 */
+	private static class PublishPipeline {
+		private Object[] ring;
+		private int head = 0;
+		private int count = 0;
+		/** The number of envelopes queued so far. */
+		private long queued = 0;
+		/** The number of envelopes written (or failed) so far. */
+		private long completed = 0;
+		/** The first write failure not yet reported by <code>flush</code>. */
+		private IOException failure = null;
+		private boolean stopped = false;
+
+		PublishPipeline(int capacity) {
+			ring = new Object[capacity];
+		}
+
+		synchronized void start() {
+			stopped = false;
+		}
+
+		synchronized void put(TCPEnvelope env) throws IOException {
+			while (count == ring.length && !stopped) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (stopped)
+				throw new IOException("The dispatching service is closed");
+			ring[(head + count) % ring.length] = env;
+			count++;
+			queued++;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until some envelope is queued.
+		 * 
+		 * @return <code>false</code> if the pipeline has been stopped and is
+		 *         empty.
+		 */
+		synchronized boolean awaitEnvelopes() {
+			while (count == 0 && !stopped) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			return count > 0;
+		}
+
+		/**
+		 * Moves all the queued envelopes to <code>l</code>.
+		 */
+		synchronized void drainTo(List l) {
+			while (count > 0) {
+				l.add(ring[head]);
+				ring[head] = null;
+				head = (head + 1) % ring.length;
+				count--;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Accounts for <code>n</code> envelopes drained and written.
+		 * 
+		 * @param failure
+		 *            the error raised writing them, if any
+		 */
+		synchronized void done(int n, IOException failure) {
+			completed += n;
+			if (failure != null && this.failure == null)
+				this.failure = failure;
+			notifyAll();
+		}
+
+		synchronized void flush() throws IOException {
+			long target = queued;
+			while (completed < target && !stopped) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (failure != null) {
+				IOException e = failure;
+				failure = null;
+				throw e;
+			}
+		}
+
+		synchronized void stop() {
+			stopped = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writes the envelopes queued in the pipeline, one batch at a time.
+	 */
+	private class PipelineWriter implements Runnable {
+		public void run() {
+			List batch = new ArrayList();
+			while (pipeline.awaitEnvelopes()) {
+				try {
+					awaitAcknowledgements();
+				} catch (IOException e) {
+					break;
+				}
+				// drain while holding the lock of the service, so that
+				// envelopes sent directly cannot overtake the batch
+				synchronized (TCPDispatchingService.this) {
+					pipeline.drainTo(batch);
+					int n = batch.size();
+					if (n == 0)
+						continue;
 					try {
-						rep.wait();
-					} catch (InterruptedException e1) {
-						e1.printStackTrace();
+						transmit(batch);
+						pipeline.done(n, null);
+					} catch (IOException e) {
+						System.err.println("Error while writing published messages");
+						e.printStackTrace();
+						pipeline.done(n, e);
 					}
-				if (t > System.currentTimeMillis() && !rep.isEmpty())
-					// it enters here only if isEmpty == false AND timeout is
-					// not expired
-					while ((t > System.currentTimeMillis()) && !(((Reply) rep.getLast()).isLast())) {
-						// if timeout is not expired and the last reply is not
-						// arrived,
-						// wait.
-						try {
-							rep.wait();// wait until the timeout expires
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}
-				// clear the queue of the replies and the timeout
-				/*
-				 * the LinkedList contains Reply. It must return Message => get
-				 * an iterator on the list and extract the payload of each Reply
-				 * and put it into the collection. Then return the collection.
-				 */
-				LinkedList l = (LinkedList) replyQueue.remove(repliableMessageID.toString());
-				it = l.iterator();
-				int i = 0;
-				result = new Message[l.size()];
-				while (it.hasNext()) {
-					Reply r = (Reply) it.next();
-					if (r.isLast())
-						lastArrived = true;
-					result[i] = r.getPayload();
-					i++;
 				}
+				batch.clear();
 			}
-			/*
-			 * synchronized(timeouts.get(repliableMessageID.toString())){
-			 * timeouts.remove(repliableMessageID.toString()); }
-			 */
-			return new Replies(result, lastArrived);
 		}
-		throw new NullPointerException();
 	}
 
 	/**
-	 * It manages the aging of a table. Every <code>SLEEP_INTERVAL</code> it
-	 * checks all the entries in the table and removes those whose timeout has
-	 * expired.
-	 * 
-	 * @author Alessandro Monguzzi
+	 * The acknowledgements waiting to be written: the last session
+	 * acknowledgement, replacing the previous ones, and the durable ones.
 	 */
-	private class GarbageCollector implements Runnable {
-		private Map replyQueue;
-		private Map timeouts;
-		private static final long SLEEP_INTERVAL = 5000;
-		private boolean exit = false;
+	private static class AckQueue {
+		/** The session acknowledged, 0 if no session acknowledgement waits. */
+		private long session = 0;
+		private long sequenceNumber = 0;
+		private List durable = new ArrayList();
+		private boolean stopped = false;
 
-		public GarbageCollector(Map replyQueue, Map timeouts) {
-			this.replyQueue = replyQueue;
-			this.timeouts = timeouts;
+		synchronized void start() {
+			stopped = false;
 		}
 
-		public void run() {
-			while (!exit) {
+		synchronized void session(long sessionID, long sequenceNumber) {
+			this.session = sessionID;
+			this.sequenceNumber = sequenceNumber;
+			notifyAll();
+		}
+
+		synchronized void durable(TCPEnvelope env) {
+			durable.add(env);
+			notifyAll();
+		}
+
+		/**
+		 * Waits until some acknowledgement is queued.
+		 * 
+		 * @return <code>false</code> if the queue has been stopped.
+		 */
+		synchronized boolean awaitAcks() {
+			while (session == 0 && durable.isEmpty() && !stopped) {
 				try {
-					synchronized (replyQueue) {
-						Iterator repl = replyQueue.entrySet().iterator();
-						synchronized (timeouts) {
-							Iterator tim = timeouts.entrySet().iterator();
-							while (repl.hasNext() && tim.hasNext()) {
-								Map.Entry elemTimeouts = (Map.Entry) tim.next();
-								Map.Entry replElem = (Map.Entry) repl.next();
-								// if timeout is expired, remove it and notify
-								if (((Long) elemTimeouts.getValue()).longValue() < System.currentTimeMillis()) {
-									synchronized (replElem.getValue()) {
-										replElem.getValue().notifyAll(); // this
-																			// notifyAll
-																			// acts
-																			// on
-																			// the
-																			// linked
-																			// list
-																			// that
-																			// should
-																			// contain
-																			// the
-																			// replies
-																			// for
-																			// a
-																			// given
-																			// message
-									}
-									timeouts.remove(elemTimeouts.getValue());
-								}
-							}
-						}
-					}
-					Thread.sleep(SLEEP_INTERVAL);
+					wait();
 				} catch (InterruptedException e) {
-					e.printStackTrace();
+					return false;
 				}
 			}
+			return !stopped;
 		}
 
 		/**
-		 * Causes the thread to stop and exit.
+		 * Moves the queued acknowledgements to <code>l</code>, dropping the
+		 * session acknowledgement if the session changed in the meantime.
 		 */
-		public void exit() {
-			this.exit = true;
+		synchronized void drainTo(List l, long sessionID) {
+			if (session != 0 && session == sessionID)
+				l.add(new TCPEnvelope(TCPEnvelope.SESSION_ACK, new SessionToken(session, sequenceNumber, false),
+						Transport.MISCELLANEOUS_CLASS));
+			session = 0;
+			l.addAll(durable);
+			durable.clear();
+		}
+
+		synchronized void stop() {
+			stopped = true;
+			session = 0;
+			durable.clear();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writes the acknowledgements not sent with other envelopes.
+	 */
+	private class AckWriter implements Runnable {
+		public void run() {
+			while (acks.awaitAcks()) {
+				try {
+					transmit(new ArrayList());
+				} catch (IOException e) {
+					// the connection dropped: the session tells the broker
+					// what has been received when it is resumed, and the
+					// durable messages not acknowledged are sent again
+				}
+			}
 		}
 	}
 }// end class TCPDispatchingService
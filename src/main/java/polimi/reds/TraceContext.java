@@ -0,0 +1,315 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * The trace of a message through the dispatching network: the list of the
+ * stages it went through, each one recorded as a hop made of the ID of the node
+ * and the time (in microseconds) at which the message reached the stage.<br>
+ * A message is traced if it carries a trace when it is published, either set
+ * by the publisher with <code>Message.setTrace</code> or attached by the
+ * <code>DispatchingService</code> to a sample of the messages (see
+ * <code>setSamplingInterval</code>). Each broker records when the envelope of
+ * the message is received (<code>RECEIVED</code>), when its parser thread
+ * takes it from the queue of its traffic class (<code>DEQUEUED</code>), when
+ * it has been matched against the subscriptions (<code>MATCHED</code>) and
+ * when it is serialized toward a neighbor (<code>SENT</code>); the
+ * <code>DispatchingService</code> of the subscriber records when it gets the
+ * message (<code>DELIVERED</code>). The trace travels in the envelope, only
+ * when present: messages that are not traced carry no additional byte.<br>
+ * Times are taken from the clock of each node, so the time spent between two
+ * nodes is only meaningful if their clocks are synchronized.
+ * 
+ * @see Message#getTrace()
+ */
+public class TraceContext implements Serializable {
+	private static final long serialVersionUID = -4021874626310468745L;
+
+	/** The message has been published. */
+	public static final int PUBLISHED = 0;
+	/** The envelope of the message has been received by a broker. */
+	public static final int RECEIVED = 1;
+	/** The envelope has been taken from the queue of its traffic class. */
+	public static final int DEQUEUED = 2;
+	/** The message has been matched against the subscriptions. */
+	public static final int MATCHED = 3;
+	/** The envelope of the message has been serialized toward a neighbor. */
+	public static final int SENT = 4;
+	/** The message has been delivered to the subscriber. */
+	public static final int DELIVERED = 5;
+
+	private static final String[] STAGES = { "published", "received", "dequeued", "matched", "sent", "delivered" };
+
+	private static final long BASE_MILLIS = System.currentTimeMillis();
+	private static final long BASE_NANOS = System.nanoTime();
+
+	private static volatile int samplingInterval = Integer.getInteger("polimi.reds.trace.interval", 0).intValue();
+	/** The generator choosing the sampled messages, one for each thread. */
+	private static final ThreadLocal sampler = new ThreadLocal() {
+		protected Object initialValue() {
+			return new Random();
+		}
+	};
+
+	private transient String[] nodes;
+	private transient byte[] stages;
+	private transient long[] times;
+	private transient int size;
+
+	/**
+	 * Builds an empty trace.
+	 */
+	public TraceContext() {
+		nodes = new String[8];
+		stages = new byte[8];
+		times = new long[8];
+		size = 0;
+	}
+
+	/**
+	 * Sets how many of the messages published are traced: one in
+	 * <code>interval</code> on average, none if it is 0 (the default, unless
+	 * the system property <code>polimi.reds.trace.interval</code> says
+	 * otherwise).
+	 * 
+	 * @param interval
+	 *            the sampling interval
+	 */
+	public static void setSamplingInterval(int interval) {
+		if (interval < 0)
+			throw new IllegalArgumentException("Sampling interval " + interval);
+		samplingInterval = interval;
+	}
+
+	/**
+	 * Gets the sampling interval.
+	 * 
+	 * @return the sampling interval, 0 if no message is sampled.
+	 * @see #setSamplingInterval(int)
+	 */
+	public static int getSamplingInterval() {
+		return samplingInterval;
+	}
+
+	/**
+	 * Starts the trace of a message being published by a node: if the message
+	 * does not carry a trace, a new one is attached to the sampled messages.
+	 * 
+	 * @param msg
+	 *            the message
+	 * @param node
+	 *            the publishing node
+	 */
+	public static void published(Message msg, NodeDescriptor node) {
+		TraceContext trace = msg.getTrace();
+		if (trace == null) {
+			int interval = samplingInterval;
+			if (interval == 0 || (interval > 1 && ((Random) sampler.get()).nextInt(interval) != 0))
+				return;
+			trace = new TraceContext();
+			msg.setTrace(trace);
+		}
+		trace.stamp(node, PUBLISHED);
+	}
+
+	/**
+	 * Gets the current time, in microseconds since the epoch.
+	 * 
+	 * @return the current time.
+	 */
+	public static long now() {
+		return BASE_MILLIS * 1000 + (System.nanoTime() - BASE_NANOS) / 1000;
+	}
+
+	/**
+	 * Gets the name of a stage.
+	 * 
+	 * @param stage
+	 *            the stage
+	 * @return its name, e.g. <code>"matched"</code>.
+	 */
+	public static String getStageName(int stage) {
+		return stage >= 0 && stage < STAGES.length ? STAGES[stage] : "stage" + stage;
+	}
+
+	/**
+	 * Records that the message reached a stage at the given node now.
+	 * 
+	 * @param node
+	 *            the node, <code>null</code> if unknown
+	 * @param stage
+	 *            the stage
+	 */
+	public void stamp(NodeDescriptor node, int stage) {
+		add(node == null ? null : node.getID(), stage, now());
+	}
+
+	private synchronized void add(String node, int stage, long time) {
+		if (size == times.length) {
+			String[] n = new String[size * 2];
+			byte[] s = new byte[size * 2];
+			long[] t = new long[size * 2];
+			System.arraycopy(nodes, 0, n, 0, size);
+			System.arraycopy(stages, 0, s, 0, size);
+			System.arraycopy(times, 0, t, 0, size);
+			nodes = n;
+			stages = s;
+			times = t;
+		}
+		nodes[size] = node;
+		stages[size] = (byte) stage;
+		times[size] = time;
+		size++;
+	}
+
+	/**
+	 * Gets a copy of this trace with one more hop, recording that the message
+	 * reached a stage at the given node now. This trace is not modified, so
+	 * that the copies sent to different neighbors do not mix their hops.
+	 * 
+	 * @param node
+	 *            the node, <code>null</code> if unknown
+	 * @param stage
+	 *            the stage
+	 * @return the new trace.
+	 */
+	public synchronized TraceContext copyAndStamp(NodeDescriptor node, int stage) {
+		TraceContext copy = copy();
+		copy.stamp(node, stage);
+		return copy;
+	}
+
+	/**
+	 * Gets a copy of this trace.
+	 * 
+	 * @return a new trace with the same hops.
+	 */
+	public synchronized TraceContext copy() {
+		TraceContext copy = new TraceContext();
+		for (int i = 0; i < size; i++)
+			copy.add(nodes[i], stages[i], times[i]);
+		return copy;
+	}
+
+	/**
+	 * Gets the number of hops recorded.
+	 * 
+	 * @return the number of hops.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the ID of the node of a hop.
+	 * 
+	 * @param hop
+	 *            the index of the hop, from 0 to <code>size() - 1</code>
+	 * @return the ID of the node, <code>null</code> if unknown.
+	 */
+	public synchronized String getNode(int hop) {
+		check(hop);
+		return nodes[hop];
+	}
+
+	/**
+	 * Gets the stage of a hop.
+	 * 
+	 * @param hop
+	 *            the index of the hop, from 0 to <code>size() - 1</code>
+	 * @return the stage, e.g. <code>MATCHED</code>.
+	 */
+	public synchronized int getStage(int hop) {
+		check(hop);
+		return stages[hop];
+	}
+
+	/**
+	 * Gets the time of a hop.
+	 * 
+	 * @param hop
+	 *            the index of the hop, from 0 to <code>size() - 1</code>
+	 * @return the time, in microseconds since the epoch.
+	 */
+	public synchronized long getTime(int hop) {
+		check(hop);
+		return times[hop];
+	}
+
+	/**
+	 * Gets the time elapsed between the first and the last hop.
+	 * 
+	 * @return the time elapsed, in microseconds.
+	 */
+	public synchronized long getElapsed() {
+		return size == 0 ? 0 : times[size - 1] - times[0];
+	}
+
+	private void check(int hop) {
+		if (hop < 0 || hop >= size)
+			throw new IndexOutOfBoundsException("Hop " + hop + " of " + size);
+	}
+
+	/**
+	 * Gets the hop-by-hop breakdown of the trace: one line for each hop with
+	 * the time elapsed since the previous one.
+	 * 
+	 * @return a <code>String</code> representing the trace.
+	 */
+	public synchronized String toString() {
+		StringBuffer result = new StringBuffer("trace of " + size + " hops, " + getElapsed() + " us");
+		for (int i = 0; i < size; i++)
+			result.append("\n +" + (i == 0 ? 0 : times[i] - times[i - 1]) + " us " + getStageName(stages[i]) + " at "
+					+ nodes[i]);
+		return result.toString();
+	}
+
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeShort(size);
+		for (int i = 0; i < size; i++) {
+			out.writeUTF(nodes[i] == null ? "" : nodes[i]);
+			out.writeByte(stages[i]);
+			out.writeLong(times[i]);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int n = in.readUnsignedShort();
+		nodes = new String[Math.max(n + 4, 8)];
+		stages = new byte[nodes.length];
+		times = new long[nodes.length];
+		for (int i = 0; i < n; i++) {
+			String node = in.readUTF();
+			nodes[i] = node.length() == 0 ? null : node;
+			stages[i] = in.readByte();
+			times[i] = in.readLong();
+		}
+		size = n;
+	}
+}
@@ -26,19 +26,15 @@ import java.io.Serializable;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import polimi.reds.broker.overlay.Transport;
 import polimi.reds.broker.overlay.UDPEnvelope;
 import polimi.util.DatagramObjectIO;
 
-public class UDPDispatchingService implements DispatchingService, Runnable {
+public class UDPDispatchingService implements AsyncDispatchingService, Runnable {
 	// Indicates the size of the incoming UDP buffer
 	private final static int BUFFER_SIZE = 16384;
 	// Indicates the timeout in ms for receiving data via DatagramObjectIO
@@ -54,37 +50,29 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 	 */
 	private int brokerPort;
 	private int localPort;
-	private LinkedList messages;
+	private ClientInbox messages;
 	private DatagramObjectIO messageIO;
 	private Logger logger;
 	private NodeDescriptor id;
 	private String localIP;
 	private boolean opened;
 	/**
-	 * The queue that mantains all the replies received until the client reads
-	 * them.
+	 * Correlates the replies received with the repliable messages published.
 	 */
-	protected Map replyQueue;
-	/**
-	 * It stores the expiring timeouts of the repliable messages sent but not
-	 * already replied.
-	 */
-	protected Map timeouts;
+	private ReplyCorrelator replies;
 	private final long DEFAULT_TIMEOUT = 5000;
 	/**
-	 * This thread manages the <code>queue</code> removing all the entries with
-	 * the <code>timeout</code> expired.
+	 * Delivers messages and replies to listeners and futures.
 	 */
-	private GarbageCollector garbageCollector;
+	private AsyncDelivery async;
 
 	public UDPDispatchingService(String hostName, int brokerPort, int localPort) {
-		replyQueue = new Hashtable();
-		timeouts = new Hashtable();
-		garbageCollector = new GarbageCollector(replyQueue, timeouts);
 		this.brokerIP = hostName;
 		this.brokerPort = brokerPort;
 		this.localPort = localPort;
-		messages = new LinkedList();
+		messages = new ClientInbox();
+		async = new AsyncDelivery(messages);
+		replies = new ReplyCorrelator(DEFAULT_TIMEOUT);
 		messageIO = new DatagramObjectIO(localPort, BUFFER_SIZE, RECEIVE_TIMEOUT);
 		logger = Logger.getLogger("polimi.reds");
 		// The ID of this client is a string built by merging the local IP
@@ -113,8 +101,6 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 		t.setDaemon(true);
 		t.setName("UDPDispatchingService.clientThread");
 		t.start();
-		garbageCollector.setDaemon(true);
-		garbageCollector.start();
 		messageIO.sendObject(openMessage, brokerIP, brokerPort);
 		logger.fine("Opening dispatching service to " + brokerIP + ":" + brokerPort);
 	}
@@ -132,10 +118,9 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 		close.setSenderIP(localIP);
 		close.setSenderPort(localPort);
 		messageIO.sendObject(close, brokerIP, brokerPort);
-		synchronized (messages) {
-			messages.notifyAll();
-		}
-		garbageCollector.exit();
+		messages.wakeUp();
+		async.close();
+		replies.close();
 	}
 
 	/**
@@ -153,20 +138,12 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 	 * @return first message available.
 	 */
 	public Message getNextMessage() {
-		synchronized (messages) {
-			try {
-				while (messages.isEmpty())
-					messages.wait();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			Message m = null;
-			try {
-				m = (Message) messages.removeFirst();
-			} catch (NoSuchElementException e) {
-				return null;
-			}
-			return m;
+		try {
+			return messages.take();
+		} catch (InterruptedException e) {
+			System.err.println("Error while getting first available message");
+			e.printStackTrace();
+			return null;
 		}
 	}
 
@@ -182,48 +159,26 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 	 * @return first message available.
 	 */
 	public Message getNextMessage(long timeout) {
-		Message m = null;
-		synchronized (messages) {
-			try {
-				messages.wait(timeout);
-				if (!messages.isEmpty())
-					m = (Message) messages.removeFirst();
-			} catch (Exception e) {
-				System.err.println("Error while getting first available message");
-				e.printStackTrace();
-			}
+		try {
+			return messages.poll(timeout);
+		} catch (InterruptedException e) {
+			System.err.println("Error while getting first available message");
+			e.printStackTrace();
+			return null;
 		}
-		return m;
 	}
 
 	/**
 	 * @see DispatchingService#getNextMessage(Filter)
 	 */
 	public Message getNextMessage(Filter f) {
-		Message m = null;
-		synchronized (messages) {
-			try {
-				boolean match = false;
-				while (!match) {
-					Iterator it = messages.iterator();
-					while (it.hasNext() && !match) {
-						m = (Message) it.next();
-						match = f.matches(m);
-					}
-					if (match) {
-						messages.remove(m);
-						// messages.notifyAll();
-						return m;
-					}
-					messages.wait();
-				}
-
-			} catch (Exception e) {
-				System.err.println("Error while getting first available message matching the specified filter");
-				e.printStackTrace();
-			}
+		try {
+			return messages.take(f);
+		} catch (InterruptedException e) {
+			System.err.println("Error while getting first available message matching the specified filter");
+			e.printStackTrace();
+			return null;
 		}
-		return null;
 	}
 
 	/**
@@ -240,14 +195,7 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 	 * @see DispatchingService#hasMoreMessages(Filter)
 	 */
 	public boolean hasMoreMessages(Filter f) {
-		boolean match = false;
-		synchronized (messages) {
-			Iterator it = messages.iterator();
-			while (it.hasNext() && !match) {
-				match = f.matches((Message) it.next());
-			}
-		}
-		return match;
+		return messages.contains(f);
 	}
 
 	/**
@@ -260,6 +208,7 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 			return;
 		UDPEnvelope msg = new UDPEnvelope(UDPEnvelope.SUBSCRIBE, filter, Transport.FILTER_CLASS);
 		msg.setSenderID(id);
+		messages.retainFilter(filter);
 		messageIO.sendObject(msg, brokerIP, brokerPort);
 	}
 
@@ -273,6 +222,7 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 			return;
 		UDPEnvelope msg = new UDPEnvelope(UDPEnvelope.UNSUBSCRIBE, filter, Transport.FILTER_CLASS);
 		msg.setSenderID(id);
+		messages.removeFilter(filter);
 		messageIO.sendObject(msg, brokerIP, brokerPort);
 	}
 
@@ -286,6 +236,7 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 			return;
 		UDPEnvelope msg = new UDPEnvelope(UDPEnvelope.UNSUBSCRIBEALL, null, Transport.FILTER_CLASS);
 		msg.setSenderID(id);
+		messages.removeAllFilters();
 		messageIO.sendObject(msg, brokerIP, brokerPort);
 	}
 
@@ -309,30 +260,58 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 	/**
 	 * @see polimi.reds.DispatchingService#publish(polimi.reds.Message)
 	 */
-	public synchronized void publish(Message msg) {
+	public void publish(Message msg) {
+		publish(msg, null);
+	}
+
+	/**
+	 * @see polimi.reds.AsyncDispatchingService#publish(polimi.reds.Message,
+	 *      polimi.reds.ReplyListener)
+	 */
+	public synchronized void publish(Message msg, ReplyListener listener) {
 		// If opened is FALSE, the connection to BROKER does not exist and this
 		// function ends
 		if (!opened)
 			return;
 		// create a new ID for the message
 		msg.createID();
+		TraceContext.published(msg, id);
 		UDPEnvelope m;
-		// if RepliableMessage set a new entry in the reply queue.
-		if (msg instanceof Repliable) {
-			synchronized (replyQueue) {
-				try {
-					replyQueue.put(msg.getID().toString(), new LinkedList());
-					synchronized (timeouts) {
-						timeouts.put(msg.getID().toString(), new Long(System.currentTimeMillis() + DEFAULT_TIMEOUT));
-					}
-				} catch (NullPointerException e) {
-					e.printStackTrace();
+		// if Repliable start tracking its replies
+		if (msg instanceof Repliable)
+			replies.register(msg.getID(), listener == null ? null : async.serialize(listener));
+		m = new UDPEnvelope(UDPEnvelope.PUBLISH, msg, Transport.MESSAGE_CLASS);
+		m.setSenderID(id);
+		messageIO.sendObject(m, brokerIP, brokerPort);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#streamReplies(Message, int)
+	 */
+	public synchronized ReplyStream streamReplies(Message msg, int capacity) {
+		if (!(msg instanceof Repliable))
+			throw new IllegalArgumentException("The message is not repliable");
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity " + capacity);
+		if (!opened)
+			throw new IllegalStateException("Not opened");
+		msg.createID();
+		TraceContext.published(msg, id);
+		final MessageID repliableMessageID = msg.getID();
+		ReplyStream stream = replies.stream(repliableMessageID, capacity, new Runnable() {
+			public void run() {
+				synchronized (UDPDispatchingService.this) {
+					UDPEnvelope cancel = new UDPEnvelope(UDPEnvelope.CANCEL_REPLIES, repliableMessageID,
+							Transport.REPLY_CLASS);
+					cancel.setSenderID(id);
+					messageIO.sendObject(cancel, brokerIP, brokerPort);
 				}
 			}
-		}
-		m = new UDPEnvelope(UDPEnvelope.PUBLISH, msg, Transport.MESSAGE_CLASS);
+		});
+		UDPEnvelope m = new UDPEnvelope(UDPEnvelope.PUBLISH, msg, Transport.MESSAGE_CLASS);
 		m.setSenderID(id);
 		messageIO.sendObject(m, brokerIP, brokerPort);
+		return stream;
 	}
 
 	/**
@@ -361,35 +340,14 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 				else if (msg.getTypeOfMessage().equals(UDPEnvelope.CLOSE)) {
 					logger.fine("Broker " + brokerIP + " closed dispatching service");
 					opened = false;
-					synchronized (messages) {
-						messages.notifyAll();
-					}
+					messages.wakeUp();
 				} else if (msg.getTypeOfMessage().equals(UDPEnvelope.REPLY)) {
 					// Take the right entry from the table.
-					try {
-						synchronized (replyQueue) {
-							LinkedList e = (LinkedList) replyQueue.get(((Reply) msg.getPayload())
-									.getRepliableMessageID().toString());
-							// synchronized(e) {
-							// Add the reply to the reply queue
-							e.addLast(((Reply) msg.getPayload()));
-							// e.notifyAll();
-							// }
-							// notifies all the threads waiting on a generic
-							// reply
-							replyQueue.notifyAll();
-						}
-					} catch (NullPointerException e) {
-						// if this exception is thrown, it means that the
-						// timeout has
-						// expired and so the
-						// reply must be discarded.
-					}
+					replies.deliver((Reply) msg.getPayload());
 				} else {
-					synchronized (messages) {
-						messages.addLast(msg.getMessage());
-						messages.notifyAll();
-					}
+					if (msg.getTrace() != null)
+						msg.getTrace().stamp(id, TraceContext.DELIVERED);
+					messages.add(msg.getMessage(), messageIO.getLastReceivedSize());
 				}
 			} catch (InterruptedIOException e) {
 				continue;
@@ -421,271 +379,98 @@ public class UDPDispatchingService implements DispatchingService, Runnable {
 	 * @see DispatchingService#getNextReply(MessageID)
 	 */
 	public Message getNextReply(MessageID repliableMessageID) throws NullPointerException, TimeoutException {
-		Reply r = null;
-		synchronized (replyQueue) {
-			LinkedList rep = (LinkedList) replyQueue.get(repliableMessageID.toString());
-			if (rep == null)
-				return null;
-			// synchronized(rep) {
-			while (rep.isEmpty()) {
-				try {
-					replyQueue.wait();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				// }
-			}
-			try {
-				r = (Reply) rep.removeFirst();
-			} catch (NoSuchElementException e) {
-				/*
-				 * If this exception is thrown, the timeout is expired and no
-				 * replies arrived. It is possible to remove the entry.
-				 */
-				replyQueue.remove(repliableMessageID.toString());
-				throw new TimeoutException();
-			}
-			if (r.isLast()) {// all replies arrived, => remove the entry
-				replyQueue.remove(r.getRepliableMessageID());
-				synchronized (timeouts) {
-					timeouts.remove(r.getRepliableMessageID());
-				}
-			}
-			return r.getPayload();
-		}
+		if (repliableMessageID == null)
+			throw new NullPointerException();
+		return replies.next(repliableMessageID);
 	}
 
 	/**
 	 * @see DispatchingService#getNextReply()
 	 */
 	public Message getNextReply() {
-		Message r = null;
-		synchronized (replyQueue) {
-			try {
-				while (!hasMoreReplies())
-					replyQueue.wait();
-				/*
-				 * If it comes here it means that at least one reply is arrived
-				 * => r cannot remain null at the end of the while.
-				 */
-				Set rep = replyQueue.entrySet();
-				Iterator repIterator = rep.iterator();
-				boolean found = false;
-				while (repIterator.hasNext() && !found) {
-					LinkedList l = (LinkedList) ((Map.Entry) repIterator.next()).getValue();
-					if (l.size() > 0) {
-						Reply reply = (Reply) l.removeFirst();
-						if (reply.isLast()) {// all replies arrived, => remove
-												// the entry
-							replyQueue.remove(reply.getRepliableMessageID());
-							synchronized (timeouts) {
-								timeouts.remove(reply.getRepliableMessageID());
-							}
-						}
-						found = true;
-						r = reply.getPayload();
-					}
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-		return r;
+		return replies.next(-1);
 	}
 
 	/**
 	 * @see DispatchingService#getNextReply(long)
 	 */
 	public Message getNextReply(long timeout) {
-		Message r = null;
-		synchronized (replyQueue) {
-			try {
-				if (!hasMoreReplies())
-					replyQueue.wait(timeout);
-				/*
-				 * The timeout means that the replyQueue could be empty when the
-				 * thread wakes up. => It is necessary to recheck the queue
-				 * before trying to extract a reply. If two or more threads are
-				 * waiting, only one wakes up and can get a positive value from
-				 * the hasMoreReplies, the other ones are blocked by the
-				 * synchronized statement.
-				 */
-				if (hasMoreReplies()) {
-					Set rep = replyQueue.entrySet();
-					Iterator repIterator = rep.iterator();
-					boolean found = false;
-					while (repIterator.hasNext() && !found) {
-						LinkedList l = (LinkedList) ((Map.Entry) repIterator.next()).getValue();
-						if (l.size() > 0) {
-							Reply reply = (Reply) l.removeFirst();
-							if (reply.isLast()) {// all replies arrived, =>
-													// remove the entry
-								replyQueue.remove(reply.getRepliableMessageID());
-								synchronized (timeouts) {
-									timeouts.remove(reply.getRepliableMessageID());
-								}
-							}
-							found = true;
-							r = reply.getPayload();
-						}
-					}
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-		return r;
+		return replies.next(timeout);
+	}
+
+	/**
+	 * Returns the inbox storing the messages received by this client, to
+	 * bound it and read its counters.
+	 */
+	public ClientInbox getInbox() {
+		return messages;
+	}
+
+	/**
+	 * @see AsyncDispatchingService#setExecutor(Executor)
+	 */
+	public void setExecutor(Executor executor) {
+		async.setExecutor(executor);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#addMessageListener(Filter, MessageListener)
+	 */
+	public void addMessageListener(Filter filter, MessageListener listener) {
+		async.addMessageListener(filter, listener);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#removeMessageListener(MessageListener)
+	 */
+	public void removeMessageListener(MessageListener listener) {
+		async.removeMessageListener(listener);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#nextMessage()
+	 */
+	public Future nextMessage() {
+		return async.nextMessage(null);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#nextMessage(Filter)
+	 */
+	public Future nextMessage(Filter f) {
+		return async.nextMessage(f);
+	}
+
+	/**
+	 * @see AsyncDispatchingService#nextReply(MessageID)
+	 */
+	public Future nextReply(MessageID repliableMessageID) {
+		return replies.nextFuture(repliableMessageID);
 	}
 
 	/**
 	 * @see DispatchingService#hasMoreReplies()
 	 */
 	public boolean hasMoreReplies() {
-		Set rep = replyQueue.keySet();
-		Iterator repIt = rep.iterator();
-		boolean found = false;
-		while (repIt.hasNext() && !found) {
-			synchronized (replyQueue) {
-				LinkedList l = (LinkedList) replyQueue.get(repIt.next());
-				if (l.size() > 0)
-					return true;
-			}
-		}
-		return false;
+		return replies.hasMore();
 	}
 
 	/**
 	 * @see DispatchingService#hasMoreReplies(MessageID)
 	 */
 	public boolean hasMoreReplies(MessageID repliableMessageID) throws NullPointerException {
-		if (repliableMessageID != null) {
-			LinkedList rep = (LinkedList) replyQueue.get(repliableMessageID.toString());
-			if (rep != null)
-				return !rep.isEmpty();
-			return false;
-		}
-		throw new NullPointerException();
+		if (repliableMessageID == null)
+			throw new NullPointerException();
+		return replies.hasMore(repliableMessageID);
 	}
 
 	/**
 	 * @see DispatchingService#getAllReplies(MessageID)
 	 */
 	public Replies getAllReplies(MessageID repliableMessageID) throws NullPointerException {
-		if (repliableMessageID != null) {
-			LinkedList rep = (LinkedList) replyQueue.get(repliableMessageID.toString());
-			if (rep == null)
-				return null;
-			Message[] result = null;
-			boolean lastArrived = false;
-			Iterator it = null;
-			long t = 0;
-			synchronized (timeouts) {
-				t = ((Long) timeouts.get(repliableMessageID.toString())).longValue();
-			}
-			synchronized (rep) {
-				/*
-				 * The first wait is used when no reply is arrived. It is
-				 * separated from the other cases because if it is empty it is
-				 * not possible to check whether isLast == true. The second
-				 * wait, the one in the while, is used to wait for all the
-				 * replies to arrive or the timeout to expire. It is used only
-				 * when isEmpty == false.
-				 */
-				if (rep.isEmpty() && t > System.currentTimeMillis()) // initial
-																		// wait.
-					try {
-						rep.wait();
-					} catch (InterruptedException e1) {
-						e1.printStackTrace();
-					}
-				if (t > System.currentTimeMillis() && !rep.isEmpty())
-					// it enters here only if isEmpty == false AND timeout is
-					// not expired
-					while ((t > System.currentTimeMillis()) && !(((Reply) rep.getLast()).isLast())) {
-						// if timeout is not expired and the last reply is not
-						// arrived, wait.
-						try {
-							rep.wait();// wait until the timeout expires
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}
-				// clear the queue of the replies and the timeout
-				/*
-				 * the LinkedList contains Reply. It must return Message => get
-				 * an iterator on the list and extract the payload of each Reply
-				 * and put it into the collection. Then return the collection.
-				 */
-				LinkedList l = (LinkedList) replyQueue.remove(repliableMessageID.toString());
-				it = l.iterator();
-				int i = 0;
-				result = new Message[l.size()];
-				while (it.hasNext()) {
-					Reply r = (Reply) it.next();
-					if (r.isLast())
-						lastArrived = true;
-					result[i] = r.getPayload();
-					i++;
-				}
-			}
-			/*
-			 * synchronized(timeouts.get(repliableMessageID.toString())){
-			 * timeouts.remove(repliableMessageID.toString()); }
-			 */
-			return new Replies(result, lastArrived);
-		}
-		throw new NullPointerException();
+		if (repliableMessageID == null)
+			throw new NullPointerException();
+		return replies.all(repliableMessageID);
 	}
 
-	/**
-	 * This thread can be used to manage the aging of a table. Every
-	 * <code>SLEEP_INTERVAL</code> it checks all the entries in the table and
-	 * removes those whose timeout has expired.
-	 * 
-	 * @author Alessandro Monguzzi
-	 */
-	private class GarbageCollector extends Thread {
-		private Map replyQueue;
-		private Map timeouts;
-		private static final long SLEEP_INTERVAL = 5000;
-		private boolean exit = false;
-
-		public GarbageCollector(Map replyQueue, Map timeouts) {
-			this.replyQueue = replyQueue;
-			this.timeouts = timeouts;
-			this.setName("UDPDispatchingService.GarbageCollector");
-		}
-
-		public void run() {
-			while (!exit) {
-				try {
-					Iterator repl = replyQueue.entrySet().iterator();
-					Iterator tim = timeouts.entrySet().iterator();
-					while (repl.hasNext() && tim.hasNext()) {
-						synchronized (timeouts) {
-							Map.Entry elemTimeouts = (Map.Entry) tim.next();
-							Map.Entry replElem = (Map.Entry) repl.next();
-							// if timeout is expired, remove it and notify
-							if (((Long) elemTimeouts.getValue()).longValue() < System.currentTimeMillis()) {
-								synchronized (replElem.getValue()) {
-									replElem.getValue().notifyAll();
-								}
-								timeouts.remove(elemTimeouts.getValue());
-							}
-						}
-					}
-					sleep(SLEEP_INTERVAL);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-
-		/**
-		 * Causes the thread to stop and exit.
-		 */
-		public void exit() {
-			this.exit = true;
-		}
-	}
 }
@@ -23,17 +23,24 @@ import java.io.Serializable;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import polimi.reds.NodeDescriptor;
 import polimi.reds.NotConnectedException;
+import polimi.reds.TraceContext;
+import polimi.util.EventLog;
+import polimi.util.Gauge;
+import polimi.util.LatencyHistogram;
+import polimi.util.MetricsRegistry;
 
 /**
  * Multithreaded abstract implementation of the <code>Transport</code>
@@ -45,7 +52,15 @@ import polimi.reds.NotConnectedException;
  * specific traffic classes.<br>
  * No priority is given to the <code>Thread</code>s, so no guarantee is given
  * about the order in which two messages belonging to different class are
- * processed.
+ * processed.<br>
+ * The transport keeps its metrics in a <code>MetricsRegistry</code>: the
+ * envelopes waiting in the queue of each traffic class (
+ * <code>transport.</code><i>class of the transport</i>
+ * <code>.queue.</code><i>local node ID</i><code>.</code><i>traffic class</i>,
+ * since the brokers in a JVM may share the registry), the time taken to
+ * serialize the
+ * envelopes (<code>serializationNanos</code>) and the traffic on each link (see
+ * <code>LinkMetrics</code>).
  * 
  * @author Alessandro Monguzzi
  */
@@ -56,16 +71,47 @@ public abstract class AbstractTransport implements Transport {
 
 	protected Logger logger;
 
-	protected ProxySet proxySet = new ProxySet();
+	private static final int ENQUEUE_EVENT = EventLog.register("transport.enqueue", "subject", "trafficClass");
+	private static final int DELIVER_EVENT = EventLog.register("transport.deliver", "subject", "nanos");
+
+	protected ProxySet proxySet = new ProxySet() {
+		public synchronized Proxy remove(NodeDescriptor nodeID) {
+			Proxy p = super.remove(nodeID);
+			if (p != null)
+				removeLinkMetrics(nodeID);
+			return p;
+		}
+
+		public synchronized void clear() {
+			Iterator it = proxies.keySet().iterator();
+			while (it.hasNext())
+				removeLinkMetrics((NodeDescriptor) it.next());
+			super.clear();
+		}
+	};
+
+	/**
+	 * The registry of the metrics of this transport.
+	 */
+	protected MetricsRegistry metrics = MetricsRegistry.getShared();
+
+	/**
+	 * The metrics of the links, indexed by the <code>NodeDescriptor</code> of
+	 * the neighbor.
+	 */
+	private Map links = new ConcurrentHashMap();
+
+	private volatile LatencyHistogram serializationTime = null;
 
 	protected NodeDescriptor localID = null;
 
 	private Map linksInUse = new HashMap();
 	/**
-	 * This map contains all the packetListeners for messages directed to the
-	 * routing level. The key is the subject, the value is the listener.
+	 * The packetListeners for messages directed to the routing level, indexed
+	 * by the code of their subject. Copied on every change, so that it can be
+	 * read without locking.
 	 */
-	protected Map packetListeners = new HashMap();
+	protected volatile PacketListener[][] packetListeners = new PacketListener[0][];
 
 	/**
 	 * This list contains all the LinkOpenedListeners.
@@ -132,6 +178,7 @@ public abstract class AbstractTransport implements Transport {
 			parserThread.setName("Transport." + name + "ParserThread");
 			parserThread.setDaemon(false);
 			trafficThread.put(name, parserThread);
+			metrics.gauge(getQueueMetric(name), new QueueGauge(messageList));
 			parserThread.start();
 		}
 	}
@@ -142,6 +189,7 @@ public abstract class AbstractTransport implements Transport {
 	public void removeTrafficClass(String name) {
 		ParserThread parser = (ParserThread) trafficThread.remove(name);
 		if (parser != null) {
+			metrics.remove(getQueueMetric(name));
 			parser.exit = false;
 			List list = (List) trafficQueues.remove(name);
 			synchronized (list) {
@@ -213,40 +261,57 @@ public abstract class AbstractTransport implements Transport {
 			throw new NotConnectedException();
 	}
 
+	/**
+	 * @see Transport#getProxy(NodeDescriptor)
+	 */
+	public Proxy getProxy(NodeDescriptor neighbor) {
+		return proxySet.get(neighbor);
+	}
+
 	/**
 	 * @see Transport#addPacketListener(PacketListener, String)
 	 */
-	public void addPacketListener(PacketListener listener, String subject) {
-		if (packetListeners.containsKey(subject)) {
-			List l = (List) packetListeners.get(subject);
-			l.add(listener);
-		} else {
-			List l = new LinkedList();
-			l.add(listener);
-			packetListeners.put(subject, l);
-		}
+	public synchronized void addPacketListener(PacketListener listener, String subject) {
+		int code = SubjectRegistry.getCode(subject);
+		PacketListener[][] table = packetListeners;
+		if (code >= table.length) {
+			PacketListener[][] t = new PacketListener[code + 1][];
+			System.arraycopy(table, 0, t, 0, table.length);
+			table = t;
+		} else
+			table = (PacketListener[][]) table.clone();
+		PacketListener[] old = table[code];
+		if (old == null)
+			old = new PacketListener[0];
+		PacketListener[] l = new PacketListener[old.length + 1];
+		System.arraycopy(old, 0, l, 0, old.length);
+		l[old.length] = listener;
+		table[code] = l;
+		packetListeners = table;
 	}
 
 	/**
 	 * @see Transport#removePacketListener(PacketListener, String)
 	 */
-	public void removePacketListener(PacketListener listener, String subject) {
-		List listeners = (List) packetListeners.get(subject);
-		if (listeners != null) {
-			listeners.remove(listener);
+	public synchronized void removePacketListener(PacketListener listener, String subject) {
+		int code = SubjectRegistry.find(subject);
+		PacketListener[][] table = packetListeners;
+		if (code < 0 || code >= table.length || table[code] == null)
+			return;
+		List l = new ArrayList(Arrays.asList(table[code]));
+		if (l.remove(listener)) {
+			table = (PacketListener[][]) table.clone();
+			table[code] = (PacketListener[]) l.toArray(new PacketListener[l.size()]);
+			packetListeners = table;
 		}
 	}
 
 	/**
 	 * @see Transport#removePacketListener(PacketListener)
 	 */
-	public void removePacketListener(PacketListener listener) {
-		Set subjects = packetListeners.keySet();
-		Iterator it = subjects.iterator();
-		while (it.hasNext()) {
-			String next = (String) it.next();
-			removePacketListener(listener, next);
-		}
+	public synchronized void removePacketListener(PacketListener listener) {
+		for (int i = 0; i < packetListeners.length; i++)
+			removePacketListener(listener, SubjectRegistry.getSubject(i));
 	}
 
 	/**
@@ -276,7 +341,12 @@ public abstract class AbstractTransport implements Transport {
 	 * @see Transport#setNodeDescriptor(NodeDescriptor)
 	 */
 	public void setNodeDescriptor(NodeDescriptor nodeDescr) {
-		localID = nodeDescr;
+		synchronized (trafficQueues) {
+			// the names of the queue gauges hold the local ID
+			removeQueueGauges(metrics);
+			localID = nodeDescr;
+			addQueueGauges(metrics);
+		}
 	}
 
 	/**
@@ -286,6 +356,149 @@ public abstract class AbstractTransport implements Transport {
 		return localID;
 	}
 
+	/**
+	 * Sets the registry of the metrics of this transport, in place of the
+	 * shared one. The metrics gathered so far are removed from the old
+	 * registry and start again from zero.
+	 * 
+	 * @param registry
+	 *            the registry
+	 */
+	public void setMetricsRegistry(MetricsRegistry registry) {
+		MetricsRegistry old = metrics;
+		if (old == registry)
+			return;
+		metrics = registry;
+		synchronized (trafficQueues) {
+			removeQueueGauges(old);
+			addQueueGauges(registry);
+		}
+		Iterator it = links.values().iterator();
+		while (it.hasNext())
+			((LinkMetrics) it.next()).remove(old);
+		links.clear();
+		if (serializationTime != null) {
+			old.remove(getMetricsPrefix() + "serializationNanos");
+			serializationTime = null;
+		}
+	}
+
+	/**
+	 * Gets the registry of the metrics of this transport.
+	 * 
+	 * @return the registry of the metrics.
+	 */
+	public MetricsRegistry getMetricsRegistry() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the prefix of the names of the metrics of this transport.
+	 * 
+	 * @return <code>transport.</code> followed by the name of the class of the
+	 *         transport and a dot.
+	 */
+	protected String getMetricsPrefix() {
+		String name = getClass().getName();
+		return "transport." + name.substring(name.lastIndexOf('.') + 1) + ".";
+	}
+
+	/**
+	 * Gets the name of the gauge of the queue of a traffic class.
+	 */
+	private String getQueueMetric(String trafficClass) {
+		NodeDescriptor id = localID;
+		return getMetricsPrefix() + "queue." + (id == null ? "" : id.getID() + ".") + trafficClass;
+	}
+
+	private void addQueueGauges(MetricsRegistry registry) {
+		Iterator it = trafficQueues.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry e = (Map.Entry) it.next();
+			registry.gauge(getQueueMetric((String) e.getKey()), new QueueGauge((List) e.getValue()));
+		}
+	}
+
+	private void removeQueueGauges(MetricsRegistry registry) {
+		Iterator it = trafficQueues.keySet().iterator();
+		while (it.hasNext())
+			registry.remove(getQueueMetric((String) it.next()));
+	}
+
+	/**
+	 * Gets the metrics of the link toward the given neighbor, creating them if
+	 * needed. They are removed when the neighbor is removed from
+	 * <code>proxySet</code>.
+	 * 
+	 * @param neighbor
+	 *            the neighbor
+	 * @return the metrics of the link.
+	 */
+	LinkMetrics getLinkMetrics(NodeDescriptor neighbor) {
+		LinkMetrics m = (LinkMetrics) links.get(neighbor);
+		if (m == null) {
+			synchronized (links) {
+				m = (LinkMetrics) links.get(neighbor);
+				if (m == null) {
+					m = new LinkMetrics(metrics, neighbor.getID());
+					links.put(neighbor, m);
+				}
+			}
+		}
+		return m;
+	}
+
+	private void removeLinkMetrics(NodeDescriptor neighbor) {
+		LinkMetrics m = (LinkMetrics) links.remove(neighbor);
+		if (m != null)
+			m.remove(metrics);
+	}
+
+	/**
+	 * Gets the histogram of the time taken to serialize an envelope, in ns.
+	 * 
+	 * @return the histogram of the serialization time.
+	 */
+	protected LatencyHistogram getSerializationTime() {
+		LatencyHistogram h = serializationTime;
+		if (h == null) {
+			h = metrics.histogram(getMetricsPrefix() + "serializationNanos");
+			serializationTime = h;
+		}
+		return h;
+	}
+
+	/**
+	 * Measures the length of the queue of a traffic class.
+	 */
+	private static class QueueGauge implements Gauge {
+		private List queue;
+
+		QueueGauge(List queue) {
+			this.queue = queue;
+		}
+
+		public long getValue() {
+			synchronized (queue) {
+				return queue.size();
+			}
+		}
+	}
+
+	/**
+	 * Gets the transport whose parser thread is running the caller.
+	 * 
+	 * @return the transport delivering the envelope being processed by the
+	 *         current thread, <code>null</code> if the current thread is not a
+	 *         parser thread.
+	 */
+	static AbstractTransport getDeliveringTransport() {
+		Thread t = Thread.currentThread();
+		if (t instanceof ParserThread)
+			return ((ParserThread) t).getTransport();
+		return null;
+	}
+
 	private class ParserThread extends Thread {
 		private LinkedList packets = null;
 
@@ -298,6 +511,10 @@ public abstract class AbstractTransport implements Transport {
 		public void run() {
 			parseAndDeliver(!exit, packets);
 		}
+
+		AbstractTransport getTransport() {
+			return AbstractTransport.this;
+		}
 	}
 
 	/**
@@ -315,6 +532,11 @@ public abstract class AbstractTransport implements Transport {
 	}
 
 	public void enqueue(Envelope e) {
+		if (e.getSenderID() != null)
+			getLinkMetrics(e.getSenderID()).envelopesIn.increment();
+		if (e.getTrace() != null)
+			e.getTrace().stamp(localID, TraceContext.RECEIVED);
+		EventLog.log(ENQUEUE_EVENT, e.getSubjectCode(), e.getTrafficClassCode());
 		try {
 			LinkedList list = null;
 			synchronized (trafficQueues) {
@@ -324,7 +546,8 @@ public abstract class AbstractTransport implements Transport {
 				synchronized (list) {
 					list.addLast(e);
 					list.notifyAll();
-					logger.finer("equeued " + e.toString());
+					if (logger.isLoggable(Level.FINER))
+						logger.finer("equeued " + e.toString());
 				}
 			} else {
 				logger.warning("No traffic class for message " + e.toString());
@@ -342,9 +565,11 @@ public abstract class AbstractTransport implements Transport {
 				synchronized (packets) {
 					try {
 						while (packets.size() == 0) {
-							logger.finer("Parse and deliver waiting list size " + packets.size());
+							if (logger.isLoggable(Level.FINER))
+								logger.finer("Parse and deliver waiting list size " + packets.size());
 							packets.wait();
-							logger.finer("Parse and deliver woken up list size " + packets.size());
+							if (logger.isLoggable(Level.FINER))
+								logger.finer("Parse and deliver woken up list size " + packets.size());
 						}
 					} catch (InterruptedException e) {
 						e.printStackTrace();
@@ -362,31 +587,9 @@ public abstract class AbstractTransport implements Transport {
 					System.err.println("received is NULL: skipping");
 					continue;
 				}
-				if (received.getTypeOfMessage().equals(TCPEnvelope.CLOSE)) {
-					logger.severe("This code should be unreachable with TCPTransport");
-					// THE FOLLOWING CODE HAS BEEN MOVED AND SHOULD NOW NEVER
-					// RUN in TCPTransport confirm the closing and close the
-					// stream
-					if (mayCloseLink(received.getSenderID())) {
-						closeLinkAck(received.getSenderID());
-						Iterator it = linkClosedListeners.iterator();
-						while (it.hasNext()) {
-							LinkClosedListener l = (LinkClosedListener) it.next();
-							l.signalLinkClosed(received.getSenderID());
-						}
-						proxySet.remove(received.getSenderID());
-					}
-				} else {
-					List l = (List) packetListeners.get(received.getTypeOfMessage());
-					if ((l != null)) {
-						Iterator it = l.iterator();
-						while (it.hasNext()) {
-							PacketListener list = (PacketListener) it.next();
-							list.signalPacket(received.getTypeOfMessage(), received.getSenderID(),
-									received.getPayload());
-						}
-					}
-				}
+				if (received.getTrace() != null)
+					received.getTrace().stamp(localID, TraceContext.DEQUEUED);
+				deliver(received);
 			} // end try
 			catch (Exception e) {
 				// FIXME: Manage this exception in a better way.
@@ -398,6 +601,49 @@ public abstract class AbstractTransport implements Transport {
 
 	} // end method
 
+	/*
+	 * Notify the listeners of an envelope, releasing it even if one of them
+	 * fails.
+	 */
+	private void deliver(Envelope received) {
+		try {
+			if (received.getSubjectCode() == SubjectRegistry.CLOSE) {
+				logger.severe("This code should be unreachable with TCPTransport");
+				// THE FOLLOWING CODE HAS BEEN MOVED AND SHOULD NOW NEVER
+				// RUN in TCPTransport confirm the closing and close the
+				// stream
+				if (mayCloseLink(received.getSenderID())) {
+					closeLinkAck(received.getSenderID());
+					Iterator it = linkClosedListeners.iterator();
+					while (it.hasNext()) {
+						LinkClosedListener l = (LinkClosedListener) it.next();
+						l.signalLinkClosed(received.getSenderID());
+					}
+					proxySet.remove(received.getSenderID());
+				}
+			} else {
+				long start = EventLog.isEnabled() ? System.nanoTime() : 0;
+				int subject = received.getSubjectCode();
+				PacketListener[][] table = packetListeners;
+				if (subject >= 0 && subject < table.length && table[subject] != null) {
+					PacketListener[] l = table[subject];
+					for (int i = 0; i < l.length; i++) {
+						if (l[i] instanceof CodedPacketListener)
+							((CodedPacketListener) l[i]).signalPacket(subject, received.getSenderID(),
+									received.getPayload());
+						else
+							l[i].signalPacket(received.getTypeOfMessage(), received.getSenderID(),
+									received.getPayload());
+					}
+				}
+				if (start != 0)
+					EventLog.log(DELIVER_EVENT, subject, System.nanoTime() - start);
+			}
+		} finally {
+			envelopeDelivered(received);
+		}
+	}
+
 	protected void closeLinkHelper(NodeDescriptor neighborID) {
 		logger.fine("Closing link to neighbor " + neighborID);
 		Proxy neighbor = (Proxy) proxySet.get(neighborID);
@@ -442,6 +688,20 @@ public abstract class AbstractTransport implements Transport {
 		return dest;
 	}
 
+	/**
+	 * Called by the parser threads once all the <code>PacketListener</code>s
+	 * registered for the subject of the given envelope have been notified,
+	 * even if one of them failed.
+	 * Transports that apply flow control to their links may override this
+	 * method to release the resources held by the envelope. The default
+	 * implementation does nothing.
+	 * 
+	 * @param e
+	 *            the envelope just delivered
+	 */
+	protected void envelopeDelivered(Envelope e) {
+	}
+
 	/**
 	 * Manage the request of closing a connection from the given neighbor.
 	 * 
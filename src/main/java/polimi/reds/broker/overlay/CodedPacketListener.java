@@ -0,0 +1,50 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.overlay;
+
+import java.io.Serializable;
+
+import polimi.reds.NodeDescriptor;
+
+/**
+ * A <code>PacketListener</code> notified with the code of the subject of the
+ * packets, as assigned by the <code>SubjectRegistry</code>, rather than with
+ * the subject string. Transports call
+ * <code>signalPacket(int, NodeDescriptor, Serializable)</code> on listeners
+ * implementing this interface.
+ * 
+ * @see SubjectRegistry
+ */
+public interface CodedPacketListener extends PacketListener {
+
+	/**
+	 * This method is called whenever a new packet arrives from a neighbor of
+	 * the local node.
+	 * 
+	 * @param subject
+	 *            the code of the subject of the packet
+	 * @param senderID
+	 *            the <code>NodeDescriptor</code> of the sender
+	 * @param payload
+	 *            the message
+	 */
+	public void signalPacket(int subject, NodeDescriptor senderID, Serializable payload);
+}
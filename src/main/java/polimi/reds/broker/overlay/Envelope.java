@@ -20,18 +20,28 @@
 
 package polimi.reds.broker.overlay;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import polimi.reds.Filter;
 import polimi.reds.Message;
 import polimi.reds.NodeDescriptor;
+import polimi.reds.TraceContext;
 
 /*******************************************************************************
  * The "internal" message exchanged by each REDS client and the broker it is
- * attached to or among neighboring brokers.
+ * attached to or among neighboring brokers.<br>
+ * The subject and the traffic class are sent as the codes assigned to them by
+ * the <code>SubjectRegistry</code>. If the payload is a traced
+ * <code>Message</code>, its trace follows, with the <code>SENT</code> hop of
+ * the sender.
+ * 
+ * @see SubjectRegistry
  ******************************************************************************/
 public class Envelope implements Serializable {
-	private static final long serialVersionUID = -1233116801597947207L;
+	private static final long serialVersionUID = 4508761542876437611L;
 
 	/**
 	 * The sender is slave in the open connection process.
@@ -109,6 +119,12 @@ public class Envelope implements Serializable {
 	 */
 	public static final String REPLY = "reply";
 
+	/**
+	 * Message asks to stop forwarding the replies of a repliable message.
+	 * 
+	 */
+	public static final String CANCEL_REPLIES = "cancelReplies";
+
 	/**
 	 * Confirm a CLOSE message.
 	 */
@@ -124,14 +140,73 @@ public class Envelope implements Serializable {
 	 */
 	public static final String DEAD = "dead";
 
+	/**
+	 * From client to broker: message contains a durable subscription
+	 */
+	public static final String DURABLE_SUBSCRIBE = "durableSubscribe";
+
+	/**
+	 * From client to broker: message contains a durable subscription to
+	 * remove
+	 */
+	public static final String DURABLE_UNSUBSCRIBE = "durableUnsubscribe";
+
+	/**
+	 * From client to broker: the client takes the delivery of the messages of
+	 * a durable subscriber
+	 */
+	public static final String DURABLE_ATTACH = "durableAttach";
+
+	/**
+	 * From client to broker: message acknowledges the messages delivered to a
+	 * durable subscriber
+	 */
+	public static final String DURABLE_ACK = "durableAck";
+
+	/**
+	 * From broker to client: message contains a message for a durable
+	 * subscriber
+	 */
+	public static final String DURABLE_PUBLISH = "durablePublish";
+
+	/**
+	 * From broker to broker: message contains ranges of the digest of the
+	 * filters the sender holds for the receiver
+	 */
+	public static final String SUBSCRIPTION_DIGEST = "subscriptionDigest";
+
+	/**
+	 * From broker to broker: message contains the ranges of the digest whose
+	 * children the receiver must send
+	 */
+	public static final String SUBSCRIPTION_RANGES = "subscriptionRanges";
+
+	/**
+	 * From broker to broker: message contains the ranges of the filters the
+	 * receiver must drop for the sender
+	 */
+	public static final String SUBSCRIPTION_PRUNE = "subscriptionPrune";
+
+	/**
+	 * From client to broker and from broker to client: message acknowledges
+	 * the envelopes of a session received so far
+	 */
+	public static final String SESSION_ACK = "sessionAck";
+
 	// Local private variables
-	private String typeOfMessage;
+	private transient String typeOfMessage;
+
+	private transient int subject;
 
 	private NodeDescriptor senderID;
 
 	private Serializable payload;
 
-	private String trafficClass = null;
+	private transient String trafficClass = null;
+
+	private transient int trafficClassCode;
+
+	private transient TraceContext trace;
 
 	/**
 	 * Base constructor.
@@ -144,10 +219,14 @@ public class Envelope implements Serializable {
 	 *            traffic class
 	 */
 	public Envelope(String typeOfMessage, Serializable payload, String trafficClass) {
-		this.typeOfMessage = typeOfMessage;
+		this.typeOfMessage = SubjectRegistry.canonical(typeOfMessage);
+		this.subject = SubjectRegistry.find(typeOfMessage);
 		this.payload = payload;
 		this.senderID = null;
-		this.trafficClass = trafficClass;
+		this.trafficClass = SubjectRegistry.canonical(trafficClass);
+		this.trafficClassCode = SubjectRegistry.find(trafficClass);
+		if (payload instanceof Message)
+			trace = ((Message) payload).getTrace();
 	}
 
 	/**
@@ -169,6 +248,18 @@ public class Envelope implements Serializable {
 		return typeOfMessage;
 	}
 
+	/**
+	 * Get the code of the message's type.
+	 * 
+	 * @return the code assigned to the message type by the
+	 *         <code>SubjectRegistry</code>, or
+	 *         <code>SubjectRegistry.UNREGISTERED</code> if no local listener
+	 *         declared it
+	 */
+	public int getSubjectCode() {
+		return subject;
+	}
+
 	/**
 	 * The sender id.
 	 * 
@@ -204,7 +295,7 @@ public class Envelope implements Serializable {
 	 * @return the payload or null.
 	 */
 	public Message getMessage() {
-		if (typeOfMessage.equals(PUBLISH))
+		if (subject == SubjectRegistry.PUBLISH)
 			return (Message) payload;
 		else
 			return null;
@@ -217,12 +308,32 @@ public class Envelope implements Serializable {
 	 * @return the payload or null
 	 */
 	public Filter getFilter() {
-		if (typeOfMessage.equals(SUBSCRIBE) || typeOfMessage.equals(UNSUBSCRIBE))
+		if (subject == SubjectRegistry.SUBSCRIBE || subject == SubjectRegistry.UNSUBSCRIBE)
 			return (Filter) payload;
 		else
 			return null;
 	}
 
+	/**
+	 * Get the trace of the message in this envelope.
+	 * 
+	 * @return the trace, <code>null</code> if the payload is not a traced
+	 *         message.
+	 */
+	public TraceContext getTrace() {
+		return trace;
+	}
+
+	/**
+	 * Get the code of the traffic class of this <code>Envelope</code>.
+	 * 
+	 * @return the code assigned to the traffic class by the
+	 *         <code>SubjectRegistry</code>
+	 */
+	public int getTrafficClassCode() {
+		return trafficClassCode;
+	}
+
 	/**
 	 * Get the traffic class of this <code>Envelope</code>.
 	 * 
@@ -232,6 +343,31 @@ public class Envelope implements Serializable {
 		return this.trafficClass;
 	}
 
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		if (trace != null) {
+			out.writeByte(SubjectRegistry.TRACED);
+			out.writeObject(trace.copyAndStamp(senderID, TraceContext.SENT));
+		}
+		SubjectRegistry.write(out, subject, typeOfMessage);
+		SubjectRegistry.write(out, trafficClassCode, trafficClass);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int code = in.readByte();
+		if (code == SubjectRegistry.TRACED) {
+			trace = (TraceContext) in.readObject();
+			if (payload instanceof Message)
+				((Message) payload).setTrace(trace);
+			code = in.readByte();
+		}
+		typeOfMessage = SubjectRegistry.read(in, code);
+		subject = SubjectRegistry.find(typeOfMessage);
+		trafficClass = SubjectRegistry.read(in);
+		trafficClassCode = SubjectRegistry.find(trafficClass);
+	}
+
 	/**
 	 * Get the <code>String</code> representation.
 	 * 
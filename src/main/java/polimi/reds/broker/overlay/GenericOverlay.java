@@ -23,6 +23,7 @@ package polimi.reds.broker.overlay;
 import java.io.Serializable;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -34,7 +35,6 @@ import java.util.Vector;
 
 import polimi.reds.NodeDescriptor;
 import polimi.reds.NotConnectedException;
-import polimi.reds.broker.routing.Router;
 
 /**
  * Basic overlay. This class delegates to <code>Transport</code> and
@@ -45,7 +45,8 @@ import polimi.reds.broker.routing.Router;
  * @author Alessandro Monguzzi
  * 
  */
-public class GenericOverlay implements Overlay {
+public class GenericOverlay implements Overlay, NeighborAddedListener, NeighborRemovedListener,
+		NeighborDeadListener {
 	/**
 	 * The <code>Set</code> of <code>Transport</code> used by this
 	 * <code>Overlay</code>.
@@ -74,6 +75,21 @@ public class GenericOverlay implements Overlay {
 	 */
 	protected LocalTransport localTransport = null;
 
+	/**
+	 * The slots of the neighbors.
+	 */
+	protected NeighborIndex slots;
+
+	/**
+	 * The proxies of the neighbors, indexed by slot.
+	 */
+	private volatile Proxy[] proxies;
+
+	/**
+	 * The slots held by the overlay, i.e. those of the linked neighbors.
+	 */
+	private BitSet linked;
+
 	/**
 	 * Create a new <code>Overlay</code> which uses the given
 	 * <code>TopologyManager</code> and set of <code>Transport</code>.<br>
@@ -91,6 +107,9 @@ public class GenericOverlay implements Overlay {
 		this.topologyManager = topologyManager;
 		this.transport = transport;
 		listeners = Collections.synchronizedMap(new LinkedHashMap());
+		slots = new NeighborIndex();
+		proxies = new Proxy[0];
+		linked = new BitSet();
 		this.id = new NodeDescriptor();
 		Iterator it = transport.iterator();
 		while (it.hasNext()) {
@@ -99,6 +118,11 @@ public class GenericOverlay implements Overlay {
 			this.id.addUrl(next.getURL());
 		}
 		this.topologyManager.setOverlay(this);
+		// registered first, so that neighbors have a slot when other
+		// listeners learn about them
+		this.topologyManager.addNeighborAddedListener(this);
+		this.topologyManager.addNeighborRemovedListener(this);
+		this.topologyManager.addNeighborDeadListener(this);
 	}
 
 	/**
@@ -137,6 +161,86 @@ public class GenericOverlay implements Overlay {
 			throw new NotConnectedException();
 	}
 
+	/**
+	 * @see Overlay#send(String, Serializable, int)
+	 */
+	public void send(String subject, Serializable payload, int slot) throws NotConnectedException {
+		Proxy[] p = proxies;
+		Proxy proxy = slot >= 0 && slot < p.length ? p[slot] : null;
+		if (proxy == null || !proxy.isConnected()) {
+			// the link may have been reopened with a new proxy
+			proxy = resolveProxy(slots.get(slot));
+			if (proxy == null)
+				throw new NotConnectedException();
+			synchronized (slots) {
+				if (linked.get(slot))
+					proxies[slot] = proxy;
+			}
+		}
+		proxy.sendMessage(subject, payload, getTrafficClass(subject));
+	}
+
+	/**
+	 * @see Overlay#getNeighborIndex()
+	 */
+	public NeighborIndex getNeighborIndex() {
+		return slots;
+	}
+
+	private Proxy resolveProxy(NodeDescriptor neighbor) {
+		if (neighbor == null)
+			return null;
+		Transport t = topologyManager.getTransport(neighbor);
+		return t == null ? null : t.getProxy(neighbor);
+	}
+
+	/**
+	 * Assigns a slot to the new neighbor.
+	 * 
+	 * @see NeighborAddedListener#signalNeighborAdded(NodeDescriptor)
+	 */
+	public void signalNeighborAdded(NodeDescriptor newNeighbor) {
+		Proxy proxy = resolveProxy(newNeighbor);
+		synchronized (slots) {
+			int slot = slots.indexOf(newNeighbor);
+			if (slot < 0 || !linked.get(slot)) {
+				slot = slots.add(newNeighbor);
+				linked.set(slot);
+			}
+			if (slot >= proxies.length) {
+				Proxy[] p = new Proxy[slots.size()];
+				System.arraycopy(proxies, 0, p, 0, proxies.length);
+				proxies = p;
+			}
+			proxies[slot] = proxy;
+		}
+	}
+
+	/**
+	 * Frees the slot of the neighbor.
+	 * 
+	 * @see NeighborRemovedListener#signalNeighborRemoved(NodeDescriptor)
+	 */
+	public void signalNeighborRemoved(NodeDescriptor removedNeighbor) {
+		synchronized (slots) {
+			int slot = slots.indexOf(removedNeighbor);
+			if (slot < 0 || !linked.get(slot))
+				return;
+			linked.clear(slot);
+			proxies[slot] = null;
+			slots.remove(removedNeighbor);
+		}
+	}
+
+	/**
+	 * Frees the slot of the neighbor.
+	 * 
+	 * @see NeighborDeadListener#signalNeighborDead(NodeDescriptor)
+	 */
+	public void signalNeighborDead(NodeDescriptor deadNeighbor) {
+		signalNeighborRemoved(deadNeighbor);
+	}
+
 	/**
 	 * Get the traffic class associated with the given <code>subject</code>.<br>
 	 * If there is no standard association, the <code>MISCELLANEOUS_CLASS</code>
@@ -147,15 +251,24 @@ public class GenericOverlay implements Overlay {
 	 * @return the traffic class associated with the given subject
 	 */
 	private String getTrafficClass(String subject) {
-		if (subject.equals(Router.PUBLISH))
+		switch (SubjectRegistry.find(subject)) {
+		case SubjectRegistry.PUBLISH:
+		case SubjectRegistry.DURABLE_PUBLISH:
 			return Transport.MESSAGE_CLASS;
-		else if (subject.equals(Router.REPLY))
+		case SubjectRegistry.REPLY:
 			return Transport.REPLY_CLASS;
-		else if (subject.equals(Router.SUBSCRIBE) || subject.equals(Router.UNSUBSCRIBE)
-				|| subject.equals(Router.UNSUBSCRIBEALL))
+		case SubjectRegistry.SUBSCRIBE:
+		case SubjectRegistry.UNSUBSCRIBE:
+		case SubjectRegistry.UNSUBSCRIBEALL:
+		case SubjectRegistry.DURABLE_SUBSCRIBE:
+		case SubjectRegistry.DURABLE_UNSUBSCRIBE:
+		case SubjectRegistry.SUBSCRIPTION_DIGEST:
+		case SubjectRegistry.SUBSCRIPTION_PRUNE:
+		case SubjectRegistry.SUBSCRIPTION_RANGES:
 			return Transport.FILTER_CLASS;
-		else
+		default:
 			return Transport.MISCELLANEOUS_CLASS;
+		}
 	}
 
 	/**
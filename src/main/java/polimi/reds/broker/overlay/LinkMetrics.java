@@ -0,0 +1,70 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.overlay;
+
+import polimi.util.MetricsRegistry;
+import polimi.util.StripedCounter;
+
+/**
+ * The counters of the traffic on a link, kept in a
+ * <code>MetricsRegistry</code> as <code>link.</code><i>neighbor
+ * ID</i><code>.envelopesIn</code>, <code>envelopesOut</code>,
+ * <code>envelopesSpilled</code>, <code>bytesIn</code> and
+ * <code>bytesOut</code>. The envelopes received are counted by every
+ * transport, those sent and the bytes only by the transports writing on a
+ * connection, those queued beyond the bound of a full send queue by the
+ * transports bounding them.
+ * 
+ * @see AbstractTransport#getLinkMetrics(polimi.reds.NodeDescriptor)
+ */
+class LinkMetrics {
+	final StripedCounter envelopesIn;
+	final StripedCounter envelopesOut;
+	final StripedCounter envelopesSpilled;
+	final StripedCounter bytesIn;
+	final StripedCounter bytesOut;
+	private final String prefix;
+
+	LinkMetrics(MetricsRegistry metrics, String neighborID) {
+		prefix = "link." + neighborID + ".";
+		envelopesIn = metrics.counter(prefix + "envelopesIn");
+		envelopesOut = metrics.counter(prefix + "envelopesOut");
+		envelopesSpilled = metrics.counter(prefix + "envelopesSpilled");
+		bytesIn = metrics.counter(prefix + "bytesIn");
+		bytesOut = metrics.counter(prefix + "bytesOut");
+	}
+
+	/**
+	 * Accounts for an envelope sent on the link.
+	 */
+	void sent(long bytes) {
+		envelopesOut.increment();
+		if (bytes > 0)
+			bytesOut.add(bytes);
+	}
+
+	/**
+	 * Removes the counters from the registry.
+	 */
+	void remove(MetricsRegistry metrics) {
+		metrics.removeAll(prefix);
+	}
+}
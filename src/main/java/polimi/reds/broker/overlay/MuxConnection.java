@@ -0,0 +1,424 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.overlay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A TCP connection shared by all the <code>MuxTCPTransport</code>s living in
+ * the same JVM. Each logical link between two transports is carried as a
+ * <code>MuxStream</code>, i.e., a sequence of frames tagged with the stream id.
+ * A frame is made of the stream id, the frame type, the length of the body and
+ * the body itself.<br>
+ * Connections are pooled by remote address and port. When a connection is
+ * established the two peers exchange the list of the ports their JVM is
+ * listening to, so that every transport of the remote JVM can be reached
+ * through the same socket. The side that opened the connection allocates odd
+ * stream ids, the accepting side allocates even ones.
+ */
+class MuxConnection implements Runnable {
+	/**
+	 * Exchanged once when the connection is established. Its body contains the
+	 * listening ports of the sender's JVM.
+	 */
+	static final byte HELLO = 0;
+	/**
+	 * Opens a new stream. Its body contains the target port followed by the
+	 * first envelope of the stream.
+	 */
+	static final byte OPEN = 1;
+	/**
+	 * Carries a serialized envelope.
+	 */
+	static final byte DATA = 2;
+	/**
+	 * Returns send credit (in bytes) to the other end of a stream.
+	 */
+	static final byte CREDIT = 3;
+	/**
+	 * Closes a stream.
+	 */
+	static final byte FIN = 4;
+	/**
+	 * The number of bytes each end of a stream may send before receiving
+	 * credit back.
+	 */
+	static final int INITIAL_WINDOW = 256 * 1024;
+	private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	private static final int CONNECT_TIMEOUT = 2000;
+	private static final int HANDSHAKE_TIMEOUT = 6000;
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * The open connections, keyed by "address:port" of the remote transports
+	 * they reach.
+	 */
+	private static Map pool = new HashMap();
+	/**
+	 * The <code>MuxTCPTransport</code>s of this JVM, keyed by their listening
+	 * port.
+	 */
+	private static Map transports = new HashMap();
+	/**
+	 * Serializes the creation and the release of connections, so that two
+	 * streams opened at the same time toward the same JVM share the socket.
+	 */
+	private static Object connectLock = new Object();
+
+	private static Logger logger = Logger.getLogger("polimi.reds.transport");
+
+	private Socket sock;
+	private DataInputStream in;
+	private DataOutputStream out;
+	private String remoteAddress;
+	private boolean initiator;
+	private boolean open;
+	private int nextStreamID;
+	private Map streams;
+	private List keys;
+
+	private MuxConnection(Socket sock, boolean initiator) throws IOException {
+		this.sock = sock;
+		this.initiator = initiator;
+		sock.setTcpNoDelay(true);
+		sock.setKeepAlive(true);
+		in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+		remoteAddress = sock.getInetAddress().getHostAddress();
+		nextStreamID = initiator ? 1 : 2;
+		streams = new HashMap();
+		keys = new ArrayList();
+		open = true;
+	}
+
+	/**
+	 * Make the given transport reachable by remote peers through the shared
+	 * connections.
+	 */
+	static void register(int port, MuxTCPTransport transport) {
+		synchronized (pool) {
+			transports.put(new Integer(port), transport);
+		}
+	}
+
+	static void unregister(int port) {
+		synchronized (pool) {
+			transports.remove(new Integer(port));
+		}
+	}
+
+	/**
+	 * Open a new stream toward the transport listening at the given host and
+	 * port, reusing a pooled connection if one exists.
+	 *
+	 * @param host
+	 *            the remote host
+	 * @param port
+	 *            the port of the remote <code>MuxTCPTransport</code>
+	 * @param owner
+	 *            the local transport the stream belongs to
+	 * @param firstEnvelope
+	 *            the serialized envelope carried by the <code>OPEN</code> frame
+	 * @return the new stream
+	 * @throws IOException
+	 *             if the connection cannot be established
+	 */
+	static MuxStream openStream(String host, int port, MuxTCPTransport owner, byte[] firstEnvelope)
+			throws IOException {
+		synchronized (connectLock) {
+			String key = InetAddress.getByName(host).getHostAddress() + ":" + port;
+			MuxConnection conn;
+			synchronized (pool) {
+				conn = (MuxConnection) pool.get(key);
+			}
+			if (conn == null || !conn.open) {
+				Socket sock = new Socket();
+				try {
+					sock.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+					conn = new MuxConnection(sock, true);
+					conn.handshake();
+				} catch (IOException e) {
+					sock.close();
+					throw e;
+				}
+			}
+			return conn.newStream(port, owner, firstEnvelope);
+		}
+	}
+
+	/**
+	 * Take charge of a socket accepted by a <code>MuxTCPTransport</code>.
+	 */
+	static void accepted(Socket sock) {
+		MuxConnection conn = null;
+		try {
+			conn = new MuxConnection(sock, false);
+			conn.handshake();
+		} catch (IOException e) {
+			logger.warning("Error establishing a multiplexed connection with " + sock.getInetAddress());
+			try {
+				sock.close();
+			} catch (IOException ex) {
+				// nothing to do
+			}
+		}
+	}
+
+	/*
+	 * Exchange the HELLO frames, register this connection in the pool and
+	 * start the reading thread.
+	 */
+	private void handshake() throws IOException {
+		int[] localPorts;
+		synchronized (pool) {
+			localPorts = new int[transports.size()];
+			Iterator it = transports.keySet().iterator();
+			for (int i = 0; it.hasNext(); i++)
+				localPorts[i] = ((Integer) it.next()).intValue();
+		}
+		sock.setSoTimeout(HANDSHAKE_TIMEOUT);
+		synchronized (out) {
+			out.writeInt(0);
+			out.writeByte(HELLO);
+			out.writeInt(4 + 4 * localPorts.length);
+			out.writeInt(localPorts.length);
+			for (int i = 0; i < localPorts.length; i++)
+				out.writeInt(localPorts[i]);
+			out.flush();
+		}
+		in.readInt();
+		if (in.readByte() != HELLO)
+			throw new IOException("Expected HELLO from " + remoteAddress);
+		in.readInt();
+		int n = in.readInt();
+		for (int i = 0; i < n; i++)
+			keys.add(remoteAddress + ":" + in.readInt());
+		sock.setSoTimeout(0);
+		synchronized (pool) {
+			Iterator it = keys.iterator();
+			while (it.hasNext())
+				pool.put(it.next(), this);
+		}
+		Thread reader = new Thread(this);
+		reader.setDaemon(true);
+		reader.setName("MuxConnection." + remoteAddress);
+		reader.start();
+		logger.fine("Multiplexed connection with " + remoteAddress + " established");
+	}
+
+	private MuxStream newStream(int port, MuxTCPTransport owner, byte[] firstEnvelope) throws IOException {
+		MuxStream stream;
+		synchronized (streams) {
+			stream = new MuxStream(this, nextStreamID, owner);
+			nextStreamID += 2;
+			streams.put(new Integer(stream.getID()), stream);
+		}
+		byte[] body = new byte[4 + firstEnvelope.length];
+		body[0] = (byte) (port >>> 24);
+		body[1] = (byte) (port >>> 16);
+		body[2] = (byte) (port >>> 8);
+		body[3] = (byte) port;
+		System.arraycopy(firstEnvelope, 0, body, 4, firstEnvelope.length);
+		stream.debit(body.length - 4);
+		writeFrame(stream.getID(), OPEN, body);
+		return stream;
+	}
+
+	/**
+	 * Write a frame on the socket. Frames written by different threads are
+	 * never interleaved.
+	 */
+	void writeFrame(int streamID, byte type, byte[] body) throws IOException {
+		synchronized (out) {
+			if (!open)
+				throw new IOException("Connection to " + remoteAddress + " closed");
+			out.writeInt(streamID);
+			out.writeByte(type);
+			out.writeInt(body.length);
+			out.write(body);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Write the given frames of a stream on the socket, flushing it once.
+	 */
+	void writeFrames(int streamID, byte type, List bodies) throws IOException {
+		if (bodies.isEmpty())
+			return;
+		synchronized (out) {
+			if (!open)
+				throw new IOException("Connection to " + remoteAddress + " closed");
+			for (int i = 0; i < bodies.size(); i++) {
+				byte[] body = (byte[]) bodies.get(i);
+				out.writeInt(streamID);
+				out.writeByte(type);
+				out.writeInt(body.length);
+				out.write(body);
+			}
+			out.flush();
+		}
+	}
+
+	void writeCredit(int streamID, int credit) throws IOException {
+		byte[] body = new byte[] { (byte) (credit >>> 24), (byte) (credit >>> 16), (byte) (credit >>> 8),
+				(byte) credit };
+		writeFrame(streamID, CREDIT, body);
+	}
+
+	/**
+	 * Close the given stream, notifying the other end. When the last stream
+	 * opened by this side is closed the connection itself is released.
+	 */
+	void closeStream(MuxStream stream) {
+		boolean idle;
+		synchronized (streams) {
+			if (streams.remove(new Integer(stream.getID())) == null)
+				return;
+			idle = streams.isEmpty();
+		}
+		try {
+			writeFrame(stream.getID(), FIN, EMPTY);
+		} catch (IOException e) {
+			// the connection is already gone
+		}
+		if (idle && initiator) {
+			synchronized (connectLock) {
+				synchronized (streams) {
+					idle = streams.isEmpty();
+				}
+				if (idle)
+					shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Main reading loop.
+	 */
+	public void run() {
+		try {
+			while (open) {
+				int streamID = in.readInt();
+				byte type = in.readByte();
+				int length = in.readInt();
+				if (length < 0 || length > MAX_FRAME_SIZE)
+					throw new IOException("Invalid frame length " + length + " from " + remoteAddress);
+				byte[] body = new byte[length];
+				in.readFully(body);
+				dispatch(streamID, type, body);
+			}
+		} catch (IOException e) {
+			if (open)
+				logger.warning("Multiplexed connection with " + remoteAddress + " lost: " + e);
+		}
+		shutdown();
+	}
+
+	private void dispatch(int streamID, byte type, byte[] body) throws IOException {
+		MuxStream stream;
+		synchronized (streams) {
+			stream = (MuxStream) streams.get(new Integer(streamID));
+		}
+		if (type == OPEN) {
+			int port = ((body[0] & 0xff) << 24) | ((body[1] & 0xff) << 16) | ((body[2] & 0xff) << 8) | (body[3] & 0xff);
+			MuxTCPTransport target;
+			synchronized (pool) {
+				target = (MuxTCPTransport) transports.get(new Integer(port));
+			}
+			if (target == null) {
+				logger.warning("Stream opened by " + remoteAddress + " toward unknown port " + port);
+				writeFrame(streamID, FIN, EMPTY);
+				return;
+			}
+			stream = new MuxStream(this, streamID, target);
+			synchronized (streams) {
+				streams.put(new Integer(streamID), stream);
+			}
+			stream.received(body, 4);
+			target.streamOpened(stream);
+		} else if (stream == null) {
+			// frames for streams closed in the meantime are silently dropped
+			return;
+		} else if (type == DATA) {
+			stream.received(body, 0);
+		} else if (type == CREDIT) {
+			stream.credit(((body[0] & 0xff) << 24) | ((body[1] & 0xff) << 16) | ((body[2] & 0xff) << 8)
+					| (body[3] & 0xff));
+		} else if (type == FIN) {
+			synchronized (streams) {
+				streams.remove(new Integer(streamID));
+			}
+			stream.finished();
+		} else
+			throw new IOException("Unknown frame type " + type + " from " + remoteAddress);
+	}
+
+	/*
+	 * Close the socket and all the streams it carries.
+	 */
+	private void shutdown() {
+		List closed;
+		synchronized (out) {
+			if (!open)
+				return;
+			open = false;
+		}
+		Iterator it = keys.iterator();
+		synchronized (pool) {
+			while (it.hasNext()) {
+				Object key = it.next();
+				if (pool.get(key) == this)
+					pool.remove(key);
+			}
+		}
+		try {
+			sock.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+		synchronized (streams) {
+			closed = new ArrayList(streams.values());
+			streams.clear();
+		}
+		it = closed.iterator();
+		while (it.hasNext())
+			((MuxStream) it.next()).finished();
+		logger.fine("Multiplexed connection with " + remoteAddress + " closed");
+	}
+
+	String getRemoteAddress() {
+		return remoteAddress;
+	}
+}
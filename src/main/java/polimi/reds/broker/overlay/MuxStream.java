@@ -0,0 +1,425 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.overlay;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One logical link carried by a <code>MuxConnection</code>.<br>
+ * Each end of the stream may have at most
+ * <code>MuxConnection.INITIAL_WINDOW</code> bytes in flight: the receiver
+ * returns credit only after the envelopes have been delivered by the parser
+ * threads of its transport, so a slow link slows down its own sender without
+ * stalling the other streams sharing the socket.<br>
+ * Envelopes are written by a writer thread of the stream, which waits for
+ * credit; senders only wait for room in the bounded queue of the stream.
+ * Parser threads never wait: what they forward to a stream whose queue is
+ * full is queued anyway, and the credit of the envelope being delivered is
+ * held back until that queue drains, so the sender upstream slows down
+ * instead.
+ */
+class MuxStream {
+	/**
+	 * The maximum number of bytes queued and not yet written on a stream.
+	 */
+	static final int MAX_QUEUED = 4 * MuxConnection.INITIAL_WINDOW;
+
+	private static final Logger logger = Logger.getLogger("polimi.reds.broker.overlay.MuxStream");
+
+	/**
+	 * Queued after the last envelope of a stream being closed.
+	 */
+	private static final Frame CLOSING = new Frame(null, true);
+
+	/**
+	 * The streams whose queue the parser thread running the caller filled
+	 * beyond <code>MAX_QUEUED</code> while delivering the current envelope.
+	 */
+	private static final ThreadLocal spilled = new ThreadLocal() {
+		protected Object initialValue() {
+			return new LinkedHashSet();
+		}
+	};
+
+	private MuxConnection connection;
+	private int id;
+	private MuxTCPTransport owner;
+	private Proxy proxy;
+	private boolean closed;
+	private int sendWindow;
+	private int consumed;
+	/**
+	 * Envelopes received before a proxy has been attached to this stream.
+	 */
+	private LinkedList pending;
+	/**
+	 * The frames waiting to be written by the writer thread.
+	 */
+	private LinkedList outgoing;
+	private int queued;
+	private Thread writer;
+	/**
+	 * True once the stream can no longer be written.
+	 */
+	private boolean finished;
+	/**
+	 * The credit of the envelopes whose delivery filled this stream, returned
+	 * to their streams once the queue drains: pairs of stream and bytes.
+	 */
+	private List withheld;
+
+	MuxStream(MuxConnection connection, int id, MuxTCPTransport owner) {
+		this.connection = connection;
+		this.id = id;
+		this.owner = owner;
+		sendWindow = MuxConnection.INITIAL_WINDOW;
+		consumed = 0;
+		closed = false;
+		pending = new LinkedList();
+		outgoing = new LinkedList();
+		queued = 0;
+		writer = null;
+		finished = false;
+		withheld = new ArrayList();
+	}
+
+	int getID() {
+		return id;
+	}
+
+	MuxConnection getConnection() {
+		return connection;
+	}
+
+	synchronized Proxy getProxy() {
+		return proxy;
+	}
+
+	synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Queue a serialized envelope to be sent on this stream. If
+	 * <code>flowControlled</code> is false the envelope is a control envelope:
+	 * it is always queued and written without waiting for credit.<br>
+	 * Credit is returned by the parser threads once they delivered the
+	 * envelopes, and a parser thread forwarding an envelope may hold the lock
+	 * of the router the others need: if it waited, two brokers forwarding to
+	 * each other would wait forever. Thus parser threads never wait: when the
+	 * queue is full their envelopes are queued anyway and the stream is
+	 * remembered, so that <code>delivered</code> holds back the credit of the
+	 * envelope being delivered. The other threads wait for room in the queue.
+	 * 
+	 * @return <code>false</code> if the envelope has been queued beyond
+	 *         <code>MAX_QUEUED</code>
+	 * @throws IOException if the stream is closed
+	 */
+	boolean send(byte[] envelope, boolean flowControlled) throws IOException {
+		boolean spill = false;
+		synchronized (this) {
+			if (flowControlled) {
+				if (AbstractTransport.getDeliveringTransport() != null)
+					spill = !closed && isFull(envelope.length);
+				else {
+					while (!closed && isFull(envelope.length)) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							throw new IOException("Interrupted while waiting to send on stream " + id);
+						}
+					}
+				}
+			}
+			if (closed)
+				throw new IOException("Stream " + id + " closed");
+			enqueue(new Frame(envelope, !flowControlled));
+		}
+		if (spill) {
+			if (logger.isLoggable(Level.FINE))
+				logger.fine("Send queue of stream " + id + " full: credit held back");
+			((LinkedHashSet) spilled.get()).add(this);
+		}
+		return !spill;
+	}
+
+	/**
+	 * Called by the parser thread which delivered an envelope received on
+	 * <code>from</code>: the credit is returned at once, unless delivering it
+	 * filled the queue of some stream, which returns it once drained.
+	 */
+	static void delivered(MuxStream from, int bytes) {
+		LinkedHashSet full = (LinkedHashSet) spilled.get();
+		boolean held = false;
+		Iterator it = full.iterator();
+		while (it.hasNext() && !held)
+			held = ((MuxStream) it.next()).withhold(from, bytes);
+		full.clear();
+		if (!held)
+			from.consumed(bytes);
+	}
+
+	/**
+	 * Keep the credit of <code>from</code> until the queue of this stream
+	 * drains.
+	 * 
+	 * @return <code>false</code> if the queue already drained
+	 */
+	private synchronized boolean withhold(MuxStream from, int bytes) {
+		if (finished || queued <= MAX_QUEUED)
+			return false;
+		withheld.add(new Object[] { from, new Integer(bytes) });
+		return true;
+	}
+
+	/*
+	 * Called holding the stream lock: take the credit to return if the queue
+	 * drained.
+	 */
+	private List releasable() {
+		if (withheld.isEmpty() || (!finished && queued > MAX_QUEUED))
+			return null;
+		List l = withheld;
+		withheld = new ArrayList();
+		return l;
+	}
+
+	private static void release(List credit) {
+		if (credit == null)
+			return;
+		Iterator it = credit.iterator();
+		while (it.hasNext()) {
+			Object[] next = (Object[]) it.next();
+			((MuxStream) next[0]).consumed(((Integer) next[1]).intValue());
+		}
+	}
+
+	private boolean isFull(int length) {
+		return !outgoing.isEmpty() && queued + length > MAX_QUEUED;
+	}
+
+	/*
+	 * Called holding the stream lock.
+	 */
+	private void enqueue(Frame frame) {
+		outgoing.addLast(frame);
+		if (frame.data != null)
+			queued += frame.data.length;
+		if (writer == null) {
+			writer = new Thread("MuxStream.writer-" + id) {
+				public void run() {
+					write();
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+		}
+		notifyAll();
+	}
+
+	private boolean mayWrite(Frame frame) {
+		return frame.control || sendWindow >= frame.data.length || sendWindow >= MuxConnection.INITIAL_WINDOW;
+	}
+
+	/*
+	 * The body of the writer thread: write the queued frames as soon as there
+	 * is enough credit, until the stream is closed or finished.
+	 */
+	private void write() {
+		while (true) {
+			List batch = new ArrayList();
+			boolean closing = false;
+			List credit;
+			synchronized (this) {
+				while (!finished && (outgoing.isEmpty() || !mayWrite((Frame) outgoing.getFirst()))) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						finished = true;
+					}
+				}
+				if (finished) {
+					writer = null;
+					return;
+				}
+				while (!outgoing.isEmpty() && mayWrite((Frame) outgoing.getFirst())) {
+					Frame next = (Frame) outgoing.removeFirst();
+					if (next == CLOSING) {
+						finished = true;
+						writer = null;
+						closing = true;
+						break;
+					}
+					sendWindow -= next.data.length;
+					queued -= next.data.length;
+					batch.add(next.data);
+				}
+				credit = releasable();
+				notifyAll();
+			}
+			release(credit);
+			try {
+				connection.writeFrames(id, MuxConnection.DATA, batch);
+			} catch (IOException e) {
+				logger.fine("Error writing on stream " + id + ": " + e.getMessage());
+				finished();
+				return;
+			}
+			if (closing) {
+				connection.closeStream(this);
+				return;
+			}
+		}
+	}
+
+	synchronized void debit(int bytes) {
+		sendWindow -= bytes;
+	}
+
+	synchronized void credit(int bytes) {
+		sendWindow += bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Account for <code>bytes</code> bytes received on this stream and
+	 * delivered, returning credit to the sender every half window.
+	 */
+	void consumed(int bytes) {
+		int credit = 0;
+		synchronized (this) {
+			consumed += bytes;
+			if (consumed >= MuxConnection.INITIAL_WINDOW / 2 && !closed) {
+				credit = consumed;
+				consumed = 0;
+			}
+		}
+		if (credit > 0) {
+			try {
+				connection.writeCredit(id, credit);
+			} catch (IOException e) {
+				// the connection is gone: credit is useless
+			}
+		}
+	}
+
+	/**
+	 * Called by the reading thread of the connection for each envelope
+	 * received on this stream.
+	 */
+	synchronized void received(byte[] body, int offset) {
+		Envelope env = owner.decode(body, offset);
+		if (env == null) {
+			consumed(body.length - offset);
+			return;
+		}
+		if (proxy == null) {
+			pending.addLast(new Object[] { env, new Integer(body.length - offset) });
+			notifyAll();
+		} else
+			owner.received(this, env, body.length - offset);
+	}
+
+	/**
+	 * Wait for the first envelope received on a stream whose proxy has not
+	 * been attached yet.
+	 *
+	 * @return the envelope or <code>null</code> if it does not arrive within
+	 *         <code>timeout</code> ms or the stream is closed
+	 */
+	synchronized Envelope awaitEnvelope(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		long now = System.currentTimeMillis();
+		while (pending.isEmpty() && !closed && now < deadline) {
+			try {
+				wait(deadline - now);
+			} catch (InterruptedException e) {
+				break;
+			}
+			now = System.currentTimeMillis();
+		}
+		if (pending.isEmpty())
+			return null;
+		Object[] first = (Object[]) pending.removeFirst();
+		consumed(((Integer) first[1]).intValue());
+		return (Envelope) first[0];
+	}
+
+	/**
+	 * Bind this stream to its proxy, delivering the envelopes received in the
+	 * meantime.
+	 */
+	synchronized void attach(Proxy proxy) {
+		this.proxy = proxy;
+		while (!pending.isEmpty()) {
+			Object[] next = (Object[]) pending.removeFirst();
+			owner.received(this, (Envelope) next[0], ((Integer) next[1]).intValue());
+		}
+	}
+
+	/**
+	 * Close this stream, notifying the other end once the envelopes already
+	 * queued have been written.
+	 */
+	synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		enqueue(CLOSING);
+	}
+
+	/**
+	 * Called when the other end closed the stream or the connection was lost.
+	 */
+	void finished() {
+		List credit;
+		boolean wasClosed;
+		synchronized (this) {
+			finished = true;
+			outgoing.clear();
+			queued = 0;
+			credit = releasable();
+			notifyAll();
+			wasClosed = closed;
+			closed = true;
+		}
+		release(credit);
+		if (!wasClosed)
+			owner.streamClosed(this);
+	}
+
+	private static class Frame {
+		private byte[] data;
+		private boolean control;
+
+		Frame(byte[] data, boolean control) {
+			this.data = data;
+			this.control = control;
+		}
+	}
+}
@@ -0,0 +1,523 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.overlay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import polimi.reds.NodeDescriptor;
+import polimi.reds.NotConnectedException;
+import polimi.util.EventLog;
+
+/**
+ * Implements the <code>Transport</code> interface multiplexing the links
+ * toward the same remote JVM over a single TCP connection.<br>
+ * Every link is carried by a <code>MuxStream</code> of a
+ * <code>MuxConnection</code>. Connections are shared by all the
+ * <code>MuxTCPTransport</code>s of the JVM, so that several overlays (e.g., the
+ * brokers of a cluster started in the same process) connected to the same
+ * remote node need a single socket and a single handshake. Each stream has its
+ * own flow control window, so that a neighbor that is slow to process its
+ * messages does not block the other links sharing the connection.<br>
+ * URLs have the form "reds-mtcp:host:port". Only brokers can connect to this
+ * transport: clients should keep using a <code>TCPTransport</code>.
+ */
+public class MuxTCPTransport extends AbstractTransport {
+	private static final int SEND_EVENT = EventLog.register("mux.send", "subject", "bytes");
+	// Indicates how long the opening of a link may take, in ms
+	private static final int HANDSHAKE_TIMEOUT = 6000;
+
+	/**
+	 * the port used to accept new connections
+	 */
+	private int port;
+
+	/**
+	 * Create a new <code>Transport</code>.
+	 *
+	 * @param port
+	 */
+	public MuxTCPTransport(int port) {
+		this.port = port;
+		logger = Logger.getLogger("polimi.reds.transport");
+	}
+
+	/**
+	 * Get the local reds URL.
+	 */
+	public String getURL() {
+		String localurl = null;
+		try {
+			localurl = Transport.MUX_TCP + ":" + InetAddress.getLocalHost().getHostAddress() + ":" + port;
+		} catch (UnknownHostException ex) {
+			logger.warning("The localhost is unknown");
+			ex.printStackTrace();
+		}
+		return localurl;
+	}
+
+	/**
+	 * @see Transport#openLink(String) A new stream is opened toward the remote
+	 *      transport, carrying a <code>DS_OPEN</code> message. The remote node
+	 *      replies with <code>CONFIRM_OPEN</code>, <code>ALREADY_OPENED</code>
+	 *      or <code>SAME_NODE</code>.
+	 */
+	protected NodeDescriptor openLinkHelper(String url) throws MalformedURLException, ConnectException,
+			AlreadyExistingLinkException {
+		if (!running) {
+			logger.finer("returning null because we are not running");
+			return null;
+		}
+		logger.fine("Opening connection to " + url);
+		String remoteHost = null;
+		int remotePort = 0;
+		String[] parts = url.split(Transport.URL_SEPARATOR);
+		if (parts.length == 3 && parts[0].equals(Transport.MUX_TCP)) {
+			remoteHost = parts[1];
+			remotePort = Integer.parseInt(parts[2]);
+		} else
+			throw new MalformedURLException();
+		TCPEnvelope openMessage = new TCPEnvelope(TCPEnvelope.DS_OPEN);
+		openMessage.setSenderID(localID);
+		MuxStream stream;
+		try {
+			stream = MuxConnection.openStream(remoteHost, remotePort, this, encode(openMessage));
+		} catch (IOException e) {
+			ConnectException ex = new ConnectException("Error connecting to " + remoteHost + ":" + remotePort);
+			ex.initCause(e);
+			throw ex;
+		}
+		Envelope confirmMessage = stream.awaitEnvelope(HANDSHAKE_TIMEOUT);
+		if (confirmMessage == null) {
+			stream.close();
+			throw new ConnectException("Error receiving confirm_open from " + remoteHost + ":" + remotePort);
+		}
+		if (confirmMessage.getTypeOfMessage().equals(Envelope.SAME_NODE)) {
+			stream.close();
+			throw new ConnectException("You are connecting to yourself!");
+		}
+		if (confirmMessage.getTypeOfMessage().equals(Envelope.ALREADY_OPENED)) {
+			stream.close();
+			logger.finer("already opened");
+			throw new AlreadyExistingLinkException(confirmMessage.getSenderID());
+		}
+		MuxProxy newNeighbor;
+		synchronized (proxySet) {
+			if (proxySet.contains(confirmMessage.getSenderID())) {
+				// the remote node opened a link toward us in the meantime
+				stream.close();
+				throw new AlreadyExistingLinkException(confirmMessage.getSenderID());
+			}
+			newNeighbor = new MuxProxy(confirmMessage.getSenderID(), stream);
+			proxySet.add(newNeighbor);
+			stream.attach(newNeighbor);
+		}
+		logger.fine("Connection to " + url);
+		return newNeighbor.getID();
+	}
+
+	/**
+	 * Called by a <code>MuxConnection</code> when a remote transport opens a
+	 * stream toward this one. The handshake is completed by a separate thread,
+	 * since the reading thread of the connection serves other streams too.
+	 */
+	void streamOpened(final MuxStream stream) {
+		Thread t = new Thread() {
+			public void run() {
+				acceptStream(stream);
+			}
+		};
+		t.setDaemon(true);
+		t.setName("MuxTCPTransport.acceptingStream");
+		t.start();
+	}
+
+	private void acceptStream(MuxStream stream) {
+		Envelope openMessage = stream.awaitEnvelope(HANDSHAKE_TIMEOUT);
+		if (openMessage == null || !running) {
+			stream.close();
+			return;
+		}
+		if (!openMessage.getTypeOfMessage().equals(Envelope.DS_OPEN)) {
+			logger.warning("Unknown TCPEnvelope");
+			stream.close();
+			return;
+		}
+		NodeDescriptor neighborId = openMessage.getSenderID();
+		if (neighborId.equals(localID)) {
+			sendHandShakingMsg(stream, Envelope.SAME_NODE);
+			stream.close();
+			return;
+		}
+		synchronized (proxySet) {
+			if (proxySet.contains(neighborId)) {
+				sendHandShakingMsg(stream, Envelope.ALREADY_OPENED);
+				stream.close();
+				return;
+			}
+			MuxProxy newNeighbor = new MuxProxy(neighborId, stream);
+			proxySet.add(newNeighbor);
+			if (!sendHandShakingMsg(stream, Envelope.CONFIRM_OPEN)) {
+				proxySet.remove(neighborId);
+				stream.close();
+				return;
+			}
+			stream.attach(newNeighbor);
+		}
+		signalLinkOpenedListeners(neighborId);
+	}
+
+	private boolean sendHandShakingMsg(MuxStream stream, String type) {
+		TCPEnvelope env = new TCPEnvelope(type);
+		env.setSenderID(localID);
+		try {
+			stream.send(encode(env), false);
+			return true;
+		} catch (IOException e) {
+			logger.warning("Error sending the " + type + " message on stream " + stream.getID());
+			return false;
+		}
+	}
+
+	/**
+	 * Called (holding the stream lock) for each envelope received on a stream
+	 * bound to a <code>MuxProxy</code>.
+	 */
+	void received(MuxStream stream, Envelope received, int size) {
+		final NodeDescriptor sender = stream.getProxy().getID();
+		received.setSenderID(sender);
+		if (received.getTypeOfMessage().equals(Envelope.CLOSE_ACK)) {
+			stream.consumed(size);
+			stream.getProxy().disconnect();
+			stream.close();
+			runDetached("MuxTCPTransport.closedLink", new Runnable() {
+				public void run() {
+					proxySet.remove(sender);
+				}
+			});
+		} else if (received.getTypeOfMessage().equals(Envelope.CLOSE)) {
+			stream.consumed(size);
+			runDetached("MuxTCPTransport.closingLink", new Runnable() {
+				public void run() {
+					if (mayCloseLink(sender)) {
+						closeLinkAck(sender);
+						signalLinkClosedListeners(sender);
+						proxySet.remove(sender);
+					}
+				}
+			});
+		} else {
+			getLinkMetrics(sender).bytesIn.add(size);
+			enqueue(new MuxEnvelope(received, stream, size));
+		}
+	}
+
+	/**
+	 * Called when a stream is closed by the other end or its connection is
+	 * lost.
+	 */
+	void streamClosed(MuxStream stream) {
+		final MuxProxy proxy = (MuxProxy) stream.getProxy();
+		if (proxy == null || !proxy.isConnected() || !running)
+			return;
+		proxy.disconnect();
+		logger.warning("Proxy to " + proxy.getID() + " brutally disconnected.");
+		runDetached("MuxTCPTransport.deadLink", new Runnable() {
+			public void run() {
+				linkDead(proxy.getID());
+				proxySet.remove(proxy.getID());
+			}
+		});
+	}
+
+	/**
+	 * Return credit to the sender once the envelope has been processed, or
+	 * once the streams it filled drained.
+	 *
+	 * @see AbstractTransport#envelopeDelivered(Envelope)
+	 */
+	protected void envelopeDelivered(Envelope e) {
+		if (e instanceof MuxEnvelope)
+			MuxStream.delivered(((MuxEnvelope) e).stream, ((MuxEnvelope) e).size);
+	}
+
+	/*
+	 * Link events must not be processed by the reading thread of the
+	 * connection, since listeners may send messages on streams waiting for
+	 * credit.
+	 */
+	private void runDetached(String name, Runnable r) {
+		Thread t = new Thread(r);
+		t.setDaemon(true);
+		t.setName(name);
+		t.start();
+	}
+
+	static byte[] encode(Envelope env) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		REDSMarshaller marshaller = new REDSMarshaller(bytes);
+		marshaller.writeObject(env);
+		marshaller.flush();
+		return bytes.toByteArray();
+	}
+
+	Envelope decode(byte[] body, int offset) {
+		try {
+			REDSUnmarshaller unmarshaller = new REDSUnmarshaller(new ByteArrayInputStream(body, offset, body.length
+					- offset));
+			return (Envelope) unmarshaller.readObject();
+		} catch (Exception e) {
+			logger.warning("Error decoding an envelope: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Start accepting connections at the local port.
+	 *
+	 * @see AbstractTransport#start()
+	 */
+	public synchronized void start() {
+		logger.config("Starting MuxTCPTransport");
+		super.start();
+		MuxConnection.register(port, this);
+		Thread acceptingThread = new Thread() {
+			public void run() {
+				accept();
+			}
+		};
+		acceptingThread.setDaemon(false);
+		acceptingThread.setName("MuxTCPTransport.acceptingThread");
+		acceptingThread.start();
+		logger.config("MuxTCPTransport started at port " + port);
+	}
+
+	/**
+	 * Close the transport, closing the streams of all the links.
+	 */
+	public synchronized void stop() {
+		logger.fine("Stopping MuxTCPTransport");
+		running = false;
+		MuxConnection.unregister(port);
+		Iterator it = proxySet.getAllProxies().iterator();
+		while (it.hasNext()) {
+			MuxProxy neighbor = (MuxProxy) it.next();
+			neighbor.disconnect();
+			neighbor.stream.close();
+		}
+		super.stop();
+		logger.config("MuxTCPTransport stopped");
+		proxySet.clear();
+	}
+
+	// Main loop to accept new connections
+	private void accept() {
+		ServerSocket ss = null;
+		try {
+			ss = new ServerSocket(port);
+			ss.setSoTimeout(500);
+		} catch (IOException e) {
+			System.err.println("Error creating the server socket.");
+			e.printStackTrace();
+			return;
+		}
+		while (running) {
+			Socket sock;
+			try {
+				sock = ss.accept();
+			} catch (InterruptedIOException e) { // timeout expires
+				continue;
+			} catch (IOException e) {
+				logger.finer("Socket error " + e);
+				running = false;
+				e.printStackTrace();
+				continue;
+			}
+			logger.fine("Connection request received from " + sock.getInetAddress().getHostAddress() + ":"
+					+ sock.getPort());
+			MuxConnection.accepted(sock);
+		}
+		try {
+			ss.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * @see AbstractTransport#closeLinkAck(NodeDescriptor)
+	 */
+	protected void closeLinkAck(NodeDescriptor closer) {
+		MuxProxy closing = (MuxProxy) proxySet.get(closer);
+		if (closing == null)
+			return;
+		try {
+			closing.sendMessage(Envelope.CLOSE_ACK, null, Transport.MISCELLANEOUS_CLASS);
+		} catch (NotConnectedException e) {
+			logger.warning("The " + closer.toString() + " is not connected");
+		}
+		closing.disconnect();
+		closing.stream.close();
+	}
+
+	protected void closeLinkHelper(NodeDescriptor neighborID) {
+		logger.fine("Closing link to neighbor " + neighborID);
+		MuxProxy neighbor = (MuxProxy) proxySet.get(neighborID);
+		if (neighbor == null)
+			return;
+		try {
+			neighbor.sendMessage(Envelope.CLOSE, null, Transport.MISCELLANEOUS_CLASS);
+		} catch (NotConnectedException e) {
+			logger.warning("The " + neighborID.toString() + " is not connected");
+		}
+	}
+
+	private void signalLinkClosedListeners(NodeDescriptor neighborId) {
+		List toIterate;
+		synchronized (linkClosedListeners) {
+			toIterate = new ArrayList(linkClosedListeners);
+		}
+		Iterator it = toIterate.iterator();
+		while (it.hasNext()) {
+			LinkClosedListener l = (LinkClosedListener) it.next();
+			l.signalLinkClosed(neighborId);
+		}
+	}
+
+	private void signalLinkOpenedListeners(NodeDescriptor neighborId) {
+		List toIterate;
+		synchronized (linkOpenedListeners) {
+			toIterate = new ArrayList(linkOpenedListeners);
+		}
+		Iterator it = toIterate.iterator();
+		while (it.hasNext()) {
+			LinkOpenedListener l = (LinkOpenedListener) it.next();
+			l.signalLinkOpened(neighborId, this);
+		}
+	}
+
+	private void linkDead(NodeDescriptor linkDead) {
+		logger.finer("DEAD Link to " + linkDead);
+		List toIterate;
+		synchronized (linkDeadListeners) {
+			toIterate = new ArrayList(linkDeadListeners);
+		}
+		Iterator it = toIterate.iterator();
+		while (it.hasNext()) {
+			LinkDeadListener l = (LinkDeadListener) it.next();
+			l.signalLinkDead(linkDead);
+		}
+	}
+
+	/**
+	 * An envelope received on a stream, remembering how much credit must be
+	 * returned once it has been delivered.
+	 */
+	private static class MuxEnvelope extends Envelope {
+		private static final long serialVersionUID = -5321842283370958742L;
+		private transient MuxStream stream;
+		private transient int size;
+
+		MuxEnvelope(Envelope received, MuxStream stream, int size) {
+			super(received.getTypeOfMessage(), received.getPayload(), received.getTrafficClass());
+			setSenderID(received.getSenderID());
+			this.stream = stream;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * This class implements a <code>Proxy</code> reachable through a stream of
+	 * a shared TCP connection.
+	 */
+	private class MuxProxy implements Proxy {
+		private NodeDescriptor id;
+		private MuxStream stream;
+		private boolean connected;
+
+		MuxProxy(NodeDescriptor id, MuxStream stream) {
+			this.id = id;
+			this.stream = stream;
+			connected = true;
+		}
+
+		public boolean isBroker() {
+			return true;
+		}
+
+		public boolean isClient() {
+			return false;
+		}
+
+		public NodeDescriptor getID() {
+			return id;
+		}
+
+		public boolean isConnected() {
+			return connected && !stream.isClosed();
+		}
+
+		public void disconnect() {
+			connected = false;
+		}
+
+		public void sendMessage(String subject, Serializable payload, String trafficClass)
+				throws NotConnectedException {
+			if (!isConnected()) {
+				logger.finer("proxy not connected when sending message " + subject + " to " + id);
+				throw new NotConnectedException();
+			}
+			TCPEnvelope fw = new TCPEnvelope(subject, payload, trafficClass);
+			fw.setSenderID(localID);
+			boolean flowControlled = !subject.equals(Envelope.CLOSE) && !subject.equals(Envelope.CLOSE_ACK);
+			try {
+				long start = System.nanoTime();
+				byte[] data = encode(fw);
+				getSerializationTime().record(System.nanoTime() - start);
+				if (!stream.send(data, flowControlled))
+					getLinkMetrics(id).envelopesSpilled.increment();
+				getLinkMetrics(id).sent(data.length);
+				EventLog.log(SEND_EVENT, fw.getSubjectCode(), data.length);
+			} catch (IOException e) {
+				logger.severe("Error in forwarding message " + subject + " to " + id + ": " + e.getMessage());
+				if (stream.isClosed())
+					throw new NotConnectedException();
+			}
+		}
+
+		public String toString() {
+			return id.getID();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.overlay;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import polimi.reds.NodeDescriptor;
+
+/**
+ * Assigns small integer indices (slots) to neighbors, so that sets of
+ * neighbors can be kept as <code>BitSet</code>s and neighbors can be looked up
+ * in arrays. The <code>GenericOverlay</code> assigns a slot to each neighbor
+ * when its link opens, and the subscription tables sharing its index use the
+ * same slots in their sets.<br>
+ * Slots are reference counted: every <code>add</code> of a neighbor must be
+ * matched by a <code>remove</code>, and a slot is freed, and later reused, only
+ * when the last holder removes its neighbor. This way a table keeping the
+ * subscriptions of a neighbor whose link has closed never sees its slot given
+ * to another neighbor.
+ */
+public class NeighborIndex {
+	private Map indices;
+	private int[] references;
+	private volatile NodeDescriptor[] neighbors;
+	private BitSet used;
+
+	/**
+	 * Builds an empty index.
+	 */
+	public NeighborIndex() {
+		indices = new HashMap();
+		references = new int[8];
+		neighbors = new NodeDescriptor[8];
+		used = new BitSet();
+	}
+
+	/**
+	 * Gets the slot of a neighbor, assigning it one if it has none, and
+	 * records one more holder of the slot.
+	 * 
+	 * @param neighbor
+	 *            the neighbor
+	 * @return the slot of the neighbor
+	 */
+	public synchronized int add(NodeDescriptor neighbor) {
+		Integer index = (Integer) indices.get(neighbor);
+		int i;
+		if (index != null)
+			i = index.intValue();
+		else {
+			i = used.nextClearBit(0);
+			if (i >= neighbors.length) {
+				NodeDescriptor[] n = new NodeDescriptor[neighbors.length * 2];
+				System.arraycopy(neighbors, 0, n, 0, neighbors.length);
+				int[] r = new int[n.length];
+				System.arraycopy(references, 0, r, 0, references.length);
+				references = r;
+				n[i] = neighbor;
+				neighbors = n;
+			} else
+				neighbors[i] = neighbor;
+			used.set(i);
+			indices.put(neighbor, new Integer(i));
+		}
+		references[i]++;
+		return i;
+	}
+
+	/**
+	 * Gets the slot of a neighbor.
+	 * 
+	 * @param neighbor
+	 *            the neighbor
+	 * @return the slot of the neighbor, -1 if it has none
+	 */
+	public synchronized int indexOf(NodeDescriptor neighbor) {
+		if (neighbor == null)
+			return -1;
+		Integer index = (Integer) indices.get(neighbor);
+		return index == null ? -1 : index.intValue();
+	}
+
+	/**
+	 * Gets the neighbor in the given slot.
+	 * 
+	 * @param index
+	 *            the slot
+	 * @return the neighbor, <code>null</code> if the slot is not in use
+	 */
+	public NodeDescriptor get(int index) {
+		NodeDescriptor[] n = neighbors;
+		return index < 0 || index >= n.length ? null : n[index];
+	}
+
+	/**
+	 * Records that a holder of the slot of a neighbor no longer needs it,
+	 * freeing the slot if it was the last one.
+	 * 
+	 * @param neighbor
+	 *            the neighbor
+	 */
+	public synchronized void remove(NodeDescriptor neighbor) {
+		Integer index = (Integer) indices.get(neighbor);
+		if (index == null)
+			return;
+		int i = index.intValue();
+		if (--references[i] == 0) {
+			indices.remove(neighbor);
+			neighbors[i] = null;
+			used.clear(i);
+		}
+	}
+
+	/**
+	 * Gets the number of slots: every slot in use is smaller.
+	 * 
+	 * @return the number of slots
+	 */
+	public int size() {
+		return neighbors.length;
+	}
+
+	/**
+	 * Adds to a collection the neighbors in a set, skipping one of them.
+	 * 
+	 * @param set
+	 *            the set of slots
+	 * @param except
+	 *            the slot of the neighbor to skip, -1 for none
+	 * @param result
+	 *            the collection the neighbors are added to
+	 * @return <code>result</code>
+	 */
+	public Collection toNeighbors(BitSet set, int except, Collection result) {
+		NodeDescriptor[] n = neighbors;
+		for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1))
+			if (i != except)
+				result.add(n[i]);
+		return result;
+	}
+}
@@ -94,6 +94,30 @@ public interface Overlay {
 	public void send(String subject, Serializable payload, NodeDescriptor receiver, String trafficClass)
 			throws NotConnectedException;
 
+	/**
+	 * Send a message with a specified subject to the neighbor in the given
+	 * slot of the index returned by <code>getNeighborIndex</code>. The traffic
+	 * class is chosen as for <code>send(String, Serializable, NodeDescriptor)</code>.
+	 * 
+	 * @param subject
+	 *            the subject of the message
+	 * @param payload
+	 *            the message
+	 * @param slot
+	 *            the slot of the receiver of the message
+	 * @throws NotConnectedException
+	 *             the local node is not connected to a neighbor in that slot
+	 */
+	public void send(String subject, Serializable payload, int slot) throws NotConnectedException;
+
+	/**
+	 * Get the index assigning a slot to each neighbor, from the opening of
+	 * its link until its closure.
+	 * 
+	 * @return the index of the neighbors
+	 */
+	public NeighborIndex getNeighborIndex();
+
 	/**
 	 * Register a new listener for the finding of a new neighbor.
 	 * 
@@ -22,6 +22,8 @@ package polimi.reds.broker.overlay;
 
 import java.io.*;
 
+import polimi.util.CountingOutputStream;
+
 /**********************************************************************
  * An <code>ObjectOutputStream</code> that annotate classes with a codebase URL.
  * This codebase is used at unmarshalling time to retrieve the bytecode of the
@@ -33,12 +35,34 @@ import java.io.*;
  **********************************************************************/
 public class REDSMarshaller extends ObjectOutputStream {
 	private final String CODEBASE_PROPERTY_NAME = "polimi.reds.client.codebase";
+	private CountingOutputStream counter;
 
 	public REDSMarshaller(OutputStream os) throws IOException {
+		this(new CountingOutputStream(os));
+	}
+
+	private REDSMarshaller(CountingOutputStream os) throws IOException {
 		super(os);
+		counter = os;
 		os.flush();
 	}
 
+	/**
+	 * Returns the number of bytes written to the underlying stream so far.
+	 * The objects written are counted once they have been flushed.
+	 */
+	public long getBytesWritten() {
+		return counter.getCount();
+	}
+
+	/**
+	 * Returns the time spent so far writing to the underlying stream, in ns,
+	 * which is not spent serializing.
+	 */
+	public long getWriteNanos() {
+		return counter.getNanos();
+	}
+
 	protected void annotateClass(Class cl) throws IOException {
 		String codebase = java.rmi.server.RMIClassLoader.getClassAnnotation(cl);
 		if (codebase == null)
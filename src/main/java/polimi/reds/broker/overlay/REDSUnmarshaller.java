@@ -22,6 +22,8 @@ package polimi.reds.broker.overlay;
 
 import java.io.*;
 
+import polimi.util.CountingInputStream;
+
 /**********************************************************************
  * An <code>ObjectInputStream</code> that use the class annotations, if present,
  * as a codebase URL to retrieve the bytecode of the objects to be unmarshalled.
@@ -31,8 +33,22 @@ import java.io.*;
  * @see polimi.reds.broker.overlay.REDSMarshaller
  **********************************************************************/
 public class REDSUnmarshaller extends ObjectInputStream {
+	private CountingInputStream counter;
+
 	public REDSUnmarshaller(InputStream is) throws IOException {
+		this(new CountingInputStream(is));
+	}
+
+	private REDSUnmarshaller(CountingInputStream is) throws IOException {
 		super(is);
+		counter = is;
+	}
+
+	/**
+	 * Returns the number of bytes read from the underlying stream so far.
+	 */
+	public long getBytesRead() {
+		return counter.getCount();
 	}
 
 	protected Class resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
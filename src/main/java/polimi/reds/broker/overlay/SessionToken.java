@@ -0,0 +1,76 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.overlay;
+
+import java.io.Serializable;
+
+/**
+ * The payload of the <code>CLIENT_OPEN</code> and <code>CONFIRM_OPEN</code>
+ * envelopes exchanged by a <code>TCPDispatchingService</code> and a
+ * <code>TCPTransport</code> supporting session resumption.<br>
+ * A client asks for a new session by sending a token with session id 0, or
+ * tries to resume an existing session by sending its id together with the
+ * sequence number of the last envelope it received. The broker answers with
+ * the id of the session actually in use, tells whether it has been resumed and
+ * gives the sequence number of the last envelope it received from the client.
+ * <br>
+ * Tokens are also the payload of the <code>SESSION_ACK</code> envelopes each
+ * end sends to acknowledge the envelopes received so far.
+ */
+public class SessionToken implements Serializable {
+	private static final long serialVersionUID = 4412786302317151187L;
+	private long sessionID;
+	private long lastSequenceNumber;
+	private boolean resumed;
+
+	/**
+	 * Base constructor.
+	 * 
+	 * @param sessionID
+	 *            the id of the session, 0 to request a new one
+	 * @param lastSequenceNumber
+	 *            the sequence number of the last envelope received by the
+	 *            sender of the token
+	 * @param resumed
+	 *            <code>true</code> if the broker resumed the session
+	 */
+	public SessionToken(long sessionID, long lastSequenceNumber, boolean resumed) {
+		this.sessionID = sessionID;
+		this.lastSequenceNumber = lastSequenceNumber;
+		this.resumed = resumed;
+	}
+
+	public long getSessionID() {
+		return sessionID;
+	}
+
+	public long getLastSequenceNumber() {
+		return lastSequenceNumber;
+	}
+
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	public String toString() {
+		return "session " + sessionID + " last " + lastSequenceNumber + (resumed ? " resumed" : "");
+	}
+}
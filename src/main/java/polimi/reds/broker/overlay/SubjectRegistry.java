@@ -0,0 +1,259 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.overlay;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns dense integer codes to the subjects of the packets exchanged through
+ * the overlay, so that envelopes can carry a code instead of a string and
+ * listeners can be looked up in arrays indexed by code.<br>
+ * The subjects defined by <code>Envelope</code> and the traffic classes
+ * defined by <code>Transport</code> are predefined: they have the same codes
+ * in every node, declared by the constants of this class, and only their codes
+ * are sent over the wire. Any other subject is registered when a listener is
+ * added for it, and its code is only meaningful inside the local JVM, so it is
+ * sent as a string. The subjects received from other nodes are never
+ * registered: one that no local listener declared has code
+ * <code>UNREGISTERED</code>.<br>
+ * The subject returned by <code>getSubject</code> is the canonical instance
+ * of the string, so received subjects can be compared by identity.
+ */
+public final class SubjectRegistry {
+	public static final int SLAVE = 0;
+	public static final int ALREADY_OPENED = 1;
+	public static final int CONFIRM_OPEN = 2;
+	public static final int CLIENT_OPEN = 3;
+	public static final int DS_OPEN = 4;
+	public static final int CLOSE = 5;
+	public static final int PUBLISH = 6;
+	public static final int SUBSCRIBE = 7;
+	public static final int UNSUBSCRIBE = 8;
+	public static final int UNSUBSCRIBEALL = 9;
+	public static final int BEACON = 10;
+	public static final int BEACON_ACK = 11;
+	public static final int REPLY = 12;
+	public static final int CANCEL_REPLIES = 13;
+	public static final int CLOSE_ACK = 14;
+	public static final int SAME_NODE = 15;
+	public static final int DEAD = 16;
+	public static final int MESSAGE_CLASS = 17;
+	public static final int FILTER_CLASS = 18;
+	public static final int REPLY_CLASS = 19;
+	public static final int MISCELLANEOUS_CLASS = 20;
+	public static final int DURABLE_SUBSCRIBE = 21;
+	public static final int DURABLE_UNSUBSCRIBE = 22;
+	public static final int DURABLE_ATTACH = 23;
+	public static final int DURABLE_ACK = 24;
+	public static final int DURABLE_PUBLISH = 25;
+	public static final int SUBSCRIPTION_DIGEST = 26;
+	public static final int SUBSCRIPTION_PRUNE = 27;
+	public static final int SUBSCRIPTION_RANGES = 28;
+	public static final int SESSION_ACK = 29;
+	/**
+	 * The code of the <code>null</code> subject.
+	 */
+	public static final int NONE = -1;
+	/**
+	 * The code of a subject which has not been registered.
+	 */
+	public static final int UNREGISTERED = -4;
+
+	/** The codes below this one are the same in every node. */
+	private static final int PREDEFINED = 30;
+	/** Marks a subject sent as a string. */
+	private static final int UNCODED = -2;
+	/** Marks an envelope followed by the trace of its message. */
+	static final int TRACED = -3;
+
+	private static final Map codes = new ConcurrentHashMap();
+	private static volatile String[] subjects = new String[0];
+
+	static {
+		register(Envelope.SLAVE);
+		register(Envelope.ALREADY_OPENED);
+		register(Envelope.CONFIRM_OPEN);
+		register(Envelope.CLIENT_OPEN);
+		register(Envelope.DS_OPEN);
+		register(Envelope.CLOSE);
+		register(Envelope.PUBLISH);
+		register(Envelope.SUBSCRIBE);
+		register(Envelope.UNSUBSCRIBE);
+		register(Envelope.UNSUBSCRIBEALL);
+		register(Envelope.BEACON);
+		register(Envelope.BEACON_ACK);
+		register(Envelope.REPLY);
+		register(Envelope.CANCEL_REPLIES);
+		register(Envelope.CLOSE_ACK);
+		register(Envelope.SAME_NODE);
+		register(Envelope.DEAD);
+		register(Transport.MESSAGE_CLASS);
+		register(Transport.FILTER_CLASS);
+		register(Transport.REPLY_CLASS);
+		register(Transport.MISCELLANEOUS_CLASS);
+		register(Envelope.DURABLE_SUBSCRIBE);
+		register(Envelope.DURABLE_UNSUBSCRIBE);
+		register(Envelope.DURABLE_ATTACH);
+		register(Envelope.DURABLE_ACK);
+		register(Envelope.DURABLE_PUBLISH);
+		register(Envelope.SUBSCRIPTION_DIGEST);
+		register(Envelope.SUBSCRIPTION_PRUNE);
+		register(Envelope.SUBSCRIPTION_RANGES);
+		register(Envelope.SESSION_ACK);
+	}
+
+	private SubjectRegistry() {
+	}
+
+	/**
+	 * Gets the code of a subject, registering it if it is not yet known.
+	 * 
+	 * @param subject
+	 *            the subject
+	 * @return its code, or <code>NONE</code> if <code>subject</code> is
+	 *         <code>null</code>
+	 */
+	public static int getCode(String subject) {
+		if (subject == null)
+			return NONE;
+		Integer code = (Integer) codes.get(subject);
+		if (code != null)
+			return code.intValue();
+		return register(subject);
+	}
+
+	/**
+	 * Gets the subject with the given code.
+	 * 
+	 * @param code
+	 *            the code
+	 * @return the canonical instance of the subject, <code>null</code> if
+	 *         the code is <code>NONE</code> or unknown
+	 */
+	public static String getSubject(int code) {
+		String[] s = subjects;
+		return code < 0 || code >= s.length ? null : s[code];
+	}
+
+	/**
+	 * Gets the number of the registered subjects: every code is smaller.
+	 * 
+	 * @return the number of registered subjects
+	 */
+	public static int size() {
+		return subjects.length;
+	}
+
+	/**
+	 * Gets the code of a subject, without registering it.
+	 * 
+	 * @param subject
+	 *            the subject
+	 * @return its code, <code>NONE</code> if <code>subject</code> is
+	 *         <code>null</code> or <code>UNREGISTERED</code> if it is not
+	 *         known
+	 */
+	public static int find(String subject) {
+		if (subject == null)
+			return NONE;
+		Integer code = (Integer) codes.get(subject);
+		return code == null ? UNREGISTERED : code.intValue();
+	}
+
+	/**
+	 * Gets the canonical instance of a subject, if it is registered.
+	 * 
+	 * @param subject
+	 *            the subject
+	 * @return the canonical instance, or <code>subject</code> itself if it
+	 *         is not registered
+	 */
+	static String canonical(String subject) {
+		int code = find(subject);
+		return code >= 0 ? getSubject(code) : subject;
+	}
+
+	private static synchronized int register(String subject) {
+		Integer code = (Integer) codes.get(subject);
+		if (code != null)
+			return code.intValue();
+		String[] s = new String[subjects.length + 1];
+		System.arraycopy(subjects, 0, s, 0, subjects.length);
+		s[subjects.length] = subject;
+		subjects = s;
+		codes.put(subject, new Integer(subjects.length - 1));
+		return subjects.length - 1;
+	}
+
+	/**
+	 * Writes a subject: its code if it is predefined, the string otherwise.
+	 * 
+	 * @param out
+	 *            the output
+	 * @param code
+	 *            the code of the subject
+	 * @param subject
+	 *            the subject
+	 * @see #read(DataInput)
+	 */
+	static void write(DataOutput out, int code, String subject) throws IOException {
+		if (code < PREDEFINED && code >= NONE)
+			out.writeByte(code);
+		else {
+			out.writeByte(UNCODED);
+			out.writeUTF(subject);
+		}
+	}
+
+	/**
+	 * Reads a subject written by <code>write</code>.
+	 * 
+	 * @param in
+	 *            the input
+	 * @return the subject, canonical if it is registered
+	 * @see #write(DataOutput, int, String)
+	 */
+	static String read(DataInput in) throws IOException {
+		return read(in, in.readByte());
+	}
+
+	/**
+	 * Reads a subject written by <code>write</code>, whose first byte has
+	 * already been read.
+	 * 
+	 * @param in
+	 *            the input
+	 * @param code
+	 *            the first byte
+	 * @return the subject, canonical if it is registered
+	 */
+	static String read(DataInput in, int code) throws IOException {
+		if (code == UNCODED)
+			return canonical(in.readUTF());
+		if (code >= PREDEFINED || code < NONE)
+			throw new IOException("Unknown subject code " + code);
+		return getSubject(code);
+	}
+}
@@ -29,6 +29,12 @@ import java.io.Serializable;
 public class TCPEnvelope extends Envelope {
 	private static final long serialVersionUID = -1233116801597947207L;
 
+	/**
+	 * The position of this envelope in the stream of envelopes sent by a
+	 * broker to a client with a session, 0 if not sequenced.
+	 */
+	private long sequenceNumber = 0;
+
 	/**
 	 * Base constructor.
 	 * 
@@ -46,4 +52,23 @@ public class TCPEnvelope extends Envelope {
 	public TCPEnvelope(String typeOfMessage) {
 		this(typeOfMessage, null, Transport.MISCELLANEOUS_CLASS);
 	}
+
+	/**
+	 * Get the sequence number of this envelope.
+	 * 
+	 * @return the sequence number, 0 if the envelope is not sequenced.
+	 */
+	public long getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	/**
+	 * Set the sequence number of this envelope.
+	 * 
+	 * @param sequenceNumber
+	 *            the sequence number
+	 */
+	public void setSequenceNumber(long sequenceNumber) {
+		this.sequenceNumber = sequenceNumber;
+	}
 }
@@ -21,21 +21,55 @@
 package polimi.reds.broker.overlay;
 
 import java.net.*;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.*;
 import polimi.reds.NodeDescriptor;
 import polimi.reds.NotConnectedException;
 import polimi.reds.broker.overlay.Proxy;
+import polimi.util.EventLog;
 
 /**
  * Implements the <code>Transport</code> interface using TCP connections.
  */
 public class TCPTransport extends AbstractTransport {
+	private static final int SEND_EVENT = EventLog.register("tcp.send", "subject", "bytes");
 	/**
 	 * the port used to accept new connections
 	 */
 	private int port;
+	/**
+	 * The default time (in ms) a session is kept after the connection with its
+	 * client dropped, waiting for the client to resume it.
+	 */
+	public static final long DEFAULT_SESSION_GRACE_PERIOD = 10000;
+	/**
+	 * The default number of envelopes not yet acknowledged by the client kept
+	 * by each session to be replayed when the session is resumed.
+	 */
+	public static final int DEFAULT_SESSION_BUFFER_SIZE = 1024;
+	// The number of envelopes received from a client acknowledged at once
+	private static final int SESSION_ACK_BATCH = 64;
+	// How often expired sessions are looked for, in ms
+	private static final long SESSION_REAPER_INTERVAL = 1000;
+	private long sessionGracePeriod = DEFAULT_SESSION_GRACE_PERIOD;
+	private int sessionBufferSize = DEFAULT_SESSION_BUFFER_SIZE;
+	/**
+	 * The sessions of the clients connected to this transport, keyed by their
+	 * <code>NodeDescriptor</code>.
+	 */
+	private Map sessions = Collections.synchronizedMap(new HashMap());
+	/**
+	 * The sessions owing an acknowledgement to their client, written by the
+	 * session acker unless an envelope delivered in the meantime carries it.
+	 */
+	private BlockingQueue sessionAcks = new LinkedBlockingQueue();
+	private Random sessionIDs = new SecureRandom();
 
 	/**
 	 * Create a new <code>Transport</code>.
@@ -61,6 +95,40 @@ public class TCPTransport extends AbstractTransport {
 		return localurl;
 	}
 
+	/**
+	 * Set how long (in ms) the session of a client whose connection dropped is
+	 * kept, together with its subscriptions and the envelopes sent to it in the
+	 * meantime. A value of 0 disables session resumption.
+	 * 
+	 * @param gracePeriod
+	 *            the grace period in ms
+	 */
+	public void setSessionGracePeriod(long gracePeriod) {
+		this.sessionGracePeriod = gracePeriod;
+	}
+
+	/**
+	 * Get how long (in ms) the session of a disconnected client is kept.
+	 * 
+	 * @return the grace period in ms
+	 */
+	public long getSessionGracePeriod() {
+		return sessionGracePeriod;
+	}
+
+	/**
+	 * Set the number of envelopes not yet acknowledged by the client kept by
+	 * each session to be replayed when the session is resumed. When a client
+	 * falls further behind the oldest envelopes are dropped, and the client is
+	 * told about the gap.
+	 * 
+	 * @param size
+	 *            the number of envelopes
+	 */
+	public void setSessionBufferSize(int size) {
+		this.sessionBufferSize = size;
+	}
+
 	/**
 	 * @see Transport#openLink(String) The protocol to open a connection is:<br>
 	 *      send a <code>DS_OPEN</code> message <br>
@@ -226,6 +294,22 @@ public class TCPTransport extends AbstractTransport {
 			acceptingThread.setDaemon(false);
 			acceptingThread.setName("TCPTransport.acceptingThread");
 			acceptingThread.start();
+			Thread sessionReaper = new Thread() {
+				public void run() {
+					reapSessions();
+				}
+			};
+			sessionReaper.setDaemon(true);
+			sessionReaper.setName("TCPTransport.sessionReaper");
+			sessionReaper.start();
+			Thread sessionAcker = new Thread() {
+				public void run() {
+					ackSessions();
+				}
+			};
+			sessionAcker.setDaemon(true);
+			sessionAcker.setName("TCPTransport.sessionAcker");
+			sessionAcker.start();
 		} catch (Exception e) {
 			// FIXME: Manage this exception in a better way.
 			e.printStackTrace();
@@ -255,6 +339,7 @@ public class TCPTransport extends AbstractTransport {
 		logger.config("TCPTransport stopped");
 		// clear the two queues
 		proxySet.clear();
+		sessions.clear();
 	}
 
 	// Main loop to accept new connections
@@ -326,6 +411,11 @@ public class TCPTransport extends AbstractTransport {
 				logger.warning("Unknown TCPEnvelope");
 				continue;
 			}
+			if (neighborType == TCPProxy.CLIENT && openMessage.getPayload() instanceof SessionToken) {
+				acceptSession(openMessage.getSenderID(), (SessionToken) openMessage.getPayload(), sock, marshaller,
+						unmarshaller);
+				continue;
+			}
 			TCPProxy newNeighbor = null;
 			Envelope response = null;
 			if (neighborType == TCPProxy.BROKER && (localID.compareTo(openMessage.getSenderID()) < 0)) {
@@ -398,6 +488,119 @@ public class TCPTransport extends AbstractTransport {
 		ss = null;
 	} // end run()
 
+	/**
+	 * Complete the opening of a connection with a client that supports
+	 * sessions. If the client presents the id of a session still kept by this
+	 * transport the session is resumed: the client gets the envelopes it missed
+	 * and no <code>LinkOpenedListener</code> is notified, since its
+	 * subscriptions are still in place. Otherwise a new session is started.
+	 */
+	private void acceptSession(NodeDescriptor client, SessionToken token, Socket sock, REDSMarshaller marshaller,
+			REDSUnmarshaller unmarshaller) {
+		String url = "reds-tcp:" + sock.getInetAddress().getHostAddress() + ":" + sock.getPort();
+		ClientSession session = (ClientSession) sessions.get(client);
+		if (session != null && token.getSessionID() == session.id) {
+			TCPProxy newNeighbor = createNeighbor(TCPProxy.CLIENT, client, sock, marshaller, unmarshaller);
+			newNeighbor.session = session;
+			synchronized (proxySet) {
+				if (session.resume(newNeighbor, token.getLastSequenceNumber())) {
+					proxySet.add(newNeighbor);
+					newNeighbor.startProcessing();
+					logger.fine("Session " + session.id + " of " + client + " resumed");
+					return;
+				}
+			}
+		}
+		if (session != null) {
+			// The client could not resume its old session: release it now.
+			if (session.expire(true))
+				expireSession(session);
+		}
+		synchronized (proxySet) {
+			if (proxySet.contains(client)) {
+				Envelope response = new Envelope(Envelope.ALREADY_OPENED);
+				response.setSenderID(localID);
+				try {
+					sendHandShakingMsg(response, marshaller, url);
+				} catch (ConnectException e) {
+					e.printStackTrace();
+				}
+				return;
+			}
+			session = null;
+			if (sessionGracePeriod > 0) {
+				long sessionID;
+				do {
+					sessionID = sessionIDs.nextLong();
+				} while (sessionID == 0);
+				session = new ClientSession(sessionID, client);
+				sessions.put(client, session);
+			}
+			TCPProxy newNeighbor = createNeighbor(TCPProxy.CLIENT, client, sock, marshaller, unmarshaller);
+			newNeighbor.session = session;
+			if (session != null)
+				session.proxy = newNeighbor;
+			proxySet.add(newNeighbor);
+			Envelope response = new TCPEnvelope(TCPEnvelope.CONFIRM_OPEN, new SessionToken(session == null ? 0
+					: session.id, 0, false), Transport.MISCELLANEOUS_CLASS);
+			response.setSenderID(localID);
+			try {
+				sendHandShakingMsg(response, marshaller, url);
+			} catch (ConnectException e) {
+				e.printStackTrace();
+			}
+			signalLinkOpenedListeners(client);
+			newNeighbor.startProcessing();
+		}
+	}
+
+	// Main loop to release the sessions whose grace period expired
+	private void reapSessions() {
+		while (running) {
+			try {
+				Thread.sleep(SESSION_REAPER_INTERVAL);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			List expired = new ArrayList();
+			synchronized (sessions) {
+				Iterator it = sessions.values().iterator();
+				while (it.hasNext()) {
+					ClientSession session = (ClientSession) it.next();
+					if (session.expire(false))
+						expired.add(session);
+				}
+			}
+			Iterator it = expired.iterator();
+			while (it.hasNext())
+				expireSession((ClientSession) it.next());
+		}
+	}
+
+	// Main loop to write the acknowledgements the reading threads queue
+	private void ackSessions() {
+		while (running) {
+			ClientSession session;
+			try {
+				session = (ClientSession) sessionAcks.poll(SESSION_REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (session != null)
+				session.flushAck();
+		}
+	}
+
+	private void expireSession(ClientSession session) {
+		logger.fine("Session " + session.id + " of " + session.client + " expired");
+		sessions.remove(session.client);
+		linkDead(session.client);
+		synchronized (proxySet) {
+			if (proxySet.get(session.client) == session.proxy)
+				proxySet.remove(session.client);
+		}
+	}
+
 	private void signalLinkClosedListeners(NodeDescriptor neighborId) {
 		List toIterate;
 		synchronized (linkClosedListeners) {
@@ -500,6 +703,11 @@ public class TCPTransport extends AbstractTransport {
 
 		protected Date lastSent;
 		protected Thread beaconingThread;
+		/**
+		 * The session of the client this proxy refers to, <code>null</code> for
+		 * brokers and clients that do not support sessions.
+		 */
+		ClientSession session = null;
 
 		public TCPProxy(String typeOfNeighbor, NodeDescriptor id, Socket sock, REDSMarshaller marshaller,
 				REDSUnmarshaller unmarshaller) {
@@ -511,6 +719,9 @@ public class TCPTransport extends AbstractTransport {
 			this.unmarshaller = unmarshaller;
 			connected = true;
 			try {
+				// the session acknowledgements are small writes: do not let
+				// them delay the envelopes that follow
+				sock.setTcpNoDelay(true);
 				if (typeOfNeighbor.equals(BROKER) && TCPTransport.this.beaconing)
 					sock.setSoTimeout(SOCKET_TIMEOUT);
 			} catch (SocketException e) {
@@ -668,12 +879,16 @@ public class TCPTransport extends AbstractTransport {
 					+ " and beacon timeout " + SOCKET_TIMEOUT * TIMEOUT_THRESHOLD);
 			while (connected && TCPTransport.this.running) {
 				try {
-					logger.finer("waiting for message from " + id);
+					if (logger.isLoggable(Level.FINER))
+						logger.finer("waiting for message from " + id);
 
+					long bytes = unmarshaller.getBytesRead();
 					received = (TCPEnvelope) unmarshaller.readObject();
+					getLinkMetrics(id).bytesIn.add(unmarshaller.getBytesRead() - bytes);
 					timeoutCounter = 0;
 					received.setSenderID(id);
-					logger.finer("got message from " + id + ": " + received.getTypeOfMessage());
+					if (logger.isLoggable(Level.FINER))
+						logger.finer("got message from " + id + ": " + received.getTypeOfMessage());
 					if (received.getTypeOfMessage() == TCPEnvelope.BEACON) {
 						// We are just happy
 						// replyCheckNeighbor();//LUCA
@@ -682,6 +897,11 @@ public class TCPTransport extends AbstractTransport {
 						brutalDisconnect(received);
 					} else if (received.getTypeOfMessage() == TCPEnvelope.BEACON_ACK) {
 						// WHY????
+					} else if (received.getTypeOfMessage() == TCPEnvelope.SESSION_ACK) {
+						if (session != null)
+							session.acknowledged(((SessionToken) received.getPayload()).getLastSequenceNumber());
+					} else if (session != null && !session.received(received, this)) {
+						// Already received before the connection dropped
 					} else if (received.getTypeOfMessage().equals(TCPEnvelope.CLOSE_ACK)) {
 						disconnect();
 						closeStreams();
@@ -689,6 +909,7 @@ public class TCPTransport extends AbstractTransport {
 						// it should go here
 						// signalLinkClosedListeners(received.getSenderID());
 						proxySet.remove(received.getSenderID());
+						sessions.remove(received.getSenderID());
 
 						break;
 					} else if (received.getTypeOfMessage().equals(TCPEnvelope.CLOSE)) {
@@ -703,6 +924,7 @@ public class TCPTransport extends AbstractTransport {
 							// ASK Gianpaolo, Alessandro.
 							signalLinkClosedListeners(received.getSenderID());
 							proxySet.remove(received.getSenderID());
+							sessions.remove(received.getSenderID());
 							break;
 						}
 
@@ -757,6 +979,13 @@ public class TCPTransport extends AbstractTransport {
 				// &&(lastReceivedEnvelope==null||!lastReceivedEnvelope
 				// .getTypeOfMessage().equals(TCPEnvelope.CLOSE))) {
 				connected = false;
+				if (session != null && sessionGracePeriod > 0 && session.park(this)) {
+					// Keep the session: the client may resume it.
+					logger.warning("Proxy to " + id + " disconnected, keeping its session for " + sessionGracePeriod
+							+ " ms.");
+					closeStreams();
+					return;
+				}
 				logger.warning("Proxy to " + id + " brutally disconnected.");
 				// CHECK: the order of the following calls.
 				closeStreams();// Ask/check if this is necessary
@@ -796,21 +1025,44 @@ public class TCPTransport extends AbstractTransport {
 			}
 		}
 
-		public synchronized void sendMessage(String subject, Serializable payload, String trafficClass)
+		/**
+		 * Write an envelope on the socket.
+		 * 
+		 * @return <code>false</code> if the envelope could not be written.
+		 */
+		synchronized boolean write(TCPEnvelope env) {
+			lastSent = new Date();
+			try {
+				writeCounted(env);
+				return true;
+			} catch (Exception e) {
+				logger.warning("Error writing envelope " + env.getSequenceNumber() + " to " + id + ": " + e);
+				return false;
+			}
+		}
+
+		public void sendMessage(String subject, Serializable payload, String trafficClass)
+				throws NotConnectedException {
+			if (session != null && !subject.equals(TCPEnvelope.CLOSE) && !subject.equals(TCPEnvelope.CLOSE_ACK)) {
+				// The session numbers the envelope, keeps it for a possible
+				// replay and writes it if the client is connected.
+				TCPEnvelope fw = new TCPEnvelope(subject, payload, trafficClass);
+				fw.setSenderID(localID);
+				session.deliver(fw);
+			} else
+				sendUnsequenced(subject, payload, trafficClass);
+		}
+
+		private synchronized void sendUnsequenced(String subject, Serializable payload, String trafficClass)
 				throws NotConnectedException {
 			if (connected) {
 				lastSent = new Date();
 				TCPEnvelope fw = new TCPEnvelope(subject, payload, trafficClass);
 				fw.setSenderID(localID);
 				try {
-					marshaller.writeObject(fw);
-					marshaller.flush();
-					marshaller.reset();
-					if (payload != null)
-						logger.finer("Proxy sending message " + subject + " " + payload.toString() + " to "
-								+ this.id.toString());
-					else
-						logger.finer("Proxy sending message " + subject + " to " + this.id.toString());
+					writeCounted(fw);
+					if (logger.isLoggable(Level.FINER))
+						logger.finer("Proxy sending message " + subject + " " + payload + " to " + id);
 
 				} catch (Exception e) {
 					if (payload != null)
@@ -826,8 +1078,227 @@ public class TCPTransport extends AbstractTransport {
 			}
 		}
 
+		/**
+		 * Writes an envelope carrying traffic on the socket, accounting for it
+		 * in the metrics of the link.
+		 */
+		private void writeCounted(TCPEnvelope env) throws IOException {
+			long bytes = marshaller.getBytesWritten();
+			long written = marshaller.getWriteNanos();
+			long start = System.nanoTime();
+			marshaller.writeObject(env);
+			// a large envelope reaches the socket while it is serialized
+			getSerializationTime().record(System.nanoTime() - start - (marshaller.getWriteNanos() - written));
+			marshaller.flush();
+			marshaller.reset();
+			bytes = marshaller.getBytesWritten() - bytes;
+			// looked up each time: the metrics move with the registry
+			getLinkMetrics(id).sent(bytes);
+			EventLog.log(SEND_EVENT, env.getSubjectCode(), bytes);
+		}
+
 		public String toString() {
 			return this.id.getID();
 		}
 	}// end class Proxy
+
+	/**
+	 * The session of a client. It numbers the envelopes sent to the client and
+	 * keeps those the client did not acknowledge, up to
+	 * <code>sessionBufferSize</code>, so that they can be replayed if the
+	 * connection drops before the client receives them. It also tracks the
+	 * sequence numbers of the envelopes sent by the client, acknowledging them
+	 * and discarding those sent again after a reconnection.<br>
+	 * When the connection drops the session is parked for
+	 * <code>sessionGracePeriod</code> ms: in the meantime the subscriptions of
+	 * the client are kept and the envelopes routed to it are buffered.
+	 */
+	private class ClientSession {
+		long id;
+		NodeDescriptor client;
+		// The proxy currently bound to the client
+		TCPProxy proxy;
+		private LinkedList buffer = new LinkedList();
+		private long nextSequenceNumber = 1;
+		// Guards the state updated by the reading thread, which must not wait
+		// for deliver writing while holding the session
+		private final Object receiving = new Object();
+		// The sequence number of the last envelope received from the client
+		private long lastReceived = 0;
+		private int unacknowledged = 0;
+		// true while an acknowledgement is owed to the client
+		private boolean ackDue = false;
+		// The last envelope the client acknowledged, forgotten by deliver
+		private long clientAcknowledged = 0;
+		// When the parked session expires, 0 if the client is connected
+		private long expiration = 0;
+		private boolean expired = false;
+
+		ClientSession(long id, NodeDescriptor client) {
+			this.id = id;
+			this.client = client;
+		}
+
+		synchronized void deliver(TCPEnvelope env) {
+			long acked;
+			synchronized (receiving) {
+				acked = clientAcknowledged;
+			}
+			forget(acked);
+			env.setSequenceNumber(nextSequenceNumber++);
+			buffer.addLast(env);
+			if (buffer.size() > sessionBufferSize) {
+				// The client will find the gap in the sequence numbers
+				TCPEnvelope dropped = (TCPEnvelope) buffer.removeFirst();
+				if (logger.isLoggable(Level.FINE))
+					logger.fine("Session " + id + " of " + client + " dropped envelope "
+							+ dropped.getSequenceNumber() + " not yet acknowledged");
+			}
+			if (proxy != null && proxy.connected) {
+				writeAck();
+				proxy.write(env);
+			}
+		}
+
+		/**
+		 * Record the acknowledgement of the client, without waiting for
+		 * <code>deliver</code>.
+		 */
+		void acknowledged(long sequenceNumber) {
+			synchronized (receiving) {
+				if (sequenceNumber > clientAcknowledged)
+					clientAcknowledged = sequenceNumber;
+			}
+		}
+
+		/**
+		 * Forget the buffered envelopes the client acknowledged.
+		 */
+		private void forget(long sequenceNumber) {
+			while (!buffer.isEmpty() && ((TCPEnvelope) buffer.getFirst()).getSequenceNumber() <= sequenceNumber)
+				buffer.removeFirst();
+		}
+
+		/**
+		 * Account for an envelope received from the client through
+		 * <code>from</code>. When the batch is full or no more data is waiting
+		 * on the socket an acknowledgement is queued for the session acker:
+		 * the reading thread never writes.
+		 * 
+		 * @return <code>false</code> if the envelope has already been received.
+		 */
+		boolean received(TCPEnvelope env, TCPProxy from) {
+			synchronized (receiving) {
+				if (env.getSequenceNumber() == 0)
+					return true;
+				if (env.getSequenceNumber() <= lastReceived)
+					return false;
+				lastReceived = env.getSequenceNumber();
+				boolean idle;
+				try {
+					idle = from.sock.getInputStream().available() == 0;
+				} catch (IOException e) {
+					idle = true;
+				}
+				if (++unacknowledged < SESSION_ACK_BATCH && !idle)
+					return true;
+				unacknowledged = 0;
+				if (ackDue)
+					return true;
+				ackDue = true;
+			}
+			sessionAcks.offer(this);
+			return true;
+		}
+
+		/**
+		 * Write the acknowledgement owed to the client, if any.
+		 */
+		synchronized void flushAck() {
+			writeAck();
+		}
+
+		private void writeAck() {
+			long last;
+			synchronized (receiving) {
+				if (!ackDue)
+					return;
+				ackDue = false;
+				last = lastReceived;
+			}
+			if (proxy == null || !proxy.connected)
+				return;
+			TCPEnvelope ack = new TCPEnvelope(TCPEnvelope.SESSION_ACK, new SessionToken(id, last, false),
+					Transport.MISCELLANEOUS_CLASS);
+			ack.setSenderID(localID);
+			proxy.write(ack);
+		}
+
+		/**
+		 * Park this session after the connection of the given proxy dropped.
+		 * 
+		 * @return <code>false</code> if the session is no longer bound to
+		 *         <code>dead</code>.
+		 */
+		synchronized boolean park(TCPProxy dead) {
+			if (proxy != dead || expired)
+				return false;
+			expiration = System.currentTimeMillis() + sessionGracePeriod;
+			return true;
+		}
+
+		/**
+		 * Bind this session to a new connection, sending the confirmation,
+		 * which tells the client the last envelope received from it, and all
+		 * the buffered envelopes the client did not receive.
+		 * 
+		 * @return <code>false</code> if the session already expired.
+		 */
+		synchronized boolean resume(TCPProxy newProxy, long clientReceived) {
+			if (expired)
+				return false;
+			if (proxy != null && proxy.connected) {
+				// The old connection is still believed alive: drop it.
+				proxy.connected = false;
+				proxy.closeStreams();
+			}
+			proxy = newProxy;
+			expiration = 0;
+			long last;
+			synchronized (receiving) {
+				// the confirmation acknowledges what has been received
+				ackDue = false;
+				last = lastReceived;
+				if (clientReceived > clientAcknowledged)
+					clientAcknowledged = clientReceived;
+			}
+			TCPEnvelope confirm = new TCPEnvelope(TCPEnvelope.CONFIRM_OPEN, new SessionToken(id, last, true),
+					Transport.MISCELLANEOUS_CLASS);
+			confirm.setSenderID(localID);
+			newProxy.write(confirm);
+			forget(clientReceived);
+			if (!buffer.isEmpty() && ((TCPEnvelope) buffer.getFirst()).getSequenceNumber() > clientReceived + 1)
+				logger.warning("Session " + id + " of " + client + " lost envelopes " + (clientReceived + 1) + " to "
+						+ (((TCPEnvelope) buffer.getFirst()).getSequenceNumber() - 1));
+			Iterator it = buffer.iterator();
+			while (it.hasNext())
+				newProxy.write((TCPEnvelope) it.next());
+			return true;
+		}
+
+		/**
+		 * Mark this parked session as expired if its grace period elapsed or
+		 * <code>now</code> is <code>true</code>.
+		 * 
+		 * @return <code>true</code> if the session has just expired.
+		 */
+		synchronized boolean expire(boolean now) {
+			if (expired || expiration == 0)
+				return false;
+			if (!now && expiration > System.currentTimeMillis())
+				return false;
+			expired = true;
+			return true;
+		}
+	}
 } // end TCPTransport class
@@ -44,6 +44,10 @@ public interface Transport {
 	 * <code>UDPTransport</code>
 	 */
 	public static final String UDP = "reds-udp";
+	/**
+	 * <code>MuxTCPTransport</code>
+	 */
+	public static final String MUX_TCP = "reds-mtcp";
 	/**
 	 * The character that divides the url.
 	 */
@@ -164,6 +168,16 @@ public interface Transport {
 	public void send(String subject, Serializable payload, NodeDescriptor receiver, String trafficClass)
 			throws NotConnectedException;
 
+	/**
+	 * Get the <code>Proxy</code> through which the given neighbor is reached.
+	 * 
+	 * @param neighbor
+	 *            the neighbor
+	 * @return the proxy, <code>null</code> if the neighbor is not connected
+	 *         through this transport
+	 */
+	public Proxy getProxy(NodeDescriptor neighbor);
+
 	/**
 	 * Register a new listener for the arrival of a message.
 	 * 
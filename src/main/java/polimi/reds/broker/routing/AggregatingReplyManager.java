@@ -0,0 +1,275 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import polimi.reds.AggregatedReply;
+import polimi.reds.Message;
+import polimi.reds.MessageID;
+import polimi.reds.NodeDescriptor;
+import polimi.reds.Reply;
+import polimi.reds.ReplyReducer;
+import polimi.util.TimerWheel;
+
+/**
+ * A <code>ReplyManager</code> that gathers the replies directed to the same
+ * neighbor instead of forwarding each of them as soon as it arrives. The
+ * replies to a repliable message are sent back in an
+ * <code>AggregatedReply</code> when all the neighbors that received the
+ * message have sent their last reply, when <code>batchSize</code> replies
+ * have been gathered, or when the oldest gathered reply has waited
+ * <code>linger</code> ms, whichever comes first. A message matching many
+ * subscribers downstream thus produces a few envelopes on the links near its
+ * publisher.<br>
+ * If the message is a <code>ReducibleRepliable</code> carrying a
+ * <code>ReplyReducer</code>, the replies are reduced whenever
+ * <code>batchSize</code> of them have been gathered and they are sent only
+ * when the last one arrives (or when the message expires), so each broker
+ * sends a single reduced batch upstream.
+ * 
+ * @see polimi.reds.ReducibleRepliable
+ */
+public class AggregatingReplyManager extends ImmediateForwardReplyManager {
+	/**
+	 * Default maximum number of replies in a batch.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 64;
+	/**
+	 * Default time a reply may wait for others, in ms.
+	 */
+	public static final long DEFAULT_LINGER = 100;
+	/** The batches being gathered, indexed by <code>MessageID</code>. */
+	private Map batches;
+	private int batchSize;
+	private long linger;
+	private TimerWheel timer;
+
+	/**
+	 * Base constructor. It uses <code>DEFAULT_BATCH_SIZE</code> and
+	 * <code>DEFAULT_LINGER</code>.
+	 */
+	public AggregatingReplyManager() {
+		this(DEFAULT_BATCH_SIZE, DEFAULT_LINGER);
+	}
+
+	/**
+	 * @param batchSize
+	 *            the maximum number of replies in a batch
+	 * @param linger
+	 *            the maximum time a reply waits for others, in ms
+	 */
+	public AggregatingReplyManager(int batchSize, long linger) {
+		super();
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size " + batchSize);
+		this.batchSize = batchSize;
+		this.linger = linger;
+		batches = new HashMap();
+		timer = TimerWheel.getShared();
+	}
+
+	/**
+	 * Records a repliable message whose replies must be reduced.
+	 * 
+	 * @param repliableMessageID
+	 *            repliable message ID
+	 * @param senderID
+	 *            ID of the neighbor which sent the repliable message
+	 * @param numExpectedReplies
+	 *            future value of <code>numExpectedReplies</code>
+	 * @param reducer
+	 *            the reducer of the replies, <code>null</code> to forward all
+	 *            of them
+	 * @see ReplyManager#recordRepliableMessage(MessageID, NodeDescriptor,
+	 *      FutureInt)
+	 */
+	public synchronized void recordRepliableMessage(MessageID repliableMessageID, NodeDescriptor senderID,
+			FutureInt numExpectedReplies, ReplyReducer reducer) {
+		super.recordRepliableMessage(repliableMessageID, senderID, numExpectedReplies);
+		if (reducer == null || replyTable.getSender(repliableMessageID) != senderID)
+			return;
+		try {
+			Batch b = new Batch(repliableMessageID, senderID, reducer);
+			b.timeout = timer.schedule(b, replyTable.getExpiringTime(repliableMessageID)
+					- System.currentTimeMillis());
+			batches.put(repliableMessageID, b);
+		} catch (NoEntryException e) {
+			// already completed
+		}
+	}
+
+	/**
+	 * Adds the reply to the batch of its repliable message, sending the batch
+	 * if it is complete.
+	 * 
+	 * @see ReplyManager#forwardReply(Reply)
+	 */
+	public synchronized void forwardReply(Reply reply) {
+		if (reply == null)
+			return;
+		MessageID id = reply.getRepliableMessageID();
+		try {
+			boolean last = reply.isLast() && replyTable.getNumberOfPendingReplies(id) <= 1;
+			Batch b = (Batch) batches.get(id);
+			if (b == null) {
+				NodeDescriptor senderID = replyTable.getSender(id);
+				if (senderID == null)
+					throw new NoEntryException();
+				b = new Batch(id, senderID, null);
+				batches.put(id, b);
+			}
+			b.add(reply);
+			/*
+			 * The batch already knows where to send the replies, so the entry
+			 * may be removed before sending them.
+			 */
+			if (reply.isLast())
+				replyTable.decrementNumberOfPendingReplies(id);
+			if (last) {
+				batches.remove(id);
+				b.close(true);
+			} else if (b.replies.size() >= batchSize) {
+				if (b.reducer == null) {
+					batches.remove(id);
+					b.close(false);
+				} else {
+					b.reduce();
+					// the reducer does not shrink the replies enough
+					if (b.replies.size() >= batchSize)
+						b.send(false);
+				}
+			} else if (b.reducer == null && b.timeout == null)
+				b.timeout = timer.schedule(b, linger);
+		} catch (NullPointerException e) {
+			logger.severe("MessageID is null");
+		} catch (NoEntryException e) {
+			logger.warning("Reply" + reply + " arrived after the expiration of the timeout and is discarded.");
+		}
+	}
+
+	/**
+	 * Drops the replies gathered for the message.
+	 * 
+	 * @see ReplyManager#cancelReplies(MessageID, NodeDescriptor)
+	 */
+	public synchronized void cancelReplies(MessageID repliableMessageID, NodeDescriptor senderID) {
+		Batch b = (Batch) batches.get(repliableMessageID);
+		if (b != null && b.senderID.equals(senderID)) {
+			batches.remove(repliableMessageID);
+			if (b.timeout != null)
+				b.timeout.cancel();
+		}
+		super.cancelReplies(repliableMessageID, senderID);
+	}
+
+	/**
+	 * Sends the gathered replies, if any, with the fake last reply.
+	 * 
+	 * @see ImmediateForwardReplyManager#replyCompleted(MessageID,
+	 *      NodeDescriptor)
+	 */
+	protected synchronized void replyCompleted(MessageID repliableMessageID, NodeDescriptor senderID) {
+		Batch b = (Batch) batches.remove(repliableMessageID);
+		if (b != null)
+			b.close(true);
+		else
+			super.replyCompleted(repliableMessageID, senderID);
+	}
+
+	/**
+	 * The replies to a repliable message gathered and not sent yet. It is also
+	 * the task that sends them when they waited too long.
+	 */
+	private class Batch implements Runnable {
+		MessageID id;
+		NodeDescriptor senderID;
+		ReplyReducer reducer;
+		List replies;
+		TimerWheel.Timeout timeout;
+
+		Batch(MessageID id, NodeDescriptor senderID, ReplyReducer reducer) {
+			this.id = id;
+			this.senderID = senderID;
+			this.reducer = reducer;
+			replies = new ArrayList();
+			timeout = null;
+		}
+
+		void add(Reply reply) {
+			if (reply instanceof AggregatedReply) {
+				Message[] payloads = ((AggregatedReply) reply).getPayloads();
+				for (int i = 0; i < payloads.length; i++)
+					replies.add(payloads[i]);
+			} else if (reply.getPayload() != null)
+				replies.add(reply.getPayload());
+		}
+
+		void reduce() {
+			Message[] reduced = reducer.reduce((Message[]) replies.toArray(new Message[replies.size()]));
+			replies.clear();
+			for (int i = 0; i < reduced.length; i++)
+				replies.add(reduced[i]);
+		}
+
+		/**
+		 * Sends the replies gathered so far.
+		 */
+		void send(boolean last) {
+			if (reducer != null && !replies.isEmpty())
+				reduce();
+			if (replies.size() > 1)
+				sendReply(new AggregatedReply(id, last, (Message[]) replies.toArray(new Message[replies.size()])),
+						senderID);
+			else if (!replies.isEmpty())
+				sendReply(new Reply(id, last, (Message) replies.get(0)), senderID);
+			else if (last)
+				sendReply(new Reply(id, true, null), senderID);
+			replies.clear();
+		}
+
+		/**
+		 * Sends the replies gathered and forgets the batch.
+		 */
+		void close(boolean last) {
+			if (timeout != null)
+				timeout.cancel();
+			send(last);
+		}
+
+		/**
+		 * Called by the <code>TimerWheel</code> when the linger time or the
+		 * timeout of the repliable message expires.
+		 */
+		public void run() {
+			synchronized (AggregatingReplyManager.this) {
+				if (batches.get(id) != this)
+					return;
+				batches.remove(id);
+				timeout = null;
+				close(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.routing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import polimi.reds.Filter;
+import polimi.reds.NodeDescriptor;
+import polimi.reds.broker.overlay.REDSMarshaller;
+import polimi.reds.broker.overlay.REDSUnmarshaller;
+
+/**
+ * The routing state of a broker saved to a file: the filters held for each
+ * neighboring broker, with the descriptor (identifier and URLs) of the
+ * neighbor. A restarted broker reads it back so that it does not have to
+ * receive again all the filters of its neighbors.<br>
+ * The file is written in a single <code>REDSMarshaller</code> stream, so the
+ * description of each class of filters is written once, and replaces the
+ * previous one only when complete.
+ * 
+ * @see DigestReconfigurator
+ */
+public class BrokerSnapshot {
+	private static final int MAGIC = 0x52454453;
+	private static final int VERSION = 1;
+
+	private long time;
+	private Map filters = new LinkedHashMap();
+
+	/**
+	 * Builds an empty snapshot taken now.
+	 */
+	public BrokerSnapshot() {
+		time = System.currentTimeMillis();
+	}
+
+	/**
+	 * Adds the filters held for a neighbor.
+	 * 
+	 * @param neighbor
+	 *            the neighbor
+	 * @param neighborFilters
+	 *            its filters
+	 */
+	public void put(NodeDescriptor neighbor, Collection neighborFilters) {
+		filters.put(neighbor, new ArrayList(neighborFilters));
+	}
+
+	/**
+	 * Gets the neighbors in the snapshot.
+	 * 
+	 * @return the set of the <code>NodeDescriptor</code>s of the neighbors
+	 */
+	public Set getNeighbors() {
+		return filters.keySet();
+	}
+
+	/**
+	 * Gets the filters held for a neighbor.
+	 * 
+	 * @param neighbor
+	 *            the neighbor
+	 * @return its filters, or <code>null</code> if it is not in the snapshot
+	 */
+	public List getFilters(NodeDescriptor neighbor) {
+		return (List) filters.get(neighbor);
+	}
+
+	/**
+	 * Gets the time the snapshot was taken.
+	 * 
+	 * @return the time, in milliseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Writes the snapshot to the given file, through a temporary file synced
+	 * to the disk and renamed at the end.
+	 * 
+	 * @param file
+	 *            the file
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void write(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+		REDSMarshaller out = new REDSMarshaller(new BufferedOutputStream(fos));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(time);
+			out.writeInt(filters.size());
+			Iterator it = filters.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry e = (Map.Entry) it.next();
+				List l = (List) e.getValue();
+				out.writeObject(e.getKey());
+				out.writeInt(l.size());
+				for (int i = 0; i < l.size(); i++)
+					out.writeObject(l.get(i));
+			}
+			// the rename must not reach the disk before the content
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("Cannot rename " + temp + " to " + file);
+		}
+	}
+
+	/**
+	 * Reads a snapshot from the given file.
+	 * 
+	 * @param file
+	 *            the file
+	 * @return the snapshot
+	 * @throws IOException
+	 *             if the file cannot be read or is not a snapshot
+	 */
+	public static BrokerSnapshot read(File file) throws IOException {
+		REDSUnmarshaller in = new REDSUnmarshaller(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a broker snapshot");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unknown snapshot version " + version);
+			BrokerSnapshot snapshot = new BrokerSnapshot();
+			snapshot.time = in.readLong();
+			int neighbors = in.readInt();
+			for (int i = 0; i < neighbors; i++) {
+				NodeDescriptor n = (NodeDescriptor) in.readObject();
+				int size = in.readInt();
+				List l = new ArrayList(size);
+				for (int j = 0; j < size; j++)
+					l.add((Filter) in.readObject());
+				snapshot.filters.put(n, l);
+			}
+			return snapshot;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot read " + file + ": " + e);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,574 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.routing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import polimi.reds.Filter;
+import polimi.reds.NodeDescriptor;
+import polimi.reds.NotConnectedException;
+import polimi.reds.broker.overlay.Envelope;
+import polimi.reds.broker.overlay.Overlay;
+import polimi.reds.broker.overlay.PacketListener;
+import polimi.reds.broker.overlay.SubjectRegistry;
+import polimi.reds.broker.routing.SubscriptionDigest.Range;
+import polimi.util.TimerWheel;
+
+/**
+ * A <code>DeferredUnsubscriptionReconfigurator</code> that, when a link
+ * between two brokers opens, exchanges only the filters missing on either
+ * side instead of sending all of them.<br>
+ * The filters of a neighboring broker that leaves are retained for a while,
+ * and those of all the neighboring brokers can be saved periodically to a
+ * <code>BrokerSnapshot</code>, read back when the broker restarts. When a
+ * broker with the same identifier or URL connects again its retained filters
+ * are put back in the subscription table, and the summary of the filters held
+ * for it is sent. The two brokers then walk down the tree of the
+ * <code>SubscriptionDigest</code> only along the ranges that differ: the
+ * neighbor asks for the children of a range whose summary differs from its
+ * own, sends the filters missing from the ranges sent as keys, and names the
+ * keys (or whole ranges) of the filters it no longer has, which are removed.
+ * Without retained filters the summary is empty and the neighbor sends all its
+ * filters, as usual.<br>
+ * The filters are not sent to a new neighbor until its digest is received; if
+ * none arrives within the digest timeout, e.g. because the neighbor uses
+ * another reconfigurator or the digest was lost, all the filters are sent.
+ * 
+ * @see SubscriptionDigest
+ */
+public class DigestReconfigurator extends DeferredUnsubscriptionReconfigurator implements PacketListener {
+	private static final long DEFAULT_RETENTION = 60000;
+	private static final long DEFAULT_SNAPSHOT_RETENTION = 600000;
+	private static final long DEFAULT_DIGEST_TIMEOUT = 5000;
+
+	private long retention = DEFAULT_RETENTION;
+	private long snapshotRetention = DEFAULT_SNAPSHOT_RETENTION;
+	private long digestTimeout = DEFAULT_DIGEST_TIMEOUT;
+	/** The timeouts of the new neighbors whose digest is awaited. */
+	private Map awaiting = new HashMap();
+	/** The retained filters, by identifier and by URL of their neighbor. */
+	private Map retained = new HashMap();
+	/**
+	 * The digests received before their sender became a neighbor. Also guards
+	 * <code>awaiting</code>.
+	 */
+	private Map early = new HashMap();
+	private File snapshotFile;
+	private Thread snapshotter;
+
+	/**
+	 * Builds a reconfigurator retaining the filters of the neighbors that
+	 * leave, without snapshots.
+	 */
+	public DigestReconfigurator() {
+		super();
+	}
+
+	/**
+	 * Builds a reconfigurator that saves a snapshot in the given file every
+	 * <code>snapshotInterval</code> milliseconds. If the file exists, the
+	 * filters it holds are retained as if their neighbors had just left, for
+	 * the snapshot retention: the neighbors reconnect only once the broker is
+	 * up again, which may take longer than a link being reopened.
+	 * 
+	 * @param snapshotFile
+	 *            the file
+	 * @param snapshotInterval
+	 *            the period of the snapshots, in milliseconds, or 0 to save
+	 *            them only through <code>saveSnapshot</code>
+	 */
+	public DigestReconfigurator(File snapshotFile, final long snapshotInterval) {
+		super();
+		this.snapshotFile = snapshotFile;
+		if (snapshotFile.exists())
+			try {
+				BrokerSnapshot snapshot = BrokerSnapshot.read(snapshotFile);
+				Iterator it = snapshot.getNeighbors().iterator();
+				while (it.hasNext()) {
+					NodeDescriptor n = (NodeDescriptor) it.next();
+					retain(n, snapshot.getFilters(n), true);
+				}
+				logger.info("Read the filters of " + snapshot.getNeighbors().size() + " neighbors from "
+						+ snapshotFile);
+			} catch (IOException e) {
+				logger.warning("Ignoring the snapshot " + snapshotFile + ": " + e);
+			}
+		if (snapshotInterval > 0) {
+			snapshotter = new Thread("DigestReconfigurator.snapshotter") {
+				public void run() {
+					try {
+						while (true) {
+							Thread.sleep(snapshotInterval);
+							try {
+								saveSnapshot();
+							} catch (IOException e) {
+								logger.warning("Cannot save the snapshot: " + e);
+							}
+						}
+					} catch (InterruptedException e) {
+						// stopped
+					}
+				}
+			};
+			snapshotter.setDaemon(true);
+			snapshotter.start();
+		}
+	}
+
+	/**
+	 * Sets how long the filters of a neighbor that left are retained.
+	 * 
+	 * @param retention
+	 *            the time, in milliseconds
+	 */
+	public void setRetention(long retention) {
+		this.retention = retention;
+	}
+
+	/**
+	 * Gets how long the filters of a neighbor that left are retained.
+	 * 
+	 * @return the time, in milliseconds
+	 */
+	public long getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Sets how long the filters read from the snapshot are retained, from the
+	 * construction of this reconfigurator.
+	 * 
+	 * @param snapshotRetention
+	 *            the time, in milliseconds
+	 */
+	public void setSnapshotRetention(long snapshotRetention) {
+		this.snapshotRetention = snapshotRetention;
+	}
+
+	/**
+	 * Gets how long the filters read from the snapshot are retained.
+	 * 
+	 * @return the time, in milliseconds
+	 */
+	public long getSnapshotRetention() {
+		return snapshotRetention;
+	}
+
+	/**
+	 * Sets how long to wait for the digest of a new neighbor before sending it
+	 * all the filters.
+	 * 
+	 * @param digestTimeout
+	 *            the time, in milliseconds
+	 */
+	public void setDigestTimeout(long digestTimeout) {
+		this.digestTimeout = digestTimeout;
+	}
+
+	/**
+	 * Gets how long to wait for the digest of a new neighbor before sending it
+	 * all the filters.
+	 * 
+	 * @return the time, in milliseconds
+	 */
+	public long getDigestTimeout() {
+		return digestTimeout;
+	}
+
+	/**
+	 * Saves the filters of the neighboring brokers, and those still retained,
+	 * to the snapshot file.
+	 * 
+	 * @throws IOException
+	 *             if the snapshot cannot be written
+	 */
+	public void saveSnapshot() throws IOException {
+		if (snapshotFile == null)
+			throw new IllegalStateException("No snapshot file");
+		if (router == null || overlay == null)
+			return;
+		BrokerSnapshot snapshot = new BrokerSnapshot();
+		synchronized (retained) {
+			long now = System.currentTimeMillis();
+			Iterator it = new HashSet(retained.values()).iterator();
+			while (it.hasNext()) {
+				Retained r = (Retained) it.next();
+				if (isExpired(r, now))
+					forget(r);
+				else
+					snapshot.put(r.neighbor, r.filters);
+			}
+		}
+		Iterator it = overlay.getNeighbors().iterator();
+		while (it.hasNext()) {
+			NodeDescriptor n = (NodeDescriptor) it.next();
+			if (n.isBroker()) {
+				List filters = getFilters(n);
+				if (!filters.isEmpty())
+					snapshot.put(n, filters);
+			}
+		}
+		snapshot.write(snapshotFile);
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("Saved the filters of " + snapshot.getNeighbors().size() + " neighbors to " + snapshotFile);
+	}
+
+	/**
+	 * Stops saving the snapshots periodically.
+	 */
+	public void stop() {
+		if (snapshotter != null)
+			snapshotter.interrupt();
+	}
+
+	/**
+	 * Puts back the retained filters of the new neighbor, if any, sends it the
+	 * digest of the filters held for it and waits for its own.
+	 */
+	public void signalNeighborAdded(NodeDescriptor newNeighbor) {
+		logger.finest("Neighbor added: " + newNeighbor.toString());
+		if (!newNeighbor.isBroker())
+			return;
+		synchronized (early) {
+			await(newNeighbor);
+		}
+		Retained r = takeRetained(newNeighbor);
+		if (r != null) {
+			Iterator it = r.filters.iterator();
+			while (it.hasNext())
+				router.subscribe(newNeighbor, (Filter) it.next());
+			logger.fine("Restored " + r.filters.size() + " filters of " + newNeighbor.getID());
+		}
+		try {
+			Range root = new SubscriptionDigest.Index(getFilters(newNeighbor)).summarize(new Range(0, 0));
+			overlay.send(Envelope.SUBSCRIPTION_DIGEST, new SubscriptionDigest(new Range[] { root }), newNeighbor);
+		} catch (NotConnectedException e) {
+			logger.warning("Error while connecting to " + newNeighbor.getID() + ", the broker is now disconnected.");
+		}
+		SubscriptionDigest digest;
+		synchronized (early) {
+			digest = (SubscriptionDigest) early.remove(newNeighbor);
+			if (digest != null)
+				stopAwaiting(newNeighbor);
+		}
+		if (digest != null)
+			reconcile(newNeighbor, digest);
+	}
+
+	/**
+	 * Sends all the filters to a new neighbor if its digest does not arrive
+	 * within the digest timeout.
+	 */
+	private void await(final NodeDescriptor neighbor) {
+		TimerWheel.Timeout timeout = TimerWheel.getShared().schedule(new Runnable() {
+			public void run() {
+				synchronized (early) {
+					if (awaiting.remove(neighbor) == null)
+						return;
+				}
+				if (!overlay.hasNeighbor(neighbor))
+					return;
+				logger.warning("No digest from " + neighbor.getID() + " in " + digestTimeout
+						+ " ms, sending all the filters");
+				DigestReconfigurator.super.signalNeighborAdded(neighbor);
+			}
+		}, digestTimeout);
+		TimerWheel.Timeout old = (TimerWheel.Timeout) awaiting.put(neighbor, timeout);
+		if (old != null)
+			old.cancel();
+	}
+
+	/**
+	 * Stops waiting for the digest of a neighbor.
+	 */
+	private void stopAwaiting(NodeDescriptor neighbor) {
+		TimerWheel.Timeout timeout = (TimerWheel.Timeout) awaiting.remove(neighbor);
+		if (timeout != null)
+			timeout.cancel();
+	}
+
+	/**
+	 * Retains the filters of the removed neighbor, and then removes them.
+	 */
+	public void signalNeighborRemoved(NodeDescriptor removedNeighbor) {
+		if (removedNeighbor.isBroker() && overlay.hasNeighbor(removedNeighbor))
+			retain(removedNeighbor, getFilters(removedNeighbor), false);
+		synchronized (early) {
+			early.remove(removedNeighbor);
+			stopAwaiting(removedNeighbor);
+		}
+		super.signalNeighborRemoved(removedNeighbor);
+	}
+
+	/**
+	 * Retains the filters of the dead neighbor, and then removes them.
+	 */
+	public void signalNeighborDead(NodeDescriptor deadNeighbor) {
+		if (deadNeighbor != null && deadNeighbor.isBroker() && overlay.hasNeighbor(deadNeighbor))
+			retain(deadNeighbor, getFilters(deadNeighbor), false);
+		synchronized (early) {
+			early.remove(deadNeighbor);
+			stopAwaiting(deadNeighbor);
+		}
+		super.signalNeighborDead(deadNeighbor);
+	}
+
+	/**
+	 * @see polimi.reds.broker.overlay.PacketListener#signalPacket(String,
+	 *      NodeDescriptor, Serializable)
+	 */
+	public void signalPacket(String subject, NodeDescriptor senderID, Serializable payload) {
+		switch (SubjectRegistry.find(subject)) {
+		case SubjectRegistry.SUBSCRIPTION_DIGEST:
+			// the digest and the confirmation of the link travel in different
+			// traffic classes: keep it until the sender is a neighbor
+			synchronized (early) {
+				if (!overlay.hasNeighbor(senderID)) {
+					early.put(senderID, payload);
+					return;
+				}
+				stopAwaiting(senderID);
+			}
+			reconcile(senderID, (SubscriptionDigest) payload);
+			break;
+		case SubjectRegistry.SUBSCRIPTION_RANGES:
+			expand(senderID, (SubscriptionDigest) payload);
+			break;
+		case SubjectRegistry.SUBSCRIPTION_PRUNE:
+			prune(senderID, (SubscriptionDigest) payload);
+			break;
+		default:
+			logger.severe("unrecognized message");
+		}
+	}
+
+	/**
+	 * Compares the ranges of the filters a neighbor holds for this broker with
+	 * those it should hold. Sends the missing filters of the ranges that are
+	 * empty or sent as keys, prunes the ranges and the keys it should not
+	 * hold, and asks for the children of the other ranges that differ. A key
+	 * the neighbor holds for more filters than this broker, which happens
+	 * only if different filters share it, is pruned and its filters sent
+	 * again; the prune travels before the filters, in the same traffic class.
+	 */
+	private void reconcile(NodeDescriptor neighbor, SubscriptionDigest digest) {
+		SubscriptionDigest.Index index = new SubscriptionDigest.Index(router.getSubscriptionTable()
+				.getAllFiltersExcept(false, neighbor));
+		Range[] held = digest.getRanges();
+		List missing = new ArrayList();
+		List stale = new ArrayList();
+		List differing = new ArrayList();
+		for (int i = 0; i < held.length; i++) {
+			Range mine = index.summarize(held[i]);
+			if (mine.sameSummary(held[i]))
+				continue;
+			if (held[i].getKeys() != null) {
+				Map known = count(held[i].getKeys());
+				Map own = count(index.getKeys(held[i]));
+				Iterator it = own.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry e = (Map.Entry) it.next();
+					Integer theirs = (Integer) known.get(e.getKey());
+					int ours = ((Integer) e.getValue()).intValue();
+					if (theirs != null && theirs.intValue() == ours)
+						continue;
+					if (theirs != null && theirs.intValue() > ours)
+						stale.add(e.getKey());
+					missing.addAll(index.getFilters(((Long) e.getKey()).longValue()));
+				}
+				it = known.keySet().iterator();
+				while (it.hasNext()) {
+					Object key = it.next();
+					if (!own.containsKey(key))
+						stale.add(key);
+				}
+			} else if (mine.getCount() == 0)
+				stale.add(held[i]);
+			else
+				differing.add(held[i]);
+		}
+		try {
+			if (!stale.isEmpty())
+				overlay.send(Envelope.SUBSCRIPTION_PRUNE, new SubscriptionDigest(toRanges(stale)), neighbor);
+			for (int i = 0; i < missing.size(); i++)
+				overlay.send(Router.SUBSCRIBE, (Filter) missing.get(i), neighbor);
+			if (!differing.isEmpty())
+				overlay.send(Envelope.SUBSCRIPTION_RANGES, new SubscriptionDigest(differing), neighbor);
+			if (logger.isLoggable(Level.FINE))
+				logger.fine("Reconciled " + held.length + " ranges with " + neighbor.getID() + ": sent "
+						+ missing.size() + " filters, pruned " + stale.size() + ", expanding " + differing.size());
+		} catch (NotConnectedException e) {
+			logger.warning("Error while reconciling with " + neighbor.getID() + ", the broker is now disconnected.");
+		}
+	}
+
+	/**
+	 * Counts the filters of each key.
+	 * 
+	 * @return the number of filters, by key
+	 */
+	private static Map count(long[] keys) {
+		Map counts = new HashMap();
+		for (int i = 0; i < keys.length; i++) {
+			Long key = new Long(keys[i]);
+			Integer n = (Integer) counts.get(key);
+			counts.put(key, new Integer(n == null ? 1 : n.intValue() + 1));
+		}
+		return counts;
+	}
+
+	/**
+	 * Puts the keys to prune in ranges of a single key each.
+	 */
+	private Range[] toRanges(List stale) {
+		Range[] result = new Range[stale.size()];
+		for (int i = 0; i < result.length; i++) {
+			Object o = stale.get(i);
+			if (o instanceof Range)
+				result[i] = (Range) o;
+			else
+				result[i] = new Range(((Long) o).longValue(), SubscriptionDigest.MAX_DEPTH);
+		}
+		return result;
+	}
+
+	/**
+	 * Sends to a neighbor the summaries of the children of the ranges it asked
+	 * for, over the filters held for it.
+	 */
+	private void expand(NodeDescriptor neighbor, SubscriptionDigest request) {
+		SubscriptionDigest.Index index = new SubscriptionDigest.Index(getFilters(neighbor));
+		Range[] ranges = request.getRanges();
+		Range[] children = new Range[ranges.length * SubscriptionDigest.FANOUT];
+		for (int i = 0; i < ranges.length; i++)
+			for (int j = 0; j < SubscriptionDigest.FANOUT; j++)
+				children[i * SubscriptionDigest.FANOUT + j] = index.summarize(ranges[i].getChild(j));
+		try {
+			overlay.send(Envelope.SUBSCRIPTION_DIGEST, new SubscriptionDigest(children), neighbor);
+		} catch (NotConnectedException e) {
+			logger.warning("Error while reconciling with " + neighbor.getID() + ", the broker is now disconnected.");
+		}
+	}
+
+	/**
+	 * Removes the filters of a neighbor that are in the given ranges.
+	 */
+	private void prune(NodeDescriptor neighbor, SubscriptionDigest digest) {
+		SubscriptionDigest.Index index = new SubscriptionDigest.Index(getFilters(neighbor));
+		Range[] ranges = digest.getRanges();
+		for (int i = 0; i < ranges.length; i++) {
+			Iterator it = index.getFilters(ranges[i]).iterator();
+			while (it.hasNext())
+				router.unsubscribe(neighbor, (Filter) it.next());
+		}
+	}
+
+	/**
+	 * Copies the filters of a neighbor, while the router does not change them.
+	 */
+	private List getFilters(NodeDescriptor neighbor) {
+		synchronized (router) {
+			Collection c = router.getSubscriptionTable().getAllFilters(neighbor);
+			return c == null ? new ArrayList() : new ArrayList(c);
+		}
+	}
+
+	private void retain(NodeDescriptor neighbor, List filters, boolean fromSnapshot) {
+		if (filters.isEmpty())
+			return;
+		Retained r = new Retained(neighbor, filters, System.currentTimeMillis(), fromSnapshot);
+		synchronized (retained) {
+			retained.put(neighbor.getID(), r);
+			String[] urls = neighbor.getUrls();
+			for (int i = 0; i < urls.length; i++)
+				retained.put(urls[i], r);
+		}
+	}
+
+	/**
+	 * Removes and returns the filters retained for a neighbor with the same
+	 * identifier or URL of the given one.
+	 */
+	private Retained takeRetained(NodeDescriptor neighbor) {
+		synchronized (retained) {
+			Retained r = (Retained) retained.get(neighbor.getID());
+			String[] urls = neighbor.getUrls();
+			for (int i = 0; r == null && i < urls.length; i++)
+				r = (Retained) retained.get(urls[i]);
+			if (r == null)
+				return null;
+			forget(r);
+			return isExpired(r, System.currentTimeMillis()) ? null : r;
+		}
+	}
+
+	private boolean isExpired(Retained r, long now) {
+		return r.since + (r.fromSnapshot ? snapshotRetention : retention) < now;
+	}
+
+	private void forget(Retained r) {
+		if (retained.get(r.neighbor.getID()) == r)
+			retained.remove(r.neighbor.getID());
+		String[] urls = r.neighbor.getUrls();
+		for (int i = 0; i < urls.length; i++)
+			if (retained.get(urls[i]) == r)
+				retained.remove(urls[i]);
+	}
+
+	/**
+	 * @see Reconfigurator#setOverlay(Overlay)
+	 */
+	public void setOverlay(Overlay o) {
+		super.setOverlay(o);
+		o.addPacketListener(this, Envelope.SUBSCRIPTION_DIGEST);
+		o.addPacketListener(this, Envelope.SUBSCRIPTION_RANGES);
+		o.addPacketListener(this, Envelope.SUBSCRIPTION_PRUNE);
+	}
+
+	/**
+	 * The filters of a neighbor that left.
+	 */
+	private static class Retained {
+		NodeDescriptor neighbor;
+		List filters;
+		/** When the filters were retained. */
+		long since;
+		/** <code>true</code> if the filters were read from the snapshot. */
+		boolean fromSnapshot;
+
+		Retained(NodeDescriptor neighbor, List filters, long since, boolean fromSnapshot) {
+			this.neighbor = neighbor;
+			this.filters = filters;
+			this.since = since;
+			this.fromSnapshot = fromSnapshot;
+		}
+	}
+}
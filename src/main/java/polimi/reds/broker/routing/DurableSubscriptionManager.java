@@ -0,0 +1,518 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.routing;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import polimi.reds.DurableDelivery;
+import polimi.reds.DurableSubscription;
+import polimi.reds.Filter;
+import polimi.reds.Message;
+import polimi.reds.NodeDescriptor;
+import polimi.reds.NotConnectedException;
+import polimi.reds.broker.overlay.Envelope;
+import polimi.reds.broker.overlay.LocalTransport;
+import polimi.reds.broker.overlay.NeighborDeadListener;
+import polimi.reds.broker.overlay.NeighborRemovedListener;
+import polimi.reds.broker.overlay.Overlay;
+import polimi.reds.broker.overlay.PacketListener;
+import polimi.reds.broker.overlay.Proxy;
+import polimi.reds.broker.overlay.Transport;
+
+/**
+ * Keeps the durable subscriptions of the clients of a broker, delivering the
+ * messages they match even if their subscriber was disconnected when they
+ * were published, or has been restarted since.<br>
+ * The manager joins the broker as a local client, subscribing the union of
+ * the durable filters, so that the routing is unchanged. Each message it
+ * receives is appended once to a <code>MessageJournal</code>, and its offset
+ * is queued to all the durable subscribers it matches, found as in
+ * <code>ClientInbox</code> through a <code>SubscriptionTable</code> in which
+ * each subscriber has a synthetic <code>NodeDescriptor</code>. The messages
+ * are sent to the client attached to the subscriber, if any, and stay in the
+ * journal until it acknowledges them; when a client attaches, all the
+ * messages not yet acknowledged are read back from the journal and sent
+ * again. A subscriber is bound to the broker whose journal keeps its
+ * messages, so its clients must connect to that broker.<br>
+ * The messages routed to the manager and the requests of the clients are
+ * queued, in the order they arrive, to a thread of the manager, which appends
+ * to the journal, syncs it and replays the messages on attach, so that the
+ * router does not wait for the disk. The queue is bounded: when the journal
+ * falls behind, the router waits for room rather than losing messages.<br>
+ * The subscriptions and the offsets waiting for acknowledgment are kept in
+ * memory: they survive the restart of the clients, not of the broker.
+ * 
+ * @see polimi.reds.TCPDispatchingService#subscribeDurable(String, Filter)
+ */
+public class DurableSubscriptionManager implements Proxy, PacketListener, NeighborRemovedListener,
+		NeighborDeadListener {
+	/**
+	 * The default number of operations queued to the journal thread.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+	/** Ends the journal thread once the operations before it are done. */
+	private static final Runnable STOP = new Runnable() {
+		public void run() {
+		}
+	};
+	private NodeDescriptor id;
+	private Overlay overlay;
+	private LocalTransport transport;
+	private MessageJournal journal;
+	private volatile boolean opened = false;
+	/** The thread running the operations on the journal, while started. */
+	private volatile Worker worker = null;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	/** The subscribers, by name. */
+	private Map subscribers = new HashMap();
+	/** The subscribers, by synthetic node. */
+	private Map nodes = new HashMap();
+	/** The durable subscribers of each filter. */
+	private SubscriptionTable table = new GenericTable();
+	private Logger logger;
+
+	/**
+	 * Builds the manager of the durable subscriptions of a broker.
+	 * 
+	 * @param overlay
+	 *            the overlay of the broker
+	 * @param transport
+	 *            the local transport of the broker, used to join it
+	 * @param journal
+	 *            the journal storing the messages
+	 */
+	public DurableSubscriptionManager(Overlay overlay, LocalTransport transport, MessageJournal journal) {
+		this.id = new NodeDescriptor();
+		this.overlay = overlay;
+		this.transport = transport;
+		this.journal = journal;
+		logger = Logger.getLogger("polimi.reds.DurableSubscriptionManager");
+	}
+
+	/**
+	 * Sets the number of operations (messages to store and requests of the
+	 * clients) queued to the journal thread, beyond which the threads
+	 * submitting them wait. It must be called before <code>start</code>.
+	 * 
+	 * @param capacity
+	 *            the capacity of the queue
+	 */
+	public synchronized void setQueueCapacity(int capacity) {
+		if (opened)
+			throw new IllegalStateException("The manager is already started");
+		if (capacity <= 0)
+			throw new IllegalArgumentException("The capacity must be positive");
+		queueCapacity = capacity;
+	}
+
+	/**
+	 * Joins the broker and starts serving the requests of the clients.
+	 * 
+	 * @throws ConnectException
+	 *             if the manager cannot join the broker
+	 */
+	public synchronized void start() throws ConnectException {
+		if (opened)
+			return;
+		transport.accept(this);
+		worker = new Worker(queueCapacity);
+		Thread t = new Thread(worker, "DurableSubscriptionManager.journal");
+		t.setDaemon(true);
+		t.start();
+		opened = true;
+		overlay.addPacketListener(this, Envelope.DURABLE_SUBSCRIBE);
+		overlay.addPacketListener(this, Envelope.DURABLE_UNSUBSCRIBE);
+		overlay.addPacketListener(this, Envelope.DURABLE_ATTACH);
+		overlay.addPacketListener(this, Envelope.DURABLE_ACK);
+		overlay.addNeighborRemovedListener(this);
+		overlay.addNeighborDeadListener(this);
+	}
+
+	/**
+	 * Leaves the broker. The operations already queued are completed; the
+	 * journal is not closed.
+	 */
+	public void stop() {
+		Worker w;
+		synchronized (this) {
+			if (!opened)
+				return;
+			overlay.removePacketListener(this);
+			overlay.removeNeighborRemovedListener(this);
+			overlay.removeNeighborDeadListener(this);
+			Envelope close = new Envelope(Envelope.CLOSE);
+			close.setSenderID(id);
+			transport.enqueue(close);
+			opened = false;
+			w = worker;
+			worker = null;
+		}
+		// the queued operations need the lock of the manager
+		w.submit(STOP);
+	}
+
+	/**
+	 * Gets the number of messages a durable subscriber did not acknowledge.
+	 * 
+	 * @param name
+	 *            the name of the subscriber
+	 * @return the number of messages, 0 if there is no such subscriber.
+	 */
+	public synchronized int getPending(String name) {
+		Subscriber s = (Subscriber) subscribers.get(name);
+		return s == null ? 0 : s.pending.size();
+	}
+
+	/**
+	 * Gets the names of the durable subscribers.
+	 * 
+	 * @return a copy of the names.
+	 */
+	public synchronized Collection getSubscriberNames() {
+		return new ArrayList(subscribers.keySet());
+	}
+
+	public void signalPacket(final String subject, final NodeDescriptor senderID, final Serializable payload) {
+		submit(new Runnable() {
+			public void run() {
+				handle(subject, senderID, payload);
+			}
+		});
+	}
+
+	private void handle(String subject, NodeDescriptor senderID, Serializable payload) {
+		if (subject.equals(Envelope.DURABLE_ACK)) {
+			DurableDelivery ack = (DurableDelivery) payload;
+			acknowledge(ack.getName(), ack.getOffset());
+			return;
+		}
+		DurableSubscription request = (DurableSubscription) payload;
+		if (subject.equals(Envelope.DURABLE_SUBSCRIBE))
+			subscribe(senderID, request.getName(), request.getFilter());
+		else if (subject.equals(Envelope.DURABLE_UNSUBSCRIBE))
+			unsubscribe(request.getName(), request.getFilter());
+		else if (subject.equals(Envelope.DURABLE_ATTACH))
+			attach(senderID, request.getName());
+	}
+
+	private synchronized void subscribe(NodeDescriptor client, String name, Filter filter) {
+		Subscriber s = (Subscriber) subscribers.get(name);
+		if (s == null) {
+			s = new Subscriber(name);
+			subscribers.put(name, s);
+			nodes.put(s.node, s);
+		}
+		if (filter != null && !s.filters.contains(filter)) {
+			s.filters.add(filter);
+			if (!table.isFilterInTable(filter))
+				send(Envelope.SUBSCRIBE, filter);
+			table.addSubscription(s.node, filter);
+		}
+		attach(s, client);
+	}
+
+	private synchronized void unsubscribe(String name, Filter filter) {
+		Subscriber s = (Subscriber) subscribers.get(name);
+		if (s == null || !s.filters.remove(filter))
+			return;
+		table.removeSubscription(s.node, filter);
+		if (!table.isFilterInTable(filter))
+			send(Envelope.UNSUBSCRIBE, filter);
+		if (s.filters.isEmpty()) {
+			// the subscriber is gone, with its messages
+			subscribers.remove(name);
+			nodes.remove(s.node);
+			truncate();
+		}
+	}
+
+	private synchronized void attach(NodeDescriptor client, String name) {
+		Subscriber s = (Subscriber) subscribers.get(name);
+		if (s == null)
+			logger.warning("No durable subscriber " + name + " for " + client);
+		else
+			attach(s, client);
+	}
+
+	/**
+	 * Binds a subscriber to a client, sending it the messages it did not
+	 * acknowledge.
+	 */
+	private void attach(Subscriber s, NodeDescriptor client) {
+		s.client = client;
+		for (int i = 0; i < s.pending.size() && s.client != null; i++) {
+			long offset = s.pending.get(i);
+			try {
+				deliver(s, offset, journal.read(offset));
+			} catch (IOException e) {
+				logger.severe("Cannot replay message " + offset + " to " + s.name + ": " + e);
+			}
+		}
+	}
+
+	private synchronized void acknowledge(String name, long offset) {
+		Subscriber s = (Subscriber) subscribers.get(name);
+		if (s == null)
+			return;
+		boolean oldest = s.pending.size() > 0 && s.pending.get(0) == getOldest();
+		while (s.pending.size() > 0 && s.pending.get(0) <= offset)
+			s.pending.removeFirst();
+		if (oldest)
+			truncate();
+	}
+
+	/**
+	 * Gets the offset of the oldest message not acknowledged.
+	 */
+	private long getOldest() {
+		long oldest = Long.MAX_VALUE;
+		Iterator it = subscribers.values().iterator();
+		while (it.hasNext()) {
+			Subscriber s = (Subscriber) it.next();
+			if (s.pending.size() > 0 && s.pending.get(0) < oldest)
+				oldest = s.pending.get(0);
+		}
+		return oldest;
+	}
+
+	private void truncate() {
+		long oldest = getOldest();
+		journal.truncate(oldest == Long.MAX_VALUE ? journal.getEndOffset() : oldest);
+	}
+
+	/**
+	 * Stores a message routed to the manager and delivers it to the attached
+	 * subscribers.
+	 */
+	private synchronized void publish(Message msg) {
+		Collection matching = table.matches(msg);
+		if (matching.isEmpty())
+			return;
+		long offset;
+		try {
+			offset = journal.append(msg);
+		} catch (IOException e) {
+			logger.severe("Cannot store message " + msg.getID() + ": " + e);
+			return;
+		}
+		Iterator it = matching.iterator();
+		while (it.hasNext()) {
+			Subscriber s = (Subscriber) nodes.get(it.next());
+			s.pending.add(offset);
+			if (s.client != null)
+				deliver(s, offset, msg);
+		}
+	}
+
+	private void deliver(Subscriber s, long offset, Message msg) {
+		try {
+			overlay.send(Envelope.DURABLE_PUBLISH, new DurableDelivery(s.name, offset, msg), s.client,
+					Transport.MESSAGE_CLASS);
+		} catch (NotConnectedException e) {
+			logger.fine("Subscriber " + s.name + " detached from " + s.client);
+			s.client = null;
+		}
+	}
+
+	private void send(String subject, Filter filter) {
+		Envelope e = new Envelope(subject, filter, Transport.FILTER_CLASS);
+		e.setSenderID(id);
+		transport.enqueue(e);
+	}
+
+	private synchronized void detach(NodeDescriptor client) {
+		Iterator it = subscribers.values().iterator();
+		while (it.hasNext()) {
+			Subscriber s = (Subscriber) it.next();
+			if (client.equals(s.client))
+				s.client = null;
+		}
+	}
+
+	/**
+	 * Queues an operation to the journal thread, waiting while the queue is
+	 * full. Operations submitted when the manager is stopped are discarded.
+	 */
+	private void submit(Runnable task) {
+		Worker w = worker;
+		if (w != null)
+			w.submit(task);
+	}
+
+	public void signalNeighborRemoved(final NodeDescriptor removedNeighbor) {
+		submit(new Runnable() {
+			public void run() {
+				detach(removedNeighbor);
+			}
+		});
+	}
+
+	public void signalNeighborDead(final NodeDescriptor deadNeighbor) {
+		submit(new Runnable() {
+			public void run() {
+				detach(deadNeighbor);
+			}
+		});
+	}
+
+	public boolean isBroker() {
+		return false;
+	}
+
+	public boolean isClient() {
+		return true;
+	}
+
+	public NodeDescriptor getID() {
+		return id;
+	}
+
+	public boolean isConnected() {
+		return opened;
+	}
+
+	public void sendMessage(String subject, final Serializable payload, String trafficClass)
+			throws NotConnectedException {
+		if (!isConnected())
+			throw new NotConnectedException();
+		if (subject.equals(Envelope.PUBLISH))
+			submit(new Runnable() {
+				public void run() {
+					publish((Message) payload);
+				}
+			});
+		else if (subject.equals(Envelope.CLOSE))
+			disconnect();
+	}
+
+	public synchronized void disconnect() {
+		opened = false;
+	}
+
+	public String toString() {
+		return id.getID();
+	}
+
+	/**
+	 * Runs the operations on the journal, in the order they were submitted,
+	 * until it is stopped.
+	 */
+	private class Worker implements Runnable {
+		private BlockingQueue queue;
+
+		Worker(int capacity) {
+			queue = new LinkedBlockingQueue(capacity);
+		}
+
+		void submit(Runnable task) {
+			if (queue.offer(task))
+				return;
+			if (logger.isLoggable(Level.FINE))
+				logger.fine("Journal queue full: waiting");
+			try {
+				queue.put(task);
+			} catch (InterruptedException e) {
+				logger.warning("Interrupted while queuing a durable subscription operation: discarded");
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Runnable task = (Runnable) queue.take();
+					if (task == STOP)
+						return;
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						logger.severe("Durable subscription operation failed: " + e);
+					}
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			}
+		}
+	}
+
+	/**
+	 * A durable subscriber.
+	 */
+	private static class Subscriber {
+		String name;
+		NodeDescriptor node = new NodeDescriptor();
+		List filters = new ArrayList();
+		/** The offsets of the messages not acknowledged, in order. */
+		OffsetQueue pending = new OffsetQueue();
+		/** The client attached, <code>null</code> if none. */
+		NodeDescriptor client = null;
+
+		Subscriber(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * A queue of offsets stored in a growing ring of <code>long</code>s.
+	 */
+	private static class OffsetQueue {
+		private long[] ring = new long[16];
+		private int head = 0;
+		private int size = 0;
+
+		int size() {
+			return size;
+		}
+
+		long get(int i) {
+			return ring[(head + i) & (ring.length - 1)];
+		}
+
+		void add(long offset) {
+			if (size == ring.length) {
+				long[] r = new long[ring.length * 2];
+				for (int i = 0; i < size; i++)
+					r[i] = get(i);
+				ring = r;
+				head = 0;
+			}
+			ring[(head + size) & (ring.length - 1)] = offset;
+			size++;
+		}
+
+		void removeFirst() {
+			head = (head + 1) & (ring.length - 1);
+			size--;
+		}
+	}
+}
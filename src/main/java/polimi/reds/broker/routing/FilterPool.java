@@ -0,0 +1,88 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.routing;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import polimi.reds.Filter;
+
+/**
+ * A pool of canonical filter instances, used by the subscription tables so
+ * that a filter subscribed by many neighbors is stored once, however many
+ * deserialized copies of it are received. Filters are weakly referenced: a
+ * filter leaves the pool once no table holds it.<br>
+ * Filters are told apart by <code>equals</code> and <code>hashCode</code>;
+ * filters keeping the identity semantics of <code>Object</code> are never
+ * shared.
+ */
+public class FilterPool {
+	private static final FilterPool shared = new FilterPool();
+
+	private Map filters;
+
+	/**
+	 * Builds an empty pool.
+	 */
+	public FilterPool() {
+		filters = new WeakHashMap();
+	}
+
+	/**
+	 * Gets the pool shared by the subscription tables built without an
+	 * explicit pool.
+	 * 
+	 * @return the shared pool
+	 */
+	public static FilterPool getShared() {
+		return shared;
+	}
+
+	/**
+	 * Gets the canonical instance of a filter, making the filter itself
+	 * canonical if there is none yet.
+	 * 
+	 * @param filter
+	 *            the filter
+	 * @return the canonical instance equal to <code>filter</code>
+	 */
+	public synchronized Filter intern(Filter filter) {
+		if (filter == null)
+			return null;
+		WeakReference ref = (WeakReference) filters.get(filter);
+		Filter canonical = ref == null ? null : (Filter) ref.get();
+		if (canonical == null) {
+			filters.put(filter, new WeakReference(filter));
+			canonical = filter;
+		}
+		return canonical;
+	}
+
+	/**
+	 * Gets the number of distinct filters in the pool.
+	 * 
+	 * @return the number of filters
+	 */
+	public synchronized int size() {
+		return filters.size();
+	}
+}
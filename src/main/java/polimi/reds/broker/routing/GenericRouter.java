@@ -21,20 +21,31 @@
 package polimi.reds.broker.routing;
 
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.util.logging.Logger;
 import polimi.reds.Filter;
 import polimi.reds.Message;
+import polimi.reds.MessageID;
 import polimi.reds.NodeDescriptor;
+import polimi.reds.ReducibleRepliable;
 import polimi.reds.Repliable;
 import polimi.reds.Reply;
+import polimi.reds.broker.overlay.CodedPacketListener;
 import polimi.reds.broker.overlay.Overlay;
+import polimi.reds.broker.overlay.SubjectRegistry;
+import polimi.util.Gauge;
+import polimi.util.MetricsRegistry;
 
 /**
  * As its name suggests, this class implements a simple <code>Router</code> for
  * a REDS broker. It just delegates all its operations to the various other
- * components that constitutes the broker.
+ * components that constitutes the broker.<br>
+ * The number of repliable messages waiting for replies in a
+ * <code>HashReplyTable</code> is published in a <code>MetricsRegistry</code> as
+ * <code>replies.pending.</code><i>broker ID</i>. The gauge does not keep the
+ * router alive: it is removed once the router has been collected.
  */
-public class GenericRouter implements Router {
+public class GenericRouter implements Router, CodedPacketListener {
 	private NodeDescriptor id; // The ID of the core
 	protected RoutingStrategy routingStrategy; // The routingStrategy
 	private SubscriptionTable subscriptionTable; // The local subscriptions
@@ -45,6 +56,7 @@ public class GenericRouter implements Router {
 
 	private ReplyManager replyManager; // The reply manager
 	private ReplyTable replyTable; // The reply table
+	private MetricsRegistry metrics;
 
 	public GenericRouter(Overlay o) {
 		routingStrategy = null;
@@ -56,6 +68,8 @@ public class GenericRouter implements Router {
 		logger = Logger.getLogger("polimi.reds.Router");
 		id = overlay.getID();
 		id.setBroker();
+		metrics = MetricsRegistry.getShared();
+		metrics.gauge(getPendingRepliesMetric(), new PendingReplies(this, metrics));
 		logger.config("GenericRouter created for broker " + id.getID());
 	}
 
@@ -84,11 +98,42 @@ public class GenericRouter implements Router {
 	 * @see Router#publish(NodeDescriptor, Message)
 	 */
 	public synchronized void publish(NodeDescriptor neighbor, Message message) {
+		route(neighbor, message);
+	}
+
+	/**
+	 * Routes a message and records it in the reply manager if it is
+	 * repliable. Called by <code>publish</code> with the required locks held.
+	 * 
+	 * @param neighbor
+	 *            the neighbor which sent the message
+	 * @param message
+	 *            the message to route
+	 */
+	protected void route(NodeDescriptor neighbor, Message message) {
 		FutureInt numNeighbor = routingStrategy.publish(neighbor, message);
-		if (message instanceof Repliable) {
-			if (replyManager != null)
-				replyManager.recordRepliableMessage(message.getID(), neighbor, numNeighbor);
-		}
+		if (message instanceof Repliable)
+			recordRepliableMessage(neighbor, message, numNeighbor);
+	}
+
+	/**
+	 * Records a repliable message in the reply manager, if any, so that its
+	 * replies can be routed back to the neighbor which sent it. Must be called
+	 * holding the monitor of the router.
+	 * 
+	 * @param neighbor
+	 *            the neighbor which sent the message
+	 * @param message
+	 *            the repliable message
+	 * @param numNeighbor
+	 *            the number of neighbors the message has been forwarded to
+	 */
+	protected void recordRepliableMessage(NodeDescriptor neighbor, Message message, FutureInt numNeighbor) {
+		if (message instanceof ReducibleRepliable && replyManager instanceof AggregatingReplyManager)
+			((AggregatingReplyManager) replyManager).recordRepliableMessage(message.getID(), neighbor, numNeighbor,
+					((ReducibleRepliable) message).getReplyReducer());
+		else if (replyManager != null)
+			replyManager.recordRepliableMessage(message.getID(), neighbor, numNeighbor);
 	}
 
 	/**
@@ -107,9 +152,21 @@ public class GenericRouter implements Router {
 	}
 
 	/**
+	 * An <code>IndexedSubscriptionTable</code> is made to share the neighbor
+	 * slots of the overlay, so that matching results can be sent by slot.
+	 * 
 	 * @see Router#setSubscriptionTable(SubscriptionTable)
 	 */
 	public void setSubscriptionTable(SubscriptionTable subscriptionTable) {
+		if (subscriptionTable instanceof IndexedSubscriptionTable && overlay != null) {
+			IndexedSubscriptionTable table = (IndexedSubscriptionTable) subscriptionTable;
+			if (table.getNeighborIndex() != overlay.getNeighborIndex())
+				try {
+					table.setNeighborIndex(overlay.getNeighborIndex());
+				} catch (IllegalStateException e) {
+					logger.warning("The subscription table is not empty: it keeps its own neighbor index");
+				}
+		}
 		this.subscriptionTable = subscriptionTable;
 	}
 
@@ -136,6 +193,7 @@ public class GenericRouter implements Router {
 		this.replyManager = replyManager;
 		this.replyManager.setRouter(this);
 		overlay.addPacketListener(this, Router.REPLY);
+		overlay.addPacketListener(this, Router.CANCEL_REPLIES);
 	}
 
 	/**
@@ -154,6 +212,22 @@ public class GenericRouter implements Router {
 		this.replyTable = replyTable;
 	}
 
+	/**
+	 * Sets the registry of the metrics of the router and of its
+	 * <code>SubscriptionForwardingRoutingStrategy</code>, in place of the
+	 * shared one. Brokers running in the same JVM should each use their own.
+	 * 
+	 * @param registry
+	 *            the registry
+	 */
+	public void setMetricsRegistry(MetricsRegistry registry) {
+		metrics.remove(getPendingRepliesMetric());
+		metrics = registry;
+		metrics.gauge(getPendingRepliesMetric(), new PendingReplies(this, metrics));
+		if (routingStrategy instanceof SubscriptionForwardingRoutingStrategy)
+			((SubscriptionForwardingRoutingStrategy) routingStrategy).setMetricsRegistry(registry);
+	}
+
 	/**
 	 * @see Router#getReplyTable()
 	 */
@@ -176,6 +250,19 @@ public class GenericRouter implements Router {
 		replyManager.forwardReply(reply);
 	}
 
+	/**
+	 * Stops forwarding the replies of a repliable message.
+	 * 
+	 * @param neighborID
+	 *            the neighbor cancelling the replies
+	 * @param repliableMessageID
+	 *            the ID of the repliable message
+	 * @see ReplyManager#cancelReplies(MessageID, NodeDescriptor)
+	 */
+	public synchronized void cancelReplies(NodeDescriptor neighborID, MessageID repliableMessageID) {
+		replyManager.cancelReplies(repliableMessageID, neighborID);
+	}
+
 	/**
 	 * @see Router#setOverlay(Overlay)
 	 */
@@ -196,19 +283,69 @@ public class GenericRouter implements Router {
 	 *      NodeDescriptor, Serializable)
 	 */
 	public void signalPacket(String subject, NodeDescriptor senderID, Serializable payload) {
+		signalPacket(SubjectRegistry.find(subject), senderID, payload);
+	}
 
-		if (subject.equals(Router.PUBLISH))
+	/**
+	 * @see CodedPacketListener#signalPacket(int, NodeDescriptor, Serializable)
+	 */
+	public void signalPacket(int subject, NodeDescriptor senderID, Serializable payload) {
+		switch (subject) {
+		case SubjectRegistry.PUBLISH:
 			publish(senderID, (Message) payload);
-		else if (subject.equals(Router.REPLY))
+			break;
+		case SubjectRegistry.REPLY:
 			forwardReply((Reply) payload);
-		else if (subject.equals(Router.SUBSCRIBE))
+			break;
+		case SubjectRegistry.CANCEL_REPLIES:
+			cancelReplies(senderID, (MessageID) payload);
+			break;
+		case SubjectRegistry.SUBSCRIBE:
 			subscribe(senderID, (Filter) payload);
-		else if (subject.equals(Router.UNSUBSCRIBE))
+			break;
+		case SubjectRegistry.UNSUBSCRIBE:
 			unsubscribe(senderID, (Filter) payload);
-		else if (subject.equals(Router.UNSUBSCRIBEALL))
+			break;
+		case SubjectRegistry.UNSUBSCRIBEALL:
 			unsubscribeAll(senderID);
-		else {
+			break;
+		default:
 			logger.severe("unrecognized message");
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Gets the name of the gauge of the reply table: the brokers in a JVM may
+	 * share the registry.
+	 */
+	private String getPendingRepliesMetric() {
+		return "replies.pending." + id.getID();
+	}
+
+	/**
+	 * Measures the occupancy of the reply table. It holds the router weakly,
+	 * so that a registry shared by the brokers of a JVM does not keep those
+	 * stopped, and removes itself once the router is gone.
+	 */
+	private static class PendingReplies implements Gauge {
+		private WeakReference router;
+		private MetricsRegistry registry;
+		private String metric;
+
+		PendingReplies(GenericRouter router, MetricsRegistry registry) {
+			this.router = new WeakReference(router);
+			this.registry = registry;
+			this.metric = router.getPendingRepliesMetric();
+		}
+
+		public long getValue() {
+			GenericRouter r = (GenericRouter) router.get();
+			if (r == null) {
+				registry.remove(metric);
+				return 0;
+			}
+			ReplyTable t = r.replyTable;
+			return t instanceof HashReplyTable ? ((HashReplyTable) t).size() : 0;
+		}
+	}
+}
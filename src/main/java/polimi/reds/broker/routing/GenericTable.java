@@ -21,6 +21,7 @@
 package polimi.reds.broker.routing;
 
 import polimi.reds.*;
+import polimi.reds.broker.overlay.NeighborIndex;
 
 import java.util.*;
 
@@ -34,48 +35,132 @@ import java.util.*;
  * through subscription messages, and by using extensively the method
  * <code>Message.match</code> to determine the list of neighbors subscibed to a
  * given message. As a consequence of this choice, it is not particularly
- * efficient (but its "generic", as its name suggests).
+ * efficient (but its "generic", as its name suggests).<br>
+ * Filters are interned in a <code>FilterPool</code>, and each distinct filter
+ * keeps the set of its subscribers as a <code>BitSet</code> of neighbor
+ * indices, so a filter subscribed by many neighbors is stored, and matched,
+ * only once.
  ******************************************************************************/
-public class GenericTable implements SubscriptionTable {
+public class GenericTable implements IndexedSubscriptionTable {
 	/**
 	 * The <code>Map</code> that stores information about received
 	 * subscriptions. In particular, neighbors are used as keys and values are
-	 * the set of filters received by the corresponding neighbor.
+	 * the set of filters received by the corresponding neighbor. It is also
+	 * the monitor guarding the whole table.
 	 */
 	protected Map data;
 
 	/**
-	 * Builds an empty <code>GenericTable</code>.
+	 * The distinct filters in the table, mapped to the set of indices of the
+	 * neighbors subscribed to them.
+	 */
+	private Map subscribers;
+
+	private NeighborIndex neighbors;
+
+	private FilterPool pool;
+
+	/**
+	 * Builds an empty <code>GenericTable</code> interning filters in the
+	 * shared <code>FilterPool</code>.
 	 */
 	public GenericTable() {
+		this(FilterPool.getShared());
+	}
+
+	/**
+	 * Builds an empty <code>GenericTable</code>.
+	 * 
+	 * @param pool
+	 *            the pool filters are interned in
+	 */
+	public GenericTable(FilterPool pool) {
 		data = Collections.synchronizedMap(new HashMap());
+		subscribers = new LinkedHashMap();
+		neighbors = new NeighborIndex();
+		this.pool = pool;
 	}
 
 	public void addSubscription(NodeDescriptor n, Filter f) {
-		List filters = (List) data.get(n);
-		if (filters == null) {
-			filters = new ArrayList();
+		f = pool.intern(f);
+		synchronized (data) {
+			List filters = (List) data.get(n);
+			if (filters == null) {
+				filters = new ArrayList(1);
+				data.put(n, filters);
+			} else if (filters.contains(f))
+				return;
 			filters.add(f);
-			data.put(n, filters);
-		} else {
-			if (!filters.contains(f))
-				filters.add(f);
+			BitSet subscribed = (BitSet) subscribers.get(f);
+			if (subscribed == null) {
+				subscribed = new BitSet();
+				subscribers.put(f, subscribed);
+			}
+			subscribed.set(neighbors.add(n));
 		}
 	}
 
 	public void removeSubscription(NodeDescriptor n, Filter f) {
-		List filters = (List) data.get(n);
-		if (filters != null) {
-			filters.remove(f);
+		synchronized (data) {
+			List filters = (List) data.get(n);
+			int i = filters == null ? -1 : filters.indexOf(f);
+			if (i < 0)
+				return;
+			// the subscribers are keyed by the instance stored, not by f
+			unsubscribe((Filter) filters.remove(i), neighbors.indexOf(n));
+			if (filters.isEmpty()) {
+				data.remove(n);
+				neighbors.remove(n);
+			}
 		}
 	}
 
 	public void removeAllSubscriptions(NodeDescriptor n) {
-		data.remove(n);
+		synchronized (data) {
+			List filters = (List) data.remove(n);
+			if (filters == null)
+				return;
+			int index = neighbors.indexOf(n);
+			Iterator it = filters.iterator();
+			while (it.hasNext())
+				unsubscribe((Filter) it.next(), index);
+			neighbors.remove(n);
+		}
+	}
+
+	/**
+	 * Removes a neighbor from the subscribers of a filter, and the filter if
+	 * it has no more subscribers.
+	 */
+	private void unsubscribe(Filter f, int index) {
+		BitSet subscribed = (BitSet) subscribers.get(f);
+		if (subscribed == null)
+			return;
+		subscribed.clear(index);
+		if (subscribed.isEmpty())
+			subscribers.remove(f);
 	}
 
 	public void clear() {
-		data.clear();
+		synchronized (data) {
+			Iterator it = data.keySet().iterator();
+			while (it.hasNext())
+				neighbors.remove((NodeDescriptor) it.next());
+			data.clear();
+			subscribers.clear();
+		}
+	}
+
+	public void setNeighborIndex(NeighborIndex index) {
+		synchronized (data) {
+			if (!data.isEmpty())
+				throw new IllegalStateException("The table is not empty");
+			neighbors = index;
+		}
+	}
+
+	public NeighborIndex getNeighborIndex() {
+		return neighbors;
 	}
 
 	public boolean isSubscribed(NodeDescriptor n) {
@@ -93,24 +178,23 @@ public class GenericTable implements SubscriptionTable {
 
 	public Collection getAllFiltersExcept(boolean duplicate, NodeDescriptor n) {
 		Collection result = new ArrayList();
-		Set keys = data.keySet();
 		synchronized (data) {
-			Iterator it = keys.iterator();
-			NodeDescriptor currentNeighbor;
-			while (it.hasNext()) {
-				currentNeighbor = (NodeDescriptor) it.next();
-				if (currentNeighbor.equals(n))
-					continue; // skip neighbor n
-				Collection filters = (Collection) data.get(currentNeighbor);
-				if (duplicate)
-					result.addAll(filters);
-				else {
-					Iterator it1 = filters.iterator();
-					while (it1.hasNext()) {
-						Filter f = (Filter) it1.next();
-						if (!result.contains(f))
-							result.add(f);
-					}
+			if (duplicate) {
+				Iterator it = data.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry e = (Map.Entry) it.next();
+					if (!e.getKey().equals(n))
+						result.addAll((Collection) e.getValue());
+				}
+			} else {
+				int except = neighbors.indexOf(n);
+				Iterator it = subscribers.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry e = (Map.Entry) it.next();
+					BitSet subscribed = (BitSet) e.getValue();
+					// skip the filters subscribed by neighbor n only
+					if (subscribed.nextSetBit(0) != except || subscribed.nextSetBit(except + 1) >= 0)
+						result.add(e.getKey());
 				}
 			}
 		}
@@ -118,44 +202,20 @@ public class GenericTable implements SubscriptionTable {
 	}
 
 	public boolean isFilterInTable(Filter filter) {
-		Collection val = data.values();
 		synchronized (data) {
-			Iterator it = val.iterator();
-			Collection c;
-			while (it.hasNext()) {
-				c = (Collection) it.next();
-				if (c.contains(filter))
-					return true;
-			}
+			return subscribers.containsKey(filter);
 		}
-		return false;
 	}
 
 	public NodeDescriptor getSingleSubscribedBroker(Filter filter) {
-		NodeDescriptor foundBroker = null;
-		// iterates over the subscribed neighbors
-		Set keys = data.keySet();
 		synchronized (data) {
-			Iterator it = keys.iterator();
-			while (it.hasNext()) {
-				NodeDescriptor currentNeighbor = (NodeDescriptor) it.next();
-				if (((Collection) data.get(currentNeighbor)).contains(filter)) {
-					if (foundBroker != null || !currentNeighbor.isBroker()) { // more
-																				// than
-																				// one
-																				// broker
-																				// found
-																				// or
-																				// a
-																				// client
-																				// found
-						return null;
-					}
-					foundBroker = currentNeighbor;
-				}
-			}
+			BitSet subscribed = (BitSet) subscribers.get(filter);
+			// more than one neighbor or a client found
+			if (subscribed == null || subscribed.cardinality() != 1)
+				return null;
+			NodeDescriptor foundBroker = neighbors.get(subscribed.nextSetBit(0));
+			return foundBroker.isBroker() ? foundBroker : null;
 		}
-		return foundBroker;
 	}
 
 	public Collection matches(Message message) {
@@ -163,47 +223,34 @@ public class GenericTable implements SubscriptionTable {
 	}
 
 	public Collection matches(Message message, NodeDescriptor senderID) {
-		List matchingNeighbors = new ArrayList();
-		// iterates over the subscribed neighbors
-		Set keys = data.keySet();
+		BitSet matching = new BitSet();
+		matches(message, senderID, matching);
+		return neighbors.toNeighbors(matching, -1, new ArrayList(matching.cardinality()));
+	}
+
+	public void matches(Message message, NodeDescriptor senderID, BitSet result) {
+		result.clear();
 		synchronized (data) {
-			Iterator it = keys.iterator();
-			NodeDescriptor currentNeighbor;
+			// iterates over the distinct filters
+			Iterator it = subscribers.entrySet().iterator();
 			while (it.hasNext()) {
-				currentNeighbor = (NodeDescriptor) it.next();
-				// Check if currentNeighbor is subscribed to the message
-				// iterates over the set of filters for currentNeighbor
-				if (senderID.equals(currentNeighbor))
-					continue;
-				Iterator it1 = ((Collection) data.get(currentNeighbor)).iterator();
-				while (it1.hasNext()) {
-					Filter f = (Filter) it1.next();
-					if (f.matches(message)) {
-						matchingNeighbors.add(currentNeighbor);
-						break;
-					}
-				}
+				Map.Entry e = (Map.Entry) it.next();
+				if (((Filter) e.getKey()).matches(message))
+					result.or((BitSet) e.getValue());
 			}
+			int sender = neighbors.indexOf(senderID);
+			if (sender >= 0)
+				result.clear(sender);
 		}
-		return matchingNeighbors;
 	}
 
 	public Collection getSubscribedNeighbors(Filter f) {
-		List matchingNeighbors = new ArrayList();
-		// iterates over the subscribed neighbors
-		Set keys = data.keySet();
 		synchronized (data) {
-			Iterator it = keys.iterator();
-			NodeDescriptor currentNeighbor;
-			while (it.hasNext()) {
-				currentNeighbor = (NodeDescriptor) it.next();
-				// Check if currentNeighbor is subscribed to the message
-				if (((Collection) data.get(currentNeighbor)).contains(f)) {
-					matchingNeighbors.add(currentNeighbor);
-				}
-			}
+			BitSet subscribed = (BitSet) subscribers.get(f);
+			if (subscribed == null)
+				return new ArrayList();
+			return neighbors.toNeighbors(subscribed, -1, new ArrayList());
 		}
-		return matchingNeighbors;
 	}
 
 	// *** For debug purposes
@@ -20,21 +20,30 @@
 
 package polimi.reds.broker.routing;
 
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import polimi.reds.MessageID;
 import polimi.reds.NodeDescriptor;
+import polimi.util.TimerWheel;
 
 /**
- * This is a implementation of <code>ReplyTable</code> using an
- * <code>Hashtable</code>. This hashtable uses as key the ID of the
+ * This is a implementation of <code>ReplyTable</code> using a
+ * <code>ConcurrentHashMap</code>. This map uses as key the ID of the
  * corresponding repliable message, and as value an <code>EntryReply</code>
- * object.<br>
+ * object. Lookups on different messages never contend for the same lock.<br>
+ * 
+ * Each entry schedules its own expiration on the shared
+ * <code>TimerWheel</code> and cancels it when it is removed, so
+ * <code>removeExpiredEntries</code> has nothing left to do and every operation
+ * takes constant time, however many repliable messages are in flight. The
+ * entries whose number of expected replies was not known when they were added
+ * (i.e., those recorded by an asynchronous routing policy) are also kept
+ * aside, so that <code>removeCompletedEntries</code> only inspects them.<br>
  * 
  * Users can specify how long broker waits for the replies using the appropriate
  * setter and getter methods. If no value or a negative is specified, the broker
@@ -47,17 +56,35 @@ public class HashReplyTable implements ReplyTable {
 	 * Default Timeout value.
 	 */
 	public static final long DEFAULT_TIMEOUT = 10000000;
-	private Map data;
+	private ConcurrentHashMap data;
+	/**
+	 * The entries whose number of expected replies was not set yet when they
+	 * were added.
+	 */
+	private ConcurrentHashMap undecided;
+	private TimerWheel timer;
 	private Logger logger;
 	private long timeout;
 
 	/**
-	 * Base constructor. It creates an empty <code>Hashtable</code>, and it
-	 * starts a <code>GarbageCollector</code> thread.
+	 * Base constructor. It creates an empty table whose entries expire on the
+	 * shared <code>TimerWheel</code>.
 	 * 
 	 */
 	public HashReplyTable() {
-		data = Collections.synchronizedMap(new HashMap());
+		this(TimerWheel.getShared());
+	}
+
+	/**
+	 * Creates an empty table whose entries expire on the given wheel.
+	 * 
+	 * @param timer
+	 *            the wheel scheduling the expiration of the entries
+	 */
+	public HashReplyTable(TimerWheel timer) {
+		data = new ConcurrentHashMap();
+		undecided = new ConcurrentHashMap();
+		this.timer = timer;
 		logger = Logger.getLogger("polimi.reds.SimpleReplyTable");
 		timeout = DEFAULT_TIMEOUT;
 	}
@@ -69,15 +96,19 @@ public class HashReplyTable implements ReplyTable {
 			throws MalformedException, DuplicateKeyException {
 		if (repliableMessageID == null || senderID == null)
 			throw new MalformedException();
-		EntryReply e = (EntryReply) data.get(repliableMessageID.toString());
-		if (e != null)
+		EntryReply e = new EntryReply(repliableMessageID, senderID, timeout, numNeighbor);
+		if (data.putIfAbsent(repliableMessageID, e) != null)
 			throw new DuplicateKeyException();
-		data.put(repliableMessageID.toString(), new EntryReply(senderID, timeout, numNeighbor));
-		int numRepl = -1;
-		if (numNeighbor.isDone())
-			numRepl = numNeighbor.getValue();
-		logger.fine("New entry for " + repliableMessageID.toString() + " coming from " + senderID.getID()
-				+ " set in the table;" + " waiting for " + numRepl + " replies");
+		if (!numNeighbor.isDone())
+			undecided.put(repliableMessageID, e);
+		e.schedule();
+		if (logger.isLoggable(Level.FINE)) {
+			int numRepl = -1;
+			if (numNeighbor.isDone())
+				numRepl = numNeighbor.getValue();
+			logger.fine("New entry for " + repliableMessageID + " coming from " + senderID.getID()
+					+ " set in the table;" + " waiting for " + numRepl + " replies");
+		}
 	}
 
 	/**
@@ -85,27 +116,19 @@ public class HashReplyTable implements ReplyTable {
 	 */
 	public NodeDescriptor getSender(MessageID repliableMessageID) {
 		NodeDescriptor s = null;
-		EntryReply e = (EntryReply) data.get(repliableMessageID.toString());
+		EntryReply e = (EntryReply) data.get(repliableMessageID);
 		if (e != null)
 			s = e.senderID;
 		return s;
 	}
 
 	/**
+	 * Entries expire by themselves on the <code>TimerWheel</code>: this
+	 * method does nothing.
+	 * 
 	 * @see polimi.reds.broker.routing.ReplyTable#removeExpiredEntries()
 	 */
 	public void removeExpiredEntries() {
-		Set entries = data.entrySet();
-		synchronized (data) {
-			Iterator it = entries.iterator();
-			while (it.hasNext()) {
-				Map.Entry elem = (Map.Entry) it.next();
-				if (((EntryReply) elem.getValue()).timeout < System.currentTimeMillis()) {
-					it.remove();
-					logger.fine("Entry removed");
-				}
-			}
-		}
 	}
 
 	/**
@@ -113,7 +136,7 @@ public class HashReplyTable implements ReplyTable {
 	 */
 	public int getNumberOfPendingReplies(MessageID repliableMessageID) throws NoEntryException {
 		if (repliableMessageID != null) {
-			EntryReply e = (EntryReply) data.get(repliableMessageID.toString());
+			EntryReply e = (EntryReply) data.get(repliableMessageID);
 			if (e != null)
 				return e.expectedReplies.getValue();
 			else
@@ -127,7 +150,7 @@ public class HashReplyTable implements ReplyTable {
 	 */
 	public long getExpiringTime(MessageID repliableMessageID) throws NoEntryException {
 		if (repliableMessageID != null) {
-			EntryReply e = (EntryReply) data.get(repliableMessageID.toString());
+			EntryReply e = (EntryReply) data.get(repliableMessageID);
 			if (e != null)
 				return e.timeout;
 			else
@@ -142,15 +165,18 @@ public class HashReplyTable implements ReplyTable {
 	public void decrementNumberOfPendingReplies(MessageID repliableMessageID) throws NullPointerException,
 			IllegalStateException {
 		if (repliableMessageID != null) {
-			EntryReply e = (EntryReply) data.get(repliableMessageID.toString());
+			EntryReply e = (EntryReply) data.get(repliableMessageID);
 			if (e != null) {
-				if (e.expectedReplies.isDone()) {
-					e.expectedReplies.decrement();
-					logger.fine("Number of expected replies decremented of one");
-					if (e.expectedReplies.getValue() == 0)
-						removeEntry(repliableMessageID);
-				} else
+				if (!e.expectedReplies.isDone())
 					throw new IllegalStateException();
+				boolean completed;
+				synchronized (e) {
+					e.expectedReplies.decrement();
+					completed = e.expectedReplies.getValue() == 0;
+				}
+				logger.fine("Number of expected replies decremented of one");
+				if (completed)
+					removeEntry(repliableMessageID);
 			}
 		} else
 			throw new NullPointerException();
@@ -161,13 +187,27 @@ public class HashReplyTable implements ReplyTable {
 	 */
 	public void removeEntry(MessageID repliableMessageID) throws NullPointerException {
 		if (repliableMessageID != null) {
-			data.remove(repliableMessageID.toString());
-			logger.fine("Entry for " + repliableMessageID + " removed");
+			EntryReply e = (EntryReply) data.remove(repliableMessageID);
+			if (e != null) {
+				e.cancel();
+				undecided.remove(repliableMessageID);
+				if (logger.isLoggable(Level.FINE))
+					logger.fine("Entry for " + repliableMessageID + " removed");
+			}
 		} else
 			throw new NullPointerException();
 
 	}
 
+	/**
+	 * Gets the number of repliable messages still waiting for replies.
+	 * 
+	 * @return the number of entries in the table.
+	 */
+	public int size() {
+		return data.size();
+	}
+
 	/**
 	 * @see ReplyTable#setTimeout(long)
 	 */
@@ -184,25 +224,28 @@ public class HashReplyTable implements ReplyTable {
 	}
 
 	/**
+	 * Only the entries whose number of expected replies was not known when
+	 * they were added are inspected; those which learnt in the meantime that
+	 * some reply will arrive are left in the table and no longer inspected.
+	 * 
 	 * @see ReplyTable#removeCompletedEntries()
 	 */
 	public Map removeCompletedEntries() {
 		Map map = new HashMap();
-		Set entries = data.entrySet();
-		synchronized (data) {
-			Iterator it = entries.iterator();
-			while (it.hasNext()) {
-				Map.Entry next = (Map.Entry) it.next();
-				/*
-				 * Need a check of isDone to not block in case of asynchronous
-				 * behavior.
-				 */
-				if (((EntryReply) next.getValue()).expectedReplies.isDone()
-						&& ((EntryReply) next.getValue()).expectedReplies.getValue() == 0) {
-					map.put(((EntryReply) next.getValue()).senderID, ((EntryReply) next.getKey()));
-					it.remove();
-					logger.fine("Entry removed");
-				}
+		Iterator it = undecided.values().iterator();
+		while (it.hasNext()) {
+			EntryReply e = (EntryReply) it.next();
+			/*
+			 * Need a check of isDone to not block in case of asynchronous
+			 * behavior.
+			 */
+			if (!e.expectedReplies.isDone())
+				continue;
+			it.remove();
+			if (e.expectedReplies.getValue() == 0 && data.remove(e.id, e)) {
+				e.cancel();
+				map.put(e.id, e.senderID);
+				logger.fine("Entry removed");
 			}
 		}
 		return map;
@@ -213,13 +256,17 @@ public class HashReplyTable implements ReplyTable {
 	 * composed by a <code>String senderID</code> that is the
 	 * <code>NeighborID</code> of the repliable message's sender, an
 	 * <code>int expectedReplies</code> that is the number of neighbors which
-	 * received the repliable messages and must respond yet, a
-	 * <code>long timeout</code> and <code>LinkedList</code> used as queue to
-	 * store replies.
+	 * received the repliable messages and must respond yet, and a
+	 * <code>long timeout</code>. It is also the task that removes itself from
+	 * the table when the timeout expires.
 	 * 
 	 * @author Alessandro Monguzzi
 	 */
-	private class EntryReply {
+	private class EntryReply implements Runnable {
+		/**
+		 * This is the ID of the repliable message.
+		 */
+		MessageID id;
 		/**
 		 * This is the <code>NeighborID</code> of the sender of the repliable
 		 * message.
@@ -236,27 +283,50 @@ public class HashReplyTable implements ReplyTable {
 		 * This is the number of the neighbors which have to reply yet.
 		 */
 		FutureInt expectedReplies;
+		private TimerWheel.Timeout expiration;
 
 		/**
 		 * Base Constructor. If a negative timeout is given, it uses the
 		 * <code>DEFAULT_TIMEOUT</code> value.
 		 * 
+		 * @param id
+		 *            the ID of the repliable message.
 		 * @param senderID
 		 *            the ID of the sender of the repliable message.
-		 * @param expectedReplies
-		 *            number of the neighbors which have to reply yet.
 		 * @param timeout
 		 *            expiration timeout.
-		 * @param future
-		 *            future value of the expectedReplies.
+		 * @param expectedReplies
+		 *            future value of the number of the neighbors which have to
+		 *            reply yet.
 		 */
-		public EntryReply(NodeDescriptor senderID, long timeout, FutureInt expectedReplies) {
+		public EntryReply(MessageID id, NodeDescriptor senderID, long timeout, FutureInt expectedReplies) {
+			this.id = id;
 			this.senderID = senderID;
 			this.expectedReplies = expectedReplies;
 			if (timeout < 0)
 				timeout = DEFAULT_TIMEOUT;
 			this.timeout = timeout + System.currentTimeMillis();
 		}
-	}
-}// end class HashReplyTable
 
+		synchronized void schedule() {
+			if (data.get(id) == this)
+				expiration = timer.schedule(this, timeout - System.currentTimeMillis());
+		}
+
+		synchronized void cancel() {
+			if (expiration != null)
+				expiration.cancel();
+		}
+
+		/**
+		 * Called by the <code>TimerWheel</code> when the entry expires.
+		 */
+		public void run() {
+			if (data.remove(id, this)) {
+				undecided.remove(id);
+				if (logger.isLoggable(Level.FINE))
+					logger.fine("Entry for " + id + " expired");
+			}
+		}
+	}
+}
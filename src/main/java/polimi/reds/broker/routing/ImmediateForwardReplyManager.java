@@ -25,9 +25,11 @@ import polimi.reds.NodeDescriptor;
 import polimi.reds.NotConnectedException;
 import polimi.reds.Reply;
 import polimi.reds.broker.overlay.Overlay;
+import polimi.reds.broker.overlay.Transport;
 
 import java.util.Iterator;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -37,9 +39,9 @@ import java.util.logging.Logger;
  */
 public class ImmediateForwardReplyManager implements ReplyManager {
 	private Router router;
-	private ReplyTable replyTable;
+	protected ReplyTable replyTable;
 	private GarbageCollector garbageCollector;
-	private Logger logger;
+	protected Logger logger;
 	private Overlay overlay = null;
 
 	/**
@@ -60,7 +62,8 @@ public class ImmediateForwardReplyManager implements ReplyManager {
 		if (!numExpectedReplies.isDone() || numExpectedReplies.getValue() > 0) {
 			// some reply must arrive => record in the reply table
 			try {
-				logger.fine("Recording message " + repliableMessageID.toString());
+				if (logger.isLoggable(Level.FINE))
+					logger.fine("Recording message " + repliableMessageID);
 				replyTable.addEntry(repliableMessageID, senderID, numExpectedReplies);
 			} catch (MalformedException e) {
 				logger.warning("Error in recording " + repliableMessageID + ": Malformed parameters");
@@ -71,11 +74,26 @@ public class ImmediateForwardReplyManager implements ReplyManager {
 			}
 		} else {// no reply will ever arrive from this message => send a fake
 				// last reply
-			logger.fine("Sending an empty reply for " + repliableMessageID);
-			sendReply(new Reply(repliableMessageID, true, null), senderID);
+			replyCompleted(repliableMessageID, senderID);
 		}
 	}
 
+	/**
+	 * Called when no more replies will arrive for a repliable message, either
+	 * because it reached no neighbor or because the neighbors it reached were
+	 * known only after its entry had been recorded. It sends a fake last reply
+	 * to the sender of the message.
+	 * 
+	 * @param repliableMessageID
+	 *            the ID of the repliable message
+	 * @param senderID
+	 *            the ID of the neighbor which sent the repliable message
+	 */
+	protected void replyCompleted(MessageID repliableMessageID, NodeDescriptor senderID) {
+		logger.fine("Sending an empty reply for " + repliableMessageID);
+		sendReply(new Reply(repliableMessageID, true, null), senderID);
+	}
+
 	/**
 	 * @see ReplyManager#forwardReply(Reply)
 	 */
@@ -121,7 +139,31 @@ public class ImmediateForwardReplyManager implements ReplyManager {
 				 * who waited for this reply and so it is discarded.
 				 */
 				logger.warning("Reply" + reply.toString()
-						+ " arrived after the expiration of the timeout and is discarded.");
+						+ " arrived after the expiration of the timeout or the cancellation of the request"
+						+ " and is discarded.");
+			}
+		}
+	}
+
+	/**
+	 * @see ReplyManager#cancelReplies(MessageID, NodeDescriptor)
+	 */
+	public void cancelReplies(MessageID repliableMessageID, NodeDescriptor senderID) {
+		NodeDescriptor requester = replyTable.getSender(repliableMessageID);
+		if (requester == null || !requester.equals(senderID))
+			return;
+		replyTable.removeEntry(repliableMessageID);
+		logger.fine("Replies to " + repliableMessageID + " cancelled");
+		// clients would take the cancellation for a message
+		Iterator it = overlay.getAllNeighborsExcept(senderID).iterator();
+		while (it.hasNext()) {
+			NodeDescriptor next = (NodeDescriptor) it.next();
+			if (!next.isBroker())
+				continue;
+			try {
+				overlay.send(Router.CANCEL_REPLIES, repliableMessageID, next, Transport.REPLY_CLASS);
+			} catch (NotConnectedException e) {
+				// it will not forward replies either
 			}
 		}
 	}
@@ -162,7 +204,7 @@ public class ImmediateForwardReplyManager implements ReplyManager {
 	 * @param senderID
 	 *            the ID of the sender of the repliable message.
 	 */
-	private void sendReply(Reply reply, NodeDescriptor senderID) {
+	protected void sendReply(Reply reply, NodeDescriptor senderID) {
 		if (senderID != null) {
 			// sends the reply
 			logger.fine("Reply " + reply + " sent to " + senderID);
@@ -204,8 +246,11 @@ public class ImmediateForwardReplyManager implements ReplyManager {
 
 	/**
 	 * This thread can be used to manage the aging of a table. Every
-	 * <code>SLEEP_INTERVAL</code> it invokes the method
-	 * <code>ReplyTable.removeExpiredEntries()</code>.
+	 * <code>SLEEP_INTERVAL</code> it invokes the methods
+	 * <code>ReplyTable.removeCompletedEntries()</code> and
+	 * <code>ReplyTable.removeExpiredEntries()</code>; the latter does nothing
+	 * for tables, like <code>HashReplyTable</code>, whose entries expire on a
+	 * <code>TimerWheel</code>.
 	 * 
 	 * @author Alessandro Monguzzi
 	 */
@@ -230,8 +275,7 @@ public class ImmediateForwardReplyManager implements ReplyManager {
 				Iterator it = fakeNeighbors.entrySet().iterator();
 				while (it.hasNext()) {
 					Map.Entry next = (Map.Entry) it.next();
-					logger.fine("Sending an empty reply for " + next);
-					sendReply(new Reply((MessageID) next.getValue(), true, null), (NodeDescriptor) next.getKey());
+					replyCompleted((MessageID) next.getKey(), (NodeDescriptor) next.getValue());
 				}
 				replyTable.removeExpiredEntries();
 				try {
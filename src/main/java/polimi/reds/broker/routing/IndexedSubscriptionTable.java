@@ -0,0 +1,70 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.routing;
+
+import java.util.BitSet;
+
+import polimi.reds.Message;
+import polimi.reds.NodeDescriptor;
+import polimi.reds.broker.overlay.NeighborIndex;
+
+/**
+ * A <code>SubscriptionTable</code> keeping its neighbors in the slots of a
+ * <code>NeighborIndex</code>, which can be the one of the overlay. Such a
+ * table can match a message into a caller-provided <code>BitSet</code> of
+ * slots, so that a broker can route messages without allocating a collection
+ * of neighbors for each of them.
+ * 
+ * @see polimi.reds.broker.overlay.Overlay#getNeighborIndex()
+ */
+public interface IndexedSubscriptionTable extends SubscriptionTable {
+	/**
+	 * Sets the index the neighbors of this table are kept in. It must be called
+	 * while the table is empty.
+	 * 
+	 * @param index
+	 *            the index
+	 * @throws IllegalStateException
+	 *             if the table is not empty
+	 */
+	public void setNeighborIndex(NeighborIndex index);
+
+	/**
+	 * Gets the index the neighbors of this table are kept in.
+	 * 
+	 * @return the index
+	 */
+	public NeighborIndex getNeighborIndex();
+
+	/**
+	 * Finds the neighbors that have at least one filter that matches the given
+	 * message, ignoring the neighbor whose ID is passed as parameter.
+	 * 
+	 * @param message
+	 *            The message to match.
+	 * @param excludedDestination
+	 *            the ID of the neighbor that is excluded from matching.
+	 * @param result
+	 *            the set, cleared first, filled with the slots of the
+	 *            matching neighbors.
+	 */
+	public void matches(Message message, NodeDescriptor excludedDestination, BitSet result);
+}
@@ -0,0 +1,373 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.routing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import polimi.reds.Message;
+import polimi.reds.broker.overlay.REDSMarshaller;
+import polimi.reds.broker.overlay.REDSUnmarshaller;
+
+/**
+ * An append-only journal of messages, kept in a directory as a sequence of
+ * memory-mapped segment files. Each message is serialized once and identified
+ * by its offset, the position of its record in the whole journal, so that the
+ * ones waiting to be delivered can be referenced by offset and read back from
+ * the disk instead of being kept on the heap.<br>
+ * A record is made of the length of the serialized message and its bytes; a
+ * length of 0 ends a segment. A segment is named after the offset of its first
+ * record, and is deleted by <code>truncate</code> when all its messages have
+ * been delivered.<br>
+ * Appends are made durable in batches: the segment being written is forced to
+ * the disk once every <code>syncEvery</code> appends and by a daemon thread
+ * every <code>syncInterval</code> ms, or on demand by <code>sync</code>.
+ * Reopening a directory recovers the messages it holds.
+ * 
+ * @see DurableSubscriptionManager
+ */
+public class MessageJournal {
+	/**
+	 * The default size of a segment: 64 MB.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+	/**
+	 * The default number of appends between two syncs.
+	 */
+	public static final int DEFAULT_SYNC_EVERY = 256;
+	/**
+	 * The default time between two syncs, in ms.
+	 */
+	public static final long DEFAULT_SYNC_INTERVAL = 50;
+	private static final String SUFFIX = ".journal";
+
+	private File directory;
+	private int segmentSize;
+	private int syncEvery;
+	/** The segments, indexed by the offset of their first record. */
+	private TreeMap segments = new TreeMap();
+	private Segment last = null;
+	private int unsynced = 0;
+	private boolean closed = false;
+	private Thread syncer;
+	private Logger logger;
+
+	/**
+	 * Opens the journal in the given directory with the default segment size
+	 * and sync policy, creating it if needed.
+	 * 
+	 * @param directory
+	 *            the directory
+	 * @throws IOException
+	 *             if the directory cannot be created or a segment cannot be
+	 *             read
+	 */
+	public MessageJournal(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_EVERY, DEFAULT_SYNC_INTERVAL);
+	}
+
+	/**
+	 * Opens the journal in the given directory, creating it if needed.
+	 * 
+	 * @param directory
+	 *            the directory
+	 * @param segmentSize
+	 *            the size of a segment, in bytes
+	 * @param syncEvery
+	 *            the number of appends after which the journal is synced, 1
+	 *            to sync each append
+	 * @param syncInterval
+	 *            the time after which the appends are synced, in ms, 0 to
+	 *            only sync after <code>syncEvery</code> appends
+	 * @throws IOException
+	 *             if the directory cannot be created or a segment cannot be
+	 *             read
+	 */
+	public MessageJournal(File directory, int segmentSize, int syncEvery, final long syncInterval)
+			throws IOException {
+		if (segmentSize < 64 || syncEvery < 1 || syncInterval < 0)
+			throw new IllegalArgumentException("Segment size " + segmentSize + ", sync every " + syncEvery
+					+ ", sync interval " + syncInterval);
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncEvery = syncEvery;
+		logger = Logger.getLogger("polimi.reds.MessageJournal");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		recover();
+		if (syncInterval > 0) {
+			syncer = new Thread("MessageJournal.syncer") {
+				public void run() {
+					try {
+						while (true) {
+							Thread.sleep(syncInterval);
+							synchronized (MessageJournal.this) {
+								if (closed)
+									return;
+								if (unsynced > 0)
+									syncLast();
+							}
+						}
+					} catch (InterruptedException e) {
+						// closed
+					}
+				}
+			};
+			syncer.setDaemon(true);
+			syncer.start();
+		}
+	}
+
+	private void recover() throws IOException {
+		File[] files = directory.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			if (!name.endsWith(SUFFIX))
+				continue;
+			long base;
+			try {
+				base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			segments.put(new Long(base), new Segment(files[i], base, 0));
+		}
+		if (segments.isEmpty())
+			return;
+		// only the last segment may have room left: find where it ends
+		last = (Segment) segments.get(segments.lastKey());
+		int position = 0;
+		while (position + 4 <= last.map.capacity()) {
+			int length = last.map.getInt(position);
+			if (length <= 0 || position + 4 + length > last.map.capacity())
+				break;
+			position += 4 + length;
+		}
+		last.position = position;
+		logger.config("Journal " + directory + " recovered " + segments.size() + " segments up to offset "
+				+ getEndOffset());
+	}
+
+	/**
+	 * Appends a message.
+	 * 
+	 * @param msg
+	 *            the message
+	 * @return the offset of the message.
+	 * @throws IOException
+	 *             if the message cannot be serialized or written
+	 */
+	public long append(Message msg) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		REDSMarshaller out = new REDSMarshaller(bytes);
+		out.writeObject(msg);
+		out.close();
+		byte[] data = bytes.toByteArray();
+		int length = data.length;
+		synchronized (this) {
+			if (closed)
+				throw new IOException("Journal closed");
+			// the record and the end marker must fit; the length is written
+			// last, so that a record is recovered only if it is complete
+			if (last == null || last.position + 8 + length > last.map.capacity())
+				roll(8 + length);
+			long offset = last.base + last.position;
+			last.map.position(last.position + 4);
+			last.map.put(data);
+			last.map.putInt(last.position, length);
+			last.position += 4 + length;
+			if (++unsynced >= syncEvery)
+				syncLast();
+			return offset;
+		}
+	}
+
+	private void roll(int needed) throws IOException {
+		long base = 0;
+		if (last != null) {
+			syncLast();
+			base = last.base + last.position;
+		}
+		File f = new File(directory, format(base) + SUFFIX);
+		last = new Segment(f, base, Math.max(segmentSize, needed));
+		segments.put(new Long(base), last);
+	}
+
+	private static String format(long base) {
+		String s = "0000000000000000000" + base;
+		return s.substring(s.length() - 19);
+	}
+
+	/**
+	 * Reads a message.
+	 * 
+	 * @param offset
+	 *            the offset returned by <code>append</code>
+	 * @return the message.
+	 * @throws IOException
+	 *             if there is no message at <code>offset</code> or it cannot
+	 *             be deserialized
+	 */
+	public Message read(long offset) throws IOException {
+		byte[] data;
+		synchronized (this) {
+			if (closed)
+				throw new IOException("Journal closed");
+			Map.Entry e = segments.floorEntry(new Long(offset));
+			if (e == null)
+				throw new IOException("No message at offset " + offset);
+			Segment s = (Segment) e.getValue();
+			int position = (int) (offset - s.base);
+			int length = position + 4 <= s.map.capacity() ? s.map.getInt(position) : 0;
+			if (length <= 0 || (s == last && position >= last.position))
+				throw new IOException("No message at offset " + offset);
+			data = new byte[length];
+			s.map.position(position + 4);
+			s.map.get(data);
+		}
+		try {
+			return (Message) new REDSUnmarshaller(new ByteArrayInputStream(data)).readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot read the message at offset " + offset + ": " + e);
+		}
+	}
+
+	/**
+	 * Gets the offset the next message will be appended at.
+	 * 
+	 * @return the end of the journal.
+	 */
+	public synchronized long getEndOffset() {
+		return last == null ? 0 : last.base + last.position;
+	}
+
+	/**
+	 * Gets the number of segments.
+	 * 
+	 * @return the number of segments.
+	 */
+	public synchronized int getNumberOfSegments() {
+		return segments.size();
+	}
+
+	/**
+	 * Deletes the segments holding only messages before the given offset.
+	 * 
+	 * @param offset
+	 *            the offset of the oldest message still needed
+	 */
+	public synchronized void truncate(long offset) {
+		Iterator it = segments.values().iterator();
+		while (it.hasNext()) {
+			Segment s = (Segment) it.next();
+			if (s == last || getNextBase(s) > offset)
+				break;
+			it.remove();
+			s.delete();
+		}
+	}
+
+	private long getNextBase(Segment s) {
+		Long next = (Long) segments.higherKey(new Long(s.base));
+		return next == null ? Long.MAX_VALUE : next.longValue();
+	}
+
+	/**
+	 * Forces the appended messages to the disk.
+	 */
+	public synchronized void sync() {
+		if (!closed && unsynced > 0)
+			syncLast();
+	}
+
+	private void syncLast() {
+		last.map.force();
+		unsynced = 0;
+	}
+
+	/**
+	 * Syncs and closes the journal. The segments stay in the directory.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			if (last != null)
+				syncLast();
+			closed = true;
+			Iterator it = segments.values().iterator();
+			while (it.hasNext())
+				((Segment) it.next()).close();
+			segments.clear();
+			last = null;
+		}
+		if (syncer != null)
+			syncer.interrupt();
+	}
+
+	/**
+	 * A file of the journal.
+	 */
+	private class Segment {
+		File file;
+		long base;
+		RandomAccessFile raf;
+		MappedByteBuffer map;
+		/** Where the next record is written. */
+		int position;
+
+		/**
+		 * Opens a segment, creating it with the given size if it is not 0.
+		 */
+		Segment(File file, long base, int size) throws IOException {
+			this.file = file;
+			this.base = base;
+			raf = new RandomAccessFile(file, "rw");
+			if (size > 0)
+				raf.setLength(size);
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			position = size > 0 ? 0 : (int) raf.length();
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				logger.warning("Error closing " + file + ": " + e);
+			}
+		}
+
+		void delete() {
+			close();
+			if (!file.delete())
+				logger.warning("Cannot delete " + file);
+		}
+	}
+}
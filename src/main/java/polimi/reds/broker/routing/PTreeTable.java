@@ -21,6 +21,7 @@
 package polimi.reds.broker.routing;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -32,6 +33,7 @@ import polimi.reds.NodeDescriptor;
 import polimi.reds.PTreeFilter;
 import polimi.reds.PTreeMessage;
 import polimi.reds.PTreePredicate;
+import polimi.reds.broker.overlay.NeighborIndex;
 
 /**
  * This class provides the REDS middleware with an efficient filtering algorithm
@@ -43,15 +45,22 @@ import polimi.reds.PTreePredicate;
  * as a conjunction of basic predicates. Each predicates has to be instantied
  * from a class implementing the <code>PTreePredicate</code> interface. A sample
  * predicate composed of a String value and a set of possible comparators is
- * provided in <code> PTreeStringPredicate</code>.
+ * provided in <code> PTreeStringPredicate</code>.<br>
+ * Subscriptions are interned in a <code>FilterPool</code> and the neighbors
+ * subscribed to each of them are kept as a <code>BitSet</code> of neighbor
+ * indices.
  */
-public class PTreeTable implements SubscriptionTable {
+public class PTreeTable implements IndexedSubscriptionTable {
 	// A particular predicate used in place of a boolean TRUE on a given arc of
 	// the internal tree
 	private final PTreePredicate DO_NOT_CARE = new DontCarePredicate();
-	// A map associating a subscription with the set of neighbor that issued
-	// that subscription
+	// A map associating a subscription with the set of indices of the
+	// neighbors that issued that subscription
 	private HashMap subscriptionsNeighbors;
+	// The indices of the neighbors with subscriptions
+	private NeighborIndex neighbors;
+	// The pool subscriptions are interned in
+	private FilterPool pool;
 	// A map associating a neighbor with the list of subscriptions it issued
 	private HashMap neighborsSubscriptions;
 	// A map used for directly accesing leafs of the internal tree
@@ -60,9 +69,21 @@ public class PTreeTable implements SubscriptionTable {
 	private TreeNode root;
 
 	public PTreeTable() {
+		this(FilterPool.getShared());
+	}
+
+	/**
+	 * Builds an empty table interning subscriptions in the given pool.
+	 * 
+	 * @param pool
+	 *            the pool
+	 */
+	public PTreeTable(FilterPool pool) {
 		neighborsSubscriptions = new HashMap();
 		subscriptionsNeighbors = new HashMap();
 		subscriptionsLeafs = new HashMap();
+		neighbors = new NeighborIndex();
+		this.pool = pool;
 	}
 
 	/**
@@ -72,23 +93,24 @@ public class PTreeTable implements SubscriptionTable {
 	public void addSubscription(NodeDescriptor n, Filter f) {
 		if (!(f instanceof PTreeFilter))
 			return;
-		PTreeFilter s = (PTreeFilter) f;
-		// Updating the list of neighbors subscribed to this filter
-		LinkedList neighborList = (LinkedList) subscriptionsNeighbors.get(s);
-		if (neighborList == null) {
-			neighborList = new LinkedList();
-			subscriptionsNeighbors.put(s, neighborList);
-		}
-		neighborList.add(n);
+		PTreeFilter s = (PTreeFilter) pool.intern(f);
 		// Updating the list of subscriptions issued by this neighbor
 		LinkedList subscriptionsList = (LinkedList) neighborsSubscriptions.get(n);
 		if (subscriptionsList == null) {
 			subscriptionsList = new LinkedList();
 			neighborsSubscriptions.put(n, subscriptionsList);
-		}
+		} else if (subscriptionsList.contains(s))
+			return;
 		subscriptionsList.add(s);
-		// Inserting the new subscription in the tree
-		treeInsert(s);
+		// Updating the set of neighbors subscribed to this filter
+		BitSet neighborSet = (BitSet) subscriptionsNeighbors.get(s);
+		if (neighborSet == null) {
+			neighborSet = new BitSet();
+			subscriptionsNeighbors.put(s, neighborSet);
+			// Inserting the new subscription in the tree
+			treeInsert(s);
+		}
+		neighborSet.set(neighbors.add(n));
 	}
 
 	/**
@@ -98,17 +120,22 @@ public class PTreeTable implements SubscriptionTable {
 	public void removeSubscription(NodeDescriptor n, Filter f) {
 		if (!(f instanceof PTreeFilter))
 			return;
-		PTreeFilter s = (PTreeFilter) f;
 		LinkedList subscriptionsList = (LinkedList) neighborsSubscriptions.get(n);
-		subscriptionsList.remove(f);
+		int i = subscriptionsList == null ? -1 : subscriptionsList.indexOf(f);
+		if (i < 0)
+			return;
+		// the maps are keyed by the instance stored, not by f
+		PTreeFilter s = (PTreeFilter) subscriptionsList.remove(i);
+		BitSet neighborSet = (BitSet) subscriptionsNeighbors.get(s);
+		if (neighborSet != null)
+			neighborSet.clear(neighbors.indexOf(n));
 		// This neighbor has no more subscriptions.
 		if (subscriptionsList.size() == 0) {
 			neighborsSubscriptions.remove(n);
+			neighbors.remove(n);
 		}
-		LinkedList neighborList = (LinkedList) subscriptionsNeighbors.get(s);
-		neighborList.remove(n);
 		// There are no more neighbors subscribed to this filter.
-		if (neighborList.size() == 0) {
+		if (neighborSet != null && neighborSet.isEmpty()) {
 			subscriptionsNeighbors.remove(s);
 			treeRemove((TreeNode) subscriptionsLeafs.get(s));
 			subscriptionsLeafs.remove(s);
@@ -119,7 +146,10 @@ public class PTreeTable implements SubscriptionTable {
 	 * @see polimi.reds.broker.routing.SubscriptionTable#removeAllSubscriptions(NodeDescriptor)
 	 */
 	public void removeAllSubscriptions(NodeDescriptor n) {
-		Iterator it = new LinkedList(((LinkedList) neighborsSubscriptions.get(n))).iterator();
+		LinkedList subscriptionsList = (LinkedList) neighborsSubscriptions.get(n);
+		if (subscriptionsList == null)
+			return;
+		Iterator it = new LinkedList(subscriptionsList).iterator();
 		while (it.hasNext()) {
 			removeSubscription(n, (Filter) it.next());
 		}
@@ -129,12 +159,31 @@ public class PTreeTable implements SubscriptionTable {
 	 * @see polimi.reds.broker.routing.SubscriptionTable#clear()
 	 */
 	public void clear() {
+		Iterator it = neighborsSubscriptions.keySet().iterator();
+		while (it.hasNext())
+			neighbors.remove((NodeDescriptor) it.next());
 		neighborsSubscriptions = new HashMap();
 		subscriptionsNeighbors = new HashMap();
 		subscriptionsLeafs = new HashMap();
 		root = null;
 	}
 
+	/**
+	 * @see IndexedSubscriptionTable#setNeighborIndex(NeighborIndex)
+	 */
+	public void setNeighborIndex(NeighborIndex index) {
+		if (!neighborsSubscriptions.isEmpty())
+			throw new IllegalStateException("The table is not empty");
+		neighbors = index;
+	}
+
+	/**
+	 * @see IndexedSubscriptionTable#getNeighborIndex()
+	 */
+	public NeighborIndex getNeighborIndex() {
+		return neighbors;
+	}
+
 	/**
 	 * @see polimi.reds.broker.routing.SubscriptionTable#isSubscribed(NodeDescriptor)
 	 */
@@ -149,22 +198,19 @@ public class PTreeTable implements SubscriptionTable {
 	 * @see polimi.reds.broker.routing.SubscriptionTable#isFilterInTable(polimi.reds.Filter)
 	 */
 	public boolean isFilterInTable(Filter filter) {
-		if (subscriptionsNeighbors.get(filter) == null)
-			return false;
-		else
-			return false;
+		return subscriptionsNeighbors.containsKey(filter);
 	}
 
 	/**
 	 * @see polimi.reds.broker.routing.SubscriptionTable#getSingleSubscribedBroker(polimi.reds.Filter)
 	 */
 	public NodeDescriptor getSingleSubscribedBroker(Filter filter) {
-		LinkedList neighborList = (LinkedList) subscriptionsNeighbors.get(filter);
-		if (neighborList == null)
+		BitSet neighborSet = (BitSet) subscriptionsNeighbors.get(filter);
+		if (neighborSet == null)
 			return null;
-		if (neighborList.size() != 1)
+		if (neighborSet.cardinality() != 1)
 			return null;
-		NodeDescriptor n = (NodeDescriptor) neighborList.getFirst();
+		NodeDescriptor n = neighbors.get(neighborSet.nextSetBit(0));
 		if (!n.isBroker())
 			return null;
 		else
@@ -215,47 +261,37 @@ public class PTreeTable implements SubscriptionTable {
 	 * @see polimi.reds.broker.routing.SubscriptionTable#getSubscribedNeighbors(polimi.reds.Filter)
 	 */
 	public Collection getSubscribedNeighbors(Filter f) {
-		LinkedList neighborList = (LinkedList) subscriptionsNeighbors.get(f);
-		if (neighborList == null)
+		BitSet neighborSet = (BitSet) subscriptionsNeighbors.get(f);
+		if (neighborSet == null)
 			return new LinkedList();
 		else
-			return neighborList;
+			return neighbors.toNeighbors(neighborSet, -1, new LinkedList());
 	}
 
 	/**
 	 * @see polimi.reds.broker.routing.SubscriptionTable#matches(polimi.reds.Message)
 	 */
 	public Collection matches(Message message) {
-		LinkedList subscriptions = new LinkedList();
-		if (!(message instanceof PTreeMessage))
-			return subscriptions;
-		// Computing the set of mathcing subscriptions
-		treeVisit(root, (PTreeMessage) message, subscriptions);
-		// Retrieveing subscribed neighbors
-		Iterator it = subscriptions.iterator();
-		HashSet neighbors = new HashSet();
-		while (it.hasNext()) {
-			PTreeFilter sub = (PTreeFilter) it.next();
-			neighbors.addAll((Collection) subscriptionsNeighbors.get(sub));
-		}
-		return neighbors;
+		return matches(message, null);
 	}
 
 	/**
 	 * Visits the tree with a depth-first search following those predicates
 	 * matching the message given as parameter. When the visit reaches a leaf,
-	 * then that subscription is taken as a matching subscription.
+	 * then that subscription is taken as a matching subscription, and its
+	 * neighbors are added to the result.
 	 * 
 	 * @param r
 	 *            the current node of the internal tree
 	 * @param msg
 	 *            the message the algorithm is considering
-	 * @param subscriptions
-	 *            the set of matching subscriptions reached so far
+	 * @param neighborSet
+	 *            the slots of the neighbors of the matching subscriptions
+	 *            reached so far
 	 */
-	private void treeVisit(TreeNode r, PTreeMessage msg, LinkedList subscriptions) {
+	private void treeVisit(TreeNode r, PTreeMessage msg, BitSet neighborSet) {
 		if (r.isLeaf()) {
-			subscriptions.add(r.getSubscription());
+			neighborSet.or((BitSet) subscriptionsNeighbors.get(r.getSubscription()));
 			return;
 		}
 		LinkedList outgoingArcs = r.getOutgoingArcs();
@@ -264,13 +300,13 @@ public class PTreeTable implements SubscriptionTable {
 		while (it.hasNext()) {
 			PTreePredicate p = (PTreePredicate) it.next();
 			if (p.isMatchedBy(msg)) {
-				treeVisit(r.getChildNode(p), msg, subscriptions);
+				treeVisit(r.getChildNode(p), msg, neighborSet);
 			}
 		}
 		// Following DO_NOT_CARE arcs
 		TreeNode dontCare = r.getOutgoingDontCare();
 		if (dontCare != null) {
-			treeVisit(dontCare, msg, subscriptions);
+			treeVisit(dontCare, msg, neighborSet);
 		}
 	}
 
@@ -554,17 +590,27 @@ public class PTreeTable implements SubscriptionTable {
 		}
 	}
 
+	/**
+	 * @see polimi.reds.broker.routing.SubscriptionTable#matches(polimi.reds.Message,
+	 *      NodeDescriptor)
+	 */
 	public Collection matches(Message message, NodeDescriptor senderID) {
-		Collection c = matches(message);
-		Iterator it = c.iterator();
-		boolean found = false;
-		while (it.hasNext() && !found) {
-			NodeDescriptor n = (NodeDescriptor) it.next();
-			if (n.equals(senderID)) {
-				found = true;
-				c.remove(n);
-			}
-		}
-		return c;
+		BitSet matching = new BitSet();
+		matches(message, senderID, matching);
+		return neighbors.toNeighbors(matching, -1, new ArrayList(matching.cardinality()));
+	}
+
+	/**
+	 * @see IndexedSubscriptionTable#matches(Message, NodeDescriptor, BitSet)
+	 */
+	public void matches(Message message, NodeDescriptor senderID, BitSet result) {
+		result.clear();
+		if (!(message instanceof PTreeMessage) || root == null)
+			return;
+		// Computing the set of neighbors of the matching subscriptions
+		treeVisit(root, (PTreeMessage) message, result);
+		int sender = neighbors.indexOf(senderID);
+		if (sender >= 0)
+			result.clear(sender);
 	}
 }
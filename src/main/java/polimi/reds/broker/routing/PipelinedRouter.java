@@ -0,0 +1,514 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.routing;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+
+import polimi.reds.Filter;
+import polimi.reds.Message;
+import polimi.reds.MessageID;
+import polimi.reds.NodeDescriptor;
+import polimi.reds.NotConnectedException;
+import polimi.reds.Repliable;
+import polimi.reds.Reply;
+import polimi.reds.broker.overlay.Overlay;
+import polimi.reds.broker.overlay.SubjectRegistry;
+
+/**
+ * A <code>GenericRouter</code> handling the packets it receives through a
+ * pipeline of four stages, each one with its own threads:
+ * <ol>
+ * <li><b>decode</b>: checks the code of the subject of the packets, discarding
+ * the unknown ones;</li>
+ * <li><b>match</b>: finds the neighbors subscribed to each publication;</li>
+ * <li><b>fan-out</b>: records repliable messages in the reply manager and
+ * expands each publication into one delivery for each subscribed neighbor.
+ * It also handles subscriptions, unsubscriptions and replies, once the
+ * deliveries it expanded before them have been sent;</li>
+ * <li><b>encode</b>: sends the deliveries through the routing strategy, which
+ * records them in its metrics and event log.</li>
+ * </ol>
+ * Each stage works on batches: a thread takes all the packets queued for it
+ * (up to <code>batchSize</code>) and hands its results to the next stage one
+ * batch per downstream thread, so queues are locked once per batch rather than
+ * once per packet, and the subscription table is locked once per batch of
+ * matches. The first three stages assign packets to their threads by sender
+ * and the last one by receiver, so the messages sent by a neighbor to another
+ * are still delivered in order, whatever their subject.<br>
+ * Publications are routed as a <code>SubscriptionForwardingRoutingStrategy</code>
+ * would, which must be the routing strategy in use.
+ */
+public class PipelinedRouter extends GenericRouter {
+	/**
+	 * The default maximum number of packets a stage processes at once.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	private int batchSize;
+	/** Excludes the changes to the subscription table while matching. */
+	private ReadWriteLock tableLock;
+	private Stage decode;
+	private Stage match;
+	private Stage fanOut;
+	private Stage encode;
+
+	/**
+	 * Builds a router with one thread for each stage.
+	 * 
+	 * @param o
+	 *            the overlay
+	 */
+	public PipelinedRouter(Overlay o) {
+		this(o, 1, 1, 1, 1, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Builds a router with the given number of threads for each stage.
+	 * 
+	 * @param o
+	 *            the overlay
+	 * @param decodeThreads
+	 *            the threads decoding the packets
+	 * @param matchThreads
+	 *            the threads matching the publications
+	 * @param fanOutThreads
+	 *            the threads expanding the publications into deliveries
+	 * @param encodeThreads
+	 *            the threads sending the deliveries
+	 * @param batchSize
+	 *            the maximum number of packets a thread processes at once
+	 */
+	public PipelinedRouter(Overlay o, int decodeThreads, int matchThreads, int fanOutThreads, int encodeThreads,
+			int batchSize) {
+		super(o);
+		if (decodeThreads < 1 || matchThreads < 1 || fanOutThreads < 1 || encodeThreads < 1 || batchSize < 1)
+			throw new IllegalArgumentException("Stages need at least one thread and batches at least one packet");
+		this.batchSize = batchSize;
+		tableLock = new ReentrantReadWriteLock();
+		encode = new EncodeStage(encodeThreads);
+		fanOut = new FanOutStage(fanOutThreads);
+		match = new MatchStage(matchThreads);
+		decode = new DecodeStage(decodeThreads);
+		encode.start();
+		fanOut.start();
+		match.start();
+		decode.start();
+	}
+
+	/**
+	 * Sets the routing strategy, which must be a
+	 * <code>SubscriptionForwardingRoutingStrategy</code>.
+	 * 
+	 * @see Router#setRoutingStrategy(RoutingStrategy)
+	 */
+	public void setRoutingStrategy(RoutingStrategy routingStrategy) {
+		if (!(routingStrategy instanceof SubscriptionForwardingRoutingStrategy))
+			throw new IllegalArgumentException("A PipelinedRouter needs a SubscriptionForwardingRoutingStrategy");
+		super.setRoutingStrategy(routingStrategy);
+	}
+
+	/**
+	 * @see Router#subscribe(NodeDescriptor, Filter)
+	 */
+	public synchronized void subscribe(NodeDescriptor neighborID, Filter filter) {
+		tableLock.writeLock().lock();
+		try {
+			super.subscribe(neighborID, filter);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @see Router#unsubscribe(NodeDescriptor, Filter)
+	 */
+	public synchronized void unsubscribe(NodeDescriptor neighborID, Filter filter) {
+		tableLock.writeLock().lock();
+		try {
+			super.unsubscribe(neighborID, filter);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @see Router#unsubscribeAll(NodeDescriptor)
+	 */
+	public synchronized void unsubscribeAll(NodeDescriptor neighborID) {
+		tableLock.writeLock().lock();
+		try {
+			super.unsubscribeAll(neighborID);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Queues the message in the match stage: it is routed asynchronously.
+	 * 
+	 * @see Router#publish(NodeDescriptor, Message)
+	 */
+	public void publish(NodeDescriptor neighbor, Message message) {
+		match.submit(neighbor, new Packet(SubjectRegistry.PUBLISH, neighbor, message));
+	}
+
+	/**
+	 * Queues the packet in the decode stage.
+	 * 
+	 * @see polimi.reds.broker.overlay.CodedPacketListener#signalPacket(int,
+	 *      NodeDescriptor, Serializable)
+	 */
+	public void signalPacket(int subject, NodeDescriptor senderID, Serializable payload) {
+		decode.submit(senderID, new Packet(subject, senderID, payload));
+	}
+
+	/**
+	 * Handles a packet which is not a publication. Called by the fan-out
+	 * stage.
+	 */
+	private void handle(Packet p) {
+		switch (p.code) {
+		case SubjectRegistry.REPLY:
+			forwardReply((Reply) p.payload);
+			break;
+		case SubjectRegistry.CANCEL_REPLIES:
+			cancelReplies(p.sender, (MessageID) p.payload);
+			break;
+		case SubjectRegistry.SUBSCRIBE:
+			subscribe(p.sender, (Filter) p.payload);
+			break;
+		case SubjectRegistry.UNSUBSCRIBE:
+			unsubscribe(p.sender, (Filter) p.payload);
+			break;
+		case SubjectRegistry.UNSUBSCRIBEALL:
+			unsubscribeAll(p.sender);
+			break;
+		}
+	}
+
+	private SubscriptionForwardingRoutingStrategy getStrategy() {
+		return (SubscriptionForwardingRoutingStrategy) routingStrategy;
+	}
+
+	/**
+	 * Stops the threads of the pipeline. The packets still queued are
+	 * discarded.
+	 */
+	public void stop() {
+		decode.stop();
+		match.stop();
+		fanOut.stop();
+		encode.stop();
+	}
+
+	/**
+	 * A packet travelling along the pipeline.
+	 */
+	private static class Packet {
+		int code;
+		NodeDescriptor sender;
+		Serializable payload;
+		Collection receivers;
+		long matchNanos;
+
+		Packet(int code, NodeDescriptor sender, Serializable payload) {
+			this.code = code;
+			this.sender = sender;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * A publication to be sent to one neighbor.
+	 */
+	private static class Delivery {
+		Message message;
+		NodeDescriptor receiver;
+
+		Delivery(Message message, NodeDescriptor receiver) {
+			this.message = message;
+			this.receiver = receiver;
+		}
+	}
+
+	/**
+	 * A stage of the pipeline. Each thread has its own queue of batches, and
+	 * collects the items it produces in one batch for each thread of the next
+	 * stage.
+	 */
+	private abstract class Stage {
+		private String name;
+		private BlockingQueue[] queues;
+		private Thread[] workers;
+		private Stage next;
+
+		Stage(String name, int threads, Stage next) {
+			this.name = name;
+			this.next = next;
+			queues = new BlockingQueue[threads];
+			workers = new Thread[threads];
+			for (int i = 0; i < threads; i++) {
+				queues[i] = new LinkedBlockingQueue();
+				workers[i] = new Thread(new Worker(queues[i]), "PipelinedRouter " + name + " " + i);
+				workers[i].setDaemon(true);
+			}
+		}
+
+		void start() {
+			for (int i = 0; i < workers.length; i++)
+				workers[i].start();
+		}
+
+		void stop() {
+			for (int i = 0; i < workers.length; i++)
+				workers[i].interrupt();
+		}
+
+		/**
+		 * Gets the thread handling the items with the given key.
+		 */
+		int getWorker(Object key) {
+			return key == null ? 0 : (key.hashCode() & 0x7fffffff) % queues.length;
+		}
+
+		void submit(Object key, Object item) {
+			queues[getWorker(key)].add(Collections.singletonList(item));
+		}
+
+		/**
+		 * Waits until every thread has processed the items queued so far.
+		 * 
+		 * @throws InterruptedException
+		 *             if the pipeline is stopped
+		 */
+		void drain() throws InterruptedException {
+			CountDownLatch reached = new CountDownLatch(queues.length);
+			for (int i = 0; i < queues.length; i++)
+				queues[i].add(Collections.singletonList(reached));
+			reached.await();
+		}
+
+		/**
+		 * Processes a batch of items, passing the results to the next stage
+		 * through <code>output</code>.
+		 */
+		abstract void process(List batch, Output output);
+
+		private class Worker implements Runnable {
+			private BlockingQueue queue;
+
+			Worker(BlockingQueue queue) {
+				this.queue = queue;
+			}
+
+			public void run() {
+				List batch = new ArrayList(batchSize);
+				Output output = next == null ? null : new Output(next);
+				while (true) {
+					try {
+						batch.addAll((List) queue.take());
+					} catch (InterruptedException e) {
+						return;
+					}
+					List more;
+					while (batch.size() < batchSize && (more = (List) queue.poll()) != null)
+						batch.addAll(more);
+					try {
+						process(batch, output);
+					} catch (RuntimeException e) {
+						logger.log(Level.SEVERE, "Error in the " + name + " stage", e);
+					}
+					batch.clear();
+					if (output != null)
+						output.flush();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The batches a thread is preparing for the threads of the next stage.
+	 */
+	private static class Output {
+		private Stage stage;
+		private List[] batches;
+
+		Output(Stage stage) {
+			this.stage = stage;
+			batches = new List[stage.queues.length];
+		}
+
+		void add(Object key, Object item) {
+			int worker = stage.getWorker(key);
+			if (batches[worker] == null)
+				batches[worker] = new ArrayList();
+			batches[worker].add(item);
+		}
+
+		void flush() {
+			for (int i = 0; i < batches.length; i++)
+				if (batches[i] != null) {
+					stage.queues[i].add(batches[i]);
+					batches[i] = null;
+				}
+		}
+	}
+
+	private class DecodeStage extends Stage {
+		DecodeStage(int threads) {
+			super("decode", threads, match);
+		}
+
+		void process(List batch, Output output) {
+			for (int i = 0; i < batch.size(); i++) {
+				Packet p = (Packet) batch.get(i);
+				switch (p.code) {
+				case SubjectRegistry.PUBLISH:
+				case SubjectRegistry.REPLY:
+				case SubjectRegistry.CANCEL_REPLIES:
+				case SubjectRegistry.SUBSCRIBE:
+				case SubjectRegistry.UNSUBSCRIBE:
+				case SubjectRegistry.UNSUBSCRIBEALL:
+					// every packet follows the same path, to keep the order
+					// of the packets of a neighbor
+					output.add(p.sender, p);
+					break;
+				default:
+					logger.severe("unrecognized message");
+				}
+			}
+		}
+	}
+
+	private class MatchStage extends Stage {
+		MatchStage(int threads) {
+			super("match", threads, fanOut);
+		}
+
+		void process(List batch, Output output) {
+			SubscriptionTable table = getSubscriptionTable();
+			SubscriptionForwardingRoutingStrategy strategy = getStrategy();
+			tableLock.readLock().lock();
+			try {
+				for (int i = 0; i < batch.size(); i++) {
+					Packet p = (Packet) batch.get(i);
+					if (p.code != SubjectRegistry.PUBLISH)
+						continue;
+					long start = System.nanoTime();
+					p.receivers = table.matches((Message) p.payload, p.sender);
+					p.matchNanos = System.nanoTime() - start;
+					strategy.matched((Message) p.payload, p.matchNanos);
+				}
+			} finally {
+				tableLock.readLock().unlock();
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				Packet p = (Packet) batch.get(i);
+				output.add(p.sender, p);
+			}
+		}
+	}
+
+	private class FanOutStage extends Stage {
+		FanOutStage(int threads) {
+			super("fan-out", threads, encode);
+		}
+
+		void process(List batch, Output output) {
+			for (int i = 0; i < batch.size(); i++) {
+				Packet p = (Packet) batch.get(i);
+				if (p.code != SubjectRegistry.PUBLISH) {
+					/*
+					 * What the packet sends must follow the deliveries
+					 * expanded before it: wait until they are sent.
+					 */
+					output.flush();
+					try {
+						encode.drain();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					handle(p);
+					continue;
+				}
+				Message message = (Message) p.payload;
+				int numNeighbor = 0;
+				Iterator it = p.receivers.iterator();
+				while (it.hasNext()) {
+					NodeDescriptor d = (NodeDescriptor) it.next();
+					if (d.equals(p.sender))
+						continue;
+					output.add(d, new Delivery(message, d));
+					numNeighbor++;
+				}
+				if (message instanceof Repliable) {
+					/*
+					 * Recorded before any delivery is handed to the encode
+					 * stage, so that no reply can arrive before its entry. The
+					 * deliveries that fail are accounted as fake last replies.
+					 */
+					synchronized (PipelinedRouter.this) {
+						recordRepliableMessage(p.sender, message, new FutureInt(numNeighbor));
+					}
+				}
+				getStrategy().fannedOut(p.matchNanos, numNeighbor);
+			}
+		}
+	}
+
+	private class EncodeStage extends Stage {
+		EncodeStage(int threads) {
+			super("encode", threads, null);
+		}
+
+		void process(List batch, Output output) {
+			SubscriptionForwardingRoutingStrategy strategy = getStrategy();
+			for (int i = 0; i < batch.size(); i++) {
+				if (batch.get(i) instanceof CountDownLatch) {
+					// a fan-out thread waits for the deliveries queued so far
+					((CountDownLatch) batch.get(i)).countDown();
+					continue;
+				}
+				Delivery d = (Delivery) batch.get(i);
+				try {
+					strategy.forward(d.message, d.receiver);
+				} catch (NotConnectedException e) {
+					logger.warning("Error while forwarding message: neighbor " + d.receiver.getID()
+							+ " is now disconnected.");
+					if (d.message instanceof Repliable)
+						forwardReply(new Reply(d.message.getID(), true, null));
+				}
+			}
+		}
+	}
+}
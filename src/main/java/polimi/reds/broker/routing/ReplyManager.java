@@ -64,6 +64,20 @@ public interface ReplyManager {
 	 */
 	public void forwardReply(Reply reply);
 
+	/**
+	 * Stops forwarding the replies of a repliable message, because its sender
+	 * does not want them anymore. The entry of the message is removed from the
+	 * reply table and the cancellation is forwarded to the neighbors that may
+	 * have received the message. A cancellation coming from another neighbor
+	 * than the sender of the message is ignored.
+	 * 
+	 * @param repliableMessageID
+	 *            repliable message ID
+	 * @param senderID
+	 *            ID of the neighbor which sent the cancellation
+	 */
+	public void cancelReplies(MessageID repliableMessageID, NodeDescriptor senderID);
+
 	/**
 	 * Set the <code>Router</code>.
 	 * 
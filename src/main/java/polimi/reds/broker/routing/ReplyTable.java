@@ -118,9 +118,9 @@ public interface ReplyTable {
 	 * corresponding nodes'id that is waiting for the message.<br>
 	 * The number of pending replies for these nodes is zero.
 	 * 
-	 * @return a <code>Map</code> of <code>NodeDescriptor</code>-
-	 *         <code>MessageID</code> <br>
-	 *         . If there is no entry waiting for zero replies, it returns an
+	 * @return a <code>Map</code> from the <code>MessageID</code> of each
+	 *         removed entry to the <code>NodeDescriptor</code> waiting for
+	 *         it. If there is no entry waiting for zero replies, it returns an
 	 *         empty map.
 	 * 
 	 */
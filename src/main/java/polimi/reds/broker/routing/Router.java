@@ -58,6 +58,10 @@ public interface Router extends PacketListener {
 	 * Subject for reply messages.
 	 */
 	public static final String REPLY = "reply";
+	/**
+	 * Subject for the messages cancelling the replies of a repliable message.
+	 */
+	public static final String CANCEL_REPLIES = "cancelReplies";
 
 	/**
 	 * Subscribes the specified neighbor to the messages matching the given
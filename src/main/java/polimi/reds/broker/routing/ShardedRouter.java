@@ -0,0 +1,122 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.routing;
+
+import polimi.reds.Filter;
+import polimi.reds.Message;
+import polimi.reds.NodeDescriptor;
+import polimi.reds.Repliable;
+import polimi.reds.broker.overlay.Overlay;
+
+/**
+ * A <code>GenericRouter</code> whose operations are not serialized by a
+ * single monitor. It must be used with a <code>ShardedSubscriptionTable</code>:
+ * subscriptions and unsubscriptions to a filter only exclude the other
+ * operations on the shard of that filter, while publications are not
+ * serialized (except those of repliable messages), so messages received from
+ * different neighbors are matched at the same time, each of them by all the
+ * shards in parallel.<br>
+ * The <code>RoutingStrategy</code> in use must not keep state of its own
+ * outside the subscription table, as it is called concurrently.
+ * 
+ * @see ShardedSubscriptionTable
+ */
+public class ShardedRouter extends GenericRouter {
+	private ShardedSubscriptionTable shardedTable;
+	/** The monitors serializing the routing of the filters of each shard. */
+	private Object[] shardLocks;
+
+	public ShardedRouter(Overlay o) {
+		super(o);
+		shardedTable = null;
+		shardLocks = null;
+	}
+
+	/**
+	 * Sets the subscription table, which must be a
+	 * <code>ShardedSubscriptionTable</code>.
+	 * 
+	 * @see Router#setSubscriptionTable(SubscriptionTable)
+	 */
+	public void setSubscriptionTable(SubscriptionTable subscriptionTable) {
+		if (!(subscriptionTable instanceof ShardedSubscriptionTable))
+			throw new IllegalArgumentException("A ShardedRouter needs a ShardedSubscriptionTable");
+		super.setSubscriptionTable(subscriptionTable);
+		shardedTable = (ShardedSubscriptionTable) subscriptionTable;
+		Object[] locks = new Object[shardedTable.getNumberOfShards()];
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new Object();
+		shardLocks = locks;
+	}
+
+	/**
+	 * @see Router#subscribe(NodeDescriptor, Filter)
+	 */
+	public void subscribe(NodeDescriptor neighborID, Filter filter) {
+		synchronized (shardLocks[shardedTable.getShard(filter)]) {
+			routingStrategy.subscribe(neighborID, filter);
+		}
+	}
+
+	/**
+	 * @see Router#unsubscribe(NodeDescriptor, Filter)
+	 */
+	public void unsubscribe(NodeDescriptor neighborID, Filter filter) {
+		synchronized (shardLocks[shardedTable.getShard(filter)]) {
+			routingStrategy.unsubscribe(neighborID, filter);
+		}
+	}
+
+	/**
+	 * Unsubscribes the neighbor holding the monitors of all the shards, taken
+	 * in order.
+	 * 
+	 * @see Router#unsubscribeAll(NodeDescriptor)
+	 */
+	public void unsubscribeAll(NodeDescriptor neighborID) {
+		unsubscribeAll(neighborID, 0);
+	}
+
+	private void unsubscribeAll(NodeDescriptor neighborID, int shard) {
+		if (shard == shardLocks.length)
+			routingStrategy.unsubscribeAll(neighborID);
+		else
+			synchronized (shardLocks[shard]) {
+				unsubscribeAll(neighborID, shard + 1);
+			}
+	}
+
+	/**
+	 * Repliable messages are still routed holding the monitor of the router,
+	 * like replies, so that no reply is handled before its message is recorded
+	 * in the reply manager.
+	 * 
+	 * @see Router#publish(NodeDescriptor, Message)
+	 */
+	public void publish(NodeDescriptor neighbor, Message message) {
+		if (message instanceof Repliable)
+			synchronized (this) {
+				route(neighbor, message);
+			}
+		else
+			route(neighbor, message);
+	}
+}
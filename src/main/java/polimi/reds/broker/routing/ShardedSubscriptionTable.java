@@ -0,0 +1,350 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.routing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import polimi.reds.Filter;
+import polimi.reds.Message;
+import polimi.reds.NodeDescriptor;
+
+/**
+ * A <code>SubscriptionTable</code> partitioning the filters among several
+ * shards, each one a <code>SubscriptionTable</code> of its own with its own
+ * lock and its own matching thread. A filter is stored in the shard chosen by
+ * its hash code, so the filters must honour the contract between
+ * <code>equals</code> and <code>hashCode</code>: the operations on a single
+ * filter only touch (and lock) its shard. A message is matched by all the
+ * shards in parallel, one of them in the calling thread, and the neighbors
+ * found are merged.<br>
+ * Used with a <code>ShardedRouter</code>, it lets a broker use all its cores
+ * for matching.
+ * 
+ * @see ShardedRouter
+ */
+public class ShardedSubscriptionTable implements SubscriptionTable {
+	private Shard[] shards;
+
+	/**
+	 * Builds a table with one <code>GenericTable</code> shard for each
+	 * available processor.
+	 */
+	public ShardedSubscriptionTable() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Builds a table with the given number of <code>GenericTable</code>
+	 * shards.
+	 * 
+	 * @param numberOfShards
+	 *            the number of shards
+	 */
+	public ShardedSubscriptionTable(int numberOfShards) {
+		this(createGenericTables(numberOfShards));
+	}
+
+	/**
+	 * Builds a table using the given tables as shards. They must be empty and
+	 * must not be used elsewhere.
+	 * 
+	 * @param tables
+	 *            the shards
+	 */
+	public ShardedSubscriptionTable(SubscriptionTable[] tables) {
+		if (tables.length == 0)
+			throw new IllegalArgumentException("No shards");
+		shards = new Shard[tables.length];
+		for (int i = 0; i < tables.length; i++)
+			shards[i] = new Shard(tables[i], i);
+	}
+
+	private static SubscriptionTable[] createGenericTables(int numberOfShards) {
+		if (numberOfShards < 1)
+			throw new IllegalArgumentException("Number of shards " + numberOfShards);
+		SubscriptionTable[] tables = new SubscriptionTable[numberOfShards];
+		for (int i = 0; i < numberOfShards; i++)
+			tables[i] = new GenericTable();
+		return tables;
+	}
+
+	/**
+	 * Gets the number of shards.
+	 * 
+	 * @return the number of shards.
+	 */
+	public int getNumberOfShards() {
+		return shards.length;
+	}
+
+	/**
+	 * Gets the index of the shard storing the given filter.
+	 * 
+	 * @param f
+	 *            the filter
+	 * @return the index of its shard, between 0 and
+	 *         <code>getNumberOfShards() - 1</code>.
+	 */
+	public int getShard(Filter f) {
+		int h = f.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % shards.length;
+	}
+
+	private Shard shardOf(Filter f) {
+		return shards[getShard(f)];
+	}
+
+	/**
+	 * Stops the matching threads. The table must not be used afterwards.
+	 */
+	public void stop() {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].executor.shutdown();
+	}
+
+	public void addSubscription(NodeDescriptor n, Filter f) {
+		Shard s = shardOf(f);
+		s.lock.writeLock().lock();
+		try {
+			s.table.addSubscription(n, f);
+		} finally {
+			s.lock.writeLock().unlock();
+		}
+	}
+
+	public void removeSubscription(NodeDescriptor n, Filter f) {
+		Shard s = shardOf(f);
+		s.lock.writeLock().lock();
+		try {
+			s.table.removeSubscription(n, f);
+		} finally {
+			s.lock.writeLock().unlock();
+		}
+	}
+
+	public void removeAllSubscriptions(NodeDescriptor n) {
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].lock.writeLock().lock();
+			try {
+				shards[i].table.removeAllSubscriptions(n);
+			} finally {
+				shards[i].lock.writeLock().unlock();
+			}
+		}
+	}
+
+	public void clear() {
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].lock.writeLock().lock();
+			try {
+				shards[i].table.clear();
+			} finally {
+				shards[i].lock.writeLock().unlock();
+			}
+		}
+	}
+
+	public boolean isSubscribed(NodeDescriptor n) {
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].lock.readLock().lock();
+			try {
+				if (shards[i].table.isSubscribed(n))
+					return true;
+			} finally {
+				shards[i].lock.readLock().unlock();
+			}
+		}
+		return false;
+	}
+
+	public boolean isFilterInTable(Filter filter) {
+		Shard s = shardOf(filter);
+		s.lock.readLock().lock();
+		try {
+			return s.table.isFilterInTable(filter);
+		} finally {
+			s.lock.readLock().unlock();
+		}
+	}
+
+	public NodeDescriptor getSingleSubscribedBroker(Filter filter) {
+		Shard s = shardOf(filter);
+		s.lock.readLock().lock();
+		try {
+			return s.table.getSingleSubscribedBroker(filter);
+		} finally {
+			s.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of the filters of the given neighbor, gathered from all
+	 * the shards.
+	 * 
+	 * @see SubscriptionTable#getAllFilters(NodeDescriptor)
+	 */
+	public Collection getAllFilters(NodeDescriptor n) {
+		List result = new ArrayList();
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].lock.readLock().lock();
+			try {
+				Collection c = shards[i].table.getAllFilters(n);
+				if (c != null)
+					result.addAll(c);
+			} finally {
+				shards[i].lock.readLock().unlock();
+			}
+		}
+		return result;
+	}
+
+	public Collection getAllFilters(boolean duplicate) {
+		return getAllFiltersExcept(duplicate, null);
+	}
+
+	public Collection getAllFiltersExcept(boolean duplicate, NodeDescriptor n) {
+		// equal filters are in the same shard: each shard removes its duplicates
+		List result = new ArrayList();
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].lock.readLock().lock();
+			try {
+				result.addAll(shards[i].table.getAllFiltersExcept(duplicate, n));
+			} finally {
+				shards[i].lock.readLock().unlock();
+			}
+		}
+		return result;
+	}
+
+	public Collection matches(Message message) {
+		return matches(message, null);
+	}
+
+	public Collection matches(Message message, NodeDescriptor excludedDestination) {
+		if (shards.length == 1)
+			return shards[0].matches(message, excludedDestination);
+		Future[] partial = new Future[shards.length];
+		for (int i = 1; i < shards.length; i++)
+			partial[i] = shards[i].executor.submit(new Match(shards[i], message, excludedDestination));
+		Set result = new LinkedHashSet(shards[0].matches(message, excludedDestination));
+		for (int i = 1; i < shards.length; i++) {
+			Collection c;
+			try {
+				c = (Collection) partial[i].get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				c = shards[i].matches(message, excludedDestination);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new IllegalStateException(e.getCause());
+			}
+			result.addAll(c);
+		}
+		return new ArrayList(result);
+	}
+
+	public Collection getSubscribedNeighbors(Filter f) {
+		Shard s = shardOf(f);
+		s.lock.readLock().lock();
+		try {
+			return s.table.getSubscribedNeighbors(f);
+		} finally {
+			s.lock.readLock().unlock();
+		}
+	}
+
+	// *** For debug purposes
+	public String toString() {
+		StringBuffer result = new StringBuffer(super.toString() + "\n");
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].lock.readLock().lock();
+			try {
+				result.append(" shard " + i + ": " + shards[i].table + "\n");
+			} finally {
+				shards[i].lock.readLock().unlock();
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * A partition of the table, with its lock and its matching thread.
+	 */
+	private static class Shard {
+		SubscriptionTable table;
+		ReadWriteLock lock;
+		ExecutorService executor;
+
+		Shard(SubscriptionTable table, final int index) {
+			this.table = table;
+			lock = new ReentrantReadWriteLock();
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ShardedSubscriptionTable.shard-" + index);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		Collection matches(Message message, NodeDescriptor excludedDestination) {
+			lock.readLock().lock();
+			try {
+				return table.matches(message, excludedDestination);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * The matching of a message by a shard, run by the thread of the shard.
+	 */
+	private static class Match implements Callable {
+		private Shard shard;
+		private Message message;
+		private NodeDescriptor excludedDestination;
+
+		Match(Shard shard, Message message, NodeDescriptor excludedDestination) {
+			this.shard = shard;
+			this.message = message;
+			this.excludedDestination = excludedDestination;
+		}
+
+		public Object call() {
+			return shard.matches(message, excludedDestination);
+		}
+	}
+}
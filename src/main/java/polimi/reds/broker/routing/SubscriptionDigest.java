@@ -0,0 +1,380 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.broker.routing;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import polimi.reds.Filter;
+
+/**
+ * The digest of a set of filters, exchanged by the brokers to reconcile their
+ * subscription tables without sending again the filters they already know.
+ * <br>
+ * Each filter is represented by a 64 bit key computed from the name of its
+ * class and its hash code, which <code>Filter</code> requires to be consistent
+ * with <code>equals</code>, so that equal filters have the same key in every
+ * broker. Different filters may share a key: the keys are kept once per
+ * filter, and a key is reconciled with all its filters. The keys are
+ * arranged in a tree, like a Merkle tree: each node is a <code>Range</code>
+ * of the keys sharing a prefix of <code>depth * FANOUT_BITS</code> bits, with
+ * <code>FANOUT</code> children one level deeper, and is summarized by the
+ * number of its filters and the XOR of the hashes of its keys, each mixed
+ * with the number of its filters. Two brokers compare the summaries of the
+ * same ranges, and descend only into those that differ, until they are small
+ * enough to be sent as the list of their keys: the cost of a reconciliation
+ * grows with the number of differences, not with the size of the tables.
+ * 
+ * @see DigestReconfigurator
+ */
+public class SubscriptionDigest implements Serializable {
+	private static final long serialVersionUID = -3047417310453911745L;
+
+	/** The number of bits of the key added to the prefix at each level. */
+	public static final int FANOUT_BITS = 4;
+	/** The number of children of each range. */
+	public static final int FANOUT = 1 << FANOUT_BITS;
+	/** The ranges with at most these keys are sent as the list of them. */
+	public static final int LEAF_SIZE = 16;
+	/** The depth of the ranges holding a single key. */
+	public static final int MAX_DEPTH = 64 / FANOUT_BITS;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private Range[] ranges;
+
+	/**
+	 * Builds a digest made of the given ranges.
+	 * 
+	 * @param ranges
+	 *            the ranges
+	 */
+	public SubscriptionDigest(Range[] ranges) {
+		this.ranges = ranges;
+	}
+
+	/**
+	 * Builds a digest made of the given ranges.
+	 * 
+	 * @param ranges
+	 *            the list of the ranges
+	 */
+	public SubscriptionDigest(List ranges) {
+		this((Range[]) ranges.toArray(new Range[ranges.size()]));
+	}
+
+	/**
+	 * Gets the ranges of the digest.
+	 * 
+	 * @return the ranges
+	 */
+	public Range[] getRanges() {
+		return ranges;
+	}
+
+	/**
+	 * Computes the key of a filter: the 64 bit FNV-1a hash of the name of its
+	 * class and of its hash code, mixed so that the keys spread evenly over
+	 * the ranges.
+	 * 
+	 * @param filter
+	 *            the filter
+	 * @return the key
+	 */
+	public static long key(Filter filter) {
+		String name = filter.getClass().getName();
+		long h = FNV_OFFSET;
+		for (int i = 0; i < name.length(); i++) {
+			h ^= name.charAt(i);
+			h *= FNV_PRIME;
+		}
+		int code = filter.hashCode();
+		for (int i = 0; i < 4; i++) {
+			h ^= (code >>> (i * 8)) & 0xff;
+			h *= FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Gets the hash of a key held by the given number of filters, the term of
+	 * the XOR summarizing a range.
+	 */
+	static long hash(long key, int filters) {
+		return mix(key + filters * GOLDEN_GAMMA);
+	}
+
+	/**
+	 * The finalizer of SplitMix64: every bit of the result depends on every
+	 * bit of <code>z</code>.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	public String toString() {
+		return "SubscriptionDigest of " + ranges.length + " ranges";
+	}
+
+	/**
+	 * A node of the tree of the keys: the keys whose first
+	 * <code>depth * FANOUT_BITS</code> bits are <code>prefix</code>. It holds
+	 * either their summary or, for a leaf, the keys themselves.
+	 */
+	public static class Range implements Serializable {
+		private static final long serialVersionUID = -6285096046287370952L;
+
+		private long prefix;
+		private int depth;
+		private int count;
+		private long hash;
+		private long[] keys;
+
+		/**
+		 * Builds the range with the given prefix, without summary.
+		 * 
+		 * @param prefix
+		 *            the prefix
+		 * @param depth
+		 *            the depth, between 0 (all the keys) and
+		 *            <code>MAX_DEPTH</code>
+		 */
+		public Range(long prefix, int depth) {
+			this.prefix = prefix;
+			this.depth = depth;
+		}
+
+		/**
+		 * Gets the prefix of the keys in the range.
+		 * 
+		 * @return the prefix
+		 */
+		public long getPrefix() {
+			return prefix;
+		}
+
+		/**
+		 * Gets the depth of the range.
+		 * 
+		 * @return the depth
+		 */
+		public int getDepth() {
+			return depth;
+		}
+
+		/**
+		 * Gets the number of filters in the range.
+		 * 
+		 * @return the number of filters
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the keys in the range, if they were sent.
+		 * 
+		 * @return the keys, once per filter, sorted as unsigned numbers, or
+		 *         <code>null</code> if the range holds only their summary
+		 */
+		public long[] getKeys() {
+			return keys;
+		}
+
+		/**
+		 * Tests if the range has the same summary of the given one.
+		 * 
+		 * @param r
+		 *            the range
+		 * @return <code>true</code> if the ranges have the same number of
+		 *         filters and the same hash
+		 */
+		public boolean sameSummary(Range r) {
+			return count == r.count && hash == r.hash;
+		}
+
+		/**
+		 * Gets the child of the range in the given position.
+		 * 
+		 * @param i
+		 *            the position, between 0 and <code>FANOUT - 1</code>
+		 * @return the child, without summary
+		 */
+		public Range getChild(int i) {
+			return new Range(prefix << FANOUT_BITS | i, depth + 1);
+		}
+
+		public String toString() {
+			return Long.toHexString(prefix) + "/" + depth + ": " + count;
+		}
+	}
+
+	/**
+	 * The keys of a set of filters, sorted as unsigned numbers, used to
+	 * summarize the ranges and to find the filters in them.
+	 */
+	public static class Index {
+		/**
+		 * The keys, once per filter, with the sign bit flipped to sort them as
+		 * unsigned.
+		 */
+		private long[] sorted;
+		/** The filters with each key. */
+		private Map filters = new HashMap();
+
+		/**
+		 * Builds the index of the given filters.
+		 * 
+		 * @param c
+		 *            the filters
+		 */
+		public Index(Collection c) {
+			sorted = new long[c.size()];
+			int n = 0;
+			Iterator it = c.iterator();
+			while (it.hasNext()) {
+				Filter f = (Filter) it.next();
+				Long key = new Long(key(f));
+				List l = (List) filters.get(key);
+				if (l == null) {
+					l = new ArrayList(1);
+					filters.put(key, l);
+				} else if (l.contains(f))
+					continue;
+				l.add(f);
+				sorted[n++] = key.longValue() ^ Long.MIN_VALUE;
+			}
+			if (n < sorted.length)
+				sorted = Arrays.copyOf(sorted, n);
+			Arrays.sort(sorted);
+		}
+
+		/**
+		 * Gets the number of filters in the index.
+		 * 
+		 * @return the number of filters
+		 */
+		public int size() {
+			return sorted.length;
+		}
+
+		/**
+		 * Gets the filters with the given key.
+		 * 
+		 * @param key
+		 *            the key
+		 * @return the filters, empty if the key is not in the index
+		 */
+		public List getFilters(long key) {
+			List l = (List) filters.get(new Long(key));
+			return l == null ? Collections.EMPTY_LIST : l;
+		}
+
+		/**
+		 * Gets the filters in the given range.
+		 * 
+		 * @param r
+		 *            the range
+		 * @return the list of the filters
+		 */
+		public List getFilters(Range r) {
+			int[] bounds = bounds(r);
+			List result = new ArrayList(bounds[1] - bounds[0]);
+			for (int i = bounds[0]; i < bounds[1];) {
+				List l = (List) filters.get(new Long(sorted[i] ^ Long.MIN_VALUE));
+				result.addAll(l);
+				i += l.size();
+			}
+			return result;
+		}
+
+		/**
+		 * Gets the keys in the given range.
+		 * 
+		 * @param r
+		 *            the range
+		 * @return the keys, once per filter, sorted as unsigned numbers
+		 */
+		public long[] getKeys(Range r) {
+			int[] bounds = bounds(r);
+			long[] result = new long[bounds[1] - bounds[0]];
+			for (int i = 0; i < result.length; i++)
+				result[i] = sorted[bounds[0] + i] ^ Long.MIN_VALUE;
+			return result;
+		}
+
+		/**
+		 * Summarizes the keys of the index in the given range.
+		 * 
+		 * @param r
+		 *            the range
+		 * @return a new range, with the keys if they are at most
+		 *         <code>LEAF_SIZE</code> or cannot be split further
+		 */
+		public Range summarize(Range r) {
+			int[] bounds = bounds(r);
+			Range result = new Range(r.prefix, r.depth);
+			result.count = bounds[1] - bounds[0];
+			if (result.count <= LEAF_SIZE || r.depth == MAX_DEPTH)
+				result.keys = getKeys(r);
+			for (int i = bounds[0]; i < bounds[1];) {
+				int j = i + 1;
+				while (j < bounds[1] && sorted[j] == sorted[i])
+					j++;
+				result.hash ^= hash(sorted[i] ^ Long.MIN_VALUE, j - i);
+				i = j;
+			}
+			return result;
+		}
+
+		/**
+		 * Gets the indexes of the first key in the range and of the first
+		 * after it.
+		 */
+		private int[] bounds(Range r) {
+			if (r.depth == 0)
+				return new int[] { 0, sorted.length };
+			int shift = 64 - r.depth * FANOUT_BITS;
+			long low = r.prefix << shift;
+			long high = shift == 0 ? low : low | (-1L >>> (64 - shift));
+			long last = high ^ Long.MIN_VALUE;
+			// the last range has no key after it
+			int end = last == Long.MAX_VALUE ? sorted.length : lowerBound(last + 1);
+			return new int[] { lowerBound(low ^ Long.MIN_VALUE), end };
+		}
+
+		private int lowerBound(long biased) {
+			int index = Arrays.binarySearch(sorted, biased);
+			return index >= 0 ? index : -index - 1;
+		}
+	}
+}
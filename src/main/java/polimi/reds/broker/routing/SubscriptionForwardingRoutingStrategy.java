@@ -21,19 +21,28 @@
 package polimi.reds.broker.routing;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import polimi.reds.Filter;
 import polimi.reds.Message;
 import polimi.reds.NodeDescriptor;
 import polimi.reds.NotConnectedException;
+import polimi.reds.TraceContext;
 import polimi.reds.broker.overlay.Overlay;
+import polimi.util.EventLog;
+import polimi.util.LatencyHistogram;
+import polimi.util.MetricsRegistry;
 
 /**
  * This class implements a subscription forwarding routing strategy among a set
- * of brokers connected in an unrooted tree.
+ * of brokers connected in an unrooted tree.<br>
+ * It records in a <code>MetricsRegistry</code> the time taken to match each
+ * message published (<code>routing.matchNanos</code>) and the number of
+ * neighbors it is forwarded to (<code>routing.fanOut</code>).
  */
 public class SubscriptionForwardingRoutingStrategy implements RoutingStrategy {
 	/**
@@ -43,13 +52,37 @@ public class SubscriptionForwardingRoutingStrategy implements RoutingStrategy {
 	protected Router router = null;
 	private Logger logger;
 	private Overlay overlay = null;
+	/** The set of matching slots reused by each thread publishing messages. */
+	private ThreadLocal matchingSlots = new ThreadLocal() {
+		protected Object initialValue() {
+			return new BitSet();
+		}
+	};
+
+	private static final int PUBLISH_EVENT = EventLog.register("routing.publish", "matchNanos", "fanOut");
+	private LatencyHistogram matchTime;
+	private LatencyHistogram fanOut;
 
 	public SubscriptionForwardingRoutingStrategy() {
 		logger = Logger.getLogger("polimi.reds.Router");
+		setMetricsRegistry(MetricsRegistry.getShared());
+	}
+
+	/**
+	 * Sets the registry recording the metrics of the strategy, in place of the
+	 * shared one.
+	 * 
+	 * @param registry
+	 *            the registry
+	 */
+	public void setMetricsRegistry(MetricsRegistry registry) {
+		matchTime = registry.histogram("routing.matchNanos");
+		fanOut = registry.histogram("routing.fanOut");
 	}
 
 	public void subscribe(NodeDescriptor neighbor, Filter filter) {
-		logger.finest("Subscribing " + neighbor + " to " + filter);
+		if (logger.isLoggable(Level.FINEST))
+			logger.finest("Subscribing " + neighbor + " to " + filter);
 		NodeDescriptor d;
 		SubscriptionTable subscriptionTable = router.getSubscriptionTable();
 		// Forward the subscription.
@@ -86,7 +119,8 @@ public class SubscriptionForwardingRoutingStrategy implements RoutingStrategy {
 	}
 
 	public void unsubscribe(NodeDescriptor neighbor, Filter filter) {
-		logger.finest("Unsubscribing " + neighbor.getID() + " from " + filter);
+		if (logger.isLoggable(Level.FINEST))
+			logger.finest("Unsubscribing " + neighbor.getID() + " from " + filter);
 		NodeDescriptor d;
 		SubscriptionTable subscriptionTable = router.getSubscriptionTable();
 		// Locally unsubscribe
@@ -123,7 +157,8 @@ public class SubscriptionForwardingRoutingStrategy implements RoutingStrategy {
 	}
 
 	public void unsubscribeAll(NodeDescriptor neighbor) {
-		logger.finest("Unsubscribing " + neighbor.getID() + " from all filters");
+		if (logger.isLoggable(Level.FINEST))
+			logger.finest("Unsubscribing " + neighbor.getID() + " from all filters");
 		SubscriptionTable subscriptionTable = router.getSubscriptionTable();
 		// use a copy of the Collection returned by
 		// subscriptiontable.getAllFilters
@@ -140,12 +175,19 @@ public class SubscriptionForwardingRoutingStrategy implements RoutingStrategy {
 	 * @see RoutingStrategy#publish(NodeDescriptor, Message)
 	 */
 	public FutureInt publish(NodeDescriptor sourceID, Message message) {
-		logger.finest("Publishing " + message + " coming from " + sourceID);
+		if (logger.isLoggable(Level.FINEST))
+			logger.finest("Publishing " + message + " coming from " + sourceID);
 		SubscriptionTable subscriptionTable = router.getSubscriptionTable();
+		if (subscriptionTable instanceof IndexedSubscriptionTable
+				&& ((IndexedSubscriptionTable) subscriptionTable).getNeighborIndex() == overlay.getNeighborIndex())
+			return publishBySlot((IndexedSubscriptionTable) subscriptionTable, sourceID, message);
 		NodeDescriptor d;
 		// Iterate over the collection of subscribed neighbors, forwarding them
 		// the message
+		long start = System.nanoTime();
 		Iterator it = subscriptionTable.matches(message, sourceID).iterator();
+		long matchNanos = System.nanoTime() - start;
+		matched(message, matchNanos);
 		// Counts the number of neighbors that receive the message.
 		int numNeighbor = 0;
 		while (it.hasNext()) {
@@ -153,12 +195,64 @@ public class SubscriptionForwardingRoutingStrategy implements RoutingStrategy {
 			if (d.equals(sourceID))
 				continue;
 			try {
-				overlay.send(Router.PUBLISH, message, d);
+				forward(message, d);
 				numNeighbor++;
 			} catch (NotConnectedException e) {
 				logger.warning("Error while forwarding message: neighbor " + sourceID.getID() + " is now disconnected.");
 			}
 		}
+		fannedOut(matchNanos, numNeighbor);
+		return new FutureInt(numNeighbor);
+	}
+
+	/**
+	 * Records the time taken to match a message and stamps its trace. Also
+	 * called by a <code>PipelinedRouter</code>, which matches the messages
+	 * itself.
+	 */
+	void matched(Message message, long matchNanos) {
+		matchTime.record(matchNanos);
+		if (message.getTrace() != null)
+			message.getTrace().stamp(router.getID(), TraceContext.MATCHED);
+	}
+
+	/**
+	 * Forwards a message published to a subscribed neighbor.
+	 */
+	void forward(Message message, NodeDescriptor neighbor) throws NotConnectedException {
+		overlay.send(Router.PUBLISH, message, neighbor);
+	}
+
+	/**
+	 * Records the number of neighbors a message has been forwarded to.
+	 */
+	void fannedOut(long matchNanos, int numNeighbor) {
+		fanOut.record(numNeighbor);
+		EventLog.log(PUBLISH_EVENT, matchNanos, numNeighbor);
+	}
+
+	/**
+	 * Publishes a message matching it into a set of slots of the overlay, and
+	 * sending it slot by slot.
+	 */
+	private FutureInt publishBySlot(IndexedSubscriptionTable subscriptionTable, NodeDescriptor sourceID,
+			Message message) {
+		BitSet matching = (BitSet) matchingSlots.get();
+		long start = System.nanoTime();
+		subscriptionTable.matches(message, sourceID, matching);
+		long matchNanos = System.nanoTime() - start;
+		matched(message, matchNanos);
+		// Counts the number of neighbors that receive the message.
+		int numNeighbor = 0;
+		for (int slot = matching.nextSetBit(0); slot >= 0; slot = matching.nextSetBit(slot + 1)) {
+			try {
+				overlay.send(Router.PUBLISH, message, slot);
+				numNeighbor++;
+			} catch (NotConnectedException e) {
+				logger.warning("Error while forwarding message: neighbor in slot " + slot + " is now disconnected.");
+			}
+		}
+		fannedOut(matchNanos, numNeighbor);
 		return new FutureInt(numNeighbor);
 	}
 
@@ -46,7 +46,7 @@ public class ClientTester {
 		if (args.length == 0) {
 			System.err
 					.println("USAGE: java polimi.reds.examples.ClientTester [reds-tcp | reds-udp]:<brokerAddress>:<brokerPort>"
-							+ " <localPort> [-publish | -subscribe]");
+							+ " <localPort> [-publish | -subscribe] [-pipeline]");
 			System.exit(0);
 		}
 
@@ -70,6 +70,12 @@ public class ClientTester {
 			action = PUBLISH;
 		else
 			action = SUBSCRIBE;
+		boolean pipelined = args.length > 3 && args[3].equals("-pipeline");
+		if (pipelined) {
+			if (!(ds instanceof TCPDispatchingService))
+				throw new IllegalArgumentException("-pipeline requires reds-tcp");
+			((TCPDispatchingService) ds).setPublishPipeline(1024);
+		}
 		try {
 			ds.open();
 			System.out.println("dispatching service aperto");
@@ -82,10 +88,16 @@ public class ClientTester {
 					for (j = 0; j < numOfMessages; j++) {
 						// if (j % 100 == 0)
 						// System.out.println(j);
+						// a pipelined message is serialized after publish
+						// returns, so it cannot be reused
+						if (pipelined)
+							m = new TextMessage("aaa123");
 						ds.publish(m);
 					}
 					System.out.println("Published " + (j) + " messages");
 				}
+				if (pipelined)
+					((TCPDispatchingService) ds).flush();
 			} else {
 				ds.subscribe(new TextFilter("aaa123", TextFilter.EXACT));
 				// m = ds.getNextMessage();
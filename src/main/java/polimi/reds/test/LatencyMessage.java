@@ -0,0 +1,86 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.test;
+
+import polimi.reds.TextMessage;
+
+/**
+ * A <code>TextMessage</code> carrying the time it was published at, used by
+ * the <code>OverlayBenchmark</code> to measure the end to end latency. The
+ * time is taken from <code>System.nanoTime</code>, so it is meaningful only
+ * for subscribers running in the same JVM as the publisher.
+ * 
+ * @see OverlayBenchmark
+ */
+public class LatencyMessage extends TextMessage {
+	private static final long serialVersionUID = -3108561960925519042L;
+	private long publishTime;
+	private boolean warmup;
+	private byte[] payload;
+
+	/**
+	 * @param topic
+	 *            the text of the message, matched by the subscribers
+	 * @param publishTime
+	 *            the time the message is (or should have been) published at,
+	 *            as given by <code>System.nanoTime</code>
+	 * @param warmup
+	 *            <code>true</code> if the latency of this message must not be
+	 *            measured
+	 * @param payloadSize
+	 *            the number of bytes added to the message
+	 */
+	public LatencyMessage(String topic, long publishTime, boolean warmup, int payloadSize) {
+		super(topic);
+		this.publishTime = publishTime;
+		this.warmup = warmup;
+		payload = new byte[payloadSize];
+	}
+
+	/**
+	 * Gets the time the message was published at.
+	 * 
+	 * @return the time the message was published at, as given by
+	 *         <code>System.nanoTime</code>.
+	 */
+	public long getPublishTime() {
+		return publishTime;
+	}
+
+	/**
+	 * Tells whether the message was published to warm up the brokers.
+	 * 
+	 * @return <code>true</code> if the latency of this message must not be
+	 *         measured.
+	 */
+	public boolean isWarmup() {
+		return warmup;
+	}
+
+	/**
+	 * Gets the number of bytes added to the message.
+	 * 
+	 * @return the size of the payload.
+	 */
+	public int getPayloadSize() {
+		return payload.length;
+	}
+}
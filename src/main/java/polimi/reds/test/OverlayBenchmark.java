@@ -0,0 +1,427 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.reds.test;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import polimi.reds.AsyncDispatchingService;
+import polimi.reds.DispatchingService;
+import polimi.reds.LocalDispatchingService;
+import polimi.reds.Message;
+import polimi.reds.MessageListener;
+import polimi.reds.TextFilter;
+import polimi.reds.broker.overlay.GenericOverlay;
+import polimi.reds.broker.overlay.LocalTransport;
+import polimi.reds.broker.overlay.MuxTCPTransport;
+import polimi.reds.broker.overlay.Overlay;
+import polimi.reds.broker.overlay.SimpleTopologyManager;
+import polimi.reds.broker.overlay.TCPTransport;
+import polimi.reds.broker.overlay.Transport;
+import polimi.reds.broker.routing.DeferredUnsubscriptionReconfigurator;
+import polimi.reds.broker.routing.GenericRouter;
+import polimi.reds.broker.routing.GenericTable;
+import polimi.reds.broker.routing.SubscriptionForwardingRoutingStrategy;
+import polimi.util.LatencyHistogram;
+
+/**
+ * Measures the end to end latency and the throughput of a network of brokers
+ * running in a single JVM. The brokers are linked through loopback TCP
+ * connections, while the clients join them through a
+ * <code>LocalTransport</code>, so the time spent in the clients' links does
+ * not hide the time spent in the overlay. The run is described by a workload
+ * spec, a properties file with the following keys (defaults in brackets):
+ * <ul>
+ * <li><code>brokers</code> the number of brokers [4];</li>
+ * <li><code>topology</code> how they are linked: <code>line</code>,
+ * <code>star</code> (all linked to broker 0), <code>tree</code> (broker
+ * <code>i</code> linked to broker <code>(i - 1) / fanout</code>) or
+ * <code>random</code> (each broker linked to a random one among the previous
+ * ones) [line]; REDS requires an acyclic overlay, so each topology is a
+ * tree;</li>
+ * <li><code>fanout</code> the children of each broker in a <code>tree</code>
+ * [2];</li>
+ * <li><code>transport</code> the transport among brokers:
+ * <code>reds-tcp</code> or <code>reds-mtcp</code> [reds-tcp];</li>
+ * <li><code>basePort</code> the port of broker 0, broker <code>i</code>
+ * listening on <code>basePort + i</code> [17000];</li>
+ * <li><code>seed</code> the seed choosing the random links, the brokers of the
+ * clients and their topics [1];</li>
+ * <li><code>subscribers</code>, <code>publishers</code> the number of clients
+ * [8, 2];</li>
+ * <li><code>topics</code> the number of topics; each subscriber subscribes to
+ * one and each publisher publishes on one [4];</li>
+ * <li><code>messages</code>, <code>warmup</code> the messages measured and
+ * the messages published before by each publisher [10000, 2000];</li>
+ * <li><code>rate</code> the messages per second of each publisher, 0 to
+ * publish as fast as possible [0]; with a fixed rate the latency is measured
+ * from the time each message should have been published, so a stalled
+ * publisher does not hide the delay;</li>
+ * <li><code>payloadSize</code> the bytes added to each message [64];</li>
+ * <li><code>settle</code> the ms waited for the subscriptions to reach all the
+ * brokers [1000];</li>
+ * <li><code>drainTimeout</code> the ms waited for the deliveries after the
+ * last message is published [10000].</li>
+ * </ul>
+ * The results are printed and, if an output file is given, saved as a
+ * properties file holding the spec and the results, with the latencies in
+ * microseconds. The publish time runs until the last message is published,
+ * the duration until the last message is delivered: the wait for the
+ * deliveries which never arrive is not measured.
+ * 
+ * @see LatencyMessage
+ */
+public class OverlayBenchmark {
+	public static final String LINE = "line";
+	public static final String STAR = "star";
+	public static final String TREE = "tree";
+	public static final String RANDOM = "random";
+	private Properties spec;
+	private int numberOfBrokers;
+	private String topology;
+	private int fanout;
+	private String transport;
+	private int basePort;
+	private long seed;
+	private int numberOfSubscribers;
+	private int numberOfPublishers;
+	private int topics;
+	private int messages;
+	private int warmup;
+	private int rate;
+	private int payloadSize;
+	private long settle;
+	private long drainTimeout;
+	private Overlay[] brokers;
+	private LocalTransport[] localTransports;
+	private List clients;
+	/** The number of subscribers of each topic. */
+	private int[] subscribers;
+	private DispatchingService[] publishers;
+	/** The topic of each publisher. */
+	private int[] publisherTopics;
+	private LatencyHistogram latency;
+	private AtomicLong delivered;
+	/** The time of the last measured delivery, in ns. */
+	private AtomicLong lastDelivery;
+	private AtomicLong expected;
+	private Properties results;
+
+	/**
+	 * Builds a benchmark running the given workload.
+	 * 
+	 * @param spec
+	 *            the workload spec
+	 */
+	public OverlayBenchmark(Properties spec) {
+		this.spec = spec;
+		numberOfBrokers = getInt("brokers", 4, 1);
+		topology = spec.getProperty("topology", LINE);
+		if (!topology.equals(LINE) && !topology.equals(STAR) && !topology.equals(TREE) && !topology.equals(RANDOM))
+			throw new IllegalArgumentException("Unknown topology " + topology);
+		fanout = getInt("fanout", 2, 1);
+		transport = spec.getProperty("transport", Transport.TCP);
+		if (!transport.equals(Transport.TCP) && !transport.equals(Transport.MUX_TCP))
+			throw new IllegalArgumentException("Unknown transport " + transport);
+		basePort = getInt("basePort", 17000, 1);
+		seed = getInt("seed", 1, 0);
+		numberOfSubscribers = getInt("subscribers", 8, 0);
+		numberOfPublishers = getInt("publishers", 2, 1);
+		topics = getInt("topics", 4, 1);
+		messages = getInt("messages", 10000, 1);
+		warmup = getInt("warmup", 2000, 0);
+		rate = getInt("rate", 0, 0);
+		payloadSize = getInt("payloadSize", 64, 0);
+		settle = getInt("settle", 1000, 0);
+		drainTimeout = getInt("drainTimeout", 10000, 0);
+	}
+
+	private int getInt(String key, int defaultValue, int min) {
+		String value = spec.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		int i;
+		try {
+			i = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Wrong value of " + key + ": " + value);
+		}
+		if (i < min)
+			throw new IllegalArgumentException("Wrong value of " + key + ": " + value);
+		return i;
+	}
+
+	/**
+	 * Builds the brokers and the clients, runs the workload and stops them.
+	 * 
+	 * @return the results of the run.
+	 */
+	public Properties run() throws Exception {
+		Random random = new Random(seed);
+		try {
+			startBrokers();
+			linkBrokers(random);
+			startClients(random);
+			Thread.sleep(settle);
+			latency = new LatencyHistogram();
+			if (warmup > 0) {
+				publish(warmup, true);
+				drain();
+			}
+			latency.reset();
+			delivered.set(0);
+			expected.set(0);
+			long start = System.nanoTime();
+			lastDelivery.set(start);
+			long published = publish(messages, false);
+			long publishing = System.nanoTime() - start;
+			drain();
+			// up to the last delivery, not to the end of the wait for it
+			long elapsed = Math.max(lastDelivery.get() - start, publishing);
+			results = new Properties();
+			results.putAll(spec);
+			results.setProperty("published", "" + published);
+			results.setProperty("expected", "" + expected.get());
+			results.setProperty("delivered", "" + delivered.get());
+			results.setProperty("publishMillis", "" + publishing / 1000000);
+			results.setProperty("durationMillis", "" + elapsed / 1000000);
+			results.setProperty("publishedPerSecond", "" + Math.round(published * 1e9 / publishing));
+			results.setProperty("deliveredPerSecond", "" + Math.round(delivered.get() * 1e9 / elapsed));
+			results.setProperty("latencyMicros.mean", "" + Math.round(latency.getMean()));
+			results.setProperty("latencyMicros.p50", "" + latency.getValueAtPercentile(50));
+			results.setProperty("latencyMicros.p99", "" + latency.getValueAtPercentile(99));
+			results.setProperty("latencyMicros.p999", "" + latency.getValueAtPercentile(99.9));
+			results.setProperty("latencyMicros.max", "" + latency.getMax());
+			return results;
+		} finally {
+			stop();
+		}
+	}
+
+	private void startBrokers() {
+		brokers = new Overlay[numberOfBrokers];
+		localTransports = new LocalTransport[numberOfBrokers];
+		for (int i = 0; i < numberOfBrokers; i++) {
+			Set transports = new LinkedHashSet();
+			if (transport.equals(Transport.MUX_TCP))
+				transports.add(new MuxTCPTransport(basePort + i));
+			else
+				transports.add(new TCPTransport(basePort + i));
+			localTransports[i] = new LocalTransport();
+			transports.add(localTransports[i]);
+			SimpleTopologyManager topologyManager = new SimpleTopologyManager();
+			GenericOverlay overlay = new GenericOverlay(topologyManager, transports);
+			topologyManager.setOverlay(overlay);
+			SubscriptionForwardingRoutingStrategy routingStrategy = new SubscriptionForwardingRoutingStrategy();
+			DeferredUnsubscriptionReconfigurator reconfigurator = new DeferredUnsubscriptionReconfigurator();
+			GenericRouter router = new GenericRouter(overlay);
+			routingStrategy.setOverlay(overlay);
+			reconfigurator.setOverlay(overlay);
+			reconfigurator.setRouter(router);
+			router.setRoutingStrategy(routingStrategy);
+			router.setSubscriptionTable(new GenericTable());
+			overlay.start();
+			brokers[i] = overlay;
+		}
+	}
+
+	private void linkBrokers(Random random) throws Exception {
+		for (int i = 1; i < numberOfBrokers; i++) {
+			int parent;
+			if (topology.equals(LINE))
+				parent = i - 1;
+			else if (topology.equals(STAR))
+				parent = 0;
+			else if (topology.equals(TREE))
+				parent = (i - 1) / fanout;
+			else
+				parent = random.nextInt(i);
+			String url = transport + ":127.0.0.1:" + (basePort + parent);
+			// the transport of the parent may be still opening its socket
+			for (int attempt = 1;; attempt++) {
+				try {
+					brokers[i].addNeighbor(url);
+					break;
+				} catch (ConnectException e) {
+					if (attempt == 50)
+						throw e;
+					Thread.sleep(100);
+				}
+			}
+		}
+	}
+
+	private void startClients(Random random) throws ConnectException {
+		clients = new ArrayList();
+		subscribers = new int[topics];
+		delivered = new AtomicLong();
+		lastDelivery = new AtomicLong();
+		expected = new AtomicLong();
+		MessageListener listener = new MessageListener() {
+			public void notify(Message msg) {
+				LatencyMessage m = (LatencyMessage) msg;
+				if (!m.isWarmup()) {
+					long now = System.nanoTime();
+					latency.record((now - m.getPublishTime()) / 1000);
+					lastDelivery.set(now);
+				}
+				delivered.incrementAndGet();
+			}
+		};
+		for (int i = 0; i < numberOfSubscribers; i++) {
+			AsyncDispatchingService ds = new LocalDispatchingService(localTransports[random.nextInt(numberOfBrokers)]);
+			ds.open();
+			clients.add(ds);
+			int topic = random.nextInt(topics);
+			subscribers[topic]++;
+			ds.addMessageListener(null, listener);
+			ds.subscribe(new TextFilter(topicName(topic), TextFilter.EXACT));
+		}
+		publishers = new DispatchingService[numberOfPublishers];
+		publisherTopics = new int[numberOfPublishers];
+		for (int i = 0; i < numberOfPublishers; i++) {
+			publishers[i] = new LocalDispatchingService(localTransports[random.nextInt(numberOfBrokers)]);
+			publishers[i].open();
+			clients.add(publishers[i]);
+			publisherTopics[i] = random.nextInt(topics);
+		}
+	}
+
+	private static String topicName(int topic) {
+		return "topic-" + topic;
+	}
+
+	/**
+	 * Publishes the given number of messages from each publisher.
+	 * 
+	 * @return the number of messages published.
+	 */
+	private long publish(final int count, final boolean warm) throws Exception {
+		Thread[] threads = new Thread[numberOfPublishers];
+		final AtomicLong published = new AtomicLong();
+		for (int p = 0; p < numberOfPublishers; p++) {
+			final DispatchingService ds = publishers[p];
+			final int topic = publisherTopics[p];
+			threads[p] = new Thread("OverlayBenchmark.publisher-" + p) {
+				public void run() {
+					long period = rate > 0 ? 1000000000L / rate : 0;
+					long start = System.nanoTime();
+					for (int i = 0; i < count; i++) {
+						long time;
+						if (period > 0) {
+							time = start + i * period;
+							long wait = time - System.nanoTime();
+							if (wait > 0)
+								LockSupport.parkNanos(wait);
+						} else
+							time = System.nanoTime();
+						expected.addAndGet(subscribers[topic]);
+						ds.publish(new LatencyMessage(topicName(topic), time, warm, payloadSize));
+						published.incrementAndGet();
+					}
+				}
+			};
+		}
+		for (int p = 0; p < numberOfPublishers; p++)
+			threads[p].start();
+		for (int p = 0; p < numberOfPublishers; p++)
+			threads[p].join();
+		return published.get();
+	}
+
+	/**
+	 * Waits for the deliveries of the messages published, at most
+	 * <code>drainTimeout</code> ms.
+	 */
+	private void drain() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + drainTimeout;
+		while (delivered.get() < expected.get() && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+	}
+
+	private void stop() {
+		if (clients != null) {
+			Iterator it = clients.iterator();
+			while (it.hasNext())
+				((DispatchingService) it.next()).close();
+		}
+		if (brokers != null)
+			for (int i = 0; i < brokers.length; i++)
+				if (brokers[i] != null)
+					brokers[i].stop();
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("USAGE: java polimi.reds.test.OverlayBenchmark <workload spec> [<output file>]");
+			System.exit(0);
+		}
+		try {
+			Properties spec = new Properties();
+			InputStream in = new FileInputStream(args[0]);
+			try {
+				spec.load(in);
+			} finally {
+				in.close();
+			}
+			Properties results = new OverlayBenchmark(spec).run();
+			System.out.println(results.getProperty("topology", LINE) + " of " + results.getProperty("brokers", "4")
+					+ " brokers: published " + results.getProperty("published") + ", delivered "
+					+ results.getProperty("delivered") + " of " + results.getProperty("expected") + " in "
+					+ results.getProperty("durationMillis") + " ms (publishing took "
+					+ results.getProperty("publishMillis") + " ms)");
+			System.out.println("throughput: " + results.getProperty("publishedPerSecond") + " published/s, "
+					+ results.getProperty("deliveredPerSecond") + " delivered/s");
+			System.out.println("latency (us): mean " + results.getProperty("latencyMicros.mean") + " p50 "
+					+ results.getProperty("latencyMicros.p50") + " p99 " + results.getProperty("latencyMicros.p99")
+					+ " p999 " + results.getProperty("latencyMicros.p999") + " max "
+					+ results.getProperty("latencyMicros.max"));
+			if (args.length > 1) {
+				OutputStream out = new FileOutputStream(args[1]);
+				try {
+					results.store(out, "OverlayBenchmark " + args[0]);
+				} finally {
+					out.close();
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Error reading the workload spec: " + e.getMessage());
+			System.exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
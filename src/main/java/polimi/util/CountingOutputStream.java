@@ -0,0 +1,66 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream counting the bytes written to the underlying stream and
+ * the time spent writing them.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+	private long count = 0;
+	private long nanos = 0;
+
+	public CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the time spent so far writing to the underlying stream, in ns.
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	public void write(int b) throws IOException {
+		long start = System.nanoTime();
+		out.write(b);
+		nanos += System.nanoTime() - start;
+		count++;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		out.write(b, off, len);
+		nanos += System.nanoTime() - start;
+		count += len;
+	}
+}
@@ -47,6 +47,8 @@ public class DatagramObjectIO {
 	private DatagramSocket UDPsck;
 	// The IPv4 broadcast address.
 	private static final String INET_BROADCAST_ADDR = "255.255.255.255";
+	// The length of the last datagram received.
+	private int lastReceivedSize = 0;
 
 	/**
 	 * Build a new object for sending and receiving objects via UDP datagrams.
@@ -161,6 +163,7 @@ public class DatagramObjectIO {
 			DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
 			// Receives a UDP datagram.
 			UDPsck.receive(packet);
+			lastReceivedSize = packet.getLength();
 			// Unmarshal the object.
 			ByteArrayInputStream byteStreamI = new ByteArrayInputStream(recvBuf);
 			REDSUnmarshaller unmarshaller = new REDSUnmarshaller(byteStreamI);
@@ -174,6 +177,15 @@ public class DatagramObjectIO {
 		return (null);
 	}
 
+	/**
+	 * Return the length of the datagram carrying the last object received.
+	 * 
+	 * @return the length in bytes.
+	 */
+	public int getLastReceivedSize() {
+		return lastReceivedSize;
+	}
+
 	/**
 	 * Return the receivePort currently in use for receiving UDP datagrams.
 	 * 
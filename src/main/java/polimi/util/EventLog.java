@@ -0,0 +1,310 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * A binary log of the events happening inside a broker, meant to be left in
+ * the hot paths. An event is a type, registered once with
+ * <code>register</code>, and two <code>long</code> arguments: no string is
+ * built and nothing is allocated when an event is logged. While the log is
+ * stopped (the default) <code>log</code> returns after reading a single
+ * field.<br>
+ * Once started, the events are put in a ring buffer in memory, from where a
+ * daemon thread copies them into a memory-mapped file, itself a ring holding
+ * the latest events. The threads logging never wait: if the writer falls
+ * behind by more than the size of the buffer, the oldest events are dropped
+ * and counted. The file is read by <code>EventLogDecoder</code>.<br>
+ * The log can be started and stopped at runtime; it is started when the class
+ * is loaded if the system property <code>polimi.reds.eventlog</code> names a
+ * file.<br>
+ * The file starts with a header of <code>HEADER_SIZE</code> bytes (the magic
+ * number, the version, the size of a record, the capacity, the number of
+ * events written and dropped, the time the log was started), followed by the
+ * names of the <code>MAX_TYPES</code> types, <code>NAME_SIZE</code> bytes each
+ * as written by <code>DataOutput.writeUTF</code>, and by the ring of records.
+ * A record takes <code>RECORD_SIZE</code> bytes: the time in ns since the
+ * start, the type, the ID of the thread and the two arguments.
+ * 
+ * @see EventLogDecoder
+ */
+public final class EventLog {
+	static final long MAGIC = 0x524544534C4F4731L; // REDSLOG1
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int NAME_SIZE = 64;
+	static final int MAX_TYPES = 256;
+	static final int RECORD_SIZE = 32;
+	static final int DATA_OFFSET = HEADER_SIZE + NAME_SIZE * MAX_TYPES;
+	// offsets in the header
+	static final int CAPACITY = 16;
+	static final int WRITTEN = 24;
+	static final int DROPPED = 32;
+	static final int START_TIME = 40;
+	static final int TYPES = 48;
+
+	private static final int BUFFER_SIZE = 1 << 14;
+	private static final int FIELDS = 5;
+
+	private static final Logger logger = Logger.getLogger("polimi.util.EventLog");
+	private static final List types = new ArrayList();
+	private static volatile EventLog current = null;
+
+	static {
+		String file = System.getProperty("polimi.reds.eventlog");
+		if (file != null) {
+			try {
+				start(new File(file), Integer.getInteger("polimi.reds.eventlog.capacity", 1 << 20).intValue());
+			} catch (IOException e) {
+				logger.warning("Cannot start the event log on " + file + ": " + e);
+			}
+		}
+	}
+
+	// the ring in memory: sequence number, time, type and thread, arguments
+	private final AtomicLongArray buffer = new AtomicLongArray(BUFFER_SIZE * FIELDS);
+	private final AtomicLong next = new AtomicLong();
+	private final long startNanos = System.nanoTime();
+	private final RandomAccessFile file;
+	private final MappedByteBuffer map;
+	private final long capacity;
+	private final Thread writer;
+	private volatile boolean running = true;
+	private long written = 0;
+	private long dropped = 0;
+
+	private EventLog(File f, int records) throws IOException {
+		if (records < 1)
+			throw new IllegalArgumentException("Capacity " + records);
+		capacity = records;
+		for (int i = 0; i < BUFFER_SIZE; i++)
+			buffer.set(i * FIELDS, -1);
+		file = new RandomAccessFile(f, "rw");
+		long size = DATA_OFFSET + capacity * RECORD_SIZE;
+		file.setLength(size);
+		map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		map.putLong(0, MAGIC);
+		map.putInt(8, VERSION);
+		map.putInt(12, RECORD_SIZE);
+		map.putLong(CAPACITY, capacity);
+		map.putLong(WRITTEN, 0);
+		map.putLong(DROPPED, 0);
+		map.putLong(START_TIME, System.currentTimeMillis());
+		synchronized (types) {
+			for (int i = 0; i < types.size(); i++)
+				writeType(i, (String) types.get(i));
+		}
+		writer = new Thread("EventLog.writer") {
+			public void run() {
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Starts logging the events in the given file, replacing its content. If
+	 * the log is already running, it is stopped first.
+	 * 
+	 * @param f
+	 *            the file
+	 * @param records
+	 *            the number of events the file keeps: the latest ones
+	 * @throws IOException
+	 *             if the file cannot be created or mapped
+	 */
+	public static synchronized void start(File f, int records) throws IOException {
+		stop();
+		EventLog log = new EventLog(f, records);
+		log.writer.start();
+		current = log;
+	}
+
+	/**
+	 * Stops the log, writing the events still in memory to the file. It has
+	 * no effect if the log is not running.
+	 */
+	public static synchronized void stop() {
+		EventLog log = current;
+		if (log == null)
+			return;
+		current = null;
+		log.running = false;
+		LockSupport.unpark(log.writer);
+		try {
+			log.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.close();
+	}
+
+	/**
+	 * Tells whether the log is running.
+	 * 
+	 * @return <code>true</code> if the events are being logged.
+	 */
+	public static boolean isEnabled() {
+		return current != null;
+	}
+
+	/**
+	 * Registers a type of events. It should be called once per type, e.g. to
+	 * initialize a constant.
+	 * 
+	 * @param name
+	 *            the name of the type, e.g. <code>transport.enqueue</code>
+	 * @param first
+	 *            the name of the first argument
+	 * @param second
+	 *            the name of the second argument
+	 * @return the type, to be passed to <code>log</code>.
+	 */
+	public static int register(String name, String first, String second) {
+		String description = name + "(" + first + "," + second + ")";
+		synchronized (types) {
+			int type = types.indexOf(description);
+			if (type >= 0)
+				return type;
+			if (types.size() == MAX_TYPES)
+				throw new IllegalStateException("Too many types of events");
+			types.add(description);
+			type = types.size() - 1;
+			EventLog log = current;
+			if (log != null)
+				log.writeType(type, description);
+			return type;
+		}
+	}
+
+	/**
+	 * Logs an event, if the log is running.
+	 * 
+	 * @param type
+	 *            the type returned by <code>register</code>
+	 * @param first
+	 *            the first argument
+	 * @param second
+	 *            the second argument
+	 */
+	public static void log(int type, long first, long second) {
+		EventLog log = current;
+		if (log != null)
+			log.append(type, first, second);
+	}
+
+	private void append(int type, long first, long second) {
+		long sequence = next.getAndIncrement();
+		int i = (int) (sequence & (BUFFER_SIZE - 1)) * FIELDS;
+		// the slot is marked as being written, so that a writer lapped by
+		// this thread does not take a mix of two events
+		buffer.set(i, -1);
+		buffer.lazySet(i + 1, System.nanoTime() - startNanos);
+		buffer.lazySet(i + 2, ((long) type << 32) | (Thread.currentThread().getId() & 0xffffffffL));
+		buffer.lazySet(i + 3, first);
+		buffer.lazySet(i + 4, second);
+		buffer.lazySet(i, sequence);
+	}
+
+	/**
+	 * Copies the events from memory to the file, until the log is stopped.
+	 */
+	private void drain() {
+		long expected = 0;
+		while (true) {
+			long claimed = next.get();
+			if (claimed - expected > BUFFER_SIZE) {
+				dropped += claimed - BUFFER_SIZE - expected;
+				expected = claimed - BUFFER_SIZE;
+			}
+			if (expected == claimed) {
+				if (!running)
+					break;
+				map.putLong(WRITTEN, written);
+				map.putLong(DROPPED, dropped);
+				LockSupport.parkNanos(1000000);
+				continue;
+			}
+			int i = (int) (expected & (BUFFER_SIZE - 1)) * FIELDS;
+			long sequence = buffer.get(i);
+			if (sequence < expected) {
+				// claimed but still being written
+				Thread.yield();
+				continue;
+			}
+			long time = buffer.get(i + 1);
+			long typeAndThread = buffer.get(i + 2);
+			long first = buffer.get(i + 3);
+			long second = buffer.get(i + 4);
+			if (sequence == expected && buffer.get(i) == expected) {
+				int offset = (int) (DATA_OFFSET + (written % capacity) * RECORD_SIZE);
+				map.putLong(offset, time);
+				map.putLong(offset + 8, typeAndThread);
+				map.putLong(offset + 16, first);
+				map.putLong(offset + 24, second);
+				if ((++written & 1023) == 0)
+					map.putLong(WRITTEN, written);
+			} else
+				dropped++;
+			expected++;
+		}
+	}
+
+	private void writeType(int type, String description) {
+		byte[] utf;
+		try {
+			utf = description.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		int length = Math.min(utf.length, NAME_SIZE - 2);
+		int offset = HEADER_SIZE + type * NAME_SIZE;
+		synchronized (map) {
+			map.putShort(offset, (short) length);
+			for (int i = 0; i < length; i++)
+				map.put(offset + 2 + i, utf[i]);
+			map.putInt(TYPES, Math.max(map.getInt(TYPES), type + 1));
+		}
+	}
+
+	private void close() {
+		map.putLong(WRITTEN, written);
+		map.putLong(DROPPED, dropped);
+		map.force();
+		try {
+			file.close();
+		} catch (IOException e) {
+			logger.warning("Error closing the event log: " + e);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Reads the file of an <code>EventLog</code>, while it is being written or
+ * after, and prints its events from the oldest to the latest, one line each:
+ * the time, the ID of the thread, the type and the arguments, e.g.<br>
+ * <code>2010-03-14 12:03:55.123456 thread 21 transport.enqueue subject=6 trafficClass=17</code>
+ * <br>
+ * Usage: <code>java polimi.util.EventLogDecoder file</code>
+ * 
+ * @see EventLog
+ */
+public class EventLogDecoder {
+	private MappedByteBuffer map;
+	private String[] names;
+	private String[][] arguments;
+	private long capacity;
+	private long startTime;
+
+	/**
+	 * Opens the file of an event log.
+	 * 
+	 * @param f
+	 *            the file
+	 * @throws IOException
+	 *             if the file cannot be read or is not an event log
+	 */
+	public EventLogDecoder(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			file.close();
+		}
+		if (map.capacity() < EventLog.DATA_OFFSET || map.getLong(0) != EventLog.MAGIC)
+			throw new IOException(f + " is not an event log");
+		if (map.getInt(8) != EventLog.VERSION || map.getInt(12) != EventLog.RECORD_SIZE)
+			throw new IOException("Unknown version " + map.getInt(8) + " of the event log");
+		capacity = map.getLong(EventLog.CAPACITY);
+		startTime = map.getLong(EventLog.START_TIME);
+		int types = map.getInt(EventLog.TYPES);
+		names = new String[types];
+		arguments = new String[types][];
+		for (int i = 0; i < types; i++) {
+			int offset = EventLog.HEADER_SIZE + i * EventLog.NAME_SIZE;
+			byte[] utf = new byte[map.getShort(offset)];
+			for (int j = 0; j < utf.length; j++)
+				utf[j] = map.get(offset + 2 + j);
+			String description = new String(utf, "UTF-8");
+			int open = description.indexOf('(');
+			names[i] = open < 0 ? description : description.substring(0, open);
+			arguments[i] = open < 0 ? new String[] { "a", "b" } : description.substring(open + 1,
+					description.length() - 1).split(",", 2);
+		}
+	}
+
+	/**
+	 * Gets the number of events written, including those overwritten.
+	 * 
+	 * @return the number of events written.
+	 */
+	public long getWritten() {
+		return map.getLong(EventLog.WRITTEN);
+	}
+
+	/**
+	 * Gets the number of events dropped because the writer was behind.
+	 * 
+	 * @return the number of events dropped.
+	 */
+	public long getDropped() {
+		return map.getLong(EventLog.DROPPED);
+	}
+
+	/**
+	 * Prints the events still in the file.
+	 * 
+	 * @param out
+	 *            the stream to print to
+	 */
+	public void print(PrintStream out) {
+		long written = getWritten();
+		long first = Math.max(0, written - capacity);
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		out.println("# " + written + " events written since " + format.format(new Date(startTime)) + ", "
+				+ (written - first) + " kept, " + getDropped() + " dropped");
+		StringBuffer line = new StringBuffer();
+		for (long n = first; n < written; n++) {
+			int offset = (int) (EventLog.DATA_OFFSET + (n % capacity) * EventLog.RECORD_SIZE);
+			long nanos = map.getLong(offset);
+			long typeAndThread = map.getLong(offset + 8);
+			int type = (int) (typeAndThread >>> 32);
+			line.setLength(0);
+			line.append(format.format(new Date(startTime + nanos / 1000000)));
+			String micros = String.valueOf(1000 + nanos / 1000 % 1000);
+			line.append(micros.substring(1));
+			line.append(" thread ").append(typeAndThread & 0xffffffffL).append(' ');
+			if (type < names.length) {
+				line.append(names[type]).append(' ').append(arguments[type][0]).append('=');
+				line.append(map.getLong(offset + 16)).append(' ');
+				line.append(arguments[type].length > 1 ? arguments[type][1] : "b").append('=');
+				line.append(map.getLong(offset + 24));
+			} else
+				line.append("type").append(type).append(' ').append(map.getLong(offset + 16)).append(' ')
+						.append(map.getLong(offset + 24));
+			out.println(line);
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: java polimi.util.EventLogDecoder file");
+			System.exit(1);
+		}
+		try {
+			new EventLogDecoder(new File(args[0])).print(System.out);
+		} catch (IOException e) {
+			System.err.println("Cannot read " + args[0] + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non negative values (typically latencies) with a bounded
+ * relative error, in the style of HdrHistogram. The values up to
+ * <code>SUB_BUCKETS</code> have a bucket each; above it each power of two is
+ * split into <code>SUB_BUCKETS</code> equal buckets, so every value is
+ * reported with an error below 1/<code>SUB_BUCKETS</code> of the value
+ * itself, whatever its magnitude, using a fixed array of counters.<br>
+ * Recording takes constant time and does not lock, so several threads may
+ * record in the same histogram while another one reads it.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	/**
+	 * The number of buckets each power of two is split into.
+	 */
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	private AtomicLongArray counts;
+	private AtomicLong count;
+	private AtomicLong sum;
+	private AtomicLong max;
+
+	/**
+	 * Builds an empty histogram.
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	private static long highestValueOf(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 * 
+	 * @param value
+	 *            the value
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value))
+			m = max.get();
+	}
+
+	/**
+	 * Adds all the values recorded by another histogram to this one.
+	 * 
+	 * @param other
+	 *            the histogram to add
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if (c > 0)
+				counts.addAndGet(i, c);
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long value = other.max.get();
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value))
+			m = max.get();
+	}
+
+	/**
+	 * Forgets all the values recorded.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Gets the number of values recorded.
+	 * 
+	 * @return the number of values recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the greatest value recorded, exactly.
+	 * 
+	 * @return the greatest value recorded, 0 if none was.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the mean of the values recorded, exactly.
+	 * 
+	 * @return the mean of the values recorded, 0 if none was.
+	 */
+	public double getMean() {
+		long c = count.get();
+		return c == 0 ? 0 : (double) sum.get() / c;
+	}
+
+	/**
+	 * Gets the value below which the given percentage of the values recorded
+	 * fall, rounded up to the highest value of its bucket.
+	 * 
+	 * @param percentile
+	 *            the percentage, between 0 and 100
+	 * @return the value at the percentile, 0 if no value was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * total);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValueOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	public String toString() {
+		return "count " + getCount() + " mean " + Math.round(getMean()) + " p50 " + getValueAtPercentile(50) + " p99 "
+				+ getValueAtPercentile(99) + " p999 " + getValueAtPercentile(99.9) + " max " + getMax();
+	}
+}
@@ -0,0 +1,314 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A set of named metrics: <code>StripedCounter</code>s,
+ * <code>LatencyHistogram</code>s and <code>Gauge</code>s. Metrics are
+ * created the first time they are asked for, and components usually keep a
+ * reference to them, so updating a metric never goes through the registry.
+ * Names are dot separated paths, such as
+ * <code>routing.matchNanos</code>.<br>
+ * The metrics can be read as a whole with <code>snapshot</code>, written as
+ * text (one <code>name value</code> line each, see
+ * <code>MetricsServer</code>) or exposed as the attributes of a JMX MBean
+ * named <code>polimi.reds:type=Metrics,name=</code><i>name of the
+ * registry</i>. Each histogram is expanded into its count, mean, max and
+ * 50th, 99th and 99.9th percentiles.<br>
+ * All the components of a broker use the shared registry unless told
+ * otherwise: brokers running in the same JVM should be given a registry each.
+ * 
+ * @see MetricsServer
+ */
+public class MetricsRegistry {
+	private static MetricsRegistry shared = null;
+	private String name;
+	private Map metrics;
+	private ObjectName objectName;
+
+	/**
+	 * Builds an empty registry.
+	 * 
+	 * @param name
+	 *            the name of the registry, used to tell it from the others in
+	 *            the JVM
+	 */
+	public MetricsRegistry(String name) {
+		this.name = name;
+		metrics = new ConcurrentHashMap();
+		objectName = null;
+	}
+
+	/**
+	 * Gets the registry used by default, named <code>reds</code>.
+	 * 
+	 * @return the shared registry.
+	 */
+	public static synchronized MetricsRegistry getShared() {
+		if (shared == null)
+			shared = new MetricsRegistry("reds");
+		return shared;
+	}
+
+	/**
+	 * Gets the name of the registry.
+	 * 
+	 * @return the name of the registry.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	private synchronized Object getOrCreate(String metric, Class type) {
+		Object m = metrics.get(metric);
+		if (m == null) {
+			try {
+				m = type.newInstance();
+			} catch (Exception e) {
+				throw new IllegalStateException(e.toString());
+			}
+			metrics.put(metric, m);
+		} else if (!type.isInstance(m))
+			throw new IllegalArgumentException("Metric " + metric + " is not a " + type.getName());
+		return m;
+	}
+
+	/**
+	 * Gets the counter with the given name, creating it if needed.
+	 * 
+	 * @param metric
+	 *            the name of the counter
+	 * @return the counter.
+	 * @throws IllegalArgumentException
+	 *             if a metric of another kind has that name
+	 */
+	public StripedCounter counter(String metric) {
+		Object m = metrics.get(metric);
+		if (m instanceof StripedCounter)
+			return (StripedCounter) m;
+		return (StripedCounter) getOrCreate(metric, StripedCounter.class);
+	}
+
+	/**
+	 * Gets the histogram with the given name, creating it if needed.
+	 * 
+	 * @param metric
+	 *            the name of the histogram
+	 * @return the histogram.
+	 * @throws IllegalArgumentException
+	 *             if a metric of another kind has that name
+	 */
+	public LatencyHistogram histogram(String metric) {
+		Object m = metrics.get(metric);
+		if (m instanceof LatencyHistogram)
+			return (LatencyHistogram) m;
+		return (LatencyHistogram) getOrCreate(metric, LatencyHistogram.class);
+	}
+
+	/**
+	 * Registers a gauge, replacing the metric with the same name, if any.
+	 * 
+	 * @param metric
+	 *            the name of the gauge
+	 * @param gauge
+	 *            the gauge
+	 */
+	public void gauge(String metric, Gauge gauge) {
+		metrics.put(metric, gauge);
+	}
+
+	/**
+	 * Removes a metric.
+	 * 
+	 * @param metric
+	 *            the name of the metric
+	 */
+	public void remove(String metric) {
+		metrics.remove(metric);
+	}
+
+	/**
+	 * Removes all the metrics whose name starts with the given prefix.
+	 * 
+	 * @param prefix
+	 *            the prefix
+	 */
+	public void removeAll(String prefix) {
+		Iterator it = metrics.keySet().iterator();
+		while (it.hasNext())
+			if (((String) it.next()).startsWith(prefix))
+				it.remove();
+	}
+
+	/**
+	 * Reads all the metrics.
+	 * 
+	 * @return a map from the names of the values to their <code>Long</code>
+	 *         values, sorted by name.
+	 */
+	public SortedMap snapshot() {
+		SortedMap result = new TreeMap();
+		Iterator it = metrics.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry e = (Map.Entry) it.next();
+			String metric = (String) e.getKey();
+			Object m = e.getValue();
+			if (m instanceof StripedCounter)
+				result.put(metric, new Long(((StripedCounter) m).get()));
+			else if (m instanceof Gauge)
+				result.put(metric, new Long(((Gauge) m).getValue()));
+			else {
+				LatencyHistogram h = (LatencyHistogram) m;
+				result.put(metric + ".count", new Long(h.getCount()));
+				result.put(metric + ".mean", new Long(Math.round(h.getMean())));
+				result.put(metric + ".p50", new Long(h.getValueAtPercentile(50)));
+				result.put(metric + ".p99", new Long(h.getValueAtPercentile(99)));
+				result.put(metric + ".p999", new Long(h.getValueAtPercentile(99.9)));
+				result.put(metric + ".max", new Long(h.getMax()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes all the metrics as text, one <code>name value</code> line for
+	 * each value, the names prefixed by the name of the registry.
+	 * 
+	 * @param out
+	 *            where the metrics are written
+	 * @throws IOException
+	 *             if <code>out</code> cannot be written
+	 */
+	public void writeText(Writer out) throws IOException {
+		Iterator it = snapshot().entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry e = (Map.Entry) it.next();
+			out.write(name + "." + e.getKey() + " " + e.getValue() + "\n");
+		}
+	}
+
+	/**
+	 * Registers the MBean exposing the metrics in the platform MBean server.
+	 * It has no effect if the MBean is already registered.
+	 * 
+	 * @throws JMException
+	 *             if the MBean cannot be registered
+	 */
+	public synchronized void registerMBean() throws JMException {
+		if (objectName != null)
+			return;
+		ObjectName on = new ObjectName("polimi.reds:type=Metrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), on);
+		objectName = on;
+	}
+
+	/**
+	 * Unregisters the MBean exposing the metrics, if it is registered.
+	 * 
+	 * @throws JMException
+	 *             if the MBean cannot be unregistered
+	 */
+	public synchronized void unregisterMBean() throws JMException {
+		if (objectName == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(objectName))
+			server.unregisterMBean(objectName);
+		objectName = null;
+	}
+
+	public String toString() {
+		StringWriter out = new StringWriter();
+		try {
+			writeText(out);
+		} catch (IOException e) {
+			// not thrown by a StringWriter
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Exposes the values of the metrics as read-only <code>Long</code>
+	 * attributes. The attributes follow the metrics registered, so they may
+	 * change between two calls to <code>getMBeanInfo</code>.
+	 */
+	private class MetricsMBean implements DynamicMBean {
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Object value = snapshot().get(attribute);
+			if (value == null)
+				throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			SortedMap values = snapshot();
+			AttributeList result = new AttributeList();
+			for (int i = 0; i < attributes.length; i++) {
+				Object value = values.get(attributes[i]);
+				if (value != null)
+					result.add(new Attribute(attributes[i], value));
+			}
+			return result;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			SortedMap values = snapshot();
+			MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+			Iterator it = values.keySet().iterator();
+			for (int i = 0; it.hasNext(); i++)
+				attributes[i] = new MBeanAttributeInfo((String) it.next(), "java.lang.Long", "", true, false, false);
+			return new MBeanInfo(MetricsRegistry.class.getName(), "REDS metrics " + name, attributes, null, null,
+					null);
+		}
+	}
+}
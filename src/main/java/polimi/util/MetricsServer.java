@@ -0,0 +1,191 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Serves the metrics of one or more <code>MetricsRegistry</code>s as plain
+ * text over HTTP, so that they can be pulled by a monitoring system or simply
+ * with <code>curl http://host:port/</code>. Whatever the request, the answer
+ * lists the values of all the metrics, one <code>name value</code> line each,
+ * the names prefixed by the name of their registry.<br>
+ * Requests are served one at a time by a daemon thread.
+ */
+public class MetricsServer implements Runnable {
+	// How long a request may take to arrive, in ms
+	private static final int REQUEST_TIMEOUT = 2000;
+	private Logger logger = Logger.getLogger("polimi.util");
+	private int port;
+	private List registries;
+	private ServerSocket serverSocket;
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Builds a server for the shared registry.
+	 * 
+	 * @param port
+	 *            the port to listen to, 0 for any free port
+	 */
+	public MetricsServer(int port) {
+		this(port, MetricsRegistry.getShared());
+	}
+
+	/**
+	 * Builds a server for the given registry.
+	 * 
+	 * @param port
+	 *            the port to listen to, 0 for any free port
+	 * @param registry
+	 *            the registry served
+	 */
+	public MetricsServer(int port, MetricsRegistry registry) {
+		this.port = port;
+		registries = new ArrayList();
+		registries.add(registry);
+	}
+
+	/**
+	 * Adds a registry to the served ones.
+	 * 
+	 * @param registry
+	 *            the registry
+	 */
+	public void addRegistry(MetricsRegistry registry) {
+		synchronized (registries) {
+			if (!registries.contains(registry))
+				registries.add(registry);
+		}
+	}
+
+	/**
+	 * Removes a registry from the served ones.
+	 * 
+	 * @param registry
+	 *            the registry
+	 */
+	public void removeRegistry(MetricsRegistry registry) {
+		synchronized (registries) {
+			registries.remove(registry);
+		}
+	}
+
+	/**
+	 * Opens the server socket and starts serving requests.
+	 * 
+	 * @throws IOException
+	 *             if the socket cannot be opened
+	 */
+	public synchronized void start() throws IOException {
+		if (running)
+			return;
+		serverSocket = new ServerSocket(port);
+		serverSocket.setSoTimeout(500);
+		running = true;
+		thread = new Thread(this, "MetricsServer." + serverSocket.getLocalPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops serving requests and closes the server socket.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (serverSocket != null)
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+	}
+
+	/**
+	 * Gets the port the server listens to.
+	 * 
+	 * @return the port, -1 if the server is not started.
+	 */
+	public synchronized int getPort() {
+		return serverSocket == null ? -1 : serverSocket.getLocalPort();
+	}
+
+	public void run() {
+		while (running) {
+			Socket sock;
+			try {
+				sock = serverSocket.accept();
+			} catch (InterruptedIOException e) {
+				continue;
+			} catch (IOException e) {
+				if (running)
+					logger.warning("MetricsServer stopped: " + e);
+				break;
+			}
+			try {
+				serve(sock);
+			} catch (IOException e) {
+				logger.fine("Error serving metrics to " + sock.getInetAddress() + ": " + e);
+			} finally {
+				try {
+					sock.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+	private void serve(Socket sock) throws IOException {
+		sock.setSoTimeout(REQUEST_TIMEOUT);
+		BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), "ISO-8859-1"));
+		boolean http = false;
+		try {
+			// skip the request and its headers
+			String line = in.readLine();
+			http = line != null && line.indexOf("HTTP/") > 0;
+			while (line != null && line.length() > 0)
+				line = in.readLine();
+		} catch (InterruptedIOException e) {
+			// not an HTTP client: answer anyway
+		}
+		Writer out = new OutputStreamWriter(sock.getOutputStream(), "UTF-8");
+		if (http)
+			out.write("HTTP/1.0 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\nConnection: close\r\n\r\n");
+		MetricsRegistry[] r;
+		synchronized (registries) {
+			r = (MetricsRegistry[]) registries.toArray(new MetricsRegistry[registries.size()]);
+		}
+		for (int i = 0; i < r.length; i++)
+			r[i].writeText(out);
+		out.flush();
+	}
+}
@@ -0,0 +1,110 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads may update at the same time at a low cost. The
+ * count is split among several cells, each on its own cache line, and each
+ * thread updates the cell chosen by its identifier, so threads on different
+ * cores seldom contend for the same line. Reading the counter sums all the
+ * cells: it is meant to be updated often and read seldom.
+ */
+public class StripedCounter {
+	/** The longs in a cache line, so that each cell has a line of its own. */
+	private static final int PADDING = 8;
+	private static final int DEFAULT_STRIPES;
+	static {
+		int n = 1;
+		while (n < Runtime.getRuntime().availableProcessors() && n < 64)
+			n <<= 1;
+		DEFAULT_STRIPES = n;
+	}
+	private AtomicLongArray cells;
+	private int mask;
+
+	/**
+	 * Builds a counter with a cell for each available processor.
+	 */
+	public StripedCounter() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Builds a counter with the given number of cells, rounded up to a power
+	 * of two.
+	 * 
+	 * @param stripes
+	 *            the number of cells
+	 */
+	public StripedCounter(int stripes) {
+		if (stripes < 1)
+			throw new IllegalArgumentException("Stripes " + stripes);
+		int n = 1;
+		while (n < stripes)
+			n <<= 1;
+		mask = n - 1;
+		cells = new AtomicLongArray(n * PADDING);
+	}
+
+	/**
+	 * Adds the given value to the counter.
+	 * 
+	 * @param value
+	 *            the value to add
+	 */
+	public void add(long value) {
+		cells.addAndGet(((int) Thread.currentThread().getId() & mask) * PADDING, value);
+	}
+
+	/**
+	 * Adds one to the counter.
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * Gets the value of the counter. It is not an atomic snapshot: the updates
+	 * made while reading may or may not be counted.
+	 * 
+	 * @return the value of the counter.
+	 */
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i <= mask; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+	/**
+	 * Sets the counter to 0.
+	 */
+	public void reset() {
+		for (int i = 0; i <= mask; i++)
+			cells.set(i * PADDING, 0);
+	}
+
+	public String toString() {
+		return Long.toString(get());
+	}
+}
@@ -0,0 +1,238 @@
+/***
+ * * REDS - REconfigurable Dispatching System
+ * * Copyright (C) 2003 Politecnico di Milano
+ * * <mailto: cugola@elet.polimi.it> <mailto: picco@elet.polimi.it>
+ * *
+ * * This library is free software; you can redistribute it and/or modify it
+ * * under the terms of the GNU Lesser General Public License as published by
+ * * the Free Software Foundation; either version 2.1 of the License, or (at
+ * * your option) any later version.
+ * *
+ * * This library is distributed in the hope that it will be useful, but
+ * * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * * General Public License for more details.
+ * *
+ * * You should have received a copy of the GNU Lesser General Public License
+ * * along with this library; if not, write to the Free Software Foundation,
+ * * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ ***/
+
+package polimi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hierarchical hashed timing wheel. Timeouts are kept in
+ * <code>levels</code> circular arrays of <code>slots</code> lists: a slot of
+ * the first level covers one tick, a slot of the second level covers a whole
+ * turn of the first one, and so on. Scheduling and cancelling a timeout take
+ * constant time. When a level completes a turn the next slot of the level above
+ * is emptied and its timeouts are moved to the lower levels, so each timeout is
+ * moved at most <code>levels - 1</code> times whatever its delay, and each
+ * tick only visits the timeouts that expire or move.<br>
+ * Delays longer than the span of all the levels are parked in the top level
+ * and rescheduled when their slot comes up.<br>
+ * Tasks are run by the thread of the wheel, so they must be short. They may
+ * run up to one tick late.
+ */
+public class TimerWheel implements Runnable {
+	private static TimerWheel shared = null;
+	private Logger logger = Logger.getLogger("polimi.util");
+	private long tick;
+	private int slots;
+	private Timeout[][] wheels;
+	/** <code>spans[l]</code> is the number of ticks covered by a slot of level <code>l</code>. */
+	private long[] spans;
+	/** The number of ticks elapsed since the wheel started. */
+	private long ticks;
+	private long startTime;
+	private boolean stopped;
+	private Thread thread;
+
+	/**
+	 * Builds and starts a wheel.
+	 * 
+	 * @param name
+	 *            the name of the thread running the wheel
+	 * @param tick
+	 *            the duration of a tick, in ms
+	 * @param slots
+	 *            the number of slots of each level
+	 * @param levels
+	 *            the number of levels
+	 */
+	public TimerWheel(String name, long tick, int slots, int levels) {
+		if (slots < 2 || levels < 1)
+			throw new IllegalArgumentException();
+		this.tick = tick;
+		this.slots = slots;
+		wheels = new Timeout[levels][slots];
+		spans = new long[levels];
+		spans[0] = 1;
+		for (int l = 1; l < levels; l++)
+			spans[l] = spans[l - 1] * slots;
+		ticks = 0;
+		stopped = false;
+		startTime = System.currentTimeMillis();
+		thread = new Thread(this);
+		thread.setDaemon(true);
+		thread.setName(name);
+		thread.start();
+	}
+
+	/**
+	 * Returns a wheel with a tick of 100 ms shared by the whole jvm. Its three
+	 * levels of 512 slots span more than 150 days.
+	 */
+	public static synchronized TimerWheel getShared() {
+		if (shared == null)
+			shared = new TimerWheel("TimerWheel.shared", 100, 512, 3);
+		return shared;
+	}
+
+	/**
+	 * Schedules a task.
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @param delay
+	 *            the delay in ms
+	 * @return the timeout, which can be used to cancel the task.
+	 */
+	public synchronized Timeout schedule(Runnable task, long delay) {
+		Timeout timeout = new Timeout(task);
+		long due = System.currentTimeMillis() + Math.max(0, delay) - startTime;
+		timeout.expiry = Math.max(ticks + 1, (due + tick - 1) / tick);
+		insert(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the wheel. Pending tasks are never run.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	/**
+	 * Puts a timeout expiring after the current tick in the lowest level whose
+	 * turn covers it.
+	 */
+	private void insert(Timeout t) {
+		long delta = t.expiry - ticks;
+		int level = 0;
+		while (level < spans.length - 1 && delta >= spans[level + 1])
+			level++;
+		long at = t.expiry;
+		if (level == spans.length - 1 && delta >= spans[level] * slots)
+			at = ticks + spans[level] * slots - 1;
+		t.level = level;
+		t.slot = (int) ((at / spans[level]) % slots);
+		t.prev = null;
+		t.next = wheels[level][t.slot];
+		if (t.next != null)
+			t.next.prev = t;
+		wheels[level][t.slot] = t;
+	}
+
+	private void unlink(Timeout t) {
+		if (t.prev != null)
+			t.prev.next = t.next;
+		else
+			wheels[t.level][t.slot] = t.next;
+		if (t.next != null)
+			t.next.prev = t.prev;
+		t.prev = null;
+		t.next = null;
+		t.slot = -1;
+	}
+
+	/**
+	 * Empties a slot, collecting the expired tasks and moving the other
+	 * timeouts to the level where they belong now.
+	 */
+	private void advance(int level, int slot, List expired) {
+		Timeout t = wheels[level][slot];
+		wheels[level][slot] = null;
+		while (t != null) {
+			Timeout following = t.next;
+			t.prev = null;
+			t.next = null;
+			if (t.expiry <= ticks) {
+				t.slot = -1;
+				expired.add(t.task);
+			} else
+				insert(t);
+			t = following;
+		}
+	}
+
+	public void run() {
+		List expired = new ArrayList();
+		while (true) {
+			synchronized (this) {
+				long next = startTime + (ticks + 1) * tick;
+				long now = System.currentTimeMillis();
+				while (!stopped && now < next) {
+					try {
+						wait(next - now);
+					} catch (InterruptedException e) {
+						return;
+					}
+					now = System.currentTimeMillis();
+				}
+				if (stopped)
+					return;
+				ticks++;
+				for (int l = spans.length - 1; l > 0; l--)
+					if (ticks % spans[l] == 0)
+						advance(l, (int) ((ticks / spans[l]) % slots), expired);
+				advance(0, (int) (ticks % slots), expired);
+			}
+			for (int i = 0; i < expired.size(); i++) {
+				try {
+					((Runnable) expired.get(i)).run();
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Timer task failed", e);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	/**
+	 * A task scheduled on the wheel.
+	 */
+	public class Timeout {
+		private Runnable task;
+		/** The tick at which the task runs. */
+		private long expiry;
+		private int level;
+		private int slot;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Cancels the task.
+		 * 
+		 * @return <code>false</code> if the task already ran or was cancelled.
+		 */
+		public boolean cancel() {
+			synchronized (TimerWheel.this) {
+				if (slot < 0)
+					return false;
+				unlink(this);
+				return true;
+			}
+		}
+	}
+}